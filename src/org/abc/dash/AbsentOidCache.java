@@ -0,0 +1,187 @@
+package org.abc.dash;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This remembers (bean type, oid) pairs that a query confirmed don't exist,
+ * so repeated lookups of a dangling oid don't each issue a query.
+ * <p>
+ * Each bean type keeps up to a fixed number of oids (the least recently
+ * recorded oids are discarded first), and each oid expires after a fixed
+ * duration. The duration is our only defense against beans that are inserted
+ * by other brokers (or other servers), so it should be short.
+ * <p>
+ * When a bean type is modified through our broker all of its oids are
+ * discarded (see {@link #clear(Class)}). To avoid recording an oid that was
+ * inserted while we were querying for it, callers should call
+ * {@link #getModificationCount(Class)} before they query and pass that value
+ * to {@link #add(Class, String, long)}.
+ * <p>
+ * This object is thread-safe.
+ */
+class AbsentOidCache {
+
+	/**
+	 * The expiration time (in milliseconds) of each absent oid, by bean
+	 * type. Each map is in insertion order, so its first entries are the
+	 * oldest.
+	 */
+	protected final Map<Class<?>, LinkedHashMap<String, Long>> expirationsByBeanType = new HashMap<>();
+
+	/**
+	 * The number of times {@link #clear(Class)} was called for each bean type.
+	 */
+	protected final Map<Class<?>, Long> modificationCounts = new HashMap<>();
+
+	protected final int maxSizePerBeanType;
+	protected long timeToLive;
+
+	/**
+	 * @param maxSizePerBeanType
+	 *            the maximum number of absent oids to remember per bean type.
+	 * @param timeToLive
+	 *            the number of milliseconds to remember each absent oid. If
+	 *            this is zero then nothing is remembered.
+	 */
+	AbsentOidCache(int maxSizePerBeanType, long timeToLive) {
+		if (maxSizePerBeanType < 0)
+			throw new IllegalArgumentException("maxSizePerBeanType ("
+					+ maxSizePerBeanType + ") must not be negative");
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("timeToLive (" + timeToLive
+					+ ") must not be negative");
+		this.maxSizePerBeanType = maxSizePerBeanType;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Return true if an oid was recently confirmed to not exist.
+	 */
+	synchronized boolean contains(Class<?> beanType, String beanOid) {
+		LinkedHashMap<String, Long> expirations = expirationsByBeanType
+				.get(beanType);
+		if (expirations == null)
+			return false;
+		Long expiration = expirations.get(beanOid);
+		if (expiration == null)
+			return false;
+		if (expiration.longValue() <= currentTimeMillis()) {
+			expirations.remove(beanOid);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Record that an oid doesn't exist.
+	 *
+	 * @param modificationCount
+	 *            the value {@link #getModificationCount(Class)} returned
+	 *            before the query that confirmed this oid doesn't exist. If
+	 *            the bean type was modified since then this method does
+	 *            nothing.
+	 * @return true if the oid was recorded.
+	 */
+	synchronized boolean add(Class<?> beanType, String beanOid,
+			long modificationCount) {
+		if (timeToLive == 0 || maxSizePerBeanType == 0
+				|| modificationCount != getModificationCount(beanType))
+			return false;
+
+		LinkedHashMap<String, Long> expirations = expirationsByBeanType
+				.get(beanType);
+		if (expirations == null) {
+			expirations = new LinkedHashMap<>();
+			expirationsByBeanType.put(beanType, expirations);
+		}
+
+		long now = currentTimeMillis();
+		// re-insert the oid so it is the newest entry
+		expirations.remove(beanOid);
+		expirations.put(beanOid, now + timeToLive);
+
+		Iterator<Long> iter = expirations.values().iterator();
+		while (iter.hasNext()) {
+			long expiration = iter.next().longValue();
+			if (expirations.size() > maxSizePerBeanType || expiration <= now) {
+				iter.remove();
+			} else {
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the number of times {@link #clear(Class)} was called for a bean
+	 * type.
+	 */
+	synchronized long getModificationCount(Class<?> beanType) {
+		Long count = modificationCounts.get(beanType);
+		return count == null ? 0 : count.longValue();
+	}
+
+	/**
+	 * Discard all the absent oids for a bean type, because a bean of that
+	 * type may have been inserted.
+	 */
+	synchronized void clear(Class<?> beanType) {
+		expirationsByBeanType.remove(beanType);
+		modificationCounts.put(beanType, getModificationCount(beanType) + 1);
+	}
+
+	/**
+	 * Discard all absent oids.
+	 */
+	synchronized void clear() {
+		for (Class<?> beanType : expirationsByBeanType.keySet()) {
+			modificationCounts.put(beanType,
+					getModificationCount(beanType) + 1);
+		}
+		expirationsByBeanType.clear();
+	}
+
+	/**
+	 * Return the number of absent oids we currently remember. This may
+	 * include oids that have expired but haven't been purged yet.
+	 */
+	synchronized int size() {
+		int sum = 0;
+		for (Map<String, Long> expirations : expirationsByBeanType.values()) {
+			sum += expirations.size();
+		}
+		return sum;
+	}
+
+	synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Set the number of milliseconds to remember each absent oid. If this is
+	 * zero then nothing is remembered.
+	 *
+	 * @return true if this changed.
+	 */
+	synchronized boolean setTimeToLive(long timeToLive) {
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("timeToLive (" + timeToLive
+					+ ") must not be negative");
+		if (this.timeToLive == timeToLive)
+			return false;
+		this.timeToLive = timeToLive;
+		if (timeToLive == 0)
+			expirationsByBeanType.clear();
+		return true;
+	}
+
+	/**
+	 * Return the current time. This is only overridden for unit tests.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,390 @@
+package org.abc.dash;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+
+/**
+ * This is a bounded cache of recently materialized beans that sits in front
+ * of a {@link WeakReferenceBeanCache}.
+ * <p>
+ * WeakReferences are usually cleared by the next young-generation garbage
+ * collection, so a list of cached oids often can't be converted back into
+ * beans. This tier keeps strong references (or optionally SoftReferences) to
+ * the most recently used beans, up to a budget that is a fraction of the
+ * maximum heap size. Each bean is weighted by an estimate of its shallow size
+ * (see {@link #getWeight(X2BaseBean)}).
+ * <p>
+ * Like the {@link StripedCachePool}: reads never acquire a lock, writes are
+ * striped across several segments, and reading a bean marks it as referenced
+ * so it gets a "second chance" before it is evicted. When a bean is evicted
+ * it is passed to {@link #evicted(X2BaseBean)}, which the
+ * WeakReferenceBeanCache uses to demote it to its weak tier.
+ */
+public class BeanRetentionTier {
+
+	/**
+	 * The default fraction of the maximum heap size this tier may use.
+	 */
+	public static final double DEFAULT_HEAP_FRACTION = .05;
+
+	protected static final int SEGMENT_COUNT = 16;
+
+	static class Entry {
+		final String oid;
+		final Object value;
+		final long weight;
+		volatile boolean referenced = false;
+
+		Entry(X2BaseBean bean, boolean soft, long weight) {
+			this.oid = bean.getOid();
+			this.value = soft ? new SoftReference<>(bean) : bean;
+			this.weight = weight;
+		}
+
+		X2BaseBean getBean() {
+			if (value instanceof SoftReference)
+				return (X2BaseBean) ((SoftReference<?>) value).get();
+			return (X2BaseBean) value;
+		}
+	}
+
+	/**
+	 * A segment guards writes to a subset of our oids, and it keeps track of
+	 * the order those oids were added in.
+	 */
+	static class Segment extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The entries in this segment, from oldest to newest. This should only
+		 * be accessed while this lock is held.
+		 */
+		final LinkedHashMap<String, Entry> order = new LinkedHashMap<>();
+		long weight = 0;
+
+		/**
+		 * Remove and return the first unreferenced entry, giving referenced
+		 * entries a second chance. This should only be called while this lock
+		 * is held.
+		 */
+		Entry evict() {
+			int ctr = order.size();
+			Iterator<Entry> iter = order.values().iterator();
+			while (iter.hasNext()) {
+				Entry head = iter.next();
+				if (!head.referenced || ctr <= 0) {
+					iter.remove();
+					weight -= head.weight;
+					return head;
+				}
+				head.referenced = false;
+				iter.remove();
+				order.put(head.oid, head);
+				iter = order.values().iterator();
+				ctr--;
+			}
+			return null;
+		}
+	}
+
+	private static final ConcurrentMap<Class<?>, Long> weightByBeanType = new ConcurrentHashMap<>();
+
+	protected final ConcurrentMap<String, Entry> map = new ConcurrentHashMap<>();
+	protected final Segment[] segments = new Segment[SEGMENT_COUNT];
+	protected final long maxSegmentWeight;
+	protected final boolean soft;
+	protected final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Create a BeanRetentionTier that uses a fraction of the maximum heap
+	 * size.
+	 *
+	 * @param heapFraction
+	 *            the fraction of {@link Runtime#maxMemory()} the retained beans
+	 *            may use, such as .05 for 5%.
+	 * @param soft
+	 *            if true then beans are retained with SoftReferences, so the
+	 *            garbage collector can still reclaim them if the heap is
+	 *            almost full. If false then beans are strongly retained.
+	 */
+	public BeanRetentionTier(double heapFraction, boolean soft) {
+		this((long) (Runtime.getRuntime().maxMemory() * heapFraction), soft);
+	}
+
+	/**
+	 * Create a BeanRetentionTier.
+	 *
+	 * @param maxWeight
+	 *            the estimated number of bytes the retained beans may use.
+	 * @param soft
+	 *            if true then beans are retained with SoftReferences. If false
+	 *            then beans are strongly retained.
+	 */
+	public BeanRetentionTier(long maxWeight, boolean soft) {
+		if (maxWeight < 0)
+			throw new IllegalArgumentException("maxWeight (" + maxWeight
+					+ ") must not be negative");
+		this.maxSegmentWeight = maxWeight / SEGMENT_COUNT;
+		this.soft = soft;
+		for (int a = 0; a < segments.length; a++) {
+			segments[a] = new Segment();
+		}
+	}
+
+	Segment getSegment(String oid) {
+		int h = oid.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * Return a retained bean, or null if this tier doesn't contain the bean.
+	 */
+	public X2BaseBean getBean(Class<?> beanType, String oid) {
+		if (oid == null)
+			return null;
+		Entry entry = map.get(oid);
+		if (entry == null)
+			return null;
+		X2BaseBean bean = entry.getBean();
+		if (bean == null) {
+			remove(oid);
+			return null;
+		}
+		if (beanType != null && !beanType.isInstance(bean))
+			return null;
+		entry.referenced = true;
+		return bean;
+	}
+
+	/**
+	 * Retain a bean, possibly evicting other beans.
+	 */
+	public void storeBean(X2BaseBean bean) {
+		String oid = bean.getOid();
+		if (oid == null)
+			return;
+
+		Entry existing = map.get(oid);
+		if (existing != null && existing.getBean() == bean) {
+			existing.referenced = true;
+			return;
+		}
+
+		long weight = getWeight(bean);
+		if (weight > maxSegmentWeight) {
+			evictionCount.incrementAndGet();
+			evicted(bean);
+			return;
+		}
+
+		List<Entry> evictedEntries = null;
+		Segment segment = getSegment(oid);
+		segment.lock();
+		try {
+			Entry newEntry = new Entry(bean, soft, weight);
+			Entry oldEntry = segment.order.remove(oid);
+			if (oldEntry != null)
+				segment.weight -= oldEntry.weight;
+			segment.order.put(oid, newEntry);
+			segment.weight += weight;
+			map.put(oid, newEntry);
+
+			while (segment.weight > maxSegmentWeight) {
+				Entry e = segment.evict();
+				if (e == null)
+					break;
+				map.remove(e.oid, e);
+				if (evictedEntries == null)
+					evictedEntries = new ArrayList<>();
+				evictedEntries.add(e);
+			}
+		} finally {
+			segment.unlock();
+		}
+
+		if (evictedEntries != null) {
+			for (Entry e : evictedEntries) {
+				evictionCount.incrementAndGet();
+				X2BaseBean evictedBean = e.getBean();
+				if (evictedBean != null)
+					evicted(evictedBean);
+			}
+		}
+	}
+
+	/**
+	 * This is called after a bean is evicted from this tier. The default
+	 * implementation does nothing.
+	 */
+	protected void evicted(X2BaseBean bean) {
+	}
+
+	/**
+	 * Remove a bean from this tier.
+	 *
+	 * @return true if a bean was removed.
+	 */
+	public boolean remove(String oid) {
+		if (oid == null)
+			return false;
+		Segment segment = getSegment(oid);
+		segment.lock();
+		try {
+			Entry entry = segment.order.remove(oid);
+			if (entry == null)
+				return false;
+			segment.weight -= entry.weight;
+			map.remove(oid, entry);
+			return true;
+		} finally {
+			segment.unlock();
+		}
+	}
+
+	/**
+	 * Remove all beans of a given type from this tier.
+	 *
+	 * @return the number of beans removed.
+	 */
+	public int clear(Class<?> beanType) {
+		int removed = 0;
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				Iterator<Entry> iter = segment.order.values().iterator();
+				while (iter.hasNext()) {
+					Entry entry = iter.next();
+					X2BaseBean bean = entry.getBean();
+					if (bean == null || beanType == null
+							|| bean.getClass() == beanType) {
+						iter.remove();
+						segment.weight -= entry.weight;
+						map.remove(entry.oid, entry);
+						if (bean != null)
+							removed++;
+					}
+				}
+			} finally {
+				segment.unlock();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove all beans from this tier.
+	 */
+	public void clear() {
+		clear(null);
+	}
+
+	/**
+	 * Remove beans whose SoftReferences were cleared.
+	 */
+	public void purge() {
+		if (!soft)
+			return;
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				Iterator<Entry> iter = segment.order.values().iterator();
+				while (iter.hasNext()) {
+					Entry entry = iter.next();
+					if (entry.getBean() == null) {
+						iter.remove();
+						segment.weight -= entry.weight;
+						map.remove(entry.oid, entry);
+					}
+				}
+			} finally {
+				segment.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Return the number of beans in this tier.
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * Return the estimated number of bytes the beans in this tier use.
+	 */
+	public long getWeight() {
+		long sum = 0;
+		for (Segment segment : segments) {
+			segment.lock();
+			try {
+				sum += segment.weight;
+			} finally {
+				segment.unlock();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Return the number of beans this tier evicted because it exceeded its
+	 * budget.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Return the estimated number of bytes a bean uses.
+	 * <p>
+	 * The default implementation estimates the shallow size of the bean's
+	 * class (an object header, plus every primitive field, plus every
+	 * reference field and a small referent such as a short String). This is
+	 * calculated once per bean class.
+	 */
+	protected long getWeight(X2BaseBean bean) {
+		Class<?> beanType = bean.getClass();
+		Long weight = weightByBeanType.get(beanType);
+		if (weight == null) {
+			weight = estimateWeight(beanType);
+			weightByBeanType.put(beanType, weight);
+		}
+		return weight.longValue();
+	}
+
+	static long estimateWeight(Class<?> type) {
+		long sum = 16;
+		while (type != null) {
+			for (Field field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+				Class<?> t = field.getType();
+				if (t == Long.TYPE || t == Double.TYPE) {
+					sum += 8;
+				} else if (t == Integer.TYPE || t == Float.TYPE) {
+					sum += 4;
+				} else if (t == Short.TYPE || t == Character.TYPE) {
+					sum += 2;
+				} else if (t.isPrimitive()) {
+					sum += 1;
+				} else {
+					// the reference plus a small referent
+					sum += 8 + 48;
+				}
+			}
+			type = type.getSuperclass();
+		}
+		return sum;
+	}
+}
@@ -4,6 +4,10 @@ import com.follett.fsc.core.k12.business.X2Broker;
 
 /**
  * A BrokerDash is an X2Broker that caches some of its operations and beans.
+ * <p>
+ * While a transaction is open the beans this broker saves or deletes are only
+ * visible to this broker. They are applied to the shared Dash caches when the
+ * transaction is committed, and they are discarded when it is rolled back.
  */
 public interface BrokerDash extends X2Broker {
 
@@ -0,0 +1,242 @@
+package org.abc.dash;
+
+import org.abc.dash.Dash.CacheResults;
+import org.abc.dash.Dash.TemplateQueryProfile;
+
+/**
+ * This decides whether Dash should cache a query, and how many oids it is
+ * willing to cache for that query.
+ * <p>
+ * Every decision is based on the query's {@link TemplateQueryProfile}:
+ * <ul>
+ * <li>Rare templates are left alone. Dash is supposed to help frequent
+ * repetitive queries, and large tasks usually start with a huge outermost query
+ * (such as grabbing 10,000 students to iterate over) that we should let slip
+ * by with no interference.</li>
+ * <li>Each template gets its own budget (the maximum number of oids we'll
+ * cache). If a template routinely returns more beans than the default budget,
+ * and its cached results are actually reused, then its budget grows to fit its
+ * largest observed result. How far a budget can grow depends on how much heap
+ * is available.</li>
+ * <li>If a template's average result is larger than its budget then we skip it
+ * without any additional overhead.</li>
+ * <li>If a template's cached results are almost never reused then we retire
+ * it. A retired template is skipped until its profile expires from the
+ * cache.</li>
+ * </ul>
+ * Each of these outcomes is recorded in the CacheResults (see
+ * {@link Decision#getResultType()}).
+ * <p>
+ * Dash also consults this policy for column queries. In that case the budget
+ * is a number of rows instead of a number of oids.
+ */
+public class CachePolicy {
+
+	/**
+	 * The outcome of {@link CachePolicy#getDecision(TemplateQueryProfile, int)}.
+	 */
+	public enum Decision {
+		/**
+		 * This indicates the query should be cached.
+		 */
+		CACHE(null),
+		/**
+		 * This indicates the template hasn't been issued often enough to be
+		 * worth caching.
+		 */
+		SKIP_RARE(CacheResults.Type.QUERY_SKIP),
+		/**
+		 * This indicates the template's average result size exceeds its
+		 * budget.
+		 */
+		SKIP_OVER_BUDGET(CacheResults.Type.QUERY_SKIP_OVER_BUDGET),
+		/**
+		 * This indicates the template's cached results are (almost) never
+		 * reused.
+		 */
+		SKIP_RETIRED(CacheResults.Type.QUERY_SKIP_RETIRED);
+
+		private final CacheResults.Type resultType;
+
+		Decision(CacheResults.Type resultType) {
+			this.resultType = resultType;
+		}
+
+		/**
+		 * Return the CacheResults type a skipped query is recorded as, or null
+		 * if this decision is {@link #CACHE}.
+		 */
+		public CacheResults.Type getResultType() {
+			return resultType;
+		}
+	}
+
+	protected int minExecutions = 10;
+	protected int minSampleSize = 20;
+	protected int retirementSampleSize = 100;
+	protected double retirementHitRatio = .01;
+	protected double growthHitRatio = .1;
+	protected int maxBudget = 5000;
+	protected double minHeapHeadroom = .15;
+	protected int maxLoopPrefetchSize = 100;
+
+	/**
+	 * Create a CachePolicy with the default thresholds.
+	 */
+	public CachePolicy() {
+	}
+
+	/**
+	 * Create a CachePolicy.
+	 *
+	 * @param minExecutions
+	 *            the number of times a template has to be issued before we
+	 *            consider caching it.
+	 * @param maxBudget
+	 *            the largest number of oids we'll ever cache for one query.
+	 */
+	public CachePolicy(int minExecutions, int maxBudget) {
+		this.minExecutions = minExecutions;
+		this.maxBudget = maxBudget;
+	}
+
+	/**
+	 * Return whether a query matching the given profile should be cached.
+	 *
+	 * @param profile
+	 *            the profile of the query's template.
+	 * @param defaultBudget
+	 *            the number of oids we're always willing to cache.
+	 */
+	public Decision getDecision(TemplateQueryProfile profile, int defaultBudget) {
+		if (profile.getCounter() < minExecutions)
+			return Decision.SKIP_RARE;
+
+		if (isRetired(profile))
+			return Decision.SKIP_RETIRED;
+
+		if (profile.getCounter() > retirementSampleSize
+				&& profile.getAverageReturnCount() > getBudget(profile,
+						defaultBudget)) {
+			// If the odds are decent that we're going to get close to
+			// our limit: give up now without additional overhead.
+			return Decision.SKIP_OVER_BUDGET;
+		}
+
+		return Decision.CACHE;
+	}
+
+	/**
+	 * Return the maximum number of oids we'll cache for a query matching the
+	 * given profile. This is never less than the default budget.
+	 *
+	 * @param profile
+	 *            the profile of the query's template.
+	 * @param defaultBudget
+	 *            the number of oids we're always willing to cache.
+	 */
+	public int getBudget(TemplateQueryProfile profile, int defaultBudget) {
+		int maxReturnCount = profile.getMaxReturnCount();
+		if (maxReturnCount <= defaultBudget)
+			return defaultBudget;
+
+		double hitRatio = getHitRatio(profile);
+		if (hitRatio >= 0 && hitRatio < growthHitRatio)
+			return defaultBudget;
+
+		// leave a little room for the result to grow
+		long desired = maxReturnCount + maxReturnCount / 4;
+
+		double headroom = getHeapHeadroom();
+		if (headroom <= minHeapHeadroom)
+			return defaultBudget;
+		double scale = Math.min(1, (headroom - minHeapHeadroom)
+				/ (1 - minHeapHeadroom));
+		long ceiling = defaultBudget
+				+ (long) ((maxBudget - defaultBudget) * scale);
+
+		return (int) Math.max(defaultBudget, Math.min(desired, ceiling));
+	}
+
+	/**
+	 * Return the number of distinct values we should prefetch when a query
+	 * matching the given profile looks like one iteration of a loop. This
+	 * aims to fetch about one budget's worth of beans in a single query.
+	 *
+	 * @param profile
+	 *            the profile of the query's template.
+	 * @param budget
+	 *            the maximum number of oids we'll cache for one query.
+	 */
+	public int getLoopPrefetchSize(TemplateQueryProfile profile, int budget) {
+		double perValue = Math.max(1, profile.getAverageReturnCount());
+		return (int) Math.min(maxLoopPrefetchSize, budget / perValue);
+	}
+
+	/**
+	 * Return true if a template's cached results are so rarely reused that we
+	 * should stop caching it.
+	 */
+	public boolean isRetired(TemplateQueryProfile profile) {
+		CacheResults results = profile.getResults();
+		long sampleSize = getHitCount(results) + getMissCount(results);
+		if (sampleSize < retirementSampleSize)
+			return false;
+		return getHitRatio(profile) < retirementHitRatio;
+	}
+
+	/**
+	 * Return the fraction of cached lookups for a template that were resolved
+	 * (at least partially) by our cache, or -1 if we haven't observed enough
+	 * lookups to tell.
+	 * <p>
+	 * Queries that were aborted because they returned too many beans are not
+	 * included here: those results were never cached, so they don't tell us
+	 * whether the results would be reused.
+	 */
+	public double getHitRatio(TemplateQueryProfile profile) {
+		CacheResults results = profile.getResults();
+		long hits = getHitCount(results);
+		long total = hits + getMissCount(results);
+		if (total < minSampleSize)
+			return -1;
+		return ((double) hits) / ((double) total);
+	}
+
+	private long getHitCount(CacheResults results) {
+		return results.getCount(CacheResults.Type.QUERY_HIT)
+				+ results.getCount(CacheResults.Type.QUERY_HIT_FROM_SPLIT)
+				+ results.getCount(CacheResults.Type.QUERY_HIT_COALESCED)
+				+ results.getCount(CacheResults.Type.QUERY_HIT_WITH_REFILL)
+				+ results.getCount(CacheResults.Type.QUERY_HIT_FROM_SUBSUMPTION)
+				+ results.getCount(CacheResults.Type.QUERY_HIT_FROM_PRELOAD)
+				+ results.getCount(CacheResults.Type.QUERY_REDUCED_FROM_SPLIT)
+				+ results.getCount(CacheResults.Type.COLUMN_QUERY_HIT);
+	}
+
+	private long getMissCount(CacheResults results) {
+		return results.getCount(CacheResults.Type.QUERY_MISS)
+				+ results.getCount(CacheResults.Type.QUERY_MISS_WITH_PREFETCH)
+				+ results.getCount(CacheResults.Type.COLUMN_QUERY_MISS);
+	}
+
+	/**
+	 * Return the fraction of the maximum heap that is currently unused (from
+	 * 0 to 1).
+	 */
+	protected double getHeapHeadroom() {
+		Runtime runtime = Runtime.getRuntime();
+		long max = runtime.maxMemory();
+		if (max == Long.MAX_VALUE)
+			max = runtime.totalMemory();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return 1 - ((double) used) / ((double) max);
+	}
+
+	@Override
+	public String toString() {
+		return "CachePolicy[ minExecutions=" + minExecutions + ", maxBudget="
+				+ maxBudget + ", retirementHitRatio=" + retirementHitRatio
+				+ "]";
+	}
+}
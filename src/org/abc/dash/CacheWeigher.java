@@ -0,0 +1,19 @@
+package org.abc.dash;
+
+/**
+ * This estimates how much memory an entry in a DashCache uses.
+ *
+ * @see StripedCachePool#StripedCachePool(int, long, int, long, CacheWeigher)
+ */
+public interface CacheWeigher {
+
+	/**
+	 * Return the estimated number of bytes a cache entry retains.
+	 *
+	 * @param key
+	 *            the key of the entry.
+	 * @param value
+	 *            the value of the entry.
+	 */
+	public long getWeight(Object key, Object value);
+}
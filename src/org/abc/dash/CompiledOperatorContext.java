@@ -0,0 +1,264 @@
+package org.abc.dash;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+
+import com.pump.data.operator.OperatorContext;
+import com.x2dev.utils.StringUtils;
+
+/**
+ * This OperatorContext compiles each combination of a bean class and an
+ * attribute expression (like "upper(nameView)") into a reusable accessor.
+ * <p>
+ * The first time we see a combination we parse the expression and look up the
+ * property's getter. After that retrieving a value is a cache lookup followed
+ * by a MethodHandle invocation: we don't parse anything, allocate any helper
+ * objects, or consult commons-beanutils' introspection caches.
+ * <p>
+ * Anything we can't compile (such as a nested path like "person.lastName", a
+ * Map, or a DynaBean) is still resolved through
+ * {@link PropertyUtils#getProperty(Object, String)}, so this produces exactly
+ * the same values (and exceptions) as {@link Dash#REFLECTION_CONTEXT}.
+ */
+public class CompiledOperatorContext implements OperatorContext {
+
+	/**
+	 * A function that can wrap an attribute name.
+	 */
+	enum Function {
+		UPPER("upper(") {
+			@Override
+			Object apply(Object input) {
+				if (input == null)
+					return null;
+				return ((String) input).toUpperCase();
+			}
+		},
+		ISNUMERIC("ISNUMERIC(") {
+			@Override
+			Object apply(Object input) {
+				if (input == null)
+					return null;
+				return StringUtils.isNumeric((String) input);
+			}
+		};
+
+		final String prefix;
+
+		Function(String prefix) {
+			this.prefix = prefix;
+		}
+
+		abstract Object apply(Object input);
+	}
+
+	/**
+	 * This retrieves a property from a bean.
+	 */
+	static abstract class Accessor {
+		abstract Object getValue(Object dataSource) throws Exception;
+	}
+
+	/**
+	 * This invokes a getter method through a MethodHandle.
+	 */
+	static class MethodHandleAccessor extends Accessor {
+		final MethodHandle handle;
+
+		MethodHandleAccessor(MethodHandle handle) {
+			this.handle = handle.asType(MethodType.methodType(Object.class,
+					Object.class));
+		}
+
+		@Override
+		Object getValue(Object dataSource) throws Exception {
+			try {
+				return (Object) handle.invokeExact(dataSource);
+			} catch (Throwable t) {
+				// PropertyUtils would have wrapped this in an
+				// InvocationTargetException, so we do too
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	/**
+	 * This delegates to commons-beanutils.
+	 */
+	static class PropertyUtilsAccessor extends Accessor {
+		final String propertyName;
+
+		PropertyUtilsAccessor(String propertyName) {
+			this.propertyName = propertyName;
+		}
+
+		@Override
+		Object getValue(Object dataSource) throws Exception {
+			return PropertyUtils.getProperty(dataSource, propertyName);
+		}
+	}
+
+	/**
+	 * This is an attribute expression after we've separated the property name
+	 * from the functions that wrap it.
+	 */
+	static class Expression {
+		final String propertyName;
+
+		/**
+		 * The functions to apply, starting with the innermost function.
+		 */
+		final Function[] functions;
+
+		Expression(String attributeName) {
+			List<Function> list = new ArrayList<>();
+			String input = attributeName;
+			parse: while (true) {
+				for (Function f : Function.values()) {
+					if (input.startsWith(f.prefix) && input.endsWith(")")) {
+						list.add(0, f);
+						input = input.substring(f.prefix.length(),
+								input.length() - 1);
+						continue parse;
+					}
+				}
+				break;
+			}
+			propertyName = input;
+			functions = list.toArray(new Function[list.size()]);
+		}
+
+		boolean isSimpleProperty() {
+			for (int a = 0; a < propertyName.length(); a++) {
+				if (!Character.isJavaIdentifierPart(propertyName.charAt(a)))
+					return false;
+			}
+			return propertyName.length() > 0;
+		}
+	}
+
+	/**
+	 * An Accessor combined with the functions that should be applied to its
+	 * value.
+	 */
+	static class CompiledAttribute {
+		final Accessor accessor;
+		final Function[] functions;
+
+		CompiledAttribute(Accessor accessor, Function[] functions) {
+			this.accessor = accessor;
+			this.functions = functions;
+		}
+	}
+
+	protected final ConcurrentMap<String, Expression> expressions = new ConcurrentHashMap<>();
+	protected final ConcurrentMap<Class<?>, ConcurrentMap<String, CompiledAttribute>> attributesByClass = new ConcurrentHashMap<>();
+
+	@Override
+	public Object getValue(Object dataSource, String attributeName) {
+		CompiledAttribute attribute = getCompiledAttribute(dataSource,
+				attributeName);
+
+		Object value;
+		try {
+			value = attribute.accessor.getValue(dataSource);
+		} catch (IllegalAccessException | InvocationTargetException
+				| NoSuchMethodException e) {
+			throw new RuntimeException("An error occurred retrieving \""
+					+ attributeName + "\" from " + dataSource, e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("An error occurred retrieving \""
+					+ attributeName + "\" from " + dataSource, e);
+		}
+
+		Function[] functions = attribute.functions;
+		for (int a = 0; a < functions.length; a++) {
+			value = functions[a].apply(value);
+		}
+		return value;
+	}
+
+	/**
+	 * Return the CompiledAttribute for a bean and an attribute expression,
+	 * creating it if necessary.
+	 */
+	protected CompiledAttribute getCompiledAttribute(Object dataSource,
+			String attributeName) {
+		if (dataSource == null) {
+			// let PropertyUtils throw the appropriate exception
+			Expression expr = getExpression(attributeName);
+			return new CompiledAttribute(new PropertyUtilsAccessor(
+					expr.propertyName), expr.functions);
+		}
+
+		Class<?> type = dataSource.getClass();
+		ConcurrentMap<String, CompiledAttribute> attributes = attributesByClass
+				.get(type);
+		if (attributes == null) {
+			ConcurrentMap<String, CompiledAttribute> newAttributes = new ConcurrentHashMap<>();
+			attributes = attributesByClass.putIfAbsent(type, newAttributes);
+			if (attributes == null)
+				attributes = newAttributes;
+		}
+
+		CompiledAttribute attribute = attributes.get(attributeName);
+		if (attribute == null) {
+			Expression expr = getExpression(attributeName);
+			attribute = new CompiledAttribute(createAccessor(dataSource,
+					expr.propertyName, expr.isSimpleProperty()), expr.functions);
+			attributes.put(attributeName, attribute);
+		}
+		return attribute;
+	}
+
+	private Expression getExpression(String attributeName) {
+		Expression expr = expressions.get(attributeName);
+		if (expr == null) {
+			expr = new Expression(attributeName);
+			expressions.put(attributeName, expr);
+		}
+		return expr;
+	}
+
+	/**
+	 * Create an Accessor for a property. This returns a MethodHandleAccessor
+	 * if possible, or a PropertyUtilsAccessor otherwise.
+	 */
+	protected Accessor createAccessor(Object dataSource, String propertyName,
+			boolean isSimpleProperty) {
+		if (isSimpleProperty && !(dataSource instanceof Map)
+				&& !(dataSource instanceof DynaBean)) {
+			try {
+				PropertyDescriptor pd = PropertyUtils.getPropertyDescriptor(
+						dataSource, propertyName);
+				Method readMethod = pd == null || pd.getReadMethod() == null ? null
+						: MethodUtils.getAccessibleMethod(
+								dataSource.getClass(), pd.getReadMethod());
+				if (readMethod != null
+						&& readMethod.getParameterTypes().length == 0) {
+					MethodHandle handle = MethodHandles.publicLookup()
+							.unreflect(readMethod);
+					return new MethodHandleAccessor(handle);
+				}
+			} catch (Exception e) {
+				// fall through and let PropertyUtils handle this
+			}
+		}
+		return new PropertyUtilsAccessor(propertyName);
+	}
+}
@@ -5,7 +5,9 @@ import java.util.Enumeration;
 
 import org.apache.ojb.broker.query.BetweenCriteria;
 import org.apache.ojb.broker.query.Criteria;
+import org.apache.ojb.broker.query.FieldCriteria;
 import org.apache.ojb.broker.query.LikeCriteria;
+import org.apache.ojb.broker.query.ReportQueryByCriteria;
 import org.apache.ojb.broker.query.ValueCriteria;
 
 import com.pump.data.operator.And;
@@ -55,6 +57,38 @@ public class CriteriaToOperatorConverterImpl implements
 			} else if (sub instanceof Like) {
 				Like l = (Like) sub;
 				c.addNotLike(l.getAttribute(), l.getValue().getPatternText());
+			} else if (sub instanceof SubQueryIn) {
+				SubQueryIn i = (SubQueryIn) sub;
+				c.addNotIn(i.getAttribute(), i.getSubQuery());
+			} else if (sub instanceof FieldComparison) {
+				// like SQL's NOT, this still excludes null attributes
+				FieldComparison f = (FieldComparison) sub;
+				switch (f.getType()) {
+				case EQUAL_TO:
+					c.addNotEqualToField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				case NOT_EQUAL_TO:
+					c.addEqualToField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				case GREATER_THAN:
+					c.addLessOrEqualThanField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				case GREATER_OR_EQUAL:
+					c.addLessThanField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				case LESSER_THAN:
+					c.addGreaterOrEqualThanField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				case LESSER_OR_EQUAL:
+					c.addGreaterThanField(f.getLeftAttribute(),
+							f.getRightAttribute());
+					break;
+				}
 			} else if (sub instanceof And) {
 				And and = (And) sub;
 				for (int a = 0; a < and.getOperandCount(); a++) {
@@ -103,6 +137,35 @@ public class CriteriaToOperatorConverterImpl implements
 		} else if (operator instanceof Like) {
 			Like l = (Like) operator;
 			c.addLike(l.getAttribute(), l.getValue().getPatternText());
+		} else if (operator instanceof SubQueryIn) {
+			SubQueryIn i = (SubQueryIn) operator;
+			c.addIn(i.getAttribute(), i.getSubQuery());
+		} else if (operator instanceof FieldComparison) {
+			FieldComparison f = (FieldComparison) operator;
+			switch (f.getType()) {
+			case EQUAL_TO:
+				c.addEqualToField(f.getLeftAttribute(), f.getRightAttribute());
+				break;
+			case NOT_EQUAL_TO:
+				c.addNotEqualToField(f.getLeftAttribute(),
+						f.getRightAttribute());
+				break;
+			case GREATER_THAN:
+				c.addGreaterThanField(f.getLeftAttribute(),
+						f.getRightAttribute());
+				break;
+			case GREATER_OR_EQUAL:
+				c.addGreaterOrEqualThanField(f.getLeftAttribute(),
+						f.getRightAttribute());
+				break;
+			case LESSER_THAN:
+				c.addLessThanField(f.getLeftAttribute(), f.getRightAttribute());
+				break;
+			case LESSER_OR_EQUAL:
+				c.addLessOrEqualThanField(f.getLeftAttribute(),
+						f.getRightAttribute());
+				break;
+			}
 		} else if (operator instanceof And) {
 			And and = (And) operator;
 			for (int a = 0; a < and.getOperandCount(); a++) {
@@ -130,7 +193,14 @@ public class CriteriaToOperatorConverterImpl implements
 		while (e.hasMoreElements()) {
 			Object z = e.nextElement();
 			Operator op = null;
-			if (z instanceof ValueCriteria) {
+			if (z instanceof FieldCriteria) {
+				op = createFieldOperator((FieldCriteria) z);
+				if (current == null) {
+					current = op;
+				} else {
+					current = new And(current, op);
+				}
+			} else if (z instanceof ValueCriteria) {
 				ValueCriteria vc = (ValueCriteria) z;
 				BetweenCriteria bc = vc instanceof BetweenCriteria ? (BetweenCriteria) vc
 						: null;
@@ -191,12 +261,22 @@ public class CriteriaToOperatorConverterImpl implements
 							(Comparable) bc.getValue2()));
 					break;
 				case " IN ":
-					op = In.create((String) vc.getAttribute(),
-							(Collection<?>) vc.getValue());
+					if (isSubQuery(vc.getValue())) {
+						op = new SubQueryIn((String) vc.getAttribute(),
+								(ReportQueryByCriteria) vc.getValue());
+					} else {
+						op = In.create((String) vc.getAttribute(),
+								(Collection<?>) vc.getValue());
+					}
 					break;
 				case " NOT IN ":
-					op = new Not(In.create((String) vc.getAttribute(),
-							(Collection<?>) vc.getValue()));
+					if (isSubQuery(vc.getValue())) {
+						op = new Not(new SubQueryIn((String) vc.getAttribute(),
+								(ReportQueryByCriteria) vc.getValue()));
+					} else {
+						op = new Not(In.create((String) vc.getAttribute(),
+								(Collection<?>) vc.getValue()));
+					}
 					break;
 				}
 
@@ -232,4 +312,54 @@ public class CriteriaToOperatorConverterImpl implements
 		}
 		return current;
 	}
+
+	/**
+	 * Return true if an IN criteria's value is a subquery that returns one
+	 * column.
+	 */
+	private static boolean isSubQuery(Object value) {
+		if (!(value instanceof ReportQueryByCriteria))
+			return false;
+		String[] columns = ((ReportQueryByCriteria) value).getColumns();
+		return columns != null && columns.length == 1;
+	}
+
+	/**
+	 * Convert a FieldCriteria (which compares two attributes of the same
+	 * bean) into an Operator.
+	 */
+	protected Operator createFieldOperator(FieldCriteria fc) {
+		String left = (String) fc.getAttribute();
+		Object right = fc.getValue();
+		if (!(right instanceof String))
+			throw new IllegalArgumentException(
+					"Unsupported field criteria element: " + fc);
+		String rightAttribute = (String) right;
+
+		// these Strings are copied and pasted from protected constants
+		// in SelectionCriteria
+		switch (fc.getClause()) {
+		case " = ":
+			return new FieldComparison(left, FieldComparison.Type.EQUAL_TO,
+					rightAttribute);
+		case " <> ":
+			return new FieldComparison(left,
+					FieldComparison.Type.NOT_EQUAL_TO, rightAttribute);
+		case " > ":
+			return new FieldComparison(left,
+					FieldComparison.Type.GREATER_THAN, rightAttribute);
+		case " <= ":
+			return new FieldComparison(left,
+					FieldComparison.Type.LESSER_OR_EQUAL, rightAttribute);
+		case " < ":
+			return new FieldComparison(left,
+					FieldComparison.Type.LESSER_THAN, rightAttribute);
+		case " >= ":
+			return new FieldComparison(left,
+					FieldComparison.Type.GREATER_OR_EQUAL, rightAttribute);
+		}
+		throw new IllegalArgumentException(
+				"Unsupported field criteria element: " + fc + " ("
+						+ fc.getClause() + ")");
+	}
 }
\ No newline at end of file
@@ -2,33 +2,56 @@ package org.abc.dash;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.abc.tools.ThreadedBrokerIterator;
 import org.abc.tools.Tool;
 import org.abc.util.OrderByComparator;
@@ -37,20 +60,28 @@ import org.apache.ojb.broker.Identity;
 import org.apache.ojb.broker.metadata.FieldHelper;
 import org.apache.ojb.broker.query.Criteria;
 import org.apache.ojb.broker.query.QueryByCriteria;
+import org.apache.ojb.broker.query.ReportQuery;
+import org.apache.ojb.broker.query.ReportQueryByCriteria;
 
 import com.follett.fsc.core.framework.persistence.BeanQuery;
 import com.follett.fsc.core.framework.persistence.X2ObjectCache;
 import com.follett.fsc.core.k12.beans.BeanManager.PersistenceKey;
 import com.follett.fsc.core.k12.beans.QueryIterator;
+import com.follett.fsc.core.k12.beans.ReportQueryIterator;
 import com.follett.fsc.core.k12.beans.X2BaseBean;
 import com.follett.fsc.core.k12.beans.path.BeanTablePath;
 import com.follett.fsc.core.k12.business.ModelProperty;
 import com.follett.fsc.core.k12.business.PrivilegeSet;
 import com.follett.fsc.core.k12.business.X2Broker;
 import com.follett.fsc.core.k12.web.AppGlobals;
+import com.pump.data.operator.AbstractCompoundOperator;
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.In;
+import com.pump.data.operator.Not;
 import com.pump.data.operator.Operator;
 import com.pump.data.operator.OperatorContext;
-import com.pump.util.Cache;
+import com.pump.data.operator.Or;
 import com.pump.util.Cache.CachePool;
 import com.x2dev.utils.StringUtils;
 
@@ -122,12 +153,94 @@ public class Dash {
 		}
 	}
 
+	/**
+	 * The maximum number of open QueryIteratorDashes we track per thread when
+	 * we look for N+1 loops.
+	 */
+	protected static final int MAX_REGISTERED_ITERATORS = 8;
+
+	/**
+	 * The default maximum number of cells (rows multiplied by columns) we'll
+	 * cache for one column query.
+	 * 
+	 * @see #getMaxRowListSize(ReportQueryByCriteria)
+	 */
+	public static final int DEFAULT_MAX_ROW_CELLS = 10000;
+
+	/**
+	 * When we create a pool for cached column query rows, it is bounded by
+	 * the limits of our main pool divided by this value.
+	 * 
+	 * @see #createRowCachePool(DashCachePool)
+	 */
+	public static final int ROW_CACHE_DIVISOR = 4;
+
+	/**
+	 * The maximum number of values a subquery may return when we resolve it
+	 * into an In operator. If a subquery returns more values than this, the
+	 * outer query is passed to the broker.
+	 * 
+	 * @see #resolveSubQueries(X2Broker, Operator)
+	 */
+	protected static final int MAX_SUBQUERY_VALUES = 500;
+
+	/**
+	 * The maximum number of subqueries we remember returned more than
+	 * {@link #MAX_SUBQUERY_VALUES} values.
+	 * 
+	 * @see #resolveSubQueries(X2Broker, Operator)
+	 */
+	protected static final int MAX_OVERSIZED_SUBQUERIES = 100;
+
+	/**
+	 * The maximum number of oids we put in one IN clause when we query for
+	 * beans by their oids. (For example: SQL Server rejects statements with
+	 * more than 2100 bind parameters.)
+	 * 
+	 * @see #queryBeansByOid(X2Broker, Class, Collection)
+	 */
+	protected static final int MAX_OIDS_PER_QUERY = 500;
+
+	/**
+	 * The maximum number of Operators whose canonical form we remember.
+	 * 
+	 * @see #getCanonicalOperator(Operator)
+	 */
+	protected static final int MAX_CANONICAL_OPERATORS = 1000;
+
+	/**
+	 * The maximum number of absent oids we remember per bean type.
+	 * 
+	 * @see #isAbsentOid(Class, String)
+	 */
+	protected static final int MAX_ABSENT_OIDS = 10000;
+
+	/**
+	 * The default number of milliseconds we remember that an oid doesn't
+	 * exist.
+	 * 
+	 * @see #setAbsentOidTimeToLive(long)
+	 */
+	public static final long DEFAULT_ABSENT_OID_TIME_TO_LIVE = 1000 * 60;
+
 	/**
 	 * This is an OperatorContext for X2BaseBeans. This is the bridge
 	 * that connects the Operator architecture with the X2BaseBean
 	 * architecture.
+	 * <p>
+	 * This compiles each bean class/attribute pair into a cached accessor, so
+	 * this is much faster than {@link #REFLECTION_CONTEXT} when we evaluate
+	 * the same operators over many beans.
+	 */
+	public static final OperatorContext CONTEXT = new CompiledOperatorContext();
+
+	/**
+	 * This OperatorContext produces the same results as {@link #CONTEXT}, but
+	 * it parses the attribute and consults commons-beanutils every time a
+	 * value is requested. This is kept as a reference implementation (for
+	 * testing and benchmarking).
 	 */
-	public static final OperatorContext CONTEXT = new OperatorContext() {
+	public static final OperatorContext REFLECTION_CONTEXT = new OperatorContext() {
 
 		abstract class Function {
 			public abstract Object evaluate(Object input);
@@ -210,6 +323,38 @@ public class Dash {
 		}
 	}
 
+	/**
+	 * This combines an Operator, a bean Class, and a list of columns. It is
+	 * used as a key to identify the TemplateQueryProfiles of column queries.
+	 */
+	public static class RowTemplateQueryProfileKey extends
+			TemplateQueryProfileKey {
+		private static final long serialVersionUID = 1L;
+
+		List<String> columns;
+
+		RowTemplateQueryProfileKey(Operator operator, Class<?> baseClass,
+				String[] columns) {
+			super(operator, baseClass);
+			this.columns = Collections.unmodifiableList(new ArrayList<>(Arrays
+					.asList(columns)));
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode() + 31 * columns.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RowTemplateQueryProfileKey)
+					|| !super.equals(obj))
+				return false;
+			RowTemplateQueryProfileKey other = (RowTemplateQueryProfileKey) obj;
+			return columns.equals(other.columns);
+		}
+	}
+
 	/**
 	 * This combines an Operator, an OrderByComparator, and the isDistinct
 	 * boolean. It is used as a key to identify a List of oids.
@@ -243,6 +388,43 @@ public class Dash {
 		}
 	}
 
+	/**
+	 * This combines an Operator, an OrderByComparator, the columns of a
+	 * ReportQuery and the isDistinct boolean. It is used as a key to identify a
+	 * List of rows.
+	 */
+	public static class RowCacheKey extends CacheKey {
+		private static final long serialVersionUID = 1L;
+
+		List<String> columns;
+
+		RowCacheKey(Operator operator, OrderByComparator orderBy,
+				boolean isDistinct, String[] columns) {
+			super(operator, orderBy, isDistinct);
+			this.columns = Collections.unmodifiableList(new ArrayList<>(Arrays
+					.asList(columns)));
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode() + 31 * columns.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RowCacheKey) || !super.equals(obj))
+				return false;
+			RowCacheKey other = (RowCacheKey) obj;
+			return columns.equals(other.columns);
+		}
+
+		@Override
+		public String toString() {
+			return "RowCacheKey[ \"" + getKey() + "\", " + columns + ", "
+					+ getValue() + (isDistinct ? ", distinct" : "") + "]";
+		}
+	}
+
 	/**
 	 * Return a bean from the global cache, or return null if the bean does not
 	 * exist in the global cache.
@@ -302,6 +484,18 @@ public class Dash {
 		return X2BaseBean.class.isAssignableFrom(baseClass);
 	}
 
+	/**
+	 * Return true if an object is a ReportQueryByCriteria (such as a
+	 * ColumnQuery) whose base class is an X2BaseBean and that identifies its
+	 * columns.
+	 */
+	public static boolean isColumnQuery(Object object) {
+		if (!(object instanceof ReportQueryByCriteria) || !isBeanQuery(object))
+			return false;
+		String[] columns = ((ReportQueryByCriteria) object).getColumns();
+		return columns != null && columns.length > 0;
+	}
+
 	/**
 	 * This catalogs the number of times certain uncaching operations have been
 	 * invoked.
@@ -317,6 +511,20 @@ public class Dash {
 			 * This indicates caching wasn't attempted for a bean query.
 			 */
 			QUERY_SKIP,
+			/**
+			 * This indicates caching wasn't attempted because the query's
+			 * template usually returns more beans than its budget allows.
+			 * 
+			 * @see CachePolicy#getBudget(TemplateQueryProfile, int)
+			 */
+			QUERY_SKIP_OVER_BUDGET,
+			/**
+			 * This indicates caching wasn't attempted because the cached
+			 * results for the query's template were almost never reused.
+			 * 
+			 * @see CachePolicy#isRetired(TemplateQueryProfile)
+			 */
+			QUERY_SKIP_RETIRED,
 			/**
 			 * This indicates caching turned up an exact match and no database
 			 * query was issued.
@@ -331,6 +539,13 @@ public class Dash {
 			 * This indicates the cache was consulted but didn't have a match.
 			 */
 			QUERY_MISS,
+			/**
+			 * This indicates the cache didn't have a match, but the query
+			 * looked like one iteration of a loop. So we issued one query for
+			 * the next several values the loop will request, and cached those
+			 * results separately.
+			 */
+			QUERY_MISS_WITH_PREFETCH,
 			/**
 			 * This indicates we were able to partially uncache some of the
 			 * required beans, and we replaced the original query to identify
@@ -342,11 +557,88 @@ public class Dash {
 			 * splitting it and resolving its split elements.
 			 */
 			QUERY_HIT_FROM_SPLIT,
+			/**
+			 * This indicates another thread was already issuing the exact same
+			 * query, so we waited for that thread to cache its results and no
+			 * database query was issued.
+			 */
+			QUERY_HIT_COALESCED,
+			/**
+			 * This indicates we knew the exact oids a query should return, but
+			 * a few of those beans were no longer in memory. So we replaced the
+			 * original query with a query for the missing oids.
+			 */
+			QUERY_HIT_WITH_REFILL,
+			/**
+			 * This indicates we didn't have a cached match for a query, but
+			 * we had the complete results of a broader query. So we filtered
+			 * those beans in memory and no database query was issued.
+			 */
+			QUERY_HIT_FROM_SUBSUMPTION,
+			/**
+			 * This indicates a query was answered by a PreloadPartition's
+			 * indexes and no database query was issued.
+			 * 
+			 * @see Dash#preload(X2Broker, QueryByCriteria, String...)
+			 */
+			QUERY_HIT_FROM_PRELOAD,
+			/**
+			 * This indicates a column query (see
+			 * {@link Dash#isColumnQuery(Object)}) was answered with cached
+			 * rows and no database query was issued.
+			 */
+			COLUMN_QUERY_HIT,
+			/**
+			 * This indicates {@link X2Broker#getCount(Query)} was answered
+			 * from a cached list of oids and no database query was issued.
+			 */
+			COUNT_HIT_FROM_OIDS,
+			/**
+			 * This indicates {@link X2Broker#getCount(Query)} was answered
+			 * from a cached count and no database query was issued.
+			 */
+			COUNT_HIT,
+			/**
+			 * This indicates {@link X2Broker#getCount(Query)} was passed to
+			 * the broker, and the result was cached.
+			 */
+			COUNT_MISS,
+			/**
+			 * This indicates caching wasn't attempted for
+			 * {@link X2Broker#getCount(Query)} because its Criteria couldn't
+			 * be converted to an Operator.
+			 */
+			COUNT_SKIP_UNSUPPORTED,
+			/**
+			 * This indicates a column query was issued and its rows were
+			 * cached.
+			 */
+			COLUMN_QUERY_MISS,
+			/**
+			 * This indicates a column query returned more rows than
+			 * {@link Dash#getMaxRowListSize(ReportQueryByCriteria)} allows, so
+			 * its rows weren't cached.
+			 */
+			COLUMN_QUERY_MISS_ABORT_TOO_MANY,
+			/**
+			 * This indicates caching wasn't attempted for a column query
+			 * because our CachePolicy decided its template isn't worth
+			 * caching (see
+			 * {@link Dash#getRowCachingDecision(ReportQueryByCriteria, TemplateQueryProfile)}
+			 * ).
+			 */
+			COLUMN_QUERY_SKIP,
+			/**
+			 * This indicates caching wasn't attempted for a column query,
+			 * because its criteria couldn't be converted to an Operator or
+			 * because its columns or criteria refer to related beans.
+			 */
+			COLUMN_QUERY_SKIP_UNSUPPORTED,
 			/**
 			 * This indicates caching wasn't attempted because a Criteria
-			 * couldn't be converted to an Operator. (This is probably because a
-			 * criteria contained a subquery, or some other unsupported
-			 * feature).
+			 * couldn't be converted to an Operator (because it used an
+			 * unsupported feature), or because one of its subqueries returned
+			 * too many values.
 			 */
 			QUERY_SKIP_UNSUPPORTED,
 			/**
@@ -355,6 +647,13 @@ public class Dash {
 			 * cache fails.)
 			 */
 			OID_HIT_REFERENCE,
+			/**
+			 * This indicates a bean was retrieved from the bounded tier of
+			 * recently used beans that precedes the weakly referenced beans.
+			 * 
+			 * @see Dash#setBeanRetention(double, boolean)
+			 */
+			OID_HIT_RETAINED,
 			/**
 			 * This indicates a bean was retrieved from the Aspen's global cache
 			 * based on its oid.
@@ -363,16 +662,39 @@ public class Dash {
 			/**
 			 * This indicates we tried to look up a bean by its oid but failed.
 			 */
-			OID_MISS
+			OID_MISS,
+			/**
+			 * This indicates we looked up a bean by its oid, and we already
+			 * knew that oid doesn't exist, so no query was issued.
+			 * 
+			 * @see Dash#isAbsentOid(Class, String)
+			 */
+			OID_HIT_ABSENT,
+			/**
+			 * This indicates a cached entry was evicted (or never stored)
+			 * because the StripedCachePool exceeded its budget of estimated
+			 * bytes.
+			 * 
+			 * @see StripedCachePool#getWeight()
+			 */
+			CACHE_EVICTION_OVER_BUDGET
 		}
 		
-		private static final Comparator<Type> COMPARATOR =
-						new Comparator<Type>() {
-							@Override
-							public int compare(Type o1, Type o2) {
-								return o1.name().compareTo(o2.name());
-							}
-						};
+		/**
+		 * This sorts Types alphabetically. This needs to be Serializable
+		 * because the TreeMap that uses it is serialized.
+		 */
+		static class TypeNameComparator implements Comparator<Type>,
+				Serializable {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int compare(Type o1, Type o2) {
+				return o1.name().compareTo(o2.name());
+			}
+		}
+
+		private static final Comparator<Type> COMPARATOR = new TypeNameComparator();
 
 		// sort keys alphabetically so all CacheResults all follow same pattern
 		protected Map<Type, AtomicLong> matches = new TreeMap<>(COMPARATOR);
@@ -396,6 +718,19 @@ public class Dash {
 			return;
 		}
 
+		/**
+		 * Return the counter for a given type of result.
+		 * 
+		 * @param type
+		 *            the type of result to return.
+		 */
+		public long getCount(Type type) {
+			synchronized (matches) {
+				AtomicLong l = matches.get(type);
+				return l == null ? 0 : l.longValue();
+			}
+		}
+
 		@Override
 		public int hashCode() {
 			synchronized (matches) {
@@ -479,6 +814,14 @@ public class Dash {
 		protected int maxReturnCount = 0;
 		protected double averageReturnCount = 0;
 		protected CacheResults results = new CacheResults();
+		protected transient LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * The last time (in milliseconds) a query matching this template was
+		 * issued or closed. This is how a ProfileSnapshot identifies
+		 * templates that are no longer used.
+		 */
+		protected long lastUsed = System.currentTimeMillis();
 
 		/**
 		 * The total number of times a query matching this template has been
@@ -506,6 +849,21 @@ public class Dash {
 			return maxReturnCount;
 		}
 
+		/**
+		 * Return the last time (in milliseconds) a query matching this
+		 * template was issued or closed.
+		 */
+		public synchronized long getLastUsed() {
+			return lastUsed;
+		}
+
+		/**
+		 * Record that a query matching this template was just issued.
+		 */
+		public synchronized void markUsed() {
+			lastUsed = System.currentTimeMillis();
+		}
+
 		/**
 		 * Return CacheResults associated with this template.
 		 */
@@ -513,6 +871,14 @@ public class Dash {
 			return results;
 		}
 
+		/**
+		 * Return how long it took to produce QueryIterators for this
+		 * template. This is not serialized.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
 		/**
 		 * This object is attached to every QueryIteratorDash a
 		 * BrokerDashSharedResource produces, and when that iterator is closed
@@ -525,16 +891,21 @@ public class Dash {
 			total += returnCount;
 			ctr++;
 			averageReturnCount = total / ((double) ctr);
+			lastUsed = System.currentTimeMillis();
 		}
 
 		private void readObject(java.io.ObjectInputStream in)
 				throws IOException, ClassNotFoundException {
 			int version = in.readInt();
-			if (version == 0) {
+			if (version == 0 || version == 1) {
 				ctr = in.readInt();
 				maxReturnCount = in.readInt();
 				averageReturnCount = in.readDouble();
 				results = (CacheResults) in.readObject();
+				latency = new LatencyHistogram();
+				// version 0 didn't record when the profile was last used
+				lastUsed = version == 1 ? in.readLong() : System
+						.currentTimeMillis();
 			} else {
 				throw new IOException("Unsupported internal version: "
 						+ version);
@@ -543,11 +914,12 @@ public class Dash {
 
 		private void writeObject(java.io.ObjectOutputStream out)
 				throws IOException {
-			out.writeInt(0);
+			out.writeInt(1);
 			out.writeInt(ctr);
 			out.writeInt(maxReturnCount);
 			out.writeDouble(averageReturnCount);
 			out.writeObject(results);
+			out.writeLong(lastUsed);
 		}
 
 		@Override
@@ -587,21 +959,114 @@ public class Dash {
 	}
 
 	protected PersistenceKey persistenceKey;
-	protected CachePool cachePool;
-	protected Cache<TemplateQueryProfileKey, TemplateQueryProfile> profiles;
+	protected DashCachePool cachePool;
+
+	/**
+	 * The DashCachePool our cached column query rows are stored in. This is
+	 * usually separate from {@link #cachePool}, so large row lists can't evict
+	 * cached oids.
+	 * 
+	 * @see #createRowCachePool(DashCachePool)
+	 */
+	protected DashCachePool rowCachePool;
+	protected DashCache<TemplateQueryProfileKey, TemplateQueryProfile> profiles;
+
+	/**
+	 * The TemplateQueryProfiles of column queries. These are kept apart from
+	 * {@link #profiles}, so they are not saved in profile snapshots.
+	 */
+	protected DashCache<RowTemplateQueryProfileKey, TemplateQueryProfile> rowProfiles;
+
+	/**
+	 * This maps the Operators our CriteriaToOperatorConverter creates to their
+	 * canonical form. This is a small LRU map that is separate from our
+	 * DashCachePool, so memoizing canonical forms never evicts cached query
+	 * results. Calls to this map should be synchronized against this map.
+	 * 
+	 * @see OperatorCanonicalizer
+	 */
+	protected final Map<Operator, Operator> canonicalOperators = new LinkedHashMap<Operator, Operator>(
+			16, .75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Operator, Operator> eldest) {
+			return size() > MAX_CANONICAL_OPERATORS;
+		}
+	};
+
+	/**
+	 * The subqueries that recently returned more than
+	 * {@link #MAX_SUBQUERY_VALUES} values. Each element is a list containing
+	 * the subquery's base class and its RowCacheKey (see
+	 * {@link #getSubQueryKey(ReportQueryByCriteria)}). This is a small LRU
+	 * set, so we don't run a large subquery every time its outer query is
+	 * repeated. Calls to this set should be synchronized against this set.
+	 */
+	protected final Set<List<?>> oversizedSubQueries = Collections
+			.newSetFromMap(new LinkedHashMap<List<?>, Boolean>(16, .75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<List<?>, Boolean> eldest) {
+					return size() > MAX_OVERSIZED_SUBQUERIES;
+				}
+			});
+	protected File profileFile;
+
+	/**
+	 * The profiles we loaded from a snapshot that haven't been used yet.
+	 * These don't expire: a loaded profile moves into {@link #profiles} (and
+	 * starts aging like any other profile) the first time its template is
+	 * queried, so a template a tool only uses late in its run still benefits
+	 * from the snapshot.
+	 * 
+	 * @see #loadProfiles(InputStream)
+	 */
+	protected final Map<TemplateQueryProfileKey, TemplateQueryProfile> snapshotProfiles = new ConcurrentHashMap<>();
 	protected CacheResults cacheResults = new CacheResults();
-	protected Map<Class<?>, Cache<CacheKey, List<String>>> cacheByBeanType = new HashMap<>();
+	protected CachePolicy cachePolicy = new CachePolicy();
+	protected DashMetrics metrics = new DashMetrics(this);
+	protected ObjectName mbeanName;
+	protected ConcurrentMap<Class<?>, DashCache<CacheKey, List<String>>> cacheByBeanType = new ConcurrentHashMap<>();
+	protected ConcurrentMap<Class<?>, List<PreloadPartition>> preloadsByBeanType = new ConcurrentHashMap<>();
+	protected ConcurrentMap<Class<?>, DashCache<RowCacheKey, List<Object[]>>> rowCacheByBeanType = new ConcurrentHashMap<>();
+	protected ConcurrentMap<Class<?>, DashCache<CacheKey, Integer>> countCacheByBeanType = new ConcurrentHashMap<>();
+	protected int maxRowCells = DEFAULT_MAX_ROW_CELLS;
+	protected int readAheadSize = 0;
+	protected PrivilegeSet readAheadPrivilegeSet;
+
+	/**
+	 * The bean queries that are currently being issued to the database, keyed
+	 * by their bean type and CacheKey. Other threads that request the same
+	 * query wait for the latch instead of issuing the same query.
+	 */
+	protected final ConcurrentMap<Map.Entry<Class<?>, CacheKey>, CountDownLatch> inFlightQueries = new ConcurrentHashMap<>();
 
 	private Logger log = Logger.getAnonymousLogger();
 	private ThreadLocal<Logger> logByThread = new ThreadLocal<>();
 
+	/**
+	 * The QueryIteratorDashes that are open on each thread, from oldest to
+	 * newest.
+	 */
+	private ThreadLocal<LinkedList<WeakReference<QueryIteratorDash<?>>>> iteratorsByThread = new ThreadLocal<>();
+
 	@SuppressWarnings("rawtypes")
 	protected Collection<Class> modifiedBeanTypes = new HashSet<>();
 	protected UncaughtExceptionHandler uncaughtExceptionHandler = DEFAULT_UNCAUGHT_EXCEPTION_HANDLER;
 	protected WeakReferenceBeanCache weakReferenceCache;
 
+	/**
+	 * The (bean type, oid) pairs that a query recently confirmed don't exist.
+	 */
+	protected AbsentOidCache absentOids = new AbsentOidCache(MAX_ABSENT_OIDS,
+			DEFAULT_ABSENT_OID_TIME_TO_LIVE);
+
 	protected boolean isOidCachingActive = true;
 	protected boolean isQueryCachingActive = true;
+	protected boolean isRowInvalidationActive = false;
 
 	/**
 	 * Create a new Dash that keeps up to 5,0000 elements in the cache for up to
@@ -622,23 +1087,114 @@ public class Dash {
 	 */
 	public Dash(PersistenceKey persistenceKey, int maxCacheSize,
 			long maxCacheDuration) {
-		this(persistenceKey, new CachePool(maxCacheSize, maxCacheDuration, -1));
+		this(persistenceKey, maxCacheSize, maxCacheDuration, false);
+	}
+
+	/**
+	 * Create a new Dash.
+	 * 
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in the cache.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 * @param useStripedCache
+	 *            if true then this Dash uses a {@link StripedCachePool}, which
+	 *            is designed to minimize contention when several threads share
+	 *            this Dash. If false then this Dash uses a
+	 *            {@link PumpCachePool}. Both produce the same CacheResults, so
+	 *            you can toggle this to compare them.
+	 */
+	public Dash(PersistenceKey persistenceKey, int maxCacheSize,
+			long maxCacheDuration, boolean useStripedCache) {
+		this(persistenceKey, useStripedCache ? new StripedCachePool(
+				maxCacheSize, maxCacheDuration) : new PumpCachePool(
+				maxCacheSize, maxCacheDuration),
+				useStripedCache ? new StripedCachePool(Math.max(1,
+						maxCacheSize / ROW_CACHE_DIVISOR), maxCacheDuration)
+						: new PumpCachePool(Math.max(1, maxCacheSize
+								/ ROW_CACHE_DIVISOR), maxCacheDuration));
+	}
+
+	/**
+	 * Create a new Dash that uses a {@link StripedCachePool} that is bounded
+	 * by both a number of entries and an estimated number of bytes.
+	 * 
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in the cache.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 * @param heapFraction
+	 *            the fraction of the maximum heap size the cached entries may
+	 *            use, such as .05 for 5%. Each entry is weighed by a
+	 *            {@link DashCacheWeigher}.
+	 */
+	public Dash(PersistenceKey persistenceKey, int maxCacheSize,
+			long maxCacheDuration, double heapFraction) {
+		this(persistenceKey, new StripedCachePool(maxCacheSize,
+				maxCacheDuration, heapFraction));
 	}
 
 	/**
 	 * Create a new Dash.
 	 * 
 	 * @param cachePool
-	 *            the CachePool used to maintain all cached data.
+	 *            the CachePool used to maintain all cached data. Column query
+	 *            rows share this pool with everything else.
 	 *            
 	 */
 	public Dash(PersistenceKey persistenceKey, CachePool cachePool) {
+		this(persistenceKey, new PumpCachePool(cachePool));
+	}
+
+	/**
+	 * Create a new Dash.
+	 * 
+	 * @param cachePool
+	 *            the DashCachePool used to maintain all cached data. Column
+	 *            query rows are stored in a pool derived from this pool (see
+	 *            {@link #createRowCachePool(DashCachePool)}).
+	 *            
+	 */
+	public Dash(PersistenceKey persistenceKey, DashCachePool cachePool) {
+		this(persistenceKey, cachePool, createRowCachePool(cachePool));
+	}
+
+	/**
+	 * Create a new Dash.
+	 * 
+	 * @param cachePool
+	 *            the DashCachePool used to maintain all cached data except
+	 *            column query rows.
+	 * @param rowCachePool
+	 *            the DashCachePool used to maintain column query rows. This
+	 *            may be the same as cachePool.
+	 */
+	public Dash(PersistenceKey persistenceKey, DashCachePool cachePool,
+			DashCachePool rowCachePool) {
 		Objects.requireNonNull(cachePool);
+		Objects.requireNonNull(rowCachePool);
 		Objects.requireNonNull(persistenceKey);
 		this.cachePool = cachePool;
+		this.rowCachePool = rowCachePool;
 		this.persistenceKey = persistenceKey;
-		profiles = new Cache<>(cachePool);
+		profiles = cachePool.createCache();
+		rowProfiles = cachePool.createCache();
 		getLog().setLevel(Level.OFF);
+		StripedCachePool.BudgetListener budgetListener = new StripedCachePool.BudgetListener() {
+			@Override
+			public void evictedOverBudget(Object key, Object value, long weight) {
+				cacheResults
+						.increment(CacheResults.Type.CACHE_EVICTION_OVER_BUDGET);
+			}
+		};
+		if (cachePool instanceof StripedCachePool)
+			((StripedCachePool) cachePool).addBudgetListener(budgetListener);
+		if (rowCachePool != cachePool
+				&& rowCachePool instanceof StripedCachePool)
+			((StripedCachePool) rowCachePool)
+					.addBudgetListener(budgetListener);
 		weakReferenceCache = new WeakReferenceBeanCache();
 		weakReferenceCache.addPropertyListener(new PropertyChangeListener() {
 
@@ -660,24 +1216,285 @@ public class Dash {
 	}
 
 	/**
-	 * Return true if the mechanism that caches WeakReferences of X2BaseBeans by their oids is active.
+	 * Create the DashCachePool we store column query rows in, given the pool
+	 * we use for everything else.
+	 * <p>
+	 * Row lists are usually much larger than oid lists, and column queries
+	 * are often one-off reports or exports. So if the given pool is a
+	 * {@link StripedCachePool} then this returns a separate StripedCachePool
+	 * whose entry count and weight limits are divided by
+	 * {@link #ROW_CACHE_DIVISOR}, so cached rows can never evict cached oids.
+	 * Otherwise we can't tell how the given pool is bounded, so this returns
+	 * the given pool.
 	 */
-	public boolean isOidCachingActive() {
-		return isOidCachingActive;
+	protected static DashCachePool createRowCachePool(DashCachePool cachePool) {
+		if (!(cachePool instanceof StripedCachePool))
+			return cachePool;
+		StripedCachePool pool = (StripedCachePool) cachePool;
+		long maxWeight = pool.getMaxWeight() == Long.MAX_VALUE ? Long.MAX_VALUE
+				: Math.max(1, pool.getMaxWeight() / ROW_CACHE_DIVISOR);
+		return new StripedCachePool(Math.max(1, pool.getMaxCacheSize()
+				/ ROW_CACHE_DIVISOR), pool.getMaxCacheDuration(),
+				pool.concurrencyLevel, maxWeight, pool.weigher);
 	}
 
 	/**
-	 * Return true if the mechanism that caches query results (as a list of oids) by their query is active.
+	 * Create a new Dash that starts with the TemplateQueryProfiles stored in
+	 * a file, and saves its profiles to that file when {@link #close()} is
+	 * called.
+	 * <p>
+	 * This lets a tool that runs repeatedly (such as a nightly job) make the
+	 * right caching decisions from its first query. If the file doesn't
+	 * exist, or its snapshot is stale or incompatible, this Dash starts with
+	 * no profiles.
+	 * 
+	 * @param cachePool
+	 *            the DashCachePool used to maintain all cached data.
+	 * @param profileFile
+	 *            the file profiles are loaded from and saved to. See
+	 *            {@link ProfileSnapshot#getFile(File, String, String)}.
 	 */
-	public boolean isQueryCachingActive() {
-		return isQueryCachingActive;
+	public Dash(PersistenceKey persistenceKey, DashCachePool cachePool,
+			File profileFile) {
+		this(persistenceKey, cachePool);
+		Objects.requireNonNull(profileFile);
+		this.profileFile = profileFile;
+		try {
+			loadProfiles(profileFile);
+		} catch (IOException e) {
+			getUncaughtExceptionHandler().uncaughtException(
+					Thread.currentThread(), e);
+		}
 	}
 
-	public boolean setOidCachingActive(boolean b) {
-		if (isOidCachingActive == b)
-			return false;
-		isOidCachingActive = b;
-		return true;
+	/**
+	 * If this Dash was constructed with a profile file, then this saves our
+	 * TemplateQueryProfiles to that file. This also unregisters our MBean (if
+	 * {@link #registerMBean()} was called).
+	 */
+	public void close() {
+		unregisterMBean();
+		if (profileFile == null)
+			return;
+		try {
+			saveProfiles(profileFile);
+		} catch (IOException e) {
+			getUncaughtExceptionHandler().uncaughtException(
+					Thread.currentThread(), e);
+		}
+	}
+
+	/**
+	 * Return a copy of all our current TemplateQueryProfiles.
+	 */
+	public Map<TemplateQueryProfileKey, TemplateQueryProfile> getTemplateQueryProfiles() {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> map = new HashMap<>();
+		for (TemplateQueryProfileKey key : profiles.getKeys()) {
+			TemplateQueryProfile profile = profiles.get(key);
+			if (profile != null)
+				map.put(key, profile);
+		}
+		return map;
+	}
+
+	/**
+	 * Return the latency histograms this Dash collects. Tools can write
+	 * {@link DashMetrics#getSnapshot()} to their job log.
+	 */
+	public DashMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Register our {@link DashMetrics} with the platform MBeanServer. The
+	 * MBean is unregistered when {@link #close()} is called.
+	 * <p>
+	 * This is not automatic, because a Dash that is never closed would leave
+	 * its MBean (and therefore itself) registered indefinitely.
+	 * 
+	 * @return the name the MBean was registered under.
+	 */
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (mbeanName != null)
+			return mbeanName;
+		ObjectName name = new ObjectName("org.abc.dash:type=Dash,deployment="
+				+ ObjectName.quote(String.valueOf(persistenceKey
+						.getDeploymentId())) + ",id="
+				+ Integer.toHexString(System.identityHashCode(this)));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+		mbeanName = name;
+		return mbeanName;
+	}
+
+	/**
+	 * Unregister the MBean {@link #registerMBean()} registered.
+	 * 
+	 * @return true if an MBean was unregistered.
+	 */
+	public synchronized boolean unregisterMBean() {
+		if (mbeanName == null)
+			return false;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					mbeanName);
+		} catch (JMException e) {
+			getUncaughtExceptionHandler().uncaughtException(
+					Thread.currentThread(), e);
+		}
+		mbeanName = null;
+		return true;
+	}
+
+	/**
+	 * Write a snapshot of our TemplateQueryProfiles. This includes our current
+	 * profiles, and the loaded profiles we haven't used yet.
+	 * <p>
+	 * Retired profiles (see {@link CachePolicy#isRetired(TemplateQueryProfile)})
+	 * are not written, so retirement only lasts as long as a profile stays
+	 * in memory. Profiles that haven't been used for
+	 * {@link ProfileSnapshot#DEFAULT_MAX_AGE} are not written either.
+	 * 
+	 * @return the number of profiles written.
+	 * @see ProfileSnapshot
+	 */
+	public int saveProfiles(OutputStream out) throws IOException {
+		return saveProfiles(out,
+				new HashMap<TemplateQueryProfileKey, TemplateQueryProfile>());
+	}
+
+	/**
+	 * Write a snapshot of our TemplateQueryProfiles, merged with older
+	 * profiles. Our profiles replace older profiles for the same template.
+	 */
+	private int saveProfiles(OutputStream out,
+			Map<TemplateQueryProfileKey, TemplateQueryProfile> olderProfiles)
+			throws IOException {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> map = new HashMap<>(
+				olderProfiles);
+		map.putAll(snapshotProfiles);
+		map.putAll(getTemplateQueryProfiles());
+		Iterator<TemplateQueryProfile> iter = map.values().iterator();
+		while (iter.hasNext()) {
+			if (cachePolicy.isRetired(iter.next()))
+				iter.remove();
+		}
+		int size = ProfileSnapshot.write(out, persistenceKey.getDeploymentId(),
+				map);
+
+		Logger log = getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("saved " + size + " profiles");
+		return size;
+	}
+
+	/**
+	 * Write a snapshot of our TemplateQueryProfiles to a file. This writes to
+	 * a temporary file first, so an interrupted save doesn't corrupt an
+	 * existing snapshot.
+	 * <p>
+	 * Our profiles expire (see {@link DashCachePool}), so we may no longer
+	 * have a profile for every template the existing snapshot describes. The
+	 * existing snapshot's profiles are kept unless we have a newer profile
+	 * for the same template.
+	 * 
+	 * @return the number of profiles written.
+	 */
+	public int saveProfiles(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("mkdirs failed for " + parent);
+
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> olderProfiles = new HashMap<>();
+		if (file.exists()) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(
+					file))) {
+				olderProfiles = ProfileSnapshot.read(in,
+						persistenceKey.getDeploymentId(),
+						ProfileSnapshot.DEFAULT_MAX_AGE);
+			} catch (IOException e) {
+				// the existing snapshot is unreadable, so we'll replace it
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		int size;
+		try (OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(tempFile))) {
+			size = saveProfiles(out, olderProfiles);
+		}
+		Files.move(tempFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return size;
+	}
+
+	/**
+	 * Read a snapshot of TemplateQueryProfiles. Profiles are only added if we
+	 * don't already have a profile for the same template.
+	 * <p>
+	 * A loaded profile doesn't start to expire until its template is first
+	 * queried (see {@link #snapshotProfiles}).
+	 * <p>
+	 * The snapshot is ignored if it is older than
+	 * {@link ProfileSnapshot#DEFAULT_MAX_AGE}, or if it came from another
+	 * deployment or an incompatible version.
+	 * 
+	 * @return the number of profiles added.
+	 */
+	public int loadProfiles(InputStream in) throws IOException {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> map = ProfileSnapshot
+				.read(in, persistenceKey.getDeploymentId(),
+						ProfileSnapshot.DEFAULT_MAX_AGE);
+		int size = 0;
+		for (Entry<TemplateQueryProfileKey, TemplateQueryProfile> entry : map
+				.entrySet()) {
+			if (cachePolicy.isRetired(entry.getValue()))
+				continue;
+			if (profiles.get(entry.getKey()) == null
+					&& snapshotProfiles.putIfAbsent(entry.getKey(),
+							entry.getValue()) == null)
+				size++;
+		}
+
+		Logger log = getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("loaded " + size + " profiles");
+		return size;
+	}
+
+	/**
+	 * Read a snapshot of TemplateQueryProfiles from a file. If the file
+	 * doesn't exist this returns zero.
+	 * 
+	 * @return the number of profiles added.
+	 */
+	public int loadProfiles(File file) throws IOException {
+		if (!file.exists())
+			return 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(
+				file))) {
+			return loadProfiles(in);
+		}
+	}
+
+	/**
+	 * Return true if the mechanism that caches WeakReferences of X2BaseBeans by their oids is active.
+	 */
+	public boolean isOidCachingActive() {
+		return isOidCachingActive;
+	}
+
+	/**
+	 * Return true if the mechanism that caches query results (as a list of oids) by their query is active.
+	 */
+	public boolean isQueryCachingActive() {
+		return isQueryCachingActive;
+	}
+
+	public boolean setOidCachingActive(boolean b) {
+		if (isOidCachingActive == b)
+			return false;
+		isOidCachingActive = b;
+		return true;
 	}
 
 	public boolean setQueryCachingActive(boolean b) {
@@ -687,6 +1504,149 @@ public class Dash {
 		return true;
 	}
 
+	/**
+	 * Return true if saving or deleting a bean only invalidates the cached
+	 * queries that bean could affect. If this is false (the default) then
+	 * saving or deleting a bean clears all cached queries for that bean type.
+	 * 
+	 * @see #modifyBeanRecord(X2BaseBean)
+	 */
+	public boolean isRowInvalidationActive() {
+		return isRowInvalidationActive;
+	}
+
+	public boolean setRowInvalidationActive(boolean b) {
+		if (isRowInvalidationActive == b)
+			return false;
+		isRowInvalidationActive = b;
+		return true;
+	}
+
+	/**
+	 * Return the maximum number of cells (rows multiplied by columns) we'll
+	 * cache for one column query.
+	 */
+	public int getMaxRowCells() {
+		return maxRowCells;
+	}
+
+	public boolean setMaxRowCells(int maxRowCells) {
+		if (maxRowCells < 0)
+			throw new IllegalArgumentException("maxRowCells (" + maxRowCells
+					+ ") must not be negative");
+		if (this.maxRowCells == maxRowCells)
+			return false;
+		this.maxRowCells = maxRowCells;
+		return true;
+	}
+
+	/**
+	 * Return the number of beans a live QueryIterator reads ahead of its
+	 * consumer, or zero if read-ahead is disabled (the default).
+	 * 
+	 * @see ReadAheadQueryIterator
+	 */
+	public int getReadAheadSize() {
+		return readAheadSize;
+	}
+
+	/**
+	 * Return the PrivilegeSet used to create the read-ahead brokers, or null
+	 * if read-ahead is disabled.
+	 */
+	public PrivilegeSet getReadAheadPrivilegeSet() {
+		return readAheadPrivilegeSet;
+	}
+
+	/**
+	 * Set the number of beans a live QueryIterator reads ahead of its
+	 * consumer.
+	 * <p>
+	 * When this is enabled a helper thread runs each uncached bean query on
+	 * its own ModelBroker while the caller processes the previous beans, so
+	 * database latency overlaps with the caller's work. This is most helpful
+	 * for I/O-heavy loops over large queries (the queries Dash doesn't
+	 * cache). Like a {@link ThreadedBrokerIterator}: every open read-ahead
+	 * iterator requires an additional database connection.
+	 * <p>
+	 * The helper broker can't see uncommitted writes, so read-ahead is only
+	 * used when a BrokerDash has no open transaction. Calls to
+	 * {@link #createQueryIterator(X2Broker, QueryByCriteria)} from outside a
+	 * BrokerDash never read ahead, because we can't tell whether their
+	 * broker has an open transaction.
+	 * 
+	 * @param readAheadSize
+	 *            the maximum number of beans to read ahead, or zero to disable
+	 *            read-ahead.
+	 * @param privilegeSet
+	 *            the PrivilegeSet used to create the read-ahead brokers. This
+	 *            may only be null if readAheadSize is zero.
+	 * @return true if this changed.
+	 */
+	public boolean setReadAhead(int readAheadSize, PrivilegeSet privilegeSet) {
+		if (readAheadSize < 0)
+			throw new IllegalArgumentException("readAheadSize ("
+					+ readAheadSize + ") must not be negative");
+		if (readAheadSize > 0)
+			Objects.requireNonNull(privilegeSet);
+		else
+			privilegeSet = null;
+		if (this.readAheadSize == readAheadSize
+				&& this.readAheadPrivilegeSet == privilegeSet)
+			return false;
+		this.readAheadSize = readAheadSize;
+		this.readAheadPrivilegeSet = privilegeSet;
+		return true;
+	}
+
+	/**
+	 * Configure an optional tier of recently used beans that precedes our
+	 * WeakReferences.
+	 * <p>
+	 * WeakReferences are often cleared by the next young-generation garbage
+	 * collection, so cached oid lists can't always be converted back into
+	 * beans. This tier keeps strong references (or SoftReferences) to the most
+	 * recently used beans, up to a fraction of the maximum heap size. Beans it
+	 * evicts are demoted to the weak references. Hits from each tier are
+	 * recorded as {@link CacheResults.Type#OID_HIT_RETAINED} and
+	 * {@link CacheResults.Type#OID_HIT_REFERENCE}.
+	 * 
+	 * @param heapFraction
+	 *            the fraction of the maximum heap size the retained beans may
+	 *            use, such as {@link BeanRetentionTier#DEFAULT_HEAP_FRACTION}.
+	 *            If this is zero (the default) then beans are not retained.
+	 * @param soft
+	 *            if true then beans are retained with SoftReferences. If false
+	 *            then beans are strongly retained.
+	 */
+	public void setBeanRetention(double heapFraction, boolean soft) {
+		weakReferenceCache.setRetention(heapFraction, soft);
+	}
+
+	/**
+	 * Return the tier of recently used beans, or null if
+	 * {@link #setBeanRetention(double, boolean)} hasn't enabled it.
+	 */
+	public BeanRetentionTier getBeanRetentionTier() {
+		return weakReferenceCache.getRetentionTier();
+	}
+
+	/**
+	 * Return the CachePolicy that decides which queries are cached, and how
+	 * many oids we cache for each query.
+	 */
+	public CachePolicy getCachePolicy() {
+		return cachePolicy;
+	}
+
+	public boolean setCachePolicy(CachePolicy cachePolicy) {
+		Objects.requireNonNull(cachePolicy);
+		if (this.cachePolicy == cachePolicy)
+			return false;
+		this.cachePolicy = cachePolicy;
+		return true;
+	}
+
 	/**
 	 * If {@link #isOidCachingActive()} is true then this attempts to return the
 	 * requested X2BaseBean without issuing a query.
@@ -711,11 +1671,23 @@ public class Dash {
 				log.info("global cache resolved " + beanOid);
 			cacheResults.increment(CacheResults.Type.OID_HIT_ASPEN);
 		} else {
+			BeanRetentionTier tier = weakReferenceCache.getRetentionTier();
+			bean = tier == null ? null : tier.getBean(beanClass, beanOid);
+			if (bean != null) {
+				if (log.isLoggable(Level.INFO))
+					log.info("retained beans resolved " + beanOid);
+				cacheResults.increment(CacheResults.Type.OID_HIT_RETAINED);
+				return bean;
+			}
+
 			bean = weakReferenceCache.getBeanByOid(beanClass, beanOid);
 			if (bean != null) {
 				if (log.isLoggable(Level.INFO))
 					log.info("weak references resolved " + beanOid);
 				cacheResults.increment(CacheResults.Type.OID_HIT_REFERENCE);
+				// promote this bean back to the retention tier
+				if (tier != null)
+					weakReferenceCache.storeBean(bean);
 			} else {
 				if (log.isLoggable(Level.INFO))
 					log.info("no cache resolved " + beanOid);
@@ -725,6 +1697,77 @@ public class Dash {
 		return bean;
 	}
 
+	/**
+	 * Return true if a query recently confirmed that a bean doesn't exist. If
+	 * this returns true then this records
+	 * {@link CacheResults.Type#OID_HIT_ABSENT}.
+	 * <p>
+	 * Absent oids are forgotten when {@link #modifyBeanRecord(Class)} (or
+	 * {@link #modifyBeanRecord(X2BaseBean)}) is called for their bean type,
+	 * or when they expire (see {@link #setAbsentOidTimeToLive(long)}). So if
+	 * another broker inserts a bean with a known-absent oid, we may report
+	 * that bean as absent until its oid expires.
+	 * 
+	 * @see #storeAbsentOid(Class, String, long)
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean isAbsentOid(Class beanType, String beanOid) {
+		if (!isOidCachingActive() || beanType == null || beanOid == null)
+			return false;
+		if (!absentOids.contains(beanType, beanOid))
+			return false;
+
+		Logger log = getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("known absent " + beanOid);
+		cacheResults.increment(CacheResults.Type.OID_HIT_ABSENT);
+		return true;
+	}
+
+	/**
+	 * Return a number that changes every time a bean type is modified. This
+	 * should be called before issuing a query that might confirm a bean
+	 * doesn't exist, and then passed to
+	 * {@link #storeAbsentOid(Class, String, long)}.
+	 */
+	@SuppressWarnings("rawtypes")
+	public long getAbsentOidModificationCount(Class beanType) {
+		return absentOids.getModificationCount(beanType);
+	}
+
+	/**
+	 * Record that a query confirmed a bean doesn't exist.
+	 * 
+	 * @param modificationCount
+	 *            the value {@link #getAbsentOidModificationCount(Class)}
+	 *            returned before the query was issued. If the bean type was
+	 *            modified since then this does nothing, because the bean may
+	 *            have been inserted after our query.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void storeAbsentOid(Class beanType, String beanOid,
+			long modificationCount) {
+		if (!isOidCachingActive() || beanType == null || beanOid == null)
+			return;
+		absentOids.add(beanType, beanOid, modificationCount);
+	}
+
+	/**
+	 * Return the number of milliseconds we remember that an oid doesn't
+	 * exist.
+	 */
+	public long getAbsentOidTimeToLive() {
+		return absentOids.getTimeToLive();
+	}
+
+	/**
+	 * Set the number of milliseconds we remember that an oid doesn't exist.
+	 * If this is zero then absent oids are not remembered.
+	 */
+	public boolean setAbsentOidTimeToLive(long timeToLive) {
+		return absentOids.setTimeToLive(timeToLive);
+	}
+
 	/**
 	 * Return all the beans in a list of bean oids, or null if any of those
 	 * beans were not readily available in the global cache.
@@ -741,6 +1784,101 @@ public class Dash {
 		return beans;
 	}
 
+	/**
+	 * Return all the beans in a list of bean oids. Any beans that are not
+	 * readily available in a cache are represented as null elements in the
+	 * returned list, and their oids are added to the missingOids argument.
+	 */
+	public List<X2BaseBean> getBeansByOid(Class<?> beanType,
+			List<String> beanOids, Collection<String> missingOids) {
+		List<X2BaseBean> beans = new ArrayList<>(beanOids.size());
+		for (String beanOid : beanOids) {
+			X2BaseBean bean = getBeanByOid(beanType, beanOid);
+			if (bean == null)
+				missingOids.add(beanOid);
+			beans.add(bean);
+		}
+		return beans;
+	}
+
+	/**
+	 * Retrieve several beans by their oids.
+	 * <p>
+	 * This issues one query per {@link #MAX_OIDS_PER_QUERY} oids, so we never
+	 * exceed the database's limit on bind parameters.
+	 * 
+	 * @return a map of oids to beans, or null if any of the requested beans
+	 *         were not found. (If our cache claims a bean matches a query but
+	 *         that bean no longer exists: then our cache is stale.)
+	 */
+	protected Map<String, X2BaseBean> queryBeansByOid(X2Broker broker,
+			Class<?> beanType, Collection<String> beanOids) {
+		List<String> uniqueOids = new ArrayList<>(new LinkedHashSet<>(
+				beanOids));
+		Map<String, X2BaseBean> returnValue = new HashMap<>(uniqueOids.size());
+		for (int start = 0; start < uniqueOids.size(); start += MAX_OIDS_PER_QUERY) {
+			List<String> chunk = uniqueOids.subList(start,
+					Math.min(uniqueOids.size(), start + MAX_OIDS_PER_QUERY));
+			Criteria criteria = new Criteria();
+			criteria.addIn(X2BaseBean.COL_OID, new ArrayList<>(chunk));
+			BeanQuery query = new BeanQuery(beanType, criteria);
+			int found = 0;
+			try (QueryIterator iter = broker.getIteratorByQuery(query)) {
+				while (iter.hasNext()) {
+					ThreadedBrokerIterator.checkInterruptNoYield();
+
+					X2BaseBean bean = (X2BaseBean) iter.next();
+					storeBean(bean);
+					returnValue.put(bean.getOid(), bean);
+					found++;
+				}
+			}
+			// don't issue the remaining queries if this one failed
+			if (found < chunk.size())
+				return null;
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Replace null elements in a list of beans with refilled beans.
+	 * 
+	 * @param beans
+	 *            a list of beans, where null elements represent missing beans.
+	 * @param beanOids
+	 *            the oids of all the beans in the list (in the same order).
+	 * @param refilledBeans
+	 *            the missing beans, keyed by their oid.
+	 */
+	private static List<X2BaseBean> refill(List<X2BaseBean> beans,
+			List<String> beanOids, Map<String, X2BaseBean> refilledBeans) {
+		for (int a = 0; a < beans.size(); a++) {
+			if (beans.get(a) == null)
+				beans.set(a, refilledBeans.get(beanOids.get(a)));
+		}
+		return beans;
+	}
+
+	/**
+	 * Return true if we should query for a few missing beans when we know the
+	 * oids a query (or split query) should return.
+	 * <p>
+	 * The default implementation returns true if at most half the beans are
+	 * missing. If more beans are missing than that: it's probably more
+	 * reliable to let the original query run.
+	 * 
+	 * @param request
+	 *            the request we're trying to uncache.
+	 * @param cachedCount
+	 *            the number of oids we cached for the request.
+	 * @param missingCount
+	 *            the number of beans that were not readily available.
+	 */
+	protected boolean isRefilling(QueryRequest request, int cachedCount,
+			int missingCount) {
+		return missingCount <= cachedCount / 2;
+	}
+
 	/**
 	 * Return the Cache associated with a given bean class.
 	 * 
@@ -750,17 +1888,338 @@ public class Dash {
 	 *            if true then may create a new Cache if it doesn't already
 	 *            exist. If false then this method may return null.
 	 */
-	protected Cache<CacheKey, List<String>> getCache(Class<?> beanClass,
+	protected DashCache<CacheKey, List<String>> getCache(Class<?> beanClass,
+			boolean createIfMissing) {
+		DashCache<CacheKey, List<String>> cache = cacheByBeanType
+				.get(beanClass);
+		if (cache == null && createIfMissing) {
+			DashCache<CacheKey, List<String>> newCache = cachePool
+					.createCache();
+			cache = cacheByBeanType.putIfAbsent(beanClass, newCache);
+			if (cache == null)
+				cache = newCache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Return the cache of column query rows associated with a given bean
+	 * class.
+	 * 
+	 * @param beanClass
+	 *            the base class of the column queries to fetch the cache for.
+	 * @param createIfMissing
+	 *            if true then may create a new Cache if it doesn't already
+	 *            exist. If false then this method may return null.
+	 */
+	protected DashCache<RowCacheKey, List<Object[]>> getRowCache(
+			Class<?> beanClass, boolean createIfMissing) {
+		DashCache<RowCacheKey, List<Object[]>> cache = rowCacheByBeanType
+				.get(beanClass);
+		if (cache == null && createIfMissing) {
+			DashCache<RowCacheKey, List<Object[]>> newCache = rowCachePool
+					.createCache();
+			cache = rowCacheByBeanType.putIfAbsent(beanClass, newCache);
+			if (cache == null)
+				cache = newCache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Return the cache of query counts associated with a given bean class.
+	 * 
+	 * @param beanClass
+	 *            the base class of the queries to fetch the cache for.
+	 * @param createIfMissing
+	 *            if true then may create a new Cache if it doesn't already
+	 *            exist. If false then this method may return null.
+	 */
+	protected DashCache<CacheKey, Integer> getCountCache(Class<?> beanClass,
 			boolean createIfMissing) {
-		synchronized (cacheByBeanType) {
-			Cache<CacheKey, List<String>> cache = cacheByBeanType
-					.get(beanClass);
-			if (cache == null && createIfMissing) {
-				cache = new Cache<>(cachePool);
-				cacheByBeanType.put(beanClass, cache);
+		DashCache<CacheKey, Integer> cache = countCacheByBeanType
+				.get(beanClass);
+		if (cache == null && createIfMissing) {
+			DashCache<CacheKey, Integer> newCache = cachePool.createCache();
+			cache = countCacheByBeanType.putIfAbsent(beanClass, newCache);
+			if (cache == null)
+				cache = newCache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Return true if a query has a GROUP BY or HAVING clause.
+	 */
+	protected static boolean isGrouped(QueryByCriteria query) {
+		List<?> groupBy = query.getGroupBy();
+		if (groupBy != null && !groupBy.isEmpty())
+			return true;
+		return query.getHavingCriteria() != null;
+	}
+
+	/**
+	 * Return true if {@link #getCount(X2Broker, QueryByCriteria)} supports a
+	 * query. This is any bean query (see {@link #isBeanQuery(Object)}) except
+	 * ReportQueries, because the number of rows a ReportQuery returns depends
+	 * on its columns.
+	 */
+	public static boolean isCountQuery(Object object) {
+		return isBeanQuery(object) && !(object instanceof ReportQuery);
+	}
+
+	/**
+	 * Return the number of beans a query returns.
+	 * <p>
+	 * If we have a complete list of oids cached for the same query then this
+	 * returns the size of that list. Otherwise this consults a separate cache
+	 * of counts, and if that fails this asks the broker and caches its answer.
+	 * Both lookups use a single CacheKey, so this never scans our caches.
+	 * <p>
+	 * Cached counts are cleared by the same calls that clear cached oids (such
+	 * as {@link #modifyBeanRecord(Class)}), so a count is never stale after a
+	 * bean is saved or deleted.
+	 */
+	public int getCount(X2Broker broker, QueryByCriteria beanQuery) {
+		validatePersistenceKey(broker.getPersistenceKey());
+
+		if (!isQueryCachingActive())
+			return broker.getCount(beanQuery);
+
+		Logger log = getLog();
+		Operator operator;
+		try {
+			operator = createOperator(broker, beanQuery.getCriteria());
+		} catch (Exception e) {
+			cacheResults.increment(CacheResults.Type.COUNT_SKIP_UNSUPPORTED);
+			return broker.getCount(beanQuery);
+		}
+
+		Class<?> beanType = beanQuery.getBaseClass();
+		boolean isDistinct = beanQuery.isDistinct();
+		DashCache<CacheKey, List<String>> oidCache = getCache(beanType, false);
+		if (oidCache != null) {
+			List<String> oids = oidCache.get(new CacheKey(operator,
+					new OrderByComparator(false, beanQuery.getOrderBy()),
+					isDistinct));
+			if (oids != null) {
+				cacheResults.increment(CacheResults.Type.COUNT_HIT_FROM_OIDS);
+				if (log.isLoggable(Level.INFO))
+					log.info("found " + oids.size() + " oids for \""
+							+ operator + "\"");
+				return oids.size();
 			}
-			return cache;
 		}
+
+		CacheKey countKey = new CacheKey(operator, new OrderByComparator(
+				false), isDistinct);
+		DashCache<CacheKey, Integer> countCache = getCountCache(beanType, true);
+		Integer count = countCache.get(countKey);
+		if (count != null) {
+			cacheResults.increment(CacheResults.Type.COUNT_HIT);
+			if (log.isLoggable(Level.INFO))
+				log.info("found count " + count + " for \"" + operator + "\"");
+			return count.intValue();
+		}
+
+		int returnValue = broker.getCount(beanQuery);
+		countCache.put(countKey, Integer.valueOf(returnValue));
+		cacheResults.increment(CacheResults.Type.COUNT_MISS);
+		if (log.isLoggable(Level.INFO))
+			log.info("queried count " + returnValue + " for \"" + operator
+					+ "\"");
+		return returnValue;
+	}
+
+	/**
+	 * Create a ReportQueryIterator for a column query (see
+	 * {@link #isColumnQuery(Object)}).
+	 * <p>
+	 * This is a second cache tier that stores rows (Object arrays) instead of
+	 * bean oids. Rows are cached by their operator, columns, order-by and
+	 * isDistinct, and are cleared by the same calls that clear cached bean
+	 * queries (such as {@link #modifyBeanRecord(Class)}).
+	 * <p>
+	 * We only cache column queries whose columns and criteria refer to fields
+	 * of the base class, and that don't have GROUP BY or HAVING clauses. If
+	 * a column query refers to a related bean (such as
+	 * "relStdPsnOid.psnNameLast") then modifying that related bean wouldn't
+	 * clear our cached rows, so those queries are always passed to the
+	 * broker. The one exception is the oid of a directly related bean (such
+	 * as "relStdPsnOid.oid"); see {@link #isCacheableColumns(String[])}.
+	 * <p>
+	 * Rows are stored in their own DashCachePool (see
+	 * {@link #getRowCachePool()}), and only for templates our CachePolicy
+	 * decides are worth caching.
+	 */
+	public ReportQueryIterator createReportQueryIterator(X2Broker broker,
+			ReportQueryByCriteria columnQuery) {
+		validatePersistenceKey(broker.getPersistenceKey());
+
+		if (!isQueryCachingActive()) {
+			return new ReportQueryIteratorDash(this, null,
+					broker.getReportQueryIteratorByQuery(columnQuery));
+		}
+
+		long startTime = System.nanoTime();
+		Map.Entry<ReportQueryIterator, CacheResults.Type> results = createCachedReportQueryIterator(
+				broker, columnQuery);
+		metrics.recordQuery(results.getValue(), System.nanoTime() - startTime);
+		cacheResults.increment(results.getValue());
+
+		Logger log = getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("produced " + results);
+		return results.getKey();
+	}
+
+	/**
+	 * Create a ReportQueryIterator for a column query, and identify how this
+	 * request should be classified in CacheResults.
+	 * <p>
+	 * Like bean queries, column queries are only cached if their
+	 * TemplateQueryProfile shows they're worth caching (see
+	 * {@link #getRowCachingDecision(ReportQueryByCriteria, TemplateQueryProfile)}
+	 * ), so a large one-off report doesn't fill our row cache.
+	 */
+	protected Map.Entry<ReportQueryIterator, CacheResults.Type> createCachedReportQueryIterator(
+			X2Broker broker, ReportQueryByCriteria columnQuery) {
+		String[] columns = columnQuery.getColumns();
+
+		Operator operator = null;
+		// a RowCacheKey doesn't describe grouping, so two aggregate queries
+		// that only differ in their GROUP BY/HAVING clauses would share rows
+		if (!isGrouped(columnQuery)) {
+			try {
+				operator = createOperator(broker, columnQuery.getCriteria());
+			} catch (Exception e) {
+				// this Criteria can't be converted to an Operator
+			}
+		}
+
+		if (operator == null
+				|| !isSimpleAttributes(operator.getAttributes())
+				|| !isCacheableColumns(columns)) {
+			ReportQueryIterator iter = new ReportQueryIteratorDash(this, null,
+					broker.getReportQueryIteratorByQuery(columnQuery));
+			return new AbstractMap.SimpleEntry<>(iter,
+					CacheResults.Type.COLUMN_QUERY_SKIP_UNSUPPORTED);
+		}
+
+		TemplateQueryProfile profile = getRowProfile(columnQuery, operator);
+		Map.Entry<ReportQueryIteratorDash, CacheResults.Type> results = createCachedReportQueryIterator(
+				broker, columnQuery, operator, profile);
+		results.getKey().addCloseListener(profile);
+		profile.getResults().increment(results.getValue());
+		return new AbstractMap.SimpleEntry<ReportQueryIterator, CacheResults.Type>(
+				results.getKey(), results.getValue());
+	}
+
+	/**
+	 * Create a ReportQueryIteratorDash for a column query we support caching,
+	 * and identify how this request should be classified in CacheResults.
+	 */
+	protected Map.Entry<ReportQueryIteratorDash, CacheResults.Type> createCachedReportQueryIterator(
+			X2Broker broker, ReportQueryByCriteria columnQuery,
+			Operator operator, TemplateQueryProfile profile) {
+		Logger log = getLog();
+		if (getRowCachingDecision(columnQuery, profile) != CachePolicy.Decision.CACHE) {
+			return new AbstractMap.SimpleEntry<>(new ReportQueryIteratorDash(
+					this, null,
+					broker.getReportQueryIteratorByQuery(columnQuery)),
+					CacheResults.Type.COLUMN_QUERY_SKIP);
+		}
+
+		OrderByComparator orderBy = new OrderByComparator(false,
+				columnQuery.getOrderBy());
+		RowCacheKey cacheKey = new RowCacheKey(operator, orderBy,
+				columnQuery.isDistinct(), columnQuery.getColumns());
+		DashCache<RowCacheKey, List<Object[]>> cache = getRowCache(
+				columnQuery.getBaseClass(), true);
+		List<Object[]> rows = cache.get(cacheKey);
+		if (rows != null) {
+			if (log.isLoggable(Level.INFO))
+				log.info("found " + rows.size() + " rows for " + cacheKey);
+			return new AbstractMap.SimpleEntry<>(new ReportQueryIteratorDash(
+					this, rows, null), CacheResults.Type.COLUMN_QUERY_HIT);
+		}
+
+		int maxSize = getMaxRowListSize(columnQuery);
+		rows = new ArrayList<>();
+		ReportQueryIterator iter = broker
+				.getReportQueryIteratorByQuery(columnQuery);
+		while (iter.hasNext() && rows.size() < maxSize) {
+			ThreadedBrokerIterator.checkInterruptNoYield();
+			Object[] row = iter.next();
+			rows.add(row == null ? null : row.clone());
+		}
+
+		if (iter.hasNext()) {
+			// too many rows; let's give up on caching.
+			if (log.isLoggable(Level.INFO))
+				log.info("gave up after " + rows.size() + " rows for "
+						+ cacheKey);
+			return new AbstractMap.SimpleEntry<>(new ReportQueryIteratorDash(
+					this, rows, iter),
+					CacheResults.Type.COLUMN_QUERY_MISS_ABORT_TOO_MANY);
+		}
+		iter.close();
+
+		cache.put(cacheKey, Collections.unmodifiableList(rows));
+		if (log.isLoggable(Level.INFO))
+			log.info("queried " + rows.size() + " rows for " + cacheKey);
+		return new AbstractMap.SimpleEntry<>(new ReportQueryIteratorDash(this,
+				rows, null), CacheResults.Type.COLUMN_QUERY_MISS);
+	}
+
+	/**
+	 * Return the TemplateQueryProfile for a column query. Column queries that
+	 * share the same template, base class and columns share a profile.
+	 */
+	protected TemplateQueryProfile getRowProfile(
+			ReportQueryByCriteria columnQuery, Operator operator) {
+		RowTemplateQueryProfileKey profileKey = new RowTemplateQueryProfileKey(
+				operator.getTemplateOperator(), columnQuery.getBaseClass(),
+				columnQuery.getColumns());
+		TemplateQueryProfile profile = rowProfiles.get(profileKey);
+		if (profile == null) {
+			TemplateQueryProfile newProfile = new TemplateQueryProfile();
+			profile = rowProfiles.putIfAbsent(profileKey, newProfile);
+			if (profile == null)
+				profile = newProfile;
+		}
+		profile.markUsed();
+		return profile;
+	}
+
+	/**
+	 * Return whether we should consult/update the row cache for a given column
+	 * query. This delegates to our {@link CachePolicy}, using
+	 * {@link #getMaxRowListSize(ReportQueryByCriteria)} as the default budget.
+	 * <p>
+	 * Subclasses that want to veto caching for certain column queries should
+	 * override this method (and return a Decision other than
+	 * {@link CachePolicy.Decision#CACHE}).
+	 */
+	protected CachePolicy.Decision getRowCachingDecision(
+			ReportQueryByCriteria columnQuery, TemplateQueryProfile profile) {
+		Logger log = getLog();
+		CachePolicy.Decision decision = cachePolicy.getDecision(profile,
+				getMaxRowListSize(columnQuery));
+		if (decision != CachePolicy.Decision.CACHE
+				&& log.isLoggable(Level.INFO))
+			log.info("skipping column query because of " + decision + ": "
+					+ profile);
+		return decision;
+	}
+
+	/**
+	 * Return the maximum number of rows we'll cache for a column query. By
+	 * default this divides {@link #getMaxRowCells()} by the number of
+	 * columns, so queries with fewer columns can cache more rows.
+	 */
+	protected int getMaxRowListSize(ReportQueryByCriteria columnQuery) {
+		return maxRowCells / Math.max(1, columnQuery.getColumns().length);
 	}
 
 	/**
@@ -771,25 +2230,44 @@ public class Dash {
 	 * In an ideal case: this will use cached data to completely avoid making a
 	 * database query.
 	 * <p>
-	 * This method should never issue more than one database query. There are 3
-	 * database queries this can issue:
+	 * This method should (almost) never issue more than one database query.
+	 * There are 3 database queries this can issue:
 	 * <ul>
 	 * <li>The original incoming query as-is.</li>
 	 * <li>A query to retrieve beans based on oids. If this caching layer was
-	 * able to identify the exact oids we need, but those beans are no longer in
-	 * Aspen's cache: a query based on the oids should be more efficient.</li>
+	 * able to identify the exact oids we need, but a few of those beans are no
+	 * longer in Aspen's cache: a query based on the missing oids should be more
+	 * efficient. (If that query reveals our cached oids are stale, then we
+	 * fall back to one of the other queries.)</li>
 	 * <li>A query to retrieve a subset of the original query. In this case we
 	 * were able to split the original query into smaller pieces, and some of
 	 * those pieces we could uncache and others we could not.</li>
 	 * </ul>
+	 * <p>
+	 * This never reads ahead (see {@link #setReadAhead(int, PrivilegeSet)}).
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	public QueryIterator createQueryIterator(X2Broker broker,
 			QueryByCriteria beanQuery) {
+		return createQueryIterator(broker, beanQuery, false);
+	}
+
+	/**
+	 * Create a QueryIterator for a QueryByCriteria.
+	 * 
+	 * @param readAhead
+	 *            if true then an uncached query may be run on a separate
+	 *            read-ahead broker. This should only be true if the caller's
+	 *            broker has no open transaction.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected QueryIterator createQueryIterator(X2Broker broker,
+			QueryByCriteria beanQuery, boolean readAhead) {
 		validatePersistenceKey(broker.getPersistenceKey());
 
 		if (!isQueryCachingActive()) {
-			QueryIterator iter = broker.getIteratorByQuery(beanQuery);
+			QueryIterator iter = getLiveQueryIterator(broker, beanQuery,
+					readAhead);
 			QueryIteratorDash dashIter = new QueryIteratorDash(this, null, iter);
 			return dashIter;
 		}
@@ -804,6 +2282,8 @@ public class Dash {
 			return broker.getIteratorByQuery(beanQuery);
 		}
 
+		// subqueries are resolved in createCachedQueryIterator, and only if
+		// our CachePolicy decides to cache this query
 		Operator operator;
 		try {
 			operator = createOperator(beanQuery.getCriteria());
@@ -822,14 +2302,20 @@ public class Dash {
 		if (log.isLoggable(Level.INFO))
 			log.info("template: " + template);
 
-		TemplateQueryProfile profile;
-		synchronized (profiles) {
-			profile = profiles.get(profileKey);
+		TemplateQueryProfile profile = profiles.get(profileKey);
+		if (profile == null) {
+			TemplateQueryProfile loadedProfile = snapshotProfiles
+					.get(profileKey);
+			TemplateQueryProfile newProfile = loadedProfile != null ? loadedProfile
+					: new TemplateQueryProfile();
+			profile = profiles.putIfAbsent(profileKey, newProfile);
 			if (profile == null) {
-				profile = new TemplateQueryProfile();
-				profiles.put(profileKey, profile);
+				profile = newProfile;
+				if (loadedProfile != null)
+					snapshotProfiles.remove(profileKey, loadedProfile);
 			}
 		}
+		profile.markUsed();
 		if (log.isLoggable(Level.INFO))
 			log.info("profile: " + profile);
 
@@ -839,14 +2325,19 @@ public class Dash {
 		QueryRequest request = new QueryRequest(beanQuery, operator, profile,
 				orderBy);
 
+		long startTime = System.nanoTime();
 		Map.Entry<QueryIterator, CacheResults.Type> results = createCachedQueryIterator(
-				broker, request);
+				broker, request, readAhead);
+		long elapsed = System.nanoTime() - startTime;
+		metrics.recordQuery(results.getValue(), elapsed);
+		profile.getLatency().record(elapsed);
 		if (log.isLoggable(Level.INFO))
 			log.info("produced " + results);
 
 		QueryIteratorDash dashIter = results.getKey() instanceof QueryIteratorDash ? (QueryIteratorDash) results
 				.getKey() : null;
 		if (dashIter != null) {
+			registerIterator(dashIter);
 			dashIter.addCloseListener(profile);
 			dashIter.addCloseListener(new QueryIteratorDash.CloseListener() {
 
@@ -871,6 +2362,68 @@ public class Dash {
 		return results.getKey();
 	}
 
+	/**
+	 * Create a QueryIterator for a bean query as a transaction sees it.
+	 * <p>
+	 * This never queries the database, and it never stores anything in our
+	 * caches. If we have the complete committed results of the query cached,
+	 * then this returns those results patched with the transaction's
+	 * uncommitted writes.
+	 * 
+	 * @param beanQuery
+	 *            the bean query to look up.
+	 * @param overlay
+	 *            the uncommitted writes of the current transaction.
+	 * @return a QueryIterator, or null if the query has to be passed to the
+	 *         broker.
+	 */
+	QueryIterator createOverlayQueryIterator(QueryByCriteria beanQuery,
+			TransactionOverlay overlay) {
+		Class<?> beanType = beanQuery.getBaseClass();
+		if (!isQueryCachingActive() || !overlay.isPatchable(beanType))
+			return null;
+
+		Operator operator;
+		try {
+			operator = createOperator(beanQuery.getCriteria());
+		} catch (Exception e) {
+			return null;
+		}
+		// we can't resolve subqueries without a broker
+		if (containsSubQuery(operator))
+			return null;
+		if (!isSimpleAttributes(operator.getAttributes())
+				|| operator.getAttributes().contains(X2BaseBean.COL_OID))
+			return null;
+
+		DashCache<CacheKey, List<String>> cache = getCache(beanType, false);
+		if (cache == null)
+			return null;
+
+		OrderByComparator orderBy = new OrderByComparator(false,
+				beanQuery.getOrderBy());
+		List<String> beanOids = cache.get(new CacheKey(operator, orderBy,
+				beanQuery.isDistinct()));
+		if (beanOids == null)
+			return null;
+
+		List<X2BaseBean> beans = getBeansByOid(beanType, beanOids);
+		if (beans == null)
+			return null;
+
+		try {
+			beans = overlay.patch(beanType, operator, orderBy, beans);
+		} catch (Exception e) {
+			return null;
+		}
+
+		Logger log = getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("found " + beans.size() + " beans for " + beanQuery
+					+ " using " + overlay);
+		return new QueryIteratorDash(this, beans);
+	}
+
 	/**
 	 * Return the overall cache results of all BeanQueries that passed through
 	 * this object.
@@ -879,30 +2432,83 @@ public class Dash {
 		return cacheResults;
 	}
 
+	/**
+	 * Return the broker's QueryIterator for a bean query, or a
+	 * ReadAheadQueryIterator that runs the query on its own broker if
+	 * read-ahead is enabled and allowed.
+	 * 
+	 * @param readAhead
+	 *            false if the caller's broker may have an open transaction.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected QueryIterator getLiveQueryIterator(X2Broker broker,
+			QueryByCriteria beanQuery, boolean readAhead) {
+		int size = readAheadSize;
+		PrivilegeSet privilegeSet = readAheadPrivilegeSet;
+		if (readAhead && size > 0 && privilegeSet != null)
+			return new ReadAheadQueryIterator<>(privilegeSet, beanQuery,
+					broker.getPersistenceKey(), size);
+		return broker.getIteratorByQuery(beanQuery);
+	}
+
 	/**
 	 * Create a QueryIterator for the given query. The current implementation of
 	 * this method always returns a QueryIteratorDash, but subclasses can
 	 * override this to return something else if needed.
 	 * 
+	 * @param readAhead
+	 *            if true then an uncached query may be run on a separate
+	 *            read-ahead broker.
 	 * @return the iterator and the way to classify this request in CacheResults
 	 *         objects.
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	protected Map.Entry<QueryIterator, CacheResults.Type> createCachedQueryIterator(
-			X2Broker broker, QueryRequest request) {
+			X2Broker broker, QueryRequest request, boolean readAhead) {
 		Logger log = getLog();
-		if (!isCaching(request)) {
-			QueryIterator iter = broker.getIteratorByQuery(request.beanQuery);
+		boolean hasSubQuery = containsSubQuery(request.operator);
+		if (!hasSubQuery) {
+			Map.Entry<QueryIterator, CacheResults.Type> preloaded = createPreloadedQueryIterator(request);
+			if (preloaded != null)
+				return preloaded;
+		}
+
+		CachePolicy.Decision decision = getCachingDecision(request);
+		if (decision != CachePolicy.Decision.CACHE) {
+			QueryIterator iter = getLiveQueryIterator(broker,
+					request.beanQuery, readAhead);
 			if (log.isLoggable(Level.INFO))
 				log.info("aborting to default broker");
 			iter = new QueryIteratorDash(this, null, iter);
 			return new AbstractMap.SimpleEntry<>(iter,
-					CacheResults.Type.QUERY_SKIP);
+					decision.getResultType());
+		}
+
+		if (hasSubQuery) {
+			// only now is it worth running the subqueries
+			Operator resolvedOperator;
+			try {
+				resolvedOperator = resolveSubQueries(broker, request.operator);
+			} catch (Exception e) {
+				QueryIterator iter = getLiveQueryIterator(broker,
+						request.beanQuery, readAhead);
+				if (log.isLoggable(Level.INFO))
+					log.info("aborting to default broker: " + e);
+				iter = new QueryIteratorDash(this, null, iter);
+				return new AbstractMap.SimpleEntry<>(iter,
+						CacheResults.Type.QUERY_SKIP_UNSUPPORTED);
+			}
+			request = new QueryRequest(request.beanQuery, resolvedOperator,
+					request.profile, request.orderBy);
+
+			Map.Entry<QueryIterator, CacheResults.Type> preloaded = createPreloadedQueryIterator(request);
+			if (preloaded != null)
+				return preloaded;
 		}
 
 		boolean usesOids = request.operator.getAttributes().contains(X2BaseBean.COL_OID);
 
-		Cache<CacheKey, List<String>> cache = null;
+		DashCache<CacheKey, List<String>> cache = null;
 		CacheKey cacheKey = null;
 		List<String> beanOids = null;
 		if(!usesOids) {
@@ -914,36 +2520,129 @@ public class Dash {
 		}
 
 		if (beanOids != null) {
-			List<X2BaseBean> beans = getBeansByOid(request.beanQuery.getBaseClass(), beanOids);
-			if (beans != null) {
+			List<String> missingOids = new ArrayList<>();
+			List<X2BaseBean> beans = getBeansByOid(request.beanQuery.getBaseClass(), beanOids, missingOids);
+			if (missingOids.isEmpty()) {
 				// This is our ideal case: we know the complete query results
 				QueryIterator dashIter = new QueryIteratorDash(this, beans);
 				if (log.isLoggable(Level.INFO))
 					log.info("found " + beans.size() + " beans for " + request+": "+beanOids);
 				return new AbstractMap.SimpleEntry<>(dashIter,
 						CacheResults.Type.QUERY_HIT);
+			} else if (isRefilling(request, beanOids.size(), missingOids.size())) {
+				// We know the exact oids, but a few beans were dropped from
+				// memory. Query for just those beans:
+				Map<String, X2BaseBean> refilledBeans = queryBeansByOid(broker,
+						request.beanQuery.getBaseClass(), missingOids);
+				if (refilledBeans != null) {
+					refill(beans, beanOids, refilledBeans);
+					QueryIterator dashIter = new QueryIteratorDash(this, beans);
+					if (log.isLoggable(Level.INFO))
+						log.info("found " + beans.size() + " beans for " + request+" after refilling "+missingOids);
+					return new AbstractMap.SimpleEntry<>(dashIter,
+							CacheResults.Type.QUERY_HIT_WITH_REFILL);
+				}
+
+				// some of our cached oids no longer exist
+				cache.remove(cacheKey);
+				if (log.isLoggable(Level.INFO))
+					log.info("found " + beanOids.size() + " beans for " + request+", but refilling failed: "+missingOids);
 			} else {
 				if (log.isLoggable(Level.INFO))
-					log.info("found " + beanOids.size() + " beans for " + request+", but they couldn't be uncached: "+beanOids);
+					log.info("found " + beanOids.size() + " beans for " + request+", but "+missingOids.size()+" couldn't be uncached: "+missingOids);
 			}
-
-			// We know the exact oids, but we couldn't retrieve those beans
-			// anymore. In a previous draft we tried rewriting the query based
-			// on the oids, but in our field test: this came up about 1 or 2
-			// times in two hours. I think it's too much of a risk (we might get
-			// something wrong) to worry about this scenario too much
 		}
 
 		// we couldn't retrieve the entire query results from our cache
 
-		Collection<Operator> splitOperators = request.operator.split();
+		if (cache == null)
+			return createMissedQueryIterator(broker, request, cache, cacheKey);
+
+		Map.Entry<Class<?>, CacheKey> inFlightKey = new AbstractMap.SimpleEntry<Class<?>, CacheKey>(
+				request.beanQuery.getBaseClass(), cacheKey);
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch existingLatch = inFlightQueries.putIfAbsent(inFlightKey,
+				latch);
+		if (existingLatch == null) {
+			try {
+				return createMissedQueryIterator(broker, request, cache,
+						cacheKey);
+			} finally {
+				inFlightQueries.remove(inFlightKey, latch);
+				latch.countDown();
+			}
+		}
+
+		// another thread is already issuing this exact query, so wait for it
+		// to cache its results
+		if (log.isLoggable(Level.INFO))
+			log.info("waiting for another thread to query " + request);
+		try {
+			existingLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Stopped by interrupt check");
+		}
+
+		beanOids = cache.get(cacheKey);
+		if (beanOids != null) {
+			List<String> missingOids = new ArrayList<>();
+			List<X2BaseBean> beans = getBeansByOid(request.beanQuery.getBaseClass(), beanOids, missingOids);
+			if (missingOids.isEmpty()) {
+				QueryIterator dashIter = new QueryIteratorDash(this, beans);
+				if (log.isLoggable(Level.INFO))
+					log.info("found " + beans.size() + " beans for " + request+" after waiting for another thread: "+beanOids);
+				return new AbstractMap.SimpleEntry<>(dashIter,
+						CacheResults.Type.QUERY_HIT_COALESCED);
+			}
+		}
+
+		// the other thread didn't cache its results (for example: because
+		// there were too many beans), so we have to query for them ourselves
+		return createMissedQueryIterator(broker, request, cache, cacheKey);
+	}
+
+	/**
+	 * Create a QueryIterator for a query whose complete results were not
+	 * cached.
+	 * 
+	 * @param cache
+	 *            the cache of oids for the query's bean type. This may be
+	 *            null if the query's results should not be cached.
+	 * @param cacheKey
+	 *            the key identifying the query in the cache. This may be
+	 *            null if the cache is null.
+	 * @return the iterator and the way to classify this request in CacheResults
+	 *         objects.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected Map.Entry<QueryIterator, CacheResults.Type> createMissedQueryIterator(
+			X2Broker broker, QueryRequest request,
+			DashCache<CacheKey, List<String>> cache, CacheKey cacheKey) {
+		Logger log = getLog();
+		List<String> beanOids;
+
+		if (cache != null) {
+			Map.Entry<QueryIterator, CacheResults.Type> subsumed = createSubsumedQueryIterator(
+					request, cache, cacheKey);
+			if (subsumed != null)
+				return subsumed;
+
+			Map.Entry<QueryIterator, CacheResults.Type> prefetched = prefetchLoop(
+					broker, request, cache);
+			if (prefetched != null)
+				return prefetched;
+		}
+
+		Collection<Operator> splitOperators = new ArrayList<>(
+				request.operator.split());
 
 		if (splitOperators.size() <= 1 || !isCachingSplit(request)) {
 			// this is the simple scenario (no splitting)
 			Collection<X2BaseBean> beansToReturn = new LinkedList<>();
 			QueryIterator iter = broker.getIteratorByQuery(request.beanQuery);
 			int ctr = 0;
-			int maxSize = getMaxOidListSize(false, request.beanQuery);
+			int maxSize = getMaxOidListSize(request, false);
 			while (iter.hasNext() && ctr < maxSize) {
 				ThreadedBrokerIterator.checkInterruptNoYield();
 
@@ -971,7 +2670,7 @@ public class Dash {
 				for (X2BaseBean bean : beansToReturn) {
 					beanOids.add(bean.getOid());
 				}
-				cache.put(cacheKey, beanOids);
+				cache.put(cacheKey, PackedOidList.create(beanOids));
 			}
 
 			QueryIterator dashIter = new QueryIteratorDash(this, beansToReturn);
@@ -997,6 +2696,10 @@ public class Dash {
 		Iterator<Operator> splitOpIter = splitOperators.iterator();
 
 		int removedOperators = 0;
+		// split operators we resolved except for a few beans we need to refill
+		Map<Operator, List<X2BaseBean>> partialSplitBeans = new HashMap<>();
+		Map<Operator, List<String>> partialSplitOids = new HashMap<>();
+		Collection<String> splitMissingOids = new HashSet<>();
 		while (splitOpIter.hasNext()) {
 			Operator splitOperator = splitOpIter.next();
 			CacheKey splitKey = null;
@@ -1008,9 +2711,10 @@ public class Dash {
 			}
 
 			if (splitOids != null) {
+				List<String> missingOids = new ArrayList<>();
 				List<X2BaseBean> splitBeans = getBeansByOid(
-						request.beanQuery.getBaseClass(), splitOids);
-				if (splitBeans != null) {
+						request.beanQuery.getBaseClass(), splitOids, missingOids);
+				if (missingOids.isEmpty()) {
 					// great: we got *some* of the beans by looking at a split
 					// query
 					removedOperators++;
@@ -1019,6 +2723,14 @@ public class Dash {
 								+ " beans for \"" + splitOperator+"\": "+splitOids);
 					knownBeans.addAll(splitBeans);
 					splitOpIter.remove();
+				} else if (isRefilling(request, splitOids.size(), missingOids.size())) {
+					// We know the exact oids, but a few beans were dropped
+					// from memory. If every other split operator is resolved
+					// then we'll query for just these beans.
+					partialSplitBeans.put(splitOperator, splitBeans);
+					partialSplitOids.put(splitOperator, splitOids);
+					splitMissingOids.addAll(missingOids);
+					splitOpIter.remove();
 				} else {
 					// We know the exact oids, but those beans aren't in Aspen's
 					// cache anymore.
@@ -1032,6 +2744,43 @@ public class Dash {
 			}
 		}
 
+		if (!partialSplitBeans.isEmpty()) {
+			Map<String, X2BaseBean> refilledBeans = null;
+			if (splitOperators.isEmpty()) {
+				// the only beans we still need are beans we know the oids of
+				refilledBeans = queryBeansByOid(broker,
+						request.beanQuery.getBaseClass(), splitMissingOids);
+			}
+
+			if (refilledBeans != null) {
+				for (Entry<Operator, List<X2BaseBean>> entry : partialSplitBeans
+						.entrySet()) {
+					knownBeans.addAll(refill(entry.getValue(),
+							partialSplitOids.get(entry.getKey()), refilledBeans));
+				}
+				QueryIterator dashIter = new QueryIteratorDash(this, knownBeans);
+				if (log.isLoggable(Level.INFO))
+					log.info("collection " + knownBeans.size()
+							+ " split beans for " + request + " after refilling "
+							+ splitMissingOids);
+				return new AbstractMap.SimpleEntry<>(dashIter,
+						CacheResults.Type.QUERY_HIT_WITH_REFILL);
+			}
+
+			// we have to query the database for other split operators anyway,
+			// (or our cached oids are stale) so just fold these back in
+			for (Operator splitOperator : partialSplitBeans.keySet()) {
+				cache.remove(new CacheKey(splitOperator, request.orderBy,
+						request.beanQuery.isDistinct()));
+				splitOperators.add(splitOperator);
+				if (log.isLoggable(Level.INFO))
+					log.info("identified split operator with "
+							+ partialSplitOids.get(splitOperator).size()
+							+ " beans, but they couldn't be refilled \""
+							+ splitOperator + "\"");
+			}
+		}
+
 		// we removed elements from splitIterators if we resolved those queries,
 		// so now all that remains is splitIterators is what we still need to look 
 		// up.
@@ -1074,7 +2823,7 @@ public class Dash {
 
 		QueryIterator iter = broker.getIteratorByQuery(ourQuery);
 		int ctr = 0;
-		int maxSize = getMaxOidListSize(removedOperators > 0, ourQuery);
+		int maxSize = getMaxOidListSize(request, removedOperators > 0);
 		while (iter.hasNext() && ctr < maxSize) {
 			ThreadedBrokerIterator.checkInterruptNoYield();
 
@@ -1102,30 +2851,20 @@ public class Dash {
 			for (X2BaseBean bean : knownBeans) {
 				beanOids.add(bean.getOid());
 			}
-			cache.put(cacheKey, beanOids);
+			cache.put(cacheKey, PackedOidList.create(beanOids));
 		
 			if (isCachingSplitResults(request, knownBeans)) {
-				scanOps : for (Operator op : splitOperators) {
-					List<String> oids = new LinkedList<>();
-	
-					for (X2BaseBean bean : knownBeans) {
-						try {
-							if (op.evaluate(Dash.CONTEXT, bean)) {
-								oids.add(bean.getOid());
-							}
-						} catch (Exception e) {
-							UncaughtExceptionHandler ueh = getUncaughtExceptionHandler();
-							Exception e2 = new Exception(
-									"An error occurred evaluating \"" + op
-											+ "\" on \"" + bean + "\"", e);
-							ueh.uncaughtException(Thread.currentThread(), e2);
-							continue scanOps;
-						}
-					}
-	
+				SplitEvaluator evaluator = new SplitEvaluator(Dash.CONTEXT,
+						splitOperators);
+				Map<Operator, List<String>> oidsByOperator = evaluator.evaluate(
+						knownBeans, getUncaughtExceptionHandler());
+				for (Map.Entry<Operator, List<String>> entry : oidsByOperator
+						.entrySet()) {
+					Operator op = entry.getKey();
+					List<String> oids = entry.getValue();
 					CacheKey splitKey = new CacheKey(op, request.orderBy,
 							ourQuery.isDistinct());
-					cache.put(splitKey, oids);
+					cache.put(splitKey, PackedOidList.create(oids));
 					if (log.isLoggable(Level.INFO))
 						log.info("identified " + oids.size()
 								+ " oids for split query \"" + op+"\": "+oids);
@@ -1175,6 +2914,26 @@ public class Dash {
 		return true;
 	}
 
+	/**
+	 * Return true if we can cache rows that contain the given columns.
+	 * <p>
+	 * Each column must be simple (see {@link #isSimpleAttributes(Collection)}),
+	 * or it must be the oid of a bean that is directly related to the base
+	 * bean (such as "relStdPsnOid.oid"). That oid is the same as the base
+	 * bean's foreign key, so it can only change when the base bean changes.
+	 */
+	protected boolean isCacheableColumns(String[] columns) {
+		String oidSuffix = ModelProperty.PATH_DELIMITER + X2BaseBean.COL_OID;
+		for (String column : columns) {
+			int i = column.indexOf(ModelProperty.PATH_DELIMITER);
+			if (i != -1
+					&& !(column.endsWith(oidSuffix) && i == column.length()
+							- oidSuffix.length()))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Convert an Operator into an Criteria.
 	 */
@@ -1197,19 +2956,170 @@ public class Dash {
 	}
 
 	/**
-	 * Convert a Criteria into an Operator.
+	 * Convert a Criteria into an Operator.
+	 * <p>
+	 * The Operator is converted into its canonical form (see
+	 * {@link OperatorCanonicalizer}), so logically equivalent Criteria share
+	 * the same cached results and TemplateQueryProfile.
+	 */
+	public Operator createOperator(Criteria criteria) {
+		Operator operator = null;
+		try {
+			operator = getCriteriaToOperatorConverter()
+					.createOperator(criteria);
+			operator = getCanonicalOperator(operator);
+		} finally {
+			Logger log = getLog();
+			if (log.isLoggable(Level.INFO))
+				log.info("" + operator);
+		}
+		return operator;
+	}
+
+	/**
+	 * Convert a Criteria into an Operator, and resolve any subqueries it
+	 * contains. This runs the subqueries (unless their values are cached),
+	 * so callers that may not use the Operator should call
+	 * {@link #createOperator(Criteria)} and resolve it later.
+	 * 
+	 * @see #resolveSubQueries(X2Broker, Operator)
+	 */
+	protected Operator createOperator(X2Broker broker, Criteria criteria) {
+		return resolveSubQueries(broker, createOperator(criteria));
+	}
+
+	/**
+	 * Replace every SubQueryIn in an Operator with an In operator that
+	 * contains the values the subquery returns.
+	 * <p>
+	 * Each subquery is run through
+	 * {@link #createReportQueryIterator(X2Broker, ReportQueryByCriteria)}, so
+	 * if the same subquery was run recently its values come from our row
+	 * cache. Because the values become part of the resolved Operator, the
+	 * resolved Operator (and therefore its CacheKey) changes whenever the
+	 * subquery's results change.
+	 * <p>
+	 * If a subquery returns more than {@link #MAX_SUBQUERY_VALUES} values we
+	 * remember it, so the next attempt to resolve it fails without running
+	 * it again.
+	 * 
+	 * @return an Operator that contains no SubQueryIns. This is the argument
+	 *         itself if it contained no SubQueryIns.
+	 * @throws IllegalArgumentException
+	 *             if a subquery returns (or recently returned) more than
+	 *             {@link #MAX_SUBQUERY_VALUES} values.
+	 */
+	protected Operator resolveSubQueries(X2Broker broker, Operator operator) {
+		if (!containsSubQuery(operator))
+			return operator;
+		return getCanonicalOperator(resolveSubQueriesRecursively(broker,
+				operator));
+	}
+
+	private Operator resolveSubQueriesRecursively(X2Broker broker,
+			Operator operator) {
+		if (operator instanceof SubQueryIn) {
+			SubQueryIn subQueryIn = (SubQueryIn) operator;
+			List<?> subQueryKey = getSubQueryKey(subQueryIn.getSubQuery());
+			if (subQueryKey != null) {
+				synchronized (oversizedSubQueries) {
+					if (oversizedSubQueries.contains(subQueryKey))
+						throw new IllegalArgumentException(
+								"The subquery recently returned more than "
+										+ MAX_SUBQUERY_VALUES + " values: "
+										+ subQueryIn);
+				}
+			}
+			Set<Object> values = new HashSet<>();
+			try (ReportQueryIterator iter = createReportQueryIterator(broker,
+					subQueryIn.getSubQuery())) {
+				while (iter.hasNext()) {
+					Object[] row = (Object[]) iter.next();
+					values.add(row[0]);
+					if (values.size() > MAX_SUBQUERY_VALUES) {
+						if (subQueryKey != null) {
+							synchronized (oversizedSubQueries) {
+								oversizedSubQueries.add(subQueryKey);
+							}
+						}
+						throw new IllegalArgumentException(
+								"The subquery returned more than "
+										+ MAX_SUBQUERY_VALUES + " values: "
+										+ subQueryIn);
+					}
+				}
+			}
+			return In.create(subQueryIn.getAttribute(), values);
+		} else if (operator instanceof Not) {
+			return new Not(resolveSubQueriesRecursively(broker,
+					(Operator) operator.getOperand(0)));
+		} else if (operator instanceof And || operator instanceof Or) {
+			List<Operator> operands = new ArrayList<>();
+			for (Operator operand : ((AbstractCompoundOperator) operator)
+					.getOperands()) {
+				operands.add(resolveSubQueriesRecursively(broker, operand));
+			}
+			return operator instanceof And ? new And(operands) : new Or(
+					operands);
+		}
+		return operator;
+	}
+
+	/**
+	 * Return the key we use to remember a subquery in
+	 * {@link #oversizedSubQueries}, or null if the subquery's Criteria can't
+	 * be converted into an Operator.
+	 */
+	protected List<?> getSubQueryKey(ReportQueryByCriteria subQuery) {
+		Operator operator;
+		try {
+			operator = createOperator(subQuery.getCriteria());
+		} catch (Exception e) {
+			return null;
+		}
+		RowCacheKey rowCacheKey = new RowCacheKey(operator,
+				new OrderByComparator(false, subQuery.getOrderBy()),
+				subQuery.isDistinct(), subQuery.getColumns());
+		return Arrays.asList(subQuery.getBaseClass(), rowCacheKey);
+	}
+
+	/**
+	 * Return true if an Operator contains a SubQueryIn.
+	 */
+	protected static boolean containsSubQuery(Operator operator) {
+		if (operator instanceof SubQueryIn)
+			return true;
+		if (operator instanceof Not)
+			return containsSubQuery((Operator) operator.getOperand(0));
+		if (operator instanceof And || operator instanceof Or) {
+			for (Operator operand : ((AbstractCompoundOperator) operator)
+					.getOperands()) {
+				if (containsSubQuery(operand))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the canonical form of an Operator. This is memoized, so each
+	 * distinct Operator is only canonicalized once (until it is one of the
+	 * least recently used of {@link #MAX_CANONICAL_OPERATORS} operators).
 	 */
-	public Operator createOperator(Criteria criteria) {
-		Operator operator = null;
-		try {
-			operator = getCriteriaToOperatorConverter()
-					.createOperator(criteria);
-		} finally {
-			Logger log = getLog();
-			if (log.isLoggable(Level.INFO))
-				log.info("" + operator);
+	protected Operator getCanonicalOperator(Operator operator) {
+		if (operator == null)
+			return null;
+		Operator canonicalOperator;
+		synchronized (canonicalOperators) {
+			canonicalOperator = canonicalOperators.get(operator);
 		}
-		return operator;
+		if (canonicalOperator == null) {
+			canonicalOperator = OperatorCanonicalizer.canonicalize(operator);
+			synchronized (canonicalOperators) {
+				canonicalOperators.put(operator, canonicalOperator);
+			}
+		}
+		return canonicalOperator;
 	}
 
 	/**
@@ -1252,11 +3162,22 @@ public class Dash {
 	 */
 	public void clearAll() {
 		try {
-			synchronized (cacheByBeanType) {
-				cachePool.clear();
-				cacheByBeanType.clear();
+			// this empties every cache we created (including profiles), but
+			// we keep using the same caches afterwards. (A StripedCachePool
+			// never forgets a cache it created, so replacing our caches would
+			// leak the old ones.)
+			cachePool.clear();
+			if (rowCachePool != cachePool)
+				rowCachePool.clear();
+			synchronized (canonicalOperators) {
+				canonicalOperators.clear();
 			}
+			synchronized (oversizedSubQueries) {
+				oversizedSubQueries.clear();
+			}
+			preloadsByBeanType.clear();
 			weakReferenceCache.clear();
+			absentOids.clear();
 		} finally {
 			Logger log = getLog();
 			if (log.isLoggable(Level.INFO))
@@ -1287,12 +3208,212 @@ public class Dash {
 			modifiedBeanTypes.add(beanType);
 		}
 		clearCache(beanType);
+		absentOids.clear(beanType);
 
 		Logger log = getLog();
 		if (log.isLoggable(Level.INFO))
 			log.info(beanType.getName());
 	}
 
+	/**
+	 * This method should be notified after the X2Broker saves a bean.
+	 * <p>
+	 * If {@link #isRowInvalidationActive()} is false then this calls
+	 * {@link #modifyBeanRecord(Class)}. Otherwise this evaluates the bean
+	 * against every cached query for its bean type, and only the cached
+	 * queries whose results could change are updated or removed.
+	 * 
+	 * @param bean
+	 *            the bean that was saved. If this is null then this method
+	 *            immediately returns.
+	 */
+	public void modifyBeanRecord(X2BaseBean bean) {
+		if (bean == null)
+			return;
+
+		if (!isRowInvalidationActive() || bean.getOid() == null) {
+			modifyBeanRecord(bean.getClass());
+			return;
+		}
+
+		synchronized (modifiedBeanTypes) {
+			modifiedBeanTypes.add(bean.getClass());
+		}
+		// this may be an insert
+		absentOids.clear(bean.getClass());
+		invalidateRow(bean.getClass(), bean.getOid(), bean);
+		storeBean(bean);
+	}
+
+	/**
+	 * This method should be notified when the X2Broker deletes a bean.
+	 * <p>
+	 * If {@link #isRowInvalidationActive()} is false then this calls
+	 * {@link #modifyBeanRecord(Class)}. Otherwise this only removes the
+	 * deleted oid from our cached queries.
+	 * 
+	 * @param beanType
+	 *            the type of bean that was deleted.
+	 * @param beanOid
+	 *            the oid of the bean that was deleted.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void deleteBeanRecord(Class beanType, String beanOid) {
+		if (beanType == null)
+			return;
+
+		if (!isRowInvalidationActive() || beanOid == null) {
+			modifyBeanRecord(beanType);
+			return;
+		}
+
+		synchronized (modifiedBeanTypes) {
+			modifiedBeanTypes.add(beanType);
+		}
+		invalidateRow(beanType, beanOid, null);
+		weakReferenceCache.removeBean(beanType, beanOid);
+	}
+
+	/**
+	 * Update or remove every cached query for a bean type whose results may
+	 * have changed because a bean was saved or deleted.
+	 * <p>
+	 * We don't need the state of the bean before it was modified: if a cached
+	 * list of oids contains the bean's oid then the bean used to match that
+	 * query. So for each cached query:
+	 * <ul>
+	 * <li>If the bean didn't match and still doesn't match: nothing changes.</li>
+	 * <li>If the bean used to match and no longer matches (or was deleted): we
+	 * remove its oid from the cached list.</li>
+	 * <li>If the bean now matches: we append its oid if the query has no
+	 * order-by fields. Otherwise we don't know where the bean belongs, so we
+	 * remove the cached query.</li>
+	 * </ul>
+	 * If we can't reliably evaluate the bean against a query (because the
+	 * query refers to related beans, or the evaluation fails) then we remove
+	 * that cached query.
+	 * 
+	 * @param beanType
+	 *            the type of bean that was modified.
+	 * @param beanOid
+	 *            the oid of the bean that was modified.
+	 * @param bean
+	 *            the bean after it was saved, or null if it was deleted.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected void invalidateRow(Class beanType, String beanOid,
+			X2BaseBean bean) {
+		int removed = 0;
+		int updated = 0;
+		try {
+			List<PreloadPartition> preloads = preloadsByBeanType.get(beanType);
+			if (preloads != null) {
+				for (PreloadPartition preload : preloads) {
+					boolean isEvaluable = preload.getOperator() == null
+							|| isSimpleAttributes(preload.getOperator()
+									.getAttributes());
+					if (!isEvaluable || !preload.update(beanOid, bean)) {
+						preloads.remove(preload);
+						removed++;
+					} else {
+						updated++;
+					}
+				}
+			}
+
+			// cached rows don't necessarily include the oid, so we can't
+			// tell which rows this bean affects
+			DashCache<RowCacheKey, List<Object[]>> rowCache = getRowCache(
+					beanType, false);
+			if (rowCache != null) {
+				removed += rowCache.size();
+				rowCache.clear();
+			}
+
+			// we don't know whether this bean used to match a cached count
+			DashCache<CacheKey, Integer> countCache = getCountCache(beanType,
+					false);
+			if (countCache != null) {
+				removed += countCache.size();
+				countCache.clear();
+			}
+
+			DashCache<CacheKey, List<String>> cache = getCache(beanType, false);
+			if (cache == null)
+				return;
+
+			// peek so this scan doesn't mark every entry as recently used
+			for (CacheKey cacheKey : cache.getKeys()) {
+				List<String> oids = cache.peek(cacheKey);
+				if (oids == null)
+					continue;
+
+				Operator operator = cacheKey.getKey();
+				boolean wasMatch = oids.contains(beanOid);
+				boolean isMatch;
+				if (bean == null) {
+					isMatch = false;
+				} else if (!isSimpleAttributes(operator.getAttributes())) {
+					cache.remove(cacheKey);
+					removed++;
+					continue;
+				} else {
+					try {
+						isMatch = operator.evaluate(Dash.CONTEXT, bean);
+					} catch (Exception e) {
+						cache.remove(cacheKey);
+						removed++;
+						continue;
+					}
+				}
+
+				if (!wasMatch && !isMatch) {
+					continue;
+				} else if (wasMatch && !isMatch) {
+					List<String> newOids = new ArrayList<>(oids);
+					newOids.remove(beanOid);
+					if (replaceOids(cache, cacheKey, oids, newOids)) {
+						updated++;
+					} else {
+						removed++;
+					}
+				} else if (!cacheKey.getValue().getFieldHelpers().isEmpty()) {
+					cache.remove(cacheKey);
+					removed++;
+				} else if (!wasMatch) {
+					List<String> newOids = new ArrayList<>(oids.size() + 1);
+					newOids.addAll(oids);
+					newOids.add(beanOid);
+					if (replaceOids(cache, cacheKey, oids, newOids)) {
+						updated++;
+					} else {
+						removed++;
+					}
+				}
+			}
+		} finally {
+			Logger log = getLog();
+			if (log.isLoggable(Level.INFO))
+				log.info(beanType.getName() + " " + beanOid + ", " + updated
+						+ " entries updated, " + removed + " entries removed");
+		}
+	}
+
+	/**
+	 * Replace a cached list of oids if no other thread changed it since we
+	 * read it. If another thread did change it then we can't tell whether
+	 * our update or theirs is missing, so we remove the entry.
+	 * 
+	 * @return true if the entry was replaced, false if it was removed.
+	 */
+	private boolean replaceOids(DashCache<CacheKey, List<String>> cache,
+			CacheKey cacheKey, List<String> oldOids, List<String> newOids) {
+		if (cache.replace(cacheKey, oldOids, PackedOidList.create(newOids)))
+			return true;
+		cache.remove(cacheKey);
+		return false;
+	}
+
 	/**
 	 * Clear all cached information related to a given bean type.
 	 */
@@ -1303,12 +3424,34 @@ public class Dash {
 		
 		int size = 0;
 		try {
-			Cache<CacheKey, List<String>> cache = getCache(beanType, false);
+			DashCache<CacheKey, List<String>> cache = getCache(beanType, false);
 			if (cache != null) {
 				size = cache.size();
 				cache.clear();
 			}
 
+			DashCache<RowCacheKey, List<Object[]>> rowCache = getRowCache(
+					beanType, false);
+			if (rowCache != null) {
+				size += rowCache.size();
+				rowCache.clear();
+			}
+
+			DashCache<CacheKey, Integer> countCache = getCountCache(beanType,
+					false);
+			if (countCache != null) {
+				size += countCache.size();
+				countCache.clear();
+			}
+
+			List<PreloadPartition> preloads = preloadsByBeanType
+					.remove(beanType);
+			if (preloads != null) {
+				for (PreloadPartition preload : preloads) {
+					size += preload.size();
+				}
+			}
+
 			size += weakReferenceCache.clear(beanType);
 		} finally {
 			Logger log = getLog();
@@ -1323,43 +3466,497 @@ public class Dash {
 	}
 
 	/**
-	 * Return true if we should consult/update the cache for a given query.
+	 * Load every bean a query returns into memory, and index those beans by
+	 * the given attributes.
+	 * <p>
+	 * Dash usually only starts caching a query after it has seen that query's
+	 * template several times. If you know up front that a task will touch
+	 * every bean in a large set (such as every StudentContact in a school),
+	 * this lets you load that set once. After that any bean query whose
+	 * criteria is contained in the superset and compares an indexed attribute
+	 * (using "==" or "IN") is answered from memory, and is recorded as a
+	 * {@link CacheResults.Type#QUERY_HIT_FROM_PRELOAD}.
+	 * <p>
+	 * The preloaded beans are discarded when {@link #modifyBeanRecord(Class)}
+	 * or {@link #clearAll()} is called. If {@link #isRowInvalidationActive()}
+	 * is true then saving or deleting a bean only updates the beans and
+	 * indexes it affects.
+	 * 
+	 * @param broker
+	 *            the broker used to issue the superset query.
+	 * @param superset
+	 *            the query that identifies all the beans to load.
+	 * @param indexAttributes
+	 *            the bean attributes to index. These must not be paths to
+	 *            related beans.
+	 * @return the PreloadPartition containing the beans, which can later be
+	 *         passed to {@link #removePreload(PreloadPartition)}.
 	 */
-	protected boolean isCaching(QueryRequest request) {
+	@SuppressWarnings("rawtypes")
+	public PreloadPartition preload(X2Broker broker, QueryByCriteria superset,
+			String... indexAttributes) {
+		validatePersistenceKey(broker.getPersistenceKey());
+		if (!isBeanQuery(superset))
+			throw new IllegalArgumentException(
+					"The superset must be a bean query: " + superset);
+		if (indexAttributes.length == 0
+				|| !isSimpleAttributes(Arrays.asList(indexAttributes)))
+			throw new IllegalArgumentException(
+					"At least one index attribute is required, and attributes must not be paths: "
+							+ Arrays.asList(indexAttributes));
+
+		Operator operator = null;
+		if (superset.getCriteria() != null)
+			operator = createOperator(broker, superset.getCriteria());
+		OrderByComparator orderBy = new OrderByComparator(false,
+				superset.getOrderBy());
+		PreloadPartition preload = new PreloadPartition(
+				superset.getBaseClass(), operator, orderBy, indexAttributes);
+
+		try (QueryIterator iter = broker.getIteratorByQuery(superset)) {
+			while (iter.hasNext()) {
+				ThreadedBrokerIterator.checkInterruptNoYield();
+
+				X2BaseBean bean = (X2BaseBean) iter.next();
+				storeBean(bean);
+				preload.add(bean);
+			}
+		}
+
+		List<PreloadPartition> preloads = preloadsByBeanType.get(superset
+				.getBaseClass());
+		if (preloads == null) {
+			List<PreloadPartition> newPreloads = new CopyOnWriteArrayList<>();
+			preloads = preloadsByBeanType.putIfAbsent(superset.getBaseClass(),
+					newPreloads);
+			if (preloads == null)
+				preloads = newPreloads;
+		}
+		preloads.add(preload);
+
 		Logger log = getLog();
-		if (request.profile.getCounter() < 10) {
-			// The Dash caching layer is supposed to help address
-			// frequent repetitive queries. Don't interfere with
-			// rare queries. For large tasks there is usually a huge
-			// outermost query/loop (such as grabbing 10,000 students
-			// to iterate over). We want to let those big and rare
-			// queries slip by this caching model with no interference.
+		if (log.isLoggable(Level.INFO))
+			log.info("preloaded " + preload);
+		return preload;
+	}
 
-			if (log.isLoggable(Level.INFO))
-				log.info("skipping because profile is too small: "
-						+ request.profile);
+	/**
+	 * Discard a PreloadPartition that
+	 * {@link #preload(X2Broker, QueryByCriteria, String...)} created.
+	 * 
+	 * @return true if the partition was discarded, false if it was already
+	 *         discarded.
+	 */
+	public boolean removePreload(PreloadPartition preload) {
+		List<PreloadPartition> preloads = preloadsByBeanType.get(preload
+				.getBeanType());
+		return preloads != null && preloads.remove(preload);
+	}
 
-			return false;
+	/**
+	 * Try to answer a query using the indexes of a PreloadPartition.
+	 * 
+	 * @return the results for the current request, or null if no
+	 *         PreloadPartition can answer it.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected Map.Entry<QueryIterator, CacheResults.Type> createPreloadedQueryIterator(
+			QueryRequest request) {
+		List<PreloadPartition> preloads = preloadsByBeanType.get(request.beanQuery
+				.getBaseClass());
+		if (preloads == null || preloads.isEmpty()
+				|| !isSimpleAttributes(request.operator.getAttributes()))
+			return null;
+
+		List<Operator> conjuncts = request.operator instanceof And ? ((And) request.operator)
+				.getOperands() : Arrays.asList(request.operator);
+		for (PreloadPartition preload : preloads) {
+			if (preload.getOperator() != null
+					&& !OperatorSubsumption.subsumes(preload.getOperator(),
+							request.operator))
+				continue;
+
+			for (Operator conjunct : conjuncts) {
+				List<X2BaseBean> candidates;
+				if (conjunct instanceof EqualTo) {
+					EqualTo e = (EqualTo) conjunct;
+					candidates = preload.getBeans(e.getAttribute(),
+							Collections.singleton(e.getValue()));
+				} else if (conjunct instanceof In) {
+					In in = (In) conjunct;
+					candidates = preload.getBeans(in.getAttribute(),
+							in.getValue());
+				} else {
+					continue;
+				}
+				if (candidates == null)
+					continue;
+
+				boolean isSameOrder = conjunct instanceof EqualTo
+						&& preload.getOrderBy().equals(request.orderBy);
+				if (!isSameOrder && !request.orderBy.isSimple())
+					continue;
+
+				List<X2BaseBean> matches = new ArrayList<>(candidates.size());
+				try {
+					for (X2BaseBean bean : candidates) {
+						if (request.operator.evaluate(CONTEXT, bean))
+							matches.add(bean);
+					}
+				} catch (Exception e) {
+					Logger log = getLog();
+					if (log.isLoggable(Level.INFO))
+						log.info("failed to evaluate " + request.operator
+								+ " against " + preload + ": " + e);
+					return null;
+				}
+				if (!isSameOrder)
+					Collections.sort(matches, request.orderBy);
+
+				Logger log = getLog();
+				if (log.isLoggable(Level.INFO))
+					log.info("found " + matches.size() + " beans in "
+							+ preload + " for " + request);
+				QueryIterator dashIter = new QueryIteratorDash(this, matches);
+				return new AbstractMap.SimpleEntry<>(dashIter,
+						CacheResults.Type.QUERY_HIT_FROM_PRELOAD);
+			}
 		}
+		return null;
+	}
+
+	/**
+	 * Try to answer a query by filtering the cached results of a broader
+	 * query.
+	 * <p>
+	 * For example: if we know exactly which beans match "schoolOid == A",
+	 * then we can answer "schoolOid == A && gradeLevel == 09" by evaluating
+	 * that operator against those beans. If several cached queries contain
+	 * the requested query, we filter the smallest one. The filtered beans are
+	 * sorted using the requested OrderByComparator (unless the broader query
+	 * used the same order), and they're cached under the requested CacheKey.
+	 * 
+	 * @return the results for the current request, or null if no cached
+	 *         query contains the current request (or if filtering it failed).
+	 * @see OperatorSubsumption
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected Map.Entry<QueryIterator, CacheResults.Type> createSubsumedQueryIterator(
+			QueryRequest request, DashCache<CacheKey, List<String>> cache,
+			CacheKey cacheKey) {
+		if (!isSimpleAttributes(request.operator.getAttributes()))
+			return null;
 
-		int max = getMaxOidListSize(false, request.beanQuery);
-		if (request.profile.getCounter() > 100
-				&& request.profile.getAverageReturnCount() > max) {
-			// If the odds are decent that we're going to get close to
-			// our limit: give up now without additional overhead.
+		// only keys that contain this request are read, and we peek at them
+		// so this scan doesn't mark every cached query as recently used
+		CacheKey bestKey = null;
+		List<String> bestOids = null;
+		for (CacheKey key : cache.getKeys()) {
+			if (key.isDistinct != cacheKey.isDistinct || key.equals(cacheKey))
+				continue;
+			boolean isSameOrder = key.getValue().equals(request.orderBy);
+			if (!isSameOrder && !request.orderBy.isSimple())
+				continue;
+			if (!OperatorSubsumption.subsumes(key.getKey(), request.operator))
+				continue;
+			List<String> oids = cache.peek(key);
+			if (oids == null
+					|| (bestOids != null && oids.size() >= bestOids.size()))
+				continue;
+			bestKey = key;
+			bestOids = oids;
+		}
+		if (bestKey == null)
+			return null;
+		// the entry we actually use should count as recently used
+		cache.get(bestKey);
 
+		Logger log = getLog();
+		List<String> missingOids = new ArrayList<>();
+		List<X2BaseBean> beans = getBeansByOid(request.beanQuery.getBaseClass(),
+				bestOids, missingOids);
+		if (!missingOids.isEmpty()) {
 			if (log.isLoggable(Level.INFO))
-				log.info("skipping because profile shows average exceeds "
-						+ max + ": " + request.profile);
+				log.info("found " + bestKey + " for " + request + ", but "
+						+ missingOids.size() + " couldn't be uncached: "
+						+ missingOids);
+			return null;
+		}
 
-			return false;
+		List<X2BaseBean> matches = new ArrayList<>();
+		for (X2BaseBean bean : beans) {
+			try {
+				if (request.operator.evaluate(CONTEXT, bean))
+					matches.add(bean);
+			} catch (Exception e) {
+				if (log.isLoggable(Level.INFO))
+					log.info("failed to evaluate " + request.operator
+							+ " for " + bean.getOid() + ": " + e);
+				return null;
+			}
 		}
+		if (!bestKey.getValue().equals(request.orderBy))
+			Collections.sort(matches, request.orderBy);
 
-		return true;
+		List<String> matchingOids = new ArrayList<>(matches.size());
+		for (X2BaseBean bean : matches) {
+			matchingOids.add(bean.getOid());
+		}
+		cache.put(cacheKey, PackedOidList.create(matchingOids));
+
+		if (log.isLoggable(Level.INFO))
+			log.info("filtered " + matches.size() + " of " + beans.size()
+					+ " beans from " + bestKey + " for " + request);
+		QueryIterator dashIter = new QueryIteratorDash(this, matches);
+		return new AbstractMap.SimpleEntry<>(dashIter,
+				CacheResults.Type.QUERY_HIT_FROM_SUBSUMPTION);
+	}
+
+	/**
+	 * Remember that a QueryIteratorDash is open on this thread, so
+	 * {@link #prefetchLoop(X2Broker, QueryRequest, DashCache)} can look ahead
+	 * of it.
+	 */
+	protected void registerIterator(final QueryIteratorDash<?> iter) {
+		LinkedList<WeakReference<QueryIteratorDash<?>>> iterators = iteratorsByThread
+				.get();
+		if (iterators == null) {
+			iterators = new LinkedList<>();
+			iteratorsByThread.set(iterators);
+		}
+		iterators.add(new WeakReference<QueryIteratorDash<?>>(iter));
+		while (iterators.size() > MAX_REGISTERED_ITERATORS) {
+			iterators.removeFirst();
+		}
+
+		iter.addCloseListener(new QueryIteratorDash.CloseListener() {
+
+			@Override
+			public void closedIterator(int returnCount, boolean hasNext) {
+				LinkedList<WeakReference<QueryIteratorDash<?>>> iterators = iteratorsByThread
+						.get();
+				if (iterators == null)
+					return;
+				Iterator<WeakReference<QueryIteratorDash<?>>> refIter = iterators
+						.iterator();
+				while (refIter.hasNext()) {
+					QueryIteratorDash<?> i = refIter.next().get();
+					if (i == null || i == iter)
+						refIter.remove();
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Return the open QueryIteratorDash on this thread whose last element is
+	 * the bean with the given oid, or null.
+	 */
+	private QueryIteratorDash<?> getIteratorPositionedAt(String beanOid) {
+		LinkedList<WeakReference<QueryIteratorDash<?>>> iterators = iteratorsByThread
+				.get();
+		if (iterators == null)
+			return null;
+		Iterator<WeakReference<QueryIteratorDash<?>>> refIter = iterators
+				.descendingIterator();
+		while (refIter.hasNext()) {
+			QueryIteratorDash<?> iter = refIter.next().get();
+			if (iter == null || iter.isClosed())
+				continue;
+			Object last = iter.getLastReturned();
+			if (last instanceof X2BaseBean
+					&& beanOid.equals(((X2BaseBean) last).getOid()))
+				return iter;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the EqualTo operator in a query that compares an attribute
+	 * against the oid of the bean an outer loop is currently positioned at.
+	 * The operator may be an EqualTo, or an And that contains an EqualTo.
+	 * 
+	 * @param iterHolder
+	 *            an optional one-element array used to return the outer
+	 *            loop's iterator.
+	 */
+	private EqualTo getLoopOperator(Operator operator,
+			QueryIteratorDash<?>[] iterHolder) {
+		List<Operator> candidates;
+		if (operator instanceof EqualTo) {
+			candidates = Arrays.asList(operator);
+		} else if (operator instanceof And) {
+			candidates = ((And) operator).getOperands();
+		} else {
+			return null;
+		}
+		for (Operator candidate : candidates) {
+			if (!(candidate instanceof EqualTo))
+				continue;
+			EqualTo equalTo = (EqualTo) candidate;
+			if (!(equalTo.getValue() instanceof String))
+				continue;
+			QueryIteratorDash<?> iter = getIteratorPositionedAt((String) equalTo
+					.getValue());
+			if (iter != null) {
+				iterHolder[0] = iter;
+				return equalTo;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replace one operand of an operator. The operator is either the operand
+	 * itself, or an And that contains the operand.
+	 */
+	private static Operator replaceOperand(Operator operator,
+			Operator oldOperand, Operator newOperand) {
+		if (operator == oldOperand)
+			return newOperand;
+		List<Operator> operands = new ArrayList<>(
+				((And) operator).getOperands());
+		operands.set(operands.indexOf(oldOperand), newOperand);
+		return new And(operands);
+	}
+
+	/**
+	 * Detect the "N+1" loop pattern and prefetch the next several iterations
+	 * of the loop in one query.
+	 * <p>
+	 * This applies when a query compares an attribute against the oid of the
+	 * bean an outer QueryIteratorDash (on the same thread) just returned. For
+	 * example: a tool iterates over 10,000 students and queries for
+	 * "studentOid == ?" once per student. In that case we peek at the next
+	 * several beans the outer iterator will return, issue one
+	 * "studentOid IN (...)" query, and cache the results for each value
+	 * separately. So the next several iterations of the loop are
+	 * {@link CacheResults.Type#QUERY_HIT}s.
+	 * 
+	 * @return the results for the current request, or null if this request
+	 *         doesn't look like part of a loop (or if prefetching failed).
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected Map.Entry<QueryIterator, CacheResults.Type> prefetchLoop(
+			X2Broker broker, QueryRequest request,
+			DashCache<CacheKey, List<String>> cache) {
+		QueryIteratorDash<?>[] iterHolder = new QueryIteratorDash<?>[1];
+		EqualTo loopOperator = getLoopOperator(request.operator, iterHolder);
+		if (loopOperator == null)
+			return null;
+
+		int budget = getMaxOidListSize(request, false);
+		int prefetchSize = cachePolicy.getLoopPrefetchSize(request.profile,
+				budget);
+		if (prefetchSize <= 1)
+			return null;
+
+		Logger log = getLog();
+		String attribute = loopOperator.getAttribute();
+		String currentValue = (String) loopOperator.getValue();
+		Map<String, Operator> operatorsByValue = new LinkedHashMap<>();
+		operatorsByValue.put(currentValue, request.operator);
+		for (Object element : iterHolder[0].peek(prefetchSize)) {
+			if (operatorsByValue.size() >= prefetchSize)
+				break;
+			if (!(element instanceof X2BaseBean))
+				continue;
+			String value = ((X2BaseBean) element).getOid();
+			if (operatorsByValue.containsKey(value))
+				continue;
+			Operator op = replaceOperand(request.operator, loopOperator,
+					new EqualTo(attribute, value));
+			if (cache.get(new CacheKey(op, request.orderBy,
+					request.beanQuery.isDistinct())) == null)
+				operatorsByValue.put(value, op);
+		}
+		if (operatorsByValue.size() <= 1)
+			return null;
+
+		Operator prefetchOperator = replaceOperand(request.operator,
+				loopOperator, In.create(attribute, operatorsByValue.keySet()));
+		QueryByCriteria prefetchQuery = cloneBeanQuery(request.beanQuery,
+				createCriteria(prefetchOperator));
+
+		Map<String, List<X2BaseBean>> beansByValue = new HashMap<>();
+		for (String value : operatorsByValue.keySet()) {
+			beansByValue.put(value, new ArrayList<X2BaseBean>());
+		}
+		int ctr = 0;
+		try (QueryIterator iter = broker.getIteratorByQuery(prefetchQuery)) {
+			while (iter.hasNext()) {
+				ThreadedBrokerIterator.checkInterruptNoYield();
+
+				X2BaseBean bean = (X2BaseBean) iter.next();
+				storeBean(bean);
+				Object value = CONTEXT.getValue(bean, attribute);
+				List<X2BaseBean> beans = beansByValue.get(value);
+				if (beans == null || ++ctr > 2 * budget) {
+					// this shouldn't happen, but if it does we'll fall back
+					// to the usual model
+					if (log.isLoggable(Level.INFO))
+						log.info("abandoned prefetching " + prefetchOperator
+								+ " after " + ctr + " beans");
+					return null;
+				}
+				beans.add(bean);
+			}
+		}
+
+		for (Entry<String, Operator> entry : operatorsByValue.entrySet()) {
+			List<String> oids = new ArrayList<>();
+			for (X2BaseBean bean : beansByValue.get(entry.getKey())) {
+				oids.add(bean.getOid());
+			}
+			cache.put(new CacheKey(entry.getValue(), request.orderBy,
+					request.beanQuery.isDistinct()), PackedOidList.create(oids));
+		}
+
+		List<X2BaseBean> beansToReturn = beansByValue.get(currentValue);
+		if (log.isLoggable(Level.INFO))
+			log.info("prefetched " + ctr + " beans for "
+					+ operatorsByValue.size() + " values of \"" + attribute
+					+ "\" for " + request);
+		QueryIterator dashIter = new QueryIteratorDash(this, beansToReturn);
+		return new AbstractMap.SimpleEntry<>(dashIter,
+				CacheResults.Type.QUERY_MISS_WITH_PREFETCH);
+	}
+
+	/**
+	 * Return whether we should consult/update the cache for a given query.
+	 * This delegates to our {@link CachePolicy}.
+	 * <p>
+	 * Subclasses that want to veto caching for certain queries should
+	 * override this method (and return a Decision other than
+	 * {@link CachePolicy.Decision#CACHE}).
+	 */
+	protected CachePolicy.Decision getCachingDecision(QueryRequest request) {
+		Logger log = getLog();
+		int defaultBudget = getMaxOidListSize(false, request.beanQuery);
+		CachePolicy.Decision decision = cachePolicy.getDecision(
+				request.profile, defaultBudget);
+		if (decision != CachePolicy.Decision.CACHE
+				&& log.isLoggable(Level.INFO))
+			log.info("skipping because of " + decision + ": "
+					+ request.profile);
+		return decision;
+	}
+
+	/**
+	 * Return the maximum number of oids we'll cache for a given query. This
+	 * lets our {@link CachePolicy} adjust
+	 * {@link #getMaxOidListSize(boolean, QueryByCriteria)} based on the
+	 * query's TemplateQueryProfile.
+	 */
+	protected int getMaxOidListSize(QueryRequest request, boolean involvedSplit) {
+		int defaultBudget = getMaxOidListSize(involvedSplit, request.beanQuery);
+		return cachePolicy.getBudget(request.profile, defaultBudget);
 	}
 
 	/**
-	 * Return the maximum number of oids we'll cache.
+	 * Return the default maximum number of oids we'll cache. The CachePolicy
+	 * may raise this for templates that routinely return more beans.
 	 */
 	protected int getMaxOidListSize(boolean involvedSplit, QueryByCriteria query) {
 		return 500;
@@ -1474,12 +4071,63 @@ public class Dash {
 	}
 
 	/**
-	 * Return the CachePool used by all caches this Dash object maintains.
+	 * Return the CachePool used by all caches this Dash object maintains, or
+	 * null if this Dash doesn't use a {@link PumpCachePool}.
 	 */
 	public CachePool getCachePool() {
+		if (cachePool instanceof PumpCachePool)
+			return ((PumpCachePool) cachePool).getCachePool();
+		return null;
+	}
+
+	/**
+	 * Return the DashCachePool used by all caches this Dash object maintains,
+	 * except the cache of column query rows.
+	 * 
+	 * @see #getRowCachePool()
+	 */
+	public DashCachePool getDashCachePool() {
 		return cachePool;
 	}
 
+	/**
+	 * Return the DashCachePool used to cache column query rows. This may be
+	 * the same as {@link #getDashCachePool()}.
+	 */
+	public DashCachePool getRowCachePool() {
+		return rowCachePool;
+	}
+
+	/**
+	 * Return the estimated number of bytes our cached entries use, or -1 if
+	 * our DashCachePool doesn't weigh its entries. This includes cached
+	 * column query rows if they are also stored in a weighed pool.
+	 * 
+	 * @see StripedCachePool#getWeight()
+	 */
+	public long getCacheWeight() {
+		long weight = getWeight(cachePool);
+		if (weight != -1 && rowCachePool != cachePool) {
+			long rowWeight = getWeight(rowCachePool);
+			if (rowWeight != -1)
+				weight += rowWeight;
+		}
+		return weight;
+	}
+
+	/**
+	 * Return the estimated number of bytes a pool's entries use, or -1 if the
+	 * pool doesn't weigh its entries.
+	 */
+	private static long getWeight(DashCachePool cachePool) {
+		if (cachePool instanceof StripedCachePool) {
+			StripedCachePool pool = (StripedCachePool) cachePool;
+			if (pool.getMaxWeight() != Long.MAX_VALUE)
+				return pool.getWeight();
+		}
+		return -1;
+	}
+
 	/**
 	 * Return a Writer to log debugging information to.
 	 */
@@ -1550,6 +4198,6 @@ public class Dash {
 	}
 
 	public void removeWeakReferencePropertyListener(PropertyChangeListener l) {
-		weakReferenceCache.addPropertyListener(l);
+		weakReferenceCache.removePropertyListener(l);
 	}
 }
@@ -0,0 +1,83 @@
+package org.abc.dash;
+
+import java.util.Collection;
+
+/**
+ * This is a key/value cache that Dash uses to store query results and
+ * template profiles.
+ * <p>
+ * Each DashCache is created by a {@link DashCachePool}, and the pool decides
+ * when entries expire or are evicted. So a value you put in this cache may
+ * disappear at any time.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface DashCache<K, V> {
+
+	/**
+	 * Return the value associated with a key, or null if this cache doesn't
+	 * (or no longer) contains that key.
+	 */
+	public V get(K key);
+
+	/**
+	 * Return the value associated with a key without marking it as recently
+	 * used, or null if this cache doesn't (or no longer) contains that key.
+	 * <p>
+	 * This is intended for maintenance (such as scanning every entry to
+	 * invalidate a few of them), so that scan doesn't influence which entries
+	 * are evicted.
+	 */
+	public V peek(K key);
+
+	/**
+	 * Store a value in this cache.
+	 *
+	 * @return the previous value associated with the key, or null.
+	 */
+	public V put(K key, V value);
+
+	/**
+	 * Store a value in this cache if this cache doesn't already contain the
+	 * key.
+	 *
+	 * @return the existing value associated with the key, or null if the
+	 *         argument was stored.
+	 */
+	public V putIfAbsent(K key, V value);
+
+	/**
+	 * Replace the value associated with a key only if it is currently
+	 * associated with the expected value. Values are compared by identity, so
+	 * the expected value should be the object a previous call to
+	 * {@link #get(Object)} or {@link #peek(Object)} returned.
+	 *
+	 * @return true if the value was replaced.
+	 */
+	public boolean replace(K key, V expectedValue, V newValue);
+
+	/**
+	 * Remove a key from this cache.
+	 *
+	 * @return the value that was removed, or null.
+	 */
+	public V remove(K key);
+
+	/**
+	 * Return the number of entries in this cache.
+	 */
+	public int size();
+
+	/**
+	 * Remove all entries from this cache.
+	 */
+	public void clear();
+
+	/**
+	 * Return a snapshot of the keys in this cache.
+	 * <p>
+	 * Entries may be evicted at any time, so {@link #get(Object)} may return
+	 * null for some of these keys.
+	 */
+	public Collection<K> getKeys();
+}
@@ -0,0 +1,32 @@
+package org.abc.dash;
+
+/**
+ * A DashCachePool creates DashCaches and enforces the limits (such as a
+ * maximum number of entries, or a maximum age per entry) that all those caches
+ * share.
+ * <p>
+ * There are currently two implementations: the {@link PumpCachePool} is backed
+ * by a com.pump.util.Cache.CachePool, and the {@link StripedCachePool} is
+ * designed to minimize contention when several threads share the same Dash.
+ */
+public interface DashCachePool {
+
+	/**
+	 * Create a new empty DashCache that is managed by this pool.
+	 */
+	public <K, V> DashCache<K, V> createCache();
+
+	/**
+	 * Remove all entries from all the caches this pool created.
+	 */
+	public void clear();
+
+	/**
+	 * Purge expired entries from all the caches this pool created.
+	 * <p>
+	 * You don't have to explicitly call this method: expired entries are
+	 * never returned. But this may help release memory associated with
+	 * caches that aren't being actively used.
+	 */
+	public void purge();
+}
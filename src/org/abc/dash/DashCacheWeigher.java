@@ -0,0 +1,114 @@
+package org.abc.dash;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import org.abc.dash.Dash.CacheKey;
+import org.abc.dash.Dash.RowCacheKey;
+
+import com.pump.data.operator.Operator;
+
+/**
+ * This estimates the memory the entries Dash caches retain.
+ * <p>
+ * The estimates are deliberately rough (they assume a 64-bit JVM without
+ * compressed references, and they ignore padding), but they scale with the
+ * things that actually vary between entries: the size of a CacheKey's
+ * operator tree, and the number of oids or rows it maps to. So one cached
+ * query with 500 oids is charged roughly 100 times as much as a cached query
+ * with one oid.
+ */
+public class DashCacheWeigher implements CacheWeigher {
+
+	/**
+	 * The estimated size of an object header.
+	 */
+	protected static final long HEADER = 16;
+
+	/**
+	 * The estimated size of a reference.
+	 */
+	protected static final long REFERENCE = 8;
+
+	/**
+	 * The weight of objects we don't know how to estimate, such as
+	 * TemplateQueryProfiles.
+	 */
+	protected static final long DEFAULT_WEIGHT = 256;
+
+	@Override
+	public long getWeight(Object key, Object value) {
+		// the cache's own Entry and map node
+		long sum = 2 * HEADER + 6 * REFERENCE;
+		sum += getKeyWeight(key);
+		sum += getValueWeight(value);
+		return sum;
+	}
+
+	protected long getKeyWeight(Object key) {
+		if (key instanceof CacheKey) {
+			CacheKey cacheKey = (CacheKey) key;
+			// the key, plus its OrderByComparator
+			long sum = 2 * HEADER + 4 * REFERENCE;
+			sum += getObjectWeight(cacheKey.getKey());
+			if (key instanceof RowCacheKey)
+				sum += getObjectWeight(((RowCacheKey) key).columns);
+			return sum;
+		}
+		return getObjectWeight(key);
+	}
+
+	protected long getValueWeight(Object value) {
+		if (value instanceof PackedOidList) {
+			PackedOidList list = (PackedOidList) value;
+			return 2 * HEADER + 3 * REFERENCE + list.data.length;
+		}
+		return getObjectWeight(value);
+	}
+
+	/**
+	 * Estimate the memory an object and its contents retain. This walks
+	 * Operators, Collections, Maps and arrays.
+	 */
+	protected long getObjectWeight(Object obj) {
+		if (obj == null) {
+			return 0;
+		} else if (obj instanceof String) {
+			return 2 * HEADER + 8 + 2 * ((String) obj).length();
+		} else if (obj instanceof Number || obj instanceof Boolean
+				|| obj instanceof Character || obj instanceof Date) {
+			return HEADER + 8;
+		} else if (obj instanceof Operator) {
+			Operator operator = (Operator) obj;
+			long sum = HEADER + REFERENCE;
+			for (int a = 0; a < operator.getOperandCount(); a++) {
+				sum += REFERENCE + getObjectWeight(operator.getOperand(a));
+			}
+			return sum;
+		} else if (obj instanceof Collection) {
+			Collection<?> c = (Collection<?>) obj;
+			long sum = 2 * HEADER + REFERENCE;
+			for (Object element : c) {
+				sum += 2 * REFERENCE + getObjectWeight(element);
+			}
+			return sum;
+		} else if (obj instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) obj;
+			long sum = 2 * HEADER + REFERENCE;
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				sum += HEADER + 3 * REFERENCE + getObjectWeight(entry.getKey())
+						+ getObjectWeight(entry.getValue());
+			}
+			return sum;
+		} else if (obj instanceof Object[]) {
+			Object[] array = (Object[]) obj;
+			long sum = HEADER + array.length * REFERENCE;
+			for (Object element : array) {
+				sum += getObjectWeight(element);
+			}
+			return sum;
+		}
+		return DEFAULT_WEIGHT;
+	}
+}
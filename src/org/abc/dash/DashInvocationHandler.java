@@ -8,10 +8,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -22,12 +25,16 @@ import org.abc.tools.ThreadedBrokerIterator;
 import org.apache.ojb.broker.query.Criteria;
 import org.apache.ojb.broker.query.Query;
 import org.apache.ojb.broker.query.QueryByCriteria;
+import org.apache.ojb.broker.query.ReportQueryByCriteria;
 
 import com.follett.fsc.core.framework.persistence.BeanQuery;
+import com.follett.fsc.core.framework.persistence.ColumnQuery;
 import com.follett.fsc.core.framework.persistence.InsertQuery;
 import com.follett.fsc.core.framework.persistence.UpdateQuery;
 import com.follett.fsc.core.k12.beans.QueryIterator;
+import com.follett.fsc.core.k12.beans.ReportQueryIterator;
 import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.follett.fsc.core.k12.business.ModelProperty;
 import com.follett.fsc.core.k12.business.X2Broker;
 import com.x2dev.utils.LoggerUtils;
 
@@ -50,9 +57,13 @@ import com.x2dev.utils.LoggerUtils;
 class DashInvocationHandler implements InvocationHandler {
 	static RuntimeException constructionException;
 	static Method method_getIteratorByQuery;
+	static Method method_getReportQueryIteratorByQuery;
+	static Method method_getCount;
 	static Method method_getBeanByQuery;
 	static Method method_getDash;
 	static Method method_clearCache;
+	static Method method_beginTransaction;
+	static Method method_commitTransaction;
 	static Method method_rollbackTransaction1;
 	static Method method_rollbackTransaction2;
 	static Method method_deleteBean;
@@ -74,9 +85,16 @@ class DashInvocationHandler implements InvocationHandler {
 			method_getDash = BrokerDash.class.getMethod("getDash");
 			method_getIteratorByQuery = X2Broker.class.getMethod(
 					"getIteratorByQuery", Query.class);
+			method_getReportQueryIteratorByQuery = X2Broker.class.getMethod(
+					"getReportQueryIteratorByQuery", Query.class);
+			method_getCount = X2Broker.class.getMethod("getCount", Query.class);
 			method_getBeanByQuery = X2Broker.class.getMethod("getBeanByQuery",
 					Query.class);
 			method_clearCache = X2Broker.class.getMethod("clearCache");
+			method_beginTransaction = X2Broker.class
+					.getMethod("beginTransaction");
+			method_commitTransaction = X2Broker.class
+					.getMethod("commitTransaction");
 			method_rollbackTransaction1 = X2Broker.class
 					.getMethod("rollbackTransaction");
 			method_rollbackTransaction2 = X2Broker.class.getMethod(
@@ -117,10 +135,116 @@ class DashInvocationHandler implements InvocationHandler {
 		}
 	}
 
+	/**
+	 * The methods this InvocationHandler treats differently.
+	 */
+	enum Kind {
+		GET_DASH, SET_DASH_ACTIVE, IS_DASH_ACTIVE, GET_BEAN_BY_OID, GET_ITERATOR_BY_QUERY, GET_REPORT_QUERY_ITERATOR_BY_QUERY, GET_COUNT, GET_BEAN_BY_QUERY, GET_COLLECTION_BY_QUERY, GET_GROUPED_COLLECTION_BY_QUERY1, GET_GROUPED_COLLECTION_BY_QUERY2, GET_MAP_BY_QUERY, GET_NESTED_MAP_BY_QUERY1, GET_NESTED_MAP_BY_QUERY2, CLEAR_CACHE, BEGIN_TRANSACTION, COMMIT_TRANSACTION, ROLLBACK_TRANSACTION, DELETE_BEAN, SAVE_BEAN, DELETE_BEAN_BY_OID, MODIFY_BY_QUERY, PASS_THROUGH
+	}
+
+	/**
+	 * This describes how to handle a Method: its Kind, and the (precomputed)
+	 * names we record its latency under.
+	 */
+	static class Route {
+		final Kind kind;
+		final String dashMetricName;
+		final String brokerMetricName;
+
+		Route(Kind kind, Method method) {
+			this.kind = kind;
+			dashMetricName = "dash." + method.getName();
+			brokerMetricName = "broker." + method.getName();
+		}
+	}
+
+	/**
+	 * Identify the Route for a Method. This is only called once per Method
+	 * instance, so it's OK that this compares the method against every Method
+	 * we know about.
+	 */
+	static Route getRoute(Method method) {
+		return new Route(getKind(method), method);
+	}
+
+	private static Kind getKind(Method method) {
+		if (method_getDash.equals(method)) {
+			return Kind.GET_DASH;
+		} else if (method.getName().equals("setDashActive")) {
+			return Kind.SET_DASH_ACTIVE;
+		} else if (method.getName().equals("isDashActive")) {
+			return Kind.IS_DASH_ACTIVE;
+		} else if (method_getBeanByOid.equals(method)) {
+			return Kind.GET_BEAN_BY_OID;
+		} else if (method_getIteratorByQuery.equals(method)) {
+			return Kind.GET_ITERATOR_BY_QUERY;
+		} else if (method_getReportQueryIteratorByQuery.equals(method)) {
+			return Kind.GET_REPORT_QUERY_ITERATOR_BY_QUERY;
+		} else if (method_getCount.equals(method)) {
+			return Kind.GET_COUNT;
+		} else if (method_getBeanByQuery.equals(method)) {
+			return Kind.GET_BEAN_BY_QUERY;
+		} else if (method_getCollectionByQuery.equals(method)) {
+			return Kind.GET_COLLECTION_BY_QUERY;
+		} else if (method_getGroupedCollectionByQuery1.equals(method)) {
+			return Kind.GET_GROUPED_COLLECTION_BY_QUERY1;
+		} else if (method_getGroupedCollectionByQuery2.equals(method)) {
+			return Kind.GET_GROUPED_COLLECTION_BY_QUERY2;
+		} else if (method_getMapByQuery.equals(method)) {
+			return Kind.GET_MAP_BY_QUERY;
+		} else if (method_getNestedMapByQuery1.equals(method)) {
+			return Kind.GET_NESTED_MAP_BY_QUERY1;
+		} else if (method_getNestedMapByQuery2.equals(method)) {
+			return Kind.GET_NESTED_MAP_BY_QUERY2;
+		} else if (method_clearCache.equals(method)) {
+			return Kind.CLEAR_CACHE;
+		} else if (method_beginTransaction.equals(method)) {
+			return Kind.BEGIN_TRANSACTION;
+		} else if (method_commitTransaction.equals(method)) {
+			return Kind.COMMIT_TRANSACTION;
+		} else if (method_rollbackTransaction1.equals(method)
+				|| method_rollbackTransaction2.equals(method)) {
+			return Kind.ROLLBACK_TRANSACTION;
+		} else if (method_deleteBean.equals(method)) {
+			return Kind.DELETE_BEAN;
+		} else if (method.getName().startsWith("saveBean")
+				&& method.getParameterTypes().length > 0) {
+			return Kind.SAVE_BEAN;
+		} else if (method_deleteBeanByOid.equals(method)) {
+			return Kind.DELETE_BEAN_BY_OID;
+		} else if (method_deleteByQuery.equals(method)
+				|| method_executeUpdateQuery.equals(method)
+				|| method_executeInsertQuery.equals(method)) {
+			return Kind.MODIFY_BY_QUERY;
+		}
+		return Kind.PASS_THROUGH;
+	}
+
+	/**
+	 * This maps every Method our proxies receive to its Route. This is shared
+	 * by all DashInvocationHandlers: a proxy class always passes the same
+	 * Method instances to its InvocationHandler, so after the first few calls
+	 * we never have to call {@link #getRoute(Method)} again.
+	 */
+	static final DispatchTable<Route> dispatchTable = new DispatchTable<>(
+			new DispatchTable.Resolver<Route>() {
+				@Override
+				public Route resolve(Method method) {
+					return getRoute(method);
+				}
+			});
+
 	X2Broker broker;
 	boolean active = initialized;
 	Dash dash;
 
+	/**
+	 * The writes of the current transaction, or null if no transaction is
+	 * open. These are only applied to the (shared) Dash when the transaction
+	 * is committed, so other threads never see uncommitted writes.
+	 */
+	TransactionOverlay overlay;
+
 	/**
 	 * Create a new DashInvocationHandler.
 	 * 
@@ -164,28 +288,37 @@ class DashInvocationHandler implements InvocationHandler {
 		if(elapsed>30000) {
 			dash.weakReferenceCache.purge();
 			dash.cachePool.purge();
+			if (dash.rowCachePool != dash.cachePool)
+				dash.rowCachePool.purge();
 			lastPurge = currentTime;
 		}
 
 		Logger log = dash.getLog();
 		logMethod(Level.FINER, method, args, null);
+
+		DispatchTable.Entry<Route> entry = dispatchTable.get(method);
 		
 		// handle methods unique to the BrokerDash interface:
-		if (method_getDash.equals(method)) {
+		switch (entry.handler.kind) {
+		case GET_DASH:
 			return dash;
-		} else if (method.getName().equals("setDashActive")) {
+		case SET_DASH_ACTIVE:
 			active = ((Boolean) args[0]).booleanValue();
 			return Void.TYPE;
-		} else if (method.getName().equals("isDashActive")) {
+		case IS_DASH_ACTIVE:
 			return active;
+		default:
+			break;
 		}
 		
 		// if possible: intercept methods using our caching model/layer
 		if (active) {
 			try {
-				long t = System.currentTimeMillis();
-				Object returnValue = invokeCached(proxy, method, args);
-				t = System.currentTimeMillis() - t;
+				long t = System.nanoTime();
+				Object returnValue = invokeCached(proxy, entry, args);
+				t = System.nanoTime() - t;
+				dash.getMetrics().recordMethod(entry.handler.dashMetricName, t);
+				t = t / 1000000;
 				if ((t > 10 || returnValue!=null) && log != null && log.isLoggable(Level.FINEST)) {
 					logMethod(Level.FINEST, method, args, "(ended) "+returnValue);
 				}
@@ -211,9 +344,11 @@ class DashInvocationHandler implements InvocationHandler {
 		// ... if that fails: invoke the method without our caching
 		// model/layer:
 
-		long t = System.currentTimeMillis();
-		Object returnValue = method.invoke(broker, args);
-		t = System.currentTimeMillis() - t;
+		long t = System.nanoTime();
+		Object returnValue = entry.invokeDelegate(broker, args);
+		t = System.nanoTime() - t;
+		dash.getMetrics().recordMethod(entry.handler.brokerMetricName, t);
+		t = t / 1000000;
 		
 		if ((t > 10 || returnValue!=null) && log != null && log.isLoggable(Level.FINEST)) {
 			logMethod(Level.FINEST, method, args, "(ended) "+returnValue);
@@ -226,21 +361,35 @@ class DashInvocationHandler implements InvocationHandler {
 	 * Invoke a method using the Dash caching model.
 	 */
 	@SuppressWarnings({ "rawtypes" })
-	protected Object invokeCached(Object proxy, Method method, Object[] args) throws Throwable {
+	protected Object invokeCached(Object proxy, DispatchTable.Entry<Route> entry, Object[] args) throws Throwable {
 		// our first rule here should be: do no harm.
 		// So if someone passes null in as an argument: we should just skip
 		// over our caching implementation. If the parent broker wants to throw
 		// a NPE: that's great. But adding this broker implementation shouldn't
 		// risk breaking anything that existing brokers handle without complaint.
 		
-		// If something doesn't explicitly return in these if-then clauses:
+		// If something doesn't explicitly return in these cases:
 		// then it falls to the bottom of this method that always defaults to
 		// delegating the method to the original X2broker.
 
-		if (method_getBeanByOid.equals(method)) {
+		Class writtenType = null;
+		X2BaseBean savedBean = null;
+		String deletedOid = null;
+
+		switch (entry.handler.kind) {
+		case GET_BEAN_BY_OID: {
 			Class beanType = (Class) args[0];
 			String beanOid = (String) args[1];
+			if (overlay != null && beanType != null) {
+				if (overlay.contains(beanType, beanOid))
+					return overlay.getBean(beanType, beanOid);
+				if (!overlay.isPatchable(beanType))
+					break;
+			}
 			if(beanType!=null && beanOid!=null) {
+				if (!isModifiedByOverlay(beanType)
+						&& dash.isAbsentOid(beanType, beanOid))
+					return null;
 				X2BaseBean bean = dash.getBeanByOid(
 						beanType, beanOid);
 				if (bean != null)
@@ -248,134 +397,278 @@ class DashInvocationHandler implements InvocationHandler {
 			}
 			
 			// convert to a BeanQuery to pass through other caching layers:
+			long modificationCount = dash
+					.getAbsentOidModificationCount(beanType);
 			Criteria criteria = new Criteria();
 			criteria.addEqualTo(X2BaseBean.COL_OID, beanOid);
 			BeanQuery beanQuery = new BeanQuery(beanType, criteria);
 			try(QueryIterator iter = (QueryIterator) invoke(proxy, method_getIteratorByQuery, new Object[] { beanQuery })) {
 				if(iter.hasNext())
 					return iter.next();
+				// our uncommitted writes shouldn't affect other brokers
+				if (!isModifiedByOverlay(beanType))
+					dash.storeAbsentOid(beanType, beanOid, modificationCount);
 				return null;
 			}
-		} else if (method_getIteratorByQuery.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			QueryByCriteria query = (QueryByCriteria) args[0];
-			if(query!=null) {
+		}
+		case GET_ITERATOR_BY_QUERY:
+			if (Dash.isBeanQuery(args[0])) {
+				QueryByCriteria query = (QueryByCriteria) args[0];
+				if (query != null && overlay != null
+						&& overlay.isModified(query.getBaseClass())) {
+					// never let the shared caches store results that include
+					// our uncommitted writes
+					QueryIterator returnValue = dash
+							.createOverlayQueryIterator(query, overlay);
+					if (returnValue != null)
+						return returnValue;
+					break;
+				}
+				if(query!=null) {
+					active = false;
+					try {
+						// use THIS broker (the proxy) just so we continue
+						// to benefit from potential logging. A read-ahead
+						// broker can't see our uncommitted writes.
+						QueryIterator returnValue = dash.createQueryIterator(
+								(X2Broker) proxy, query, overlay == null);
+						return returnValue;
+					} finally {
+						active = true;
+					}
+				}
+			}
+			break;
+		case GET_REPORT_QUERY_ITERATOR_BY_QUERY:
+			if (Dash.isColumnQuery(args[0]) && !isModifiedByOverlay(args[0])) {
 				active = false;
 				try {
-					// use THIS broker (the proxy) just so we continue
-					// to benefit from potential logging
-					QueryIterator returnValue = dash.createQueryIterator(
-							(X2Broker) proxy, query);
-					return returnValue;
+					return dash.createReportQueryIterator((X2Broker) proxy,
+							(ReportQueryByCriteria) args[0]);
 				} finally {
 					active = true;
 				}
 			}
-		} else if (method_getBeanByQuery.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			// pass through getIteratorByQuery to benefit from our caching
-			try (QueryIterator queryIter = (QueryIterator) invoke(proxy,
-					method_getIteratorByQuery, args)) {
-				if (queryIter.hasNext())
-					return (X2BaseBean) queryIter.next();
-				return null;
+			break;
+		case GET_COUNT:
+			if (Dash.isCountQuery(args[0]) && !isModifiedByOverlay(args[0])) {
+				active = false;
+				try {
+					return dash.getCount((X2Broker) proxy,
+							(QueryByCriteria) args[0]);
+				} finally {
+					active = true;
+				}
 			}
-		} else if (method_getCollectionByQuery.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			// pass through getIteratorByQuery to benefit from our caching
-			try (QueryIterator queryIter = (QueryIterator) invoke(proxy,
-					method_getIteratorByQuery, args)) {
-				Collection<X2BaseBean> result = new ArrayList<>();
-				while (queryIter.hasNext()) {
-					ThreadedBrokerIterator.checkInterruptNoYield();
-
-					X2BaseBean bean = (X2BaseBean) queryIter.next();
-					result.add(bean);
+			break;
+		case GET_BEAN_BY_QUERY:
+			if (Dash.isBeanQuery(args[0])) {
+				// pass through getIteratorByQuery to benefit from our caching
+				try (QueryIterator queryIter = (QueryIterator) invoke(proxy,
+						method_getIteratorByQuery, args)) {
+					if (queryIter.hasNext())
+						return (X2BaseBean) queryIter.next();
+					return null;
 				}
-				return result;
 			}
-		} else if (method_getGroupedCollectionByQuery1.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			String groupColumn = (String) args[1];
-			int initialMapSize = ((Integer) args[2]).intValue();
-			if(groupColumn!=null) {
-				Object[] newArgs = new Object[] { args[0],
-						new String[] { groupColumn },
-						new int[] { initialMapSize } };
-				return invoke(proxy, method_getGroupedCollectionByQuery2, newArgs);
+			break;
+		case GET_COLLECTION_BY_QUERY:
+			if (Dash.isBeanQuery(args[0])) {
+				// pass through getIteratorByQuery to benefit from our caching
+				try (QueryIterator queryIter = (QueryIterator) invoke(proxy,
+						method_getIteratorByQuery, args)) {
+					Collection<X2BaseBean> result = new ArrayList<>();
+					while (queryIter.hasNext()) {
+						ThreadedBrokerIterator.checkInterruptNoYield();
+	
+						X2BaseBean bean = (X2BaseBean) queryIter.next();
+						result.add(bean);
+					}
+					return result;
+				}
 			}
-		} else if (method_getGroupedCollectionByQuery2.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			QueryByCriteria query = (QueryByCriteria) args[0];
-			String[] columns = (String[]) args[1];
-			int[] mapSizes = (int[]) args[2];
-			if(query!=null && columns!=null && mapSizes!=null) {
-				return createNestedMap(proxy, query, columns, mapSizes, true);
+			break;
+		case GET_GROUPED_COLLECTION_BY_QUERY1:
+			if (Dash.isBeanQuery(args[0])) {
+				String groupColumn = (String) args[1];
+				int initialMapSize = ((Integer) args[2]).intValue();
+				if(groupColumn!=null) {
+					Object[] newArgs = new Object[] { args[0],
+							new String[] { groupColumn },
+							new int[] { initialMapSize } };
+					return invoke(proxy, method_getGroupedCollectionByQuery2, newArgs);
+				}
 			}
-		} else if (method_getMapByQuery.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			String keyColumn = (String) args[1];
-			int initialMapSize = ((Integer) args[2]).intValue() ;
-			if(keyColumn!=null) {
-				Object[] newArgs = new Object[] { args[0],
-						new String[] { keyColumn },
-						new int[] { initialMapSize } };
-				return invoke(proxy, method_getNestedMapByQuery2, newArgs);
+			break;
+		case GET_GROUPED_COLLECTION_BY_QUERY2:
+			if (Dash.isBeanQuery(args[0])) {
+				QueryByCriteria query = (QueryByCriteria) args[0];
+				String[] columns = (String[]) args[1];
+				int[] mapSizes = (int[]) args[2];
+				if(query!=null && columns!=null && mapSizes!=null) {
+					return createNestedMap(proxy, query, columns, mapSizes, true);
+				}
 			}
-		} else if (method_getNestedMapByQuery1.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			String outerKeyColumn = (String) args[1];
-			String innerKeyColumn = (String) args[2];
-			int initialOuterMapSize = ((Integer) args[3]).intValue();
-			int initialInnerMapSize = ((Integer) args[4]).intValue();
-			if(outerKeyColumn!=null && innerKeyColumn!=null) {
-				Object[] newArgs = new Object[] {
-						args[0],
-						new String[] { outerKeyColumn, innerKeyColumn },
-						new int[] { initialOuterMapSize, initialInnerMapSize} };
-				return invoke(proxy, method_getNestedMapByQuery2, newArgs);
+			break;
+		case GET_MAP_BY_QUERY:
+			if (Dash.isBeanQuery(args[0])) {
+				String keyColumn = (String) args[1];
+				int initialMapSize = ((Integer) args[2]).intValue() ;
+				if(keyColumn!=null) {
+					Object[] newArgs = new Object[] { args[0],
+							new String[] { keyColumn },
+							new int[] { initialMapSize } };
+					return invoke(proxy, method_getNestedMapByQuery2, newArgs);
+				}
 			}
-		} else if (method_getNestedMapByQuery2.equals(method)
-				&& Dash.isBeanQuery(args[0])) {
-			QueryByCriteria query = (QueryByCriteria) args[0];
-			String[] columns = (String[]) args[1];
-			int[] mapSizes = (int[]) args[2];
-			if(query!=null && columns!=null && mapSizes!=null) {
-				return createNestedMap(proxy, query, columns, mapSizes, false);
+			break;
+		case GET_NESTED_MAP_BY_QUERY1:
+			if (Dash.isBeanQuery(args[0])) {
+				String outerKeyColumn = (String) args[1];
+				String innerKeyColumn = (String) args[2];
+				int initialOuterMapSize = ((Integer) args[3]).intValue();
+				int initialInnerMapSize = ((Integer) args[4]).intValue();
+				if(outerKeyColumn!=null && innerKeyColumn!=null) {
+					Object[] newArgs = new Object[] {
+							args[0],
+							new String[] { outerKeyColumn, innerKeyColumn },
+							new int[] { initialOuterMapSize, initialInnerMapSize} };
+					return invoke(proxy, method_getNestedMapByQuery2, newArgs);
+				}
 			}
-		} else if (method_clearCache.equals(method)) {
+			break;
+		case GET_NESTED_MAP_BY_QUERY2:
+			if (Dash.isBeanQuery(args[0])) {
+				QueryByCriteria query = (QueryByCriteria) args[0];
+				String[] columns = (String[]) args[1];
+				int[] mapSizes = (int[]) args[2];
+				if(query!=null && columns!=null && mapSizes!=null) {
+					return createNestedMap(proxy, query, columns, mapSizes, false);
+				}
+			}
+			break;
+		case CLEAR_CACHE:
 			dash.clearAll();
-		} else if (method_rollbackTransaction1.equals(method)
-				|| method_rollbackTransaction2.equals(method)) {
-			dash.clearModifiedBeanTypes();
-		} else if ((method_deleteBean.equals(method) || method.getName()
-				.startsWith("saveBean")) && args[0] instanceof X2BaseBean) {
-			X2BaseBean bean = (X2BaseBean) args[0];
-			if(bean!=null) {
-				Class t = bean.getClass();
-				dash.modifyBeanRecord(t);
+			break;
+		case BEGIN_TRANSACTION:
+			if (overlay == null) {
+				overlay = new TransactionOverlay();
+			} else {
+				overlay.depth++;
 			}
-		} else if (method_deleteBeanByOid.equals(method)) {
-			Class beanType = (Class) args[0];
-			String beanOid = (String) args[1];
-			if(beanType!=null && beanOid!=null) {
-				dash.modifyBeanRecord(beanType);
+			break;
+		case COMMIT_TRANSACTION:
+			// this is handled after the broker commits
+			break;
+		case ROLLBACK_TRANSACTION:
+			if (overlay != null) {
+				overlay.rollback(dash);
+				overlay = null;
+			} else {
+				dash.clearModifiedBeanTypes();
 			}
-		} else if (method_deleteByQuery.equals(method)
-				|| method_executeUpdateQuery.equals(method)
-				|| method_executeInsertQuery.equals(method)) {
+			break;
+		case DELETE_BEAN:
+		case SAVE_BEAN:
+			// we record writes after the broker succeeds (see applyWrite)
+			if (args[0] instanceof X2BaseBean) {
+				X2BaseBean bean = (X2BaseBean) args[0];
+				writtenType = bean.getClass();
+				if (entry.handler.kind == Kind.DELETE_BEAN) {
+					deletedOid = bean.getOid();
+				} else {
+					// new beans don't have an oid until they're saved
+					savedBean = bean;
+				}
+			}
+			break;
+		case DELETE_BEAN_BY_OID:
+			writtenType = (Class) args[0];
+			deletedOid = (String) args[1];
+			break;
+		case MODIFY_BY_QUERY: {
 			Query query = (Query) args[0];
-			if(query!=null) {
+			if (query != null && overlay != null) {
+				overlay.modifyBeanType(query.getBaseClass());
+			} else if(query!=null) {
 				dash.modifyBeanRecord(query.getBaseClass());
 			}
+			break;
+		}
+		default:
+			break;
 		}
 		
-		Object returnValue = method.invoke(broker, args);
-		if (returnValue instanceof X2BaseBean) {
+		Object returnValue;
+		boolean succeeded = false;
+		try {
+			returnValue = entry.invokeDelegate(broker, args);
+			// saveBean() returns a list of validation errors
+			succeeded = !(returnValue instanceof Collection)
+					|| ((Collection) returnValue).isEmpty();
+		} finally {
+			if (writtenType != null)
+				applyWrite(writtenType, savedBean, deletedOid, succeeded);
+		}
+		if (entry.handler.kind == Kind.COMMIT_TRANSACTION && overlay != null
+				&& --overlay.depth == 0) {
+			TransactionOverlay committed = overlay;
+			overlay = null;
+			committed.commit(dash);
+		}
+		if (returnValue instanceof X2BaseBean
+				&& !isModifiedByOverlay(returnValue.getClass())) {
 			dash.storeBean((X2BaseBean) returnValue);
 		}
 		return returnValue;
 	}
+
+	/**
+	 * Record that the broker saved or deleted a bean.
+	 * <p>
+	 * If the broker failed (or reported validation errors) then we don't know
+	 * what, if anything, it wrote, so the whole bean type is treated as
+	 * modified.
+	 * 
+	 * @param savedBean
+	 *            the bean that was saved, or null if a bean was deleted.
+	 * @param deletedOid
+	 *            the oid of the bean that was deleted, or null if a bean was
+	 *            saved.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void applyWrite(Class beanType, X2BaseBean savedBean,
+			String deletedOid, boolean succeeded) {
+		if (!succeeded) {
+			if (overlay != null) {
+				overlay.modifyBeanType(beanType);
+			} else {
+				dash.modifyBeanRecord(beanType);
+			}
+		} else if (overlay != null) {
+			if (savedBean != null) {
+				overlay.saveBean(savedBean);
+			} else {
+				overlay.deleteBean(beanType, deletedOid);
+			}
+		} else if (savedBean != null) {
+			dash.modifyBeanRecord(savedBean);
+		} else {
+			dash.deleteBeanRecord(beanType, deletedOid);
+		}
+	}
+
+	/**
+	 * Return true if the current transaction modified the bean type of a
+	 * query (or a bean type), so the shared caches can't answer for it.
+	 */
+	private boolean isModifiedByOverlay(Object queryOrBeanType) {
+		if (overlay == null)
+			return false;
+		Class<?> beanType = queryOrBeanType instanceof Query ? ((Query) queryOrBeanType)
+				.getBaseClass() : (Class<?>) queryOrBeanType;
+		return overlay.isModified(beanType);
+	}
 	
 	private boolean logMethod(Level level, Method method, Object[] args,String suffix) {
 		Logger log = dash.getLog();
@@ -411,43 +704,203 @@ class DashInvocationHandler implements InvocationHandler {
 	private Object createNestedMap(Object proxy, QueryByCriteria beanQuery,
 			String[] columns, int[] mapSizes, boolean useLists)
 			throws Throwable {
+		List<X2BaseBean> beans = new ArrayList<>();
 		// pass through getIteratorByQuery to benefit from our caching
 		try (QueryIterator queryIter = (QueryIterator) invoke(proxy,
 				method_getIteratorByQuery, new Object[] { beanQuery })) {
-
-			Map map = new HashMap(mapSizes[0]);
 			while (queryIter.hasNext()) {
 				ThreadedBrokerIterator.checkInterruptNoYield();
+				beans.add((X2BaseBean) queryIter.next());
+			}
+		}
+
+		Map<String, X2BaseBean[]> relatedBeans = beans.isEmpty() ? null
+				: getRelatedBeans((X2Broker) proxy, beanQuery, beans, columns);
+
+		Map map = new HashMap(mapSizes[0]);
+		for (X2BaseBean bean : beans) {
+			ThreadedBrokerIterator.checkInterruptNoYield();
 
-				X2BaseBean bean = (X2BaseBean) queryIter.next();
-				Map currentMap = map;
-				for (int a = 0; a < columns.length; a++) {
-					// TODO: getFieldValueByBeanPath might invoke its own
-					// queries. We could instead use a ColumnQuery to
-					// include this in the query if needed
-					Object key = bean.getFieldValueByBeanPath(columns[a]);
-					if (a == columns.length - 1) {
-						if (useLists) {
-							List list = (List) currentMap.get(key);
-							if (list == null) {
-								list = new LinkedList();
-								currentMap.put(key, list);
-							}
-							list.add(bean);
-						} else {
-							currentMap.put(key, bean);
+			X2BaseBean[] related = relatedBeans == null ? null : relatedBeans
+					.get(bean.getOid());
+			Map currentMap = map;
+			for (int a = 0; a < columns.length; a++) {
+				Object key;
+				if (related != null && related[a] != null) {
+					String field = columns[a].substring(columns[a]
+							.lastIndexOf(ModelProperty.PATH_DELIMITER) + 1);
+					key = related[a].getFieldValueByBeanPath(field);
+				} else {
+					key = bean.getFieldValueByBeanPath(columns[a]);
+				}
+				if (a == columns.length - 1) {
+					if (useLists) {
+						List list = (List) currentMap.get(key);
+						if (list == null) {
+							list = new LinkedList();
+							currentMap.put(key, list);
 						}
+						list.add(bean);
 					} else {
-						Map innerMap = (Map) currentMap.get(key);
-						if (innerMap == null) {
-							innerMap = new HashMap(mapSizes[a + 1]);
-							currentMap.put(key, innerMap);
-						}
-						currentMap = innerMap;
+						currentMap.put(key, bean);
+					}
+				} else {
+					Map innerMap = (Map) currentMap.get(key);
+					if (innerMap == null) {
+						innerMap = new HashMap(mapSizes[a + 1]);
+						currentMap.put(key, innerMap);
 					}
+					currentMap = innerMap;
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Retrieve the related beans that every relationship-path key column
+	 * (such as "relStdPsnOid.psnNameLast") refers to, with a constant number
+	 * of queries.
+	 * <p>
+	 * Calling {@link X2BaseBean#getFieldValueByBeanPath(String)} for a
+	 * relationship path may issue a query per bean to retrieve the related
+	 * bean, so building a map of 50,000 beans could issue 50,000 queries.
+	 * Instead this issues one ColumnQuery (with the same criteria as the
+	 * original query) that selects the oid of each related bean (such as
+	 * "relStdPsnOid.oid"). If each relationship is only one level deep then
+	 * Dash can cache that query's rows. Then the related beans are retrieved
+	 * from Dash's caches, and the beans that aren't cached are retrieved with
+	 * one query per relationship.
+	 * <p>
+	 * The caller reads the last field of each path (such as "psnNameLast")
+	 * from the related bean, so the keys are exactly the values (and types)
+	 * that getFieldValueByBeanPath returns. If a related bean couldn't be
+	 * retrieved (for example because it doesn't exist, so the join excluded
+	 * that row) then its element is null, and the caller should fall back to
+	 * getFieldValueByBeanPath.
+	 * 
+	 * @return a map of bean oids to arrays of related beans that parallel
+	 *         the columns argument, or null if no column is a relationship
+	 *         path.
+	 */
+	private Map<String, X2BaseBean[]> getRelatedBeans(X2Broker broker,
+			QueryByCriteria beanQuery, List<X2BaseBean> beans, String[] columns) {
+		// the column indices of each relationship (such as "relStdPsnOid")
+		Map<String, List<Integer>> columnsByRelationship = new LinkedHashMap<>();
+		for (int a = 0; a < columns.length; a++) {
+			int i = columns[a].lastIndexOf(ModelProperty.PATH_DELIMITER);
+			if (i != -1) {
+				String relationship = columns[a].substring(0, i);
+				List<Integer> indices = columnsByRelationship.get(relationship);
+				if (indices == null) {
+					indices = new ArrayList<>();
+					columnsByRelationship.put(relationship, indices);
+				}
+				indices.add(a);
+			}
+		}
+		if (columnsByRelationship.isEmpty())
+			return null;
+
+		List<String> relationships = new ArrayList<>(
+				columnsByRelationship.keySet());
+		String[] queryColumns = new String[relationships.size() + 1];
+		queryColumns[0] = X2BaseBean.COL_OID;
+		for (int a = 0; a < relationships.size(); a++) {
+			queryColumns[a + 1] = relationships.get(a)
+					+ ModelProperty.PATH_DELIMITER + X2BaseBean.COL_OID;
+		}
+
+		ColumnQuery columnQuery = new ColumnQuery(beanQuery.getBaseClass(),
+				queryColumns, beanQuery.getCriteria(), beanQuery.isDistinct());
+		Map<String, Object[]> relatedOids = new HashMap<>();
+		try (ReportQueryIterator iter = broker
+				.getReportQueryIteratorByQuery(columnQuery)) {
+			while (iter.hasNext()) {
+				ThreadedBrokerIterator.checkInterruptNoYield();
+				Object[] row = iter.next();
+				if (row[0] instanceof String)
+					relatedOids.put((String) row[0], row);
+			}
+		}
+
+		Map<String, X2BaseBean[]> returnValue = new HashMap<>();
+		for (int a = 0; a < relationships.size(); a++) {
+			Map<String, X2BaseBean> relatedBeansByOid = getRelatedBeans(
+					broker, beans, relationships.get(a), a + 1, relatedOids);
+			for (X2BaseBean bean : beans) {
+				Object[] row = relatedOids.get(bean.getOid());
+				X2BaseBean relatedBean = row == null ? null
+						: relatedBeansByOid.get(row[a + 1]);
+				if (relatedBean == null)
+					continue;
+				X2BaseBean[] related = returnValue.get(bean.getOid());
+				if (related == null) {
+					related = new X2BaseBean[columns.length];
+					returnValue.put(bean.getOid(), related);
+				}
+				for (int index : columnsByRelationship.get(relationships
+						.get(a))) {
+					related[index] = relatedBean;
 				}
 			}
-			return map;
 		}
+		return returnValue;
+	}
+
+	/**
+	 * Retrieve the beans one relationship refers to.
+	 * 
+	 * @param relatedOids
+	 *            the rows of the ColumnQuery, keyed by the base bean's oid.
+	 * @param rowIndex
+	 *            the index of this relationship's oid in each row.
+	 * @return the related beans we could retrieve, keyed by their oids.
+	 */
+	private Map<String, X2BaseBean> getRelatedBeans(X2Broker broker,
+			List<X2BaseBean> beans, String relationship, int rowIndex,
+			Map<String, Object[]> relatedOids) {
+		Map<String, X2BaseBean> returnValue = new HashMap<>();
+
+		// We need the related bean type to look beans up by their oids, so
+		// we resolve the first related bean the old-fashioned way:
+		Set<String> oids = new LinkedHashSet<>();
+		X2BaseBean sample = null;
+		for (X2BaseBean bean : beans) {
+			Object[] row = relatedOids.get(bean.getOid());
+			if (row == null || !(row[rowIndex] instanceof String))
+				continue;
+			String oid = (String) row[rowIndex];
+			if (sample == null) {
+				Object value = bean.getFieldValueByBeanPath(relationship);
+				if (!(value instanceof X2BaseBean)
+						|| !oid.equals(((X2BaseBean) value).getOid()))
+					return returnValue;
+				sample = (X2BaseBean) value;
+			}
+			oids.add(oid);
+		}
+		if (sample == null)
+			return returnValue;
+		returnValue.put(sample.getOid(), sample);
+		oids.remove(sample.getOid());
+
+		Class<?> relatedType = sample.getClass();
+		List<String> missingOids = new ArrayList<>();
+		for (X2BaseBean relatedBean : dash.getBeansByOid(relatedType,
+				new ArrayList<>(oids), missingOids)) {
+			if (relatedBean != null)
+				returnValue.put(relatedBean.getOid(), relatedBean);
+		}
+		if (!missingOids.isEmpty()) {
+			Map<String, X2BaseBean> queriedBeans = dash.queryBeansByOid(
+					broker, relatedType, missingOids);
+			// (if this is null then some beans couldn't be retrieved, so
+			// the caller falls back to getFieldValueByBeanPath for all of
+			// them)
+			if (queriedBeans != null)
+				returnValue.putAll(queriedBeans);
+		}
+		return returnValue;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.abc.dash.Dash.CacheResults;
+import org.abc.dash.Dash.TemplateQueryProfile;
+import org.abc.dash.Dash.TemplateQueryProfileKey;
+
+/**
+ * This collects latency histograms for a Dash.
+ * <p>
+ * CacheResults only count how often each outcome occurs. These histograms
+ * also record how long each outcome took, so we can tell how much time the
+ * cache saved (or cost). This records:
+ * <ul>
+ * <li>How long it took to produce a QueryIterator, for each
+ * {@link CacheResults.Type}.</li>
+ * <li>How long every X2Broker method took, both when Dash intercepted it
+ * ("dash.getIteratorByQuery") and when it was delegated directly to the
+ * original broker ("broker.getIteratorByQuery").</li>
+ * <li>How long it took to produce a QueryIterator for each template (see
+ * {@link TemplateQueryProfile#getLatency()}).</li>
+ * </ul>
+ * Note the time it takes to produce a QueryIterator does not include the time
+ * spent iterating over it. When a query is skipped (or aborted because it
+ * returned too many beans) most of that query's work happens later, while the
+ * caller iterates.
+ */
+public class DashMetrics implements DashMetricsMBean {
+
+	/**
+	 * The maximum number of templates {@link #getSnapshot()} lists.
+	 */
+	protected static final int MAX_SNAPSHOT_TEMPLATES = 20;
+
+	protected final Dash dash;
+	protected final ConcurrentMap<CacheResults.Type, LatencyHistogram> outcomes = new ConcurrentHashMap<>();
+	protected final ConcurrentMap<String, LatencyHistogram> methods = new ConcurrentHashMap<>();
+
+	DashMetrics(Dash dash) {
+		this.dash = dash;
+	}
+
+	/**
+	 * Record how long it took to produce a QueryIterator.
+	 */
+	public void recordQuery(CacheResults.Type type, long nanos) {
+		getHistogram(outcomes, type).record(nanos);
+	}
+
+	/**
+	 * Record how long an X2Broker method took.
+	 *
+	 * @param name
+	 *            the method name, prefixed with "dash." or "broker.".
+	 */
+	public void recordMethod(String name, long nanos) {
+		getHistogram(methods, name).record(nanos);
+	}
+
+	/**
+	 * Return the latency histogram for an outcome, or null if that outcome
+	 * hasn't been recorded.
+	 */
+	public LatencyHistogram getQueryLatency(CacheResults.Type type) {
+		return outcomes.get(type);
+	}
+
+	/**
+	 * Return the latency histogram for an X2Broker method, or null if that
+	 * method hasn't been recorded.
+	 */
+	public LatencyHistogram getMethodLatency(String name) {
+		return methods.get(name);
+	}
+
+	private static <K> LatencyHistogram getHistogram(
+			ConcurrentMap<K, LatencyHistogram> map, K key) {
+		LatencyHistogram h = map.get(key);
+		if (h == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			h = map.putIfAbsent(key, newHistogram);
+			if (h == null)
+				h = newHistogram;
+		}
+		return h;
+	}
+
+	@Override
+	public String getSnapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Dash query latency by outcome:\n");
+		for (Entry<String, LatencyHistogram> entry : sort(outcomes).entrySet()) {
+			sb.append("  " + entry.getKey() + ": " + entry.getValue() + "\n");
+		}
+
+		sb.append("Dash broker latency by method:\n");
+		for (Entry<String, LatencyHistogram> entry : sort(methods).entrySet()) {
+			sb.append("  " + entry.getKey() + ": " + entry.getValue() + "\n");
+		}
+
+		List<Entry<TemplateQueryProfileKey, TemplateQueryProfile>> profiles = new ArrayList<>(
+				dash.getTemplateQueryProfiles().entrySet());
+		Collections.sort(profiles,
+				new Comparator<Entry<TemplateQueryProfileKey, TemplateQueryProfile>>() {
+					@Override
+					public int compare(
+							Entry<TemplateQueryProfileKey, TemplateQueryProfile> o1,
+							Entry<TemplateQueryProfileKey, TemplateQueryProfile> o2) {
+						return Long.compare(o2.getValue().getLatency()
+								.getTotal(), o1.getValue().getLatency()
+								.getTotal());
+					}
+				});
+		sb.append("Dash query latency by template (the "
+				+ Math.min(MAX_SNAPSHOT_TEMPLATES, profiles.size()) + " of "
+				+ profiles.size() + " slowest):\n");
+		for (int a = 0; a < profiles.size() && a < MAX_SNAPSHOT_TEMPLATES; a++) {
+			Entry<TemplateQueryProfileKey, TemplateQueryProfile> entry = profiles
+					.get(a);
+			sb.append("  " + entry.getKey().getValue().getSimpleName() + " \""
+					+ entry.getKey().getKey() + "\": "
+					+ entry.getValue().getLatency() + "\n");
+		}
+		return sb.toString();
+	}
+
+	private static <K> Map<String, LatencyHistogram> sort(
+			Map<K, LatencyHistogram> map) {
+		Map<String, LatencyHistogram> sorted = new TreeMap<>();
+		for (Entry<K, LatencyHistogram> entry : map.entrySet()) {
+			sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return sorted;
+	}
+
+	@Override
+	public String getCacheResults() {
+		return dash.getCacheResults().toString();
+	}
+
+	@Override
+	public long getCacheWeight() {
+		return dash.getCacheWeight();
+	}
+
+	@Override
+	public long getQueryCount() {
+		long sum = 0;
+		for (LatencyHistogram h : outcomes.values()) {
+			sum += h.getCount();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getQueryMillis() {
+		long sum = 0;
+		for (LatencyHistogram h : outcomes.values()) {
+			sum += h.getTotal();
+		}
+		return sum / 1000000;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram h : outcomes.values()) {
+			h.reset();
+		}
+		for (LatencyHistogram h : methods.values()) {
+			h.reset();
+		}
+		for (TemplateQueryProfile profile : dash.getTemplateQueryProfiles()
+				.values()) {
+			profile.getLatency().reset();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.abc.dash;
+
+/**
+ * This is the JMX management interface for {@link DashMetrics}.
+ */
+public interface DashMetricsMBean {
+
+	/**
+	 * Return a multi-line summary of every latency histogram.
+	 */
+	String getSnapshot();
+
+	/**
+	 * Return the overall CacheResults of the Dash.
+	 */
+	String getCacheResults();
+
+	/**
+	 * Return the estimated number of bytes the Dash's cached entries use, or
+	 * -1 if its cache pool doesn't weigh its entries.
+	 */
+	long getCacheWeight();
+
+	/**
+	 * Return the number of bean queries Dash has handled.
+	 */
+	long getQueryCount();
+
+	/**
+	 * Return the total time (in milliseconds) Dash spent producing
+	 * QueryIterators for bean queries.
+	 */
+	long getQueryMillis();
+
+	/**
+	 * Reset every latency histogram.
+	 */
+	void reset();
+}
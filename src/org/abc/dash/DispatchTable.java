@@ -0,0 +1,110 @@
+package org.abc.dash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This maps the Methods an InvocationHandler receives to handlers, so the
+ * InvocationHandler doesn't have to compare every incoming Method against a
+ * list of known Methods.
+ * <p>
+ * A proxy class passes the same Method instances to its InvocationHandler
+ * every time, so this table is keyed by identity. The first time we see a
+ * Method we ask the Resolver which handler it maps to, and we also prepare a
+ * MethodHandle that can invoke that Method on a delegate without going
+ * through {@link Method#invoke(Object, Object...)}.
+ * <p>
+ * This is thread-safe. Lookups never acquire a lock; adding a new Method
+ * replaces the (small) table with a copy.
+ */
+class DispatchTable<H> {
+
+	/**
+	 * This identifies the handler for a Method.
+	 */
+	interface Resolver<H> {
+		H resolve(Method method);
+	}
+
+	/**
+	 * A Method, its handler, and a MethodHandle to invoke the method on a
+	 * delegate.
+	 */
+	static class Entry<H> {
+		private static final Object[] EMPTY = new Object[0];
+
+		final Method method;
+		final H handler;
+		final MethodHandle delegate;
+
+		Entry(Method method, H handler) {
+			this.method = method;
+			this.handler = handler;
+			MethodHandle mh;
+			try {
+				mh = MethodHandles.publicLookup().unreflect(method);
+				mh = mh.asSpreader(Object[].class,
+						method.getParameterTypes().length).asType(
+						MethodType.methodType(Object.class, Object.class,
+								Object[].class));
+			} catch (Exception e) {
+				// we'll use Method.invoke instead
+				mh = null;
+			}
+			this.delegate = mh;
+		}
+
+		/**
+		 * Invoke this entry's Method on a delegate.
+		 * <p>
+		 * Like {@link Method#invoke(Object, Object...)}: any exception the
+		 * method throws is wrapped in an InvocationTargetException.
+		 */
+		Object invokeDelegate(Object target, Object[] args)
+				throws InvocationTargetException, IllegalAccessException {
+			if (delegate == null)
+				return method.invoke(target, args);
+			Object[] spreadArgs = args == null ? EMPTY : args;
+			try {
+				return (Object) delegate.invokeExact(target, spreadArgs);
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	protected final Resolver<H> resolver;
+	protected volatile Map<Method, Entry<H>> entries = new IdentityHashMap<>();
+
+	DispatchTable(Resolver<H> resolver) {
+		Objects.requireNonNull(resolver);
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Return the Entry for a Method, creating it if necessary.
+	 */
+	Entry<H> get(Method method) {
+		Entry<H> entry = entries.get(method);
+		if (entry == null)
+			entry = add(method);
+		return entry;
+	}
+
+	private synchronized Entry<H> add(Method method) {
+		Entry<H> entry = entries.get(method);
+		if (entry != null)
+			return entry;
+		entry = new Entry<>(method, resolver.resolve(method));
+		Map<Method, Entry<H>> newEntries = new IdentityHashMap<>(entries);
+		newEntries.put(method, entry);
+		entries = newEntries;
+		return entry;
+	}
+}
@@ -0,0 +1,154 @@
+package org.abc.dash;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.OperatorContext;
+
+/**
+ * This Operator compares two attributes of the same bean, such as
+ * "startDate < endDate".
+ * <p>
+ * This is the Operator counterpart to OJB's FieldCriteria (for example
+ * {@link org.apache.ojb.broker.query.Criteria#addEqualToField(String, String)}
+ * ). Like SQL: if either attribute is null then this comparison is false.
+ */
+public class FieldComparison extends Operator {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The ways two attributes can be compared.
+	 * <p>
+	 * "!=", "<=" and ">=" have their own types (instead of negating
+	 * EQUAL_TO, GREATER_THAN or LESSER_THAN), because a negated comparison
+	 * would be true when either attribute is null.
+	 */
+	public enum Type {
+		EQUAL_TO(" == "), NOT_EQUAL_TO(" != "), GREATER_THAN(" > "), GREATER_OR_EQUAL(
+				" >= "), LESSER_THAN(" < "), LESSER_OR_EQUAL(" <= ");
+
+		final String symbol;
+
+		Type(String symbol) {
+			this.symbol = symbol;
+		}
+	}
+
+	protected final String leftAttribute;
+	protected final String rightAttribute;
+	protected final Type type;
+
+	public FieldComparison(String leftAttribute, Type type,
+			String rightAttribute) {
+		Objects.requireNonNull(leftAttribute);
+		Objects.requireNonNull(type);
+		Objects.requireNonNull(rightAttribute);
+		this.leftAttribute = leftAttribute;
+		this.type = type;
+		this.rightAttribute = rightAttribute;
+	}
+
+	public String getLeftAttribute() {
+		return leftAttribute;
+	}
+
+	public String getRightAttribute() {
+		return rightAttribute;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public boolean evaluate(OperatorContext context, Object bean)
+			throws Exception {
+		Object left = context.getValue(bean, leftAttribute);
+		Object right = context.getValue(bean, rightAttribute);
+		if (left == null || right == null)
+			return false;
+		switch (type) {
+		case EQUAL_TO:
+			return left.equals(right)
+					|| ((Comparable) left).compareTo(right) == 0;
+		case NOT_EQUAL_TO:
+			return !left.equals(right)
+					&& ((Comparable) left).compareTo(right) != 0;
+		case GREATER_THAN:
+			return ((Comparable) left).compareTo(right) > 0;
+		case GREATER_OR_EQUAL:
+			return ((Comparable) left).compareTo(right) >= 0;
+		case LESSER_THAN:
+			return ((Comparable) left).compareTo(right) < 0;
+		default:
+			return ((Comparable) left).compareTo(right) <= 0;
+		}
+	}
+
+	@Override
+	public int getOperandCount() {
+		return 3;
+	}
+
+	@Override
+	public Object getOperand(int index) {
+		switch (index) {
+		case 0:
+			return leftAttribute;
+		case 1:
+			return type;
+		case 2:
+			return rightAttribute;
+		}
+		throw new IndexOutOfBoundsException("index = " + index);
+	}
+
+	@Override
+	public Collection<String> getAttributes() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+				leftAttribute, rightAttribute)));
+	}
+
+	/**
+	 * This Operator doesn't contain any values, so it is its own template.
+	 */
+	@Override
+	public Operator getTemplateOperator() {
+		return this;
+	}
+
+	@Override
+	public Collection<Operator> split() {
+		return Collections.<Operator> singleton(this);
+	}
+
+	@Override
+	public String toString(boolean useClassNames) {
+		return leftAttribute + type.symbol + rightAttribute;
+	}
+
+	@Override
+	public String toString() {
+		return toString(false);
+	}
+
+	@Override
+	public int hashCode() {
+		return leftAttribute.hashCode() + 31 * rightAttribute.hashCode()
+				+ type.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof FieldComparison))
+			return false;
+		FieldComparison other = (FieldComparison) obj;
+		return type == other.type && leftAttribute.equals(other.leftAttribute)
+				&& rightAttribute.equals(other.rightAttribute);
+	}
+}
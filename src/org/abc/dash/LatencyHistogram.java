@@ -0,0 +1,163 @@
+package org.abc.dash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This records durations (in nanoseconds) in logarithmic buckets.
+ * <p>
+ * Like an HdrHistogram: every power of two is divided into 8 linear
+ * sub-buckets, so any recorded value is reported within 12.5% of its actual
+ * value, and the histogram has a fixed size (488 counters) regardless of how
+ * many values it records or how large they are.
+ * <p>
+ * Recording a value is lock-free: it increments a few atomic counters, so
+ * this is safe to use from several threads.
+ */
+public class LatencyHistogram {
+
+	protected static final int SUB_BUCKET_BITS = 3;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKETS;
+
+	/**
+	 * Return the index of the bucket a value belongs in.
+	 */
+	static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(0, value);
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Return the smallest value that belongs in a bucket.
+	 */
+	static long getBucketLowerBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int magnitude = index / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+		int subBucket = index % SUB_BUCKETS;
+		return (1L << magnitude)
+				+ ((long) subBucket << (magnitude - SUB_BUCKET_BITS));
+	}
+
+	/**
+	 * Return the largest value that belongs in a bucket.
+	 */
+	static long getBucketUpperBound(int index) {
+		if (index == BUCKET_COUNT - 1)
+			return Long.MAX_VALUE;
+		return getBucketLowerBound(index + 1) - 1;
+	}
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	protected final AtomicLong count = new AtomicLong();
+	protected final AtomicLong total = new AtomicLong();
+	protected final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds. Negative values are recorded as
+	 *            zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(getBucketIndex(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long currentMax = max.get();
+		while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Return the number of recorded durations.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Return the sum of all recorded durations, in nanoseconds.
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Return the largest recorded duration, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return the average recorded duration, in nanoseconds.
+	 */
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : ((double) total.get()) / ((double) c);
+	}
+
+	/**
+	 * Return an upper bound for the given percentile, in nanoseconds. For
+	 * example getPercentile(.99) returns a value that at least 99% of the
+	 * recorded durations are less than or equal to.
+	 *
+	 * @param fraction
+	 *            a value from 0 to 1.
+	 */
+	public long getPercentile(double fraction) {
+		long c = count.get();
+		if (c == 0)
+			return 0;
+		long threshold = (long) Math.ceil(fraction * c);
+		long cumulative = 0;
+		for (int a = 0; a < BUCKET_COUNT; a++) {
+			cumulative += counts.get(a);
+			if (cumulative >= threshold && cumulative > 0)
+				return Math.min(getBucketUpperBound(a), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Reset all counters to zero.
+	 * <p>
+	 * If durations are recorded while this method runs then some of them may
+	 * survive the reset.
+	 */
+	public void reset() {
+		for (int a = 0; a < BUCKET_COUNT; a++) {
+			counts.set(a, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Return a one-line summary of this histogram, with durations in
+	 * milliseconds.
+	 */
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", total=" + toMillis(getTotal())
+				+ ", mean=" + toMillis((long) getMean()) + ", p50="
+				+ toMillis(getPercentile(.5)) + ", p90="
+				+ toMillis(getPercentile(.9)) + ", p99="
+				+ toMillis(getPercentile(.99)) + ", max=" + toMillis(getMax());
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format("%.3fms", nanos / 1000000.0);
+	}
+}
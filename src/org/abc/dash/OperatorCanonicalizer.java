@@ -0,0 +1,156 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.pump.data.operator.AbstractCompoundOperator;
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.In;
+import com.pump.data.operator.Not;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.Or;
+
+/**
+ * This converts an Operator into a canonical form, so logically equivalent
+ * criteria produce equal Operators (and therefore share the same CacheKey and
+ * TemplateQueryProfileKey).
+ * <p>
+ * The CriteriaToOperatorConverter builds left-deep trees in whatever order a
+ * tool added its criteria, so "a == 1 && b == 2" and "b == 2 && a == 1" would
+ * otherwise be different Operators. This:
+ * <ul>
+ * <li>Flattens nested Ands and nested Ors: "(a && b) && c" becomes
+ * "a && b && c".</li>
+ * <li>Sorts the operands of every And and Or, and removes duplicate
+ * operands.</li>
+ * <li>Sorts the values of an In, and converts an In with one value into an
+ * EqualTo.</li>
+ * <li>Removes double negatives: "!(!a)" becomes "a".</li>
+ * <li>Simplifies trivial branches. An In with no values never matches (so it
+ * is FALSE), and its negation always matches (so it is TRUE). An And that
+ * contains FALSE is FALSE, and an Or that contains TRUE is TRUE. TRUE
+ * operands are removed from an And, and FALSE operands are removed from an
+ * Or.</li>
+ * </ul>
+ * Operands are sorted by their template first (see
+ * {@link Operator#getTemplateOperator()}), so two queries that share a
+ * template also share the same operand order.
+ */
+public class OperatorCanonicalizer {
+
+	/**
+	 * This sorts operators by their template, and then by their values.
+	 */
+	private static final Comparator<Operator> OPERATOR_COMPARATOR = new Comparator<Operator>() {
+		@Override
+		public int compare(Operator o1, Operator o2) {
+			int k = String.valueOf(o1.getTemplateOperator()).compareTo(
+					String.valueOf(o2.getTemplateOperator()));
+			if (k != 0)
+				return k;
+			return o1.toString().compareTo(o2.toString());
+		}
+	};
+
+	/**
+	 * Return the canonical form of an Operator.
+	 *
+	 * @param operator
+	 *            the operator to convert. This may be null.
+	 * @return an Operator that is logically equivalent to the argument. This
+	 *         may be the argument itself.
+	 */
+	public static Operator canonicalize(Operator operator) {
+		if (operator instanceof And || operator instanceof Or) {
+			return canonicalizeCompound((AbstractCompoundOperator) operator);
+		} else if (operator instanceof Not) {
+			Operator operand = canonicalize((Operator) operator.getOperand(0));
+			if (operand instanceof Not)
+				return (Operator) operand.getOperand(0);
+			if (operand == operator.getOperand(0))
+				return operator;
+			return new Not(operand);
+		} else if (operator instanceof In) {
+			return canonicalizeIn((In) operator);
+		}
+		return operator;
+	}
+
+	private static Operator canonicalizeCompound(
+			AbstractCompoundOperator operator) {
+		boolean isAnd = operator instanceof And;
+
+		// flatten, remove duplicates and identify trivial operands
+		Set<Operator> operands = new LinkedHashSet<>();
+		List<Operator> queue = new ArrayList<>(operator.getOperands());
+		while (!queue.isEmpty()) {
+			Operator operand = canonicalize(queue.remove(0));
+			if (operand.getClass() == operator.getClass()) {
+				queue.addAll(0, ((AbstractCompoundOperator) operand)
+						.getOperands());
+			} else if (isFalse(operand)) {
+				// "a && FALSE" is FALSE, and "a || FALSE" is "a"
+				if (isAnd)
+					return operand;
+			} else if (isTrue(operand)) {
+				// "a || TRUE" is TRUE, and "a && TRUE" is "a"
+				if (!isAnd)
+					return operand;
+			} else {
+				operands.add(operand);
+			}
+		}
+
+		if (operands.isEmpty()) {
+			// every operand was trivial, so the first operand describes the
+			// result
+			return canonicalize(operator.getOperand(0));
+		} else if (operands.size() == 1) {
+			return operands.iterator().next();
+		}
+
+		List<Operator> sortedOperands = new ArrayList<>(operands);
+		Collections.sort(sortedOperands, OPERATOR_COMPARATOR);
+		return isAnd ? new And(sortedOperands) : new Or(sortedOperands);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Operator canonicalizeIn(In in) {
+		Set<?> values = in.getValue();
+		if (values.size() == 1) {
+			Object value = values.iterator().next();
+			if (value == null || value instanceof Comparable)
+				return new EqualTo(in.getAttribute(), (Comparable) value);
+			return in;
+		}
+
+		try {
+			Set sortedValues = new LinkedHashSet(new TreeSet(values));
+			return new In(in.getAttribute(), sortedValues);
+		} catch (RuntimeException e) {
+			// the values contain null or aren't mutually comparable
+			return in;
+		}
+	}
+
+	/**
+	 * Return true if an Operator never matches any bean.
+	 */
+	static boolean isFalse(Operator operator) {
+		return operator instanceof In && ((In) operator).getValue().isEmpty();
+	}
+
+	/**
+	 * Return true if an Operator always matches every bean.
+	 */
+	static boolean isTrue(Operator operator) {
+		return operator instanceof Not
+				&& isFalse((Operator) operator.getOperand(0));
+	}
+}
@@ -0,0 +1,226 @@
+package org.abc.dash;
+
+import java.util.Objects;
+import java.util.Set;
+
+import com.pump.data.operator.AbstractValueOperator;
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.GreaterThan;
+import com.pump.data.operator.In;
+import com.pump.data.operator.LesserThan;
+import com.pump.data.operator.Not;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.Or;
+
+/**
+ * This identifies when one Operator logically contains another.
+ * <p>
+ * For example: every bean that matches "schoolOid == A && gradeLevel == 09"
+ * also matches "schoolOid == A". So if we know exactly which beans match
+ * "schoolOid == A", then we can identify which beans match the narrower query
+ * by evaluating it against those beans in memory.
+ * <p>
+ * This recognizes:
+ * <ul>
+ * <li>AND-narrowing: "A && B" is contained in "A".</li>
+ * <li>OR-widening: "A" is contained in "A || B".</li>
+ * <li>IN-subsets: "x IN (1, 2)" is contained in "x IN (1, 2, 3)", and
+ * "x == 1" is contained in "x IN (1, 2)".</li>
+ * <li>Range containment: "x > 5" is contained in "x > 3" and in
+ * "!(x < 5)", and "x == 4" is contained in "x > 3".</li>
+ * </ul>
+ * This errs on the side of caution: when it returns false the operators may
+ * still be related in ways it doesn't recognize, but when it returns true the
+ * containment is guaranteed.
+ */
+public class OperatorSubsumption {
+
+	/**
+	 * Return true if every bean that satisfies {@code specific} is guaranteed
+	 * to satisfy {@code general}.
+	 */
+	public static boolean subsumes(Operator general, Operator specific) {
+		if (general.equals(specific))
+			return true;
+
+		if (general instanceof And) {
+			for (Operator generalOperand : ((And) general).getOperands()) {
+				if (!subsumes(generalOperand, specific))
+					return false;
+			}
+			return true;
+		}
+
+		if (specific instanceof Or) {
+			for (Operator specificOperand : ((Or) specific).getOperands()) {
+				if (!subsumes(general, specificOperand))
+					return false;
+			}
+			return true;
+		}
+
+		if (specific instanceof And) {
+			for (Operator specificOperand : ((And) specific).getOperands()) {
+				if (subsumes(general, specificOperand))
+					return true;
+			}
+		}
+
+		if (general instanceof Or) {
+			for (Operator generalOperand : ((Or) general).getOperands()) {
+				if (subsumes(generalOperand, specific))
+					return true;
+			}
+		}
+
+		if (specific instanceof In) {
+			In in = (In) specific;
+			Set<?> values = in.getValue();
+			if (values.isEmpty())
+				return false;
+			for (Object value : values) {
+				if (!(value instanceof Comparable)
+						|| !subsumesValue(general, in.getAttribute(),
+								(Comparable<?>) value))
+					return false;
+			}
+			return true;
+		}
+
+		if (specific instanceof EqualTo) {
+			EqualTo e = (EqualTo) specific;
+			return e.getValue() != null
+					&& subsumesValue(general, e.getAttribute(), e.getValue());
+		}
+
+		if (specific instanceof GreaterThan || specific instanceof LesserThan) {
+			return subsumesRange(general, (AbstractValueOperator<?>) specific,
+					false);
+		}
+
+		if (specific instanceof Not) {
+			Object operand = specific.getOperand(0);
+			if (operand instanceof GreaterThan || operand instanceof LesserThan) {
+				return subsumesRange(general,
+						(AbstractValueOperator<?>) operand, true);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return true if every bean whose attribute equals a given value is
+	 * guaranteed to satisfy {@code general}.
+	 */
+	private static boolean subsumesValue(Operator general, String attribute,
+			Comparable<?> value) {
+		if (general instanceof EqualTo) {
+			EqualTo e = (EqualTo) general;
+			return attribute.equals(e.getAttribute())
+					&& value.equals(e.getValue());
+		} else if (general instanceof In) {
+			In in = (In) general;
+			return attribute.equals(in.getAttribute())
+					&& in.getValue().contains(value);
+		} else if (general instanceof GreaterThan) {
+			GreaterThan g = (GreaterThan) general;
+			Integer k = compare(value, g.getValue());
+			return attribute.equals(g.getAttribute()) && k != null && k > 0;
+		} else if (general instanceof LesserThan) {
+			LesserThan l = (LesserThan) general;
+			Integer k = compare(value, l.getValue());
+			return attribute.equals(l.getAttribute()) && k != null && k < 0;
+		} else if (general instanceof Not) {
+			Object operand = general.getOperand(0);
+			if (operand instanceof GreaterThan) {
+				GreaterThan g = (GreaterThan) operand;
+				Integer k = compare(value, g.getValue());
+				return attribute.equals(g.getAttribute()) && k != null
+						&& k <= 0;
+			} else if (operand instanceof LesserThan) {
+				LesserThan l = (LesserThan) operand;
+				Integer k = compare(value, l.getValue());
+				return attribute.equals(l.getAttribute()) && k != null
+						&& k >= 0;
+			}
+		} else if (general instanceof And) {
+			for (Operator generalOperand : ((And) general).getOperands()) {
+				if (!subsumesValue(generalOperand, attribute, value))
+					return false;
+			}
+			return true;
+		} else if (general instanceof Or) {
+			for (Operator generalOperand : ((Or) general).getOperands()) {
+				if (subsumesValue(generalOperand, attribute, value))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return true if every bean that satisfies a range is guaranteed to
+	 * satisfy {@code general}.
+	 *
+	 * @param range
+	 *            a GreaterThan or a LesserThan.
+	 * @param isNegated
+	 *            if true then the range is wrapped in a Not, so
+	 *            "!(x > 5)" means "x <= 5".
+	 */
+	private static boolean subsumesRange(Operator general,
+			AbstractValueOperator<?> range, boolean isNegated) {
+		// the direction of the specific range: true for "x > v" or "x >= v"
+		boolean isLowerBound = (range instanceof GreaterThan) != isNegated;
+		// whether the specific range includes its value: "x >= v" or "x <= v"
+		boolean isInclusive = isNegated;
+
+		boolean generalIsNegated = false;
+		Operator generalRange = general;
+		if (general instanceof Not) {
+			generalIsNegated = true;
+			Object operand = general.getOperand(0);
+			if (!(operand instanceof Operator))
+				return false;
+			generalRange = (Operator) operand;
+		}
+		if (!(generalRange instanceof GreaterThan || generalRange instanceof LesserThan))
+			return false;
+
+		AbstractValueOperator<?> g = (AbstractValueOperator<?>) generalRange;
+		if (!Objects.equals(range.getAttribute(), g.getAttribute()))
+			return false;
+		boolean generalIsLowerBound = (g instanceof GreaterThan) != generalIsNegated;
+		boolean generalIsInclusive = generalIsNegated;
+		if (isLowerBound != generalIsLowerBound)
+			return false;
+
+		Integer k = compare(range.getValue(), g.getValue());
+		if (k == null)
+			return false;
+		if (!isLowerBound)
+			k = -k;
+
+		// for lower bounds: "x > 5" is contained in "x > 3" and "x >= 5",
+		// but "x >= 5" is not contained in "x > 5"
+		if (k > 0)
+			return true;
+		if (k == 0)
+			return generalIsInclusive || !isInclusive;
+		return false;
+	}
+
+	/**
+	 * Compare two values, or return null if they can't be compared.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Integer compare(Object v1, Object v2) {
+		if (v1 == null || v2 == null || !v1.getClass().equals(v2.getClass())
+				|| !(v1 instanceof Comparable))
+			return null;
+		int k = ((Comparable) v1).compareTo(v2);
+		return Integer.signum(k);
+	}
+}
@@ -0,0 +1,139 @@
+package org.abc.dash;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * This is an immutable list of oids stored in one contiguous byte array.
+ * <p>
+ * Aspen oids are short ASCII tokens that (almost always) have the same length.
+ * A List of Strings costs roughly 60 bytes per oid (the String, its char
+ * array, and the reference to the String). This list costs one byte per
+ * character, and it doesn't keep any Strings reachable after the beans they
+ * came from are garbage collected.
+ * <p>
+ * Each call to {@link #get(int)} creates a new (short-lived) String.
+ * {@link #contains(Object)} and {@link #indexOf(Object)} compare characters
+ * directly against the byte array, so they don't create any Strings.
+ */
+public class PackedOidList extends AbstractList<String> implements
+		RandomAccess, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Return an immutable list containing the given oids. If possible this
+	 * returns a PackedOidList, but if any oid is null, contains non-ASCII
+	 * characters, or has a different length than the other oids: this returns
+	 * an unmodifiable copy of the oids.
+	 */
+	public static List<String> create(Collection<String> oids) {
+		if (oids instanceof PackedOidList)
+			return (PackedOidList) oids;
+		if (oids.isEmpty())
+			return Collections.emptyList();
+
+		int width = -1;
+		for (String oid : oids) {
+			if (oid == null || !isAscii(oid))
+				return unpacked(oids);
+			if (width == -1) {
+				width = oid.length();
+			} else if (width != oid.length()) {
+				return unpacked(oids);
+			}
+		}
+
+		byte[] data = new byte[width * oids.size()];
+		int offset = 0;
+		for (String oid : oids) {
+			for (int a = 0; a < width; a++) {
+				data[offset++] = (byte) oid.charAt(a);
+			}
+		}
+		return new PackedOidList(data, width, oids.size());
+	}
+
+	private static List<String> unpacked(Collection<String> oids) {
+		return Collections.unmodifiableList(new ArrayList<>(oids));
+	}
+
+	private static boolean isAscii(String str) {
+		for (int a = 0; a < str.length(); a++) {
+			if (str.charAt(a) > 127)
+				return false;
+		}
+		return true;
+	}
+
+	protected final byte[] data;
+	protected final int width;
+	protected final int size;
+
+	protected PackedOidList(byte[] data, int width, int size) {
+		this.data = data;
+		this.width = width;
+		this.size = size;
+	}
+
+	@Override
+	public String get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index = " + index
+					+ ", size = " + size);
+		return new String(data, index * width, width,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof String))
+			return -1;
+		String str = (String) o;
+		if (str.length() != width)
+			return -1;
+		for (int index = 0; index < size; index++) {
+			if (matches(index, str))
+				return index;
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		if (!(o instanceof String))
+			return -1;
+		String str = (String) o;
+		if (str.length() != width)
+			return -1;
+		for (int index = size - 1; index >= 0; index--) {
+			if (matches(index, str))
+				return index;
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	private boolean matches(int index, String str) {
+		int offset = index * width;
+		for (int a = 0; a < width; a++) {
+			if (data[offset + a] != str.charAt(a))
+				return false;
+		}
+		return true;
+	}
+}
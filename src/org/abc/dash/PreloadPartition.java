@@ -0,0 +1,209 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.abc.util.OrderByComparator;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.pump.data.operator.Operator;
+
+/**
+ * This is a set of beans that {@link Dash#preload} loaded into memory, along
+ * with hash indexes on a few of their attributes.
+ * <p>
+ * Unlike Dash's other caches this keeps strong references to its beans: a
+ * preload is an explicit request to keep these beans available. A partition is
+ * discarded when its bean type is modified (see
+ * {@link Dash#modifyBeanRecord(Class)}), or updated one bean at a time if
+ * {@link Dash#isRowInvalidationActive()} is true.
+ */
+public class PreloadPartition {
+
+	protected final Class<?> beanType;
+	protected final Operator operator;
+	protected final OrderByComparator orderBy;
+	protected final List<String> indexAttributes;
+
+	/**
+	 * All the beans in this partition, in the order the superset query
+	 * returned them.
+	 */
+	protected final Map<String, X2BaseBean> beansByOid = new LinkedHashMap<>();
+
+	/**
+	 * The indexes, keyed by attribute name. Each index maps an attribute
+	 * value to the beans that have that value.
+	 */
+	protected final Map<String, Map<Object, List<X2BaseBean>>> indexes = new HashMap<>();
+
+	/**
+	 * The classes of the (non-null) values in each index.
+	 */
+	protected final Map<String, Set<Class<?>>> valueTypes = new HashMap<>();
+
+	/**
+	 * The index values each bean was filed under, in the same order as
+	 * {@link #indexAttributes}.
+	 */
+	protected final Map<String, Object[]> valuesByOid = new HashMap<>();
+
+	PreloadPartition(Class<?> beanType, Operator operator,
+			OrderByComparator orderBy, String[] indexAttributes) {
+		this.beanType = beanType;
+		this.operator = operator;
+		this.orderBy = orderBy;
+		this.indexAttributes = Arrays.asList(indexAttributes.clone());
+		for (String attribute : indexAttributes) {
+			indexes.put(attribute, new HashMap<Object, List<X2BaseBean>>());
+			valueTypes.put(attribute, new HashSet<Class<?>>());
+		}
+	}
+
+	/**
+	 * Return the type of bean in this partition.
+	 */
+	public Class<?> getBeanType() {
+		return beanType;
+	}
+
+	/**
+	 * Return the operator every bean in this partition satisfies, or null if
+	 * this partition contains every bean of its type.
+	 */
+	public Operator getOperator() {
+		return operator;
+	}
+
+	/**
+	 * Return the order of the beans in this partition.
+	 */
+	public OrderByComparator getOrderBy() {
+		return orderBy;
+	}
+
+	/**
+	 * Return the attributes this partition is indexed by.
+	 */
+	public List<String> getIndexAttributes() {
+		return indexAttributes;
+	}
+
+	/**
+	 * Return the number of beans in this partition.
+	 */
+	public synchronized int size() {
+		return beansByOid.size();
+	}
+
+	/**
+	 * Add a bean to the end of this partition.
+	 */
+	synchronized void add(X2BaseBean bean) {
+		Object[] values = new Object[indexAttributes.size()];
+		for (int a = 0; a < values.length; a++) {
+			String attribute = indexAttributes.get(a);
+			values[a] = Dash.CONTEXT.getValue(bean, attribute);
+			List<X2BaseBean> beans = indexes.get(attribute).get(values[a]);
+			if (beans == null) {
+				beans = new ArrayList<>();
+				indexes.get(attribute).put(values[a], beans);
+			}
+			beans.add(bean);
+			if (values[a] != null)
+				valueTypes.get(attribute).add(values[a].getClass());
+		}
+		beansByOid.put(bean.getOid(), bean);
+		valuesByOid.put(bean.getOid(), values);
+	}
+
+	/**
+	 * Return the beans whose attribute matches any of the given values, or
+	 * null if this partition can't answer that question.
+	 * <p>
+	 * This returns null if the attribute isn't indexed, or if a value's type
+	 * doesn't resemble the values we indexed. (For example: a query may
+	 * compare an Integer attribute against a String. The database might
+	 * convert that String, but our HashMap won't.)
+	 * <p>
+	 * If there is only one value then the beans are in the same order as this
+	 * partition. Otherwise they're grouped by value.
+	 */
+	synchronized List<X2BaseBean> getBeans(String attribute,
+			Collection<?> values) {
+		Map<Object, List<X2BaseBean>> index = indexes.get(attribute);
+		if (index == null)
+			return null;
+		Set<Class<?>> types = valueTypes.get(attribute);
+		List<X2BaseBean> returnValue = new ArrayList<>();
+		for (Object value : new HashSet<>(values)) {
+			if (value != null && !types.isEmpty()
+					&& !types.contains(value.getClass()))
+				return null;
+			List<X2BaseBean> beans = index.get(value);
+			if (beans != null)
+				returnValue.addAll(beans);
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Update this partition after a bean was saved or deleted.
+	 *
+	 * @param beanOid
+	 *            the oid of the bean that was saved or deleted.
+	 * @param bean
+	 *            the bean that was saved, or null if it was deleted.
+	 * @return false if this partition can't be updated reliably and should be
+	 *         discarded.
+	 */
+	synchronized boolean update(String beanOid, X2BaseBean bean) {
+		Object[] oldValues = valuesByOid.remove(beanOid);
+		if (oldValues != null) {
+			X2BaseBean oldBean = beansByOid.remove(beanOid);
+			for (int a = 0; a < oldValues.length; a++) {
+				Map<Object, List<X2BaseBean>> index = indexes
+						.get(indexAttributes.get(a));
+				List<X2BaseBean> beans = index.get(oldValues[a]);
+				if (beans != null) {
+					beans.remove(oldBean);
+					if (beans.isEmpty())
+						index.remove(oldValues[a]);
+				}
+			}
+		}
+
+		if (bean == null)
+			return true;
+
+		boolean isMatch;
+		try {
+			isMatch = operator == null || operator.evaluate(Dash.CONTEXT, bean);
+		} catch (Exception e) {
+			return false;
+		}
+		if (!isMatch)
+			return true;
+
+		// we don't know where this bean belongs in an ordered partition
+		if (!orderBy.getFieldHelpers().isEmpty())
+			return false;
+
+		add(bean);
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PreloadPartition[ beanType=" + beanType.getName()
+				+ ", operator=" + operator + ", indexAttributes="
+				+ indexAttributes + ", size=" + beansByOid.size() + "]";
+	}
+}
@@ -0,0 +1,215 @@
+package org.abc.dash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import org.abc.dash.Dash.TemplateQueryProfile;
+import org.abc.dash.Dash.TemplateQueryProfileKey;
+
+/**
+ * This reads and writes snapshots of a Dash's TemplateQueryProfiles, so a
+ * tool can start with the statistics its previous run collected.
+ * <p>
+ * A snapshot begins with a header (a magic number, a format version, the
+ * deployment it was collected from, and a timestamp). Each profile is then
+ * serialized separately, so if one profile can't be read (because a class
+ * changed or no longer exists) we skip that profile and keep the others.
+ * <p>
+ * A snapshot is ignored entirely if it has a different format version, if it
+ * came from a different deployment, or if it is older than the maximum age
+ * the caller accepts. Each profile also records when it was last used, and
+ * profiles that weren't used within that maximum age are dropped when a
+ * snapshot is written or read. So templates a tool no longer issues
+ * eventually disappear from its snapshot.
+ */
+public class ProfileSnapshot {
+
+	/**
+	 * The first four bytes of every snapshot.
+	 */
+	protected static final int MAGIC = 0x44736850;
+
+	/**
+	 * The current format version. Increment this if the header or the
+	 * TemplateQueryProfile's serialized form changes incompatibly.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The default maximum age (in milliseconds) of a snapshot we'll read: 30
+	 * days.
+	 */
+	public static final long DEFAULT_MAX_AGE = 1000L * 60 * 60 * 24 * 30;
+
+	/**
+	 * The largest serialized profile (in bytes) we'll read. A larger length
+	 * means the snapshot is corrupt.
+	 */
+	protected static final int MAX_PROFILE_BYTES = 1024 * 1024;
+
+	/**
+	 * Return the file a tool should store its snapshot in.
+	 *
+	 * @param directory
+	 *            the directory snapshots are stored in.
+	 * @param toolId
+	 *            an identifier for the tool, such as its procedure id.
+	 * @param deploymentId
+	 *            the deployment the tool runs against.
+	 */
+	public static File getFile(File directory, String toolId,
+			String deploymentId) {
+		Objects.requireNonNull(directory);
+		Objects.requireNonNull(toolId);
+		return new File(directory, "dash-profiles-" + sanitize(toolId) + "-"
+				+ sanitize(String.valueOf(deploymentId)) + ".ser");
+	}
+
+	private static String sanitize(String str) {
+		StringBuilder sb = new StringBuilder(str.length());
+		for (int a = 0; a < str.length(); a++) {
+			char ch = str.charAt(a);
+			sb.append(Character.isLetterOrDigit(ch) || ch == '-' ? ch : '_');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write a snapshot of profiles, excluding profiles that weren't used
+	 * within {@link #DEFAULT_MAX_AGE}.
+	 *
+	 * @param out
+	 *            the stream to write to. This is not closed.
+	 * @param deploymentId
+	 *            the deployment the profiles were collected from.
+	 * @param profiles
+	 *            the profiles to write.
+	 * @return the number of profiles written.
+	 */
+	public static int write(OutputStream out, String deploymentId,
+			Map<TemplateQueryProfileKey, TemplateQueryProfile> profiles)
+			throws IOException {
+		return write(out, deploymentId, profiles, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Write a snapshot of profiles.
+	 *
+	 * @param out
+	 *            the stream to write to. This is not closed.
+	 * @param deploymentId
+	 *            the deployment the profiles were collected from.
+	 * @param profiles
+	 *            the profiles to write.
+	 * @param maxAge
+	 *            the maximum age (in milliseconds) since a profile was last
+	 *            used. Older profiles are not written.
+	 * @return the number of profiles written.
+	 */
+	public static int write(OutputStream out, String deploymentId,
+			Map<TemplateQueryProfileKey, TemplateQueryProfile> profiles,
+			long maxAge) throws IOException {
+		long now = System.currentTimeMillis();
+		Map<TemplateQueryProfileKey, byte[]> serializedProfiles = new LinkedHashMap<>();
+		for (Entry<TemplateQueryProfileKey, TemplateQueryProfile> entry : profiles
+				.entrySet()) {
+			if (now - entry.getValue().getLastUsed() > maxAge)
+				continue;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream objOut = new ObjectOutputStream(bytes)) {
+				objOut.writeObject(entry.getKey());
+				synchronized (entry.getValue()) {
+					objOut.writeObject(entry.getValue());
+				}
+			} catch (IOException e) {
+				// this profile isn't serializable (maybe an operand value
+				// isn't), but that shouldn't stop us from writing the others
+				continue;
+			}
+			serializedProfiles.put(entry.getKey(), bytes.toByteArray());
+		}
+
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(MAGIC);
+		dataOut.writeInt(VERSION);
+		dataOut.writeUTF(String.valueOf(deploymentId));
+		dataOut.writeLong(System.currentTimeMillis());
+		dataOut.writeInt(serializedProfiles.size());
+		for (byte[] b : serializedProfiles.values()) {
+			dataOut.writeInt(b.length);
+			dataOut.write(b);
+		}
+		dataOut.flush();
+		return serializedProfiles.size();
+	}
+
+	/**
+	 * Read a snapshot of profiles.
+	 *
+	 * @param in
+	 *            the stream to read from. This is not closed.
+	 * @param deploymentId
+	 *            the deployment the caller is running against. If the
+	 *            snapshot came from another deployment it is ignored.
+	 * @param maxAge
+	 *            the maximum age (in milliseconds) of a snapshot. Older
+	 *            snapshots are ignored, and profiles that weren't used within
+	 *            this duration are skipped.
+	 * @return the profiles in the snapshot, or an empty map if the snapshot
+	 *         is ignored.
+	 * @throws IOException
+	 *             if the stream can't be read, if it isn't a snapshot, or if
+	 *             the snapshot is corrupt.
+	 */
+	public static Map<TemplateQueryProfileKey, TemplateQueryProfile> read(
+			InputStream in, String deploymentId, long maxAge)
+			throws IOException {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> returnValue = new LinkedHashMap<>();
+		DataInputStream dataIn = new DataInputStream(in);
+		if (dataIn.readInt() != MAGIC)
+			throw new IOException("This is not a TemplateQueryProfile snapshot.");
+		if (dataIn.readInt() != VERSION)
+			return returnValue;
+		if (!String.valueOf(deploymentId).equals(dataIn.readUTF()))
+			return returnValue;
+		long now = System.currentTimeMillis();
+		long timestamp = dataIn.readLong();
+		if (now - timestamp > maxAge)
+			return returnValue;
+
+		int size = dataIn.readInt();
+		if (size < 0)
+			throw new IOException("Illegal profile count: " + size);
+		for (int a = 0; a < size; a++) {
+			int length = dataIn.readInt();
+			if (length < 0 || length > MAX_PROFILE_BYTES)
+				throw new IOException("Illegal profile length: " + length);
+			byte[] b = new byte[length];
+			dataIn.readFully(b);
+			try (ObjectInputStream objIn = new ObjectInputStream(
+					new ByteArrayInputStream(b))) {
+				TemplateQueryProfileKey key = (TemplateQueryProfileKey) objIn
+						.readObject();
+				TemplateQueryProfile profile = (TemplateQueryProfile) objIn
+						.readObject();
+				if (now - profile.getLastUsed() <= maxAge)
+					returnValue.put(key, profile);
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				// skip this profile
+			}
+		}
+		return returnValue;
+	}
+}
@@ -0,0 +1,162 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pump.util.Cache;
+import com.pump.util.Cache.CachePool;
+
+/**
+ * This DashCachePool is backed by a com.pump.util.Cache.CachePool.
+ * <p>
+ * This was Dash's original (and only) caching engine. Every cache shares the
+ * same CachePool, so every lookup from every thread passes through the same
+ * monitor.
+ */
+public class PumpCachePool implements DashCachePool {
+
+	/**
+	 * This DashCache delegates to a com.pump.util.Cache.
+	 * <p>
+	 * The CachePool may evict entries without telling us, so the keys we
+	 * track are only pruned when {@link #getKeys()} notices they're gone.
+	 * <p>
+	 * Writes are synchronized against this object, so
+	 * {@link #putIfAbsent(Object, Object)} and
+	 * {@link #replace(Object, Object, Object)} are atomic with respect to
+	 * other writes.
+	 */
+	static class PumpCache<K, V> implements DashCache<K, V> {
+		protected final Cache<K, V> cache;
+		protected final Set<K> keys = Collections
+				.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+
+		PumpCache(CachePool cachePool) {
+			cache = new Cache<>(cachePool);
+		}
+
+		@Override
+		public V get(K key) {
+			return cache.get(key);
+		}
+
+		/**
+		 * A com.pump.util.Cache has no way to read a value without touching
+		 * it, so this is the same as {@link #get(Object)}.
+		 */
+		@Override
+		public V peek(K key) {
+			return cache.get(key);
+		}
+
+		@Override
+		public synchronized V put(K key, V value) {
+			keys.add(key);
+			return cache.put(key, value);
+		}
+
+		@Override
+		public synchronized boolean replace(K key, V expectedValue,
+				V newValue) {
+			if (cache.get(key) != expectedValue || expectedValue == null)
+				return false;
+			put(key, newValue);
+			return true;
+		}
+
+		@Override
+		public synchronized V putIfAbsent(K key, V value) {
+			V existing = cache.get(key);
+			if (existing != null)
+				return existing;
+			put(key, value);
+			return null;
+		}
+
+		@Override
+		public synchronized V remove(K key) {
+			keys.remove(key);
+			return cache.remove(key);
+		}
+
+		@Override
+		public int size() {
+			return cache.size();
+		}
+
+		@Override
+		public void clear() {
+			keys.clear();
+			cache.clear();
+		}
+
+		@Override
+		public Collection<K> getKeys() {
+			List<K> returnValue = new ArrayList<>(keys.size());
+			Iterator<K> iter = keys.iterator();
+			while (iter.hasNext()) {
+				K key = iter.next();
+				if (cache.get(key) == null) {
+					iter.remove();
+				} else {
+					returnValue.add(key);
+				}
+			}
+			return returnValue;
+		}
+	}
+
+	protected final CachePool cachePool;
+
+	/**
+	 * Create a new PumpCachePool.
+	 *
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in the cache.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 */
+	public PumpCachePool(int maxCacheSize, long maxCacheDuration) {
+		this(new CachePool(maxCacheSize, maxCacheDuration, -1));
+	}
+
+	/**
+	 * Create a new PumpCachePool.
+	 *
+	 * @param cachePool
+	 *            the CachePool used to maintain all cached data.
+	 */
+	public PumpCachePool(CachePool cachePool) {
+		Objects.requireNonNull(cachePool);
+		this.cachePool = cachePool;
+	}
+
+	/**
+	 * Return the underlying CachePool.
+	 */
+	public CachePool getCachePool() {
+		return cachePool;
+	}
+
+	@Override
+	public <K, V> DashCache<K, V> createCache() {
+		return new PumpCache<>(cachePool);
+	}
+
+	@Override
+	public void clear() {
+		cachePool.clear();
+	}
+
+	@Override
+	public void purge() {
+		cachePool.purge();
+	}
+}
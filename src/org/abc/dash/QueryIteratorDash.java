@@ -1,9 +1,9 @@
 package org.abc.dash;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
@@ -63,6 +63,11 @@ public class QueryIteratorDash<T> extends QueryIterator<T> {
 	 */
 	protected int nextCounter = 0;
 
+	/**
+	 * The last element {@link #next()} returned.
+	 */
+	protected T lastReturned;
+
 	/**
 	 * Create an iterator that will walk through a collection of elements.
 	 * 
@@ -103,11 +108,26 @@ public class QueryIteratorDash<T> extends QueryIterator<T> {
 	public QueryIteratorDash(Dash dash, Collection<T> elements,
 			QueryIterator<T> queryIterator) {
 		Objects.requireNonNull(dash);
-		this.elements = elements == null ? new LinkedList<T>() : elements;
+		this.elements = createBuffer(elements);
 		this.queryIterator = queryIterator;
 		this.dash = dash;
 	}
 
+	/**
+	 * Return the collection we remove elements from as we iterate.
+	 * <p>
+	 * Removing the first element of an ArrayList is O(n), so Lists are
+	 * copied into an ArrayDeque. Other collections (such as a SortedSet that
+	 * merges incoming elements) are used as-is.
+	 */
+	private static <T> Collection<T> createBuffer(Collection<T> elements) {
+		if (elements == null)
+			return new ArrayDeque<>();
+		if (elements instanceof List && !elements.contains(null))
+			return new ArrayDeque<>(elements);
+		return elements;
+	}
+
 	/**
 	 * Add a CloseListener that will be notified when this iterator is closed.
 	 */
@@ -139,6 +159,7 @@ public class QueryIteratorDash<T> extends QueryIterator<T> {
 			queryIterator.close();
 		queryIterator = null;
 		elements.clear();
+		lastReturned = null;
 
 		for (CloseListener listener : closeListeners
 				.toArray(new CloseListener[closeListeners.size()])) {
@@ -177,6 +198,51 @@ public class QueryIteratorDash<T> extends QueryIterator<T> {
 		T returnValue = elementsIter.next();
 		elementsIter.remove();
 		nextCounter++;
+		lastReturned = returnValue;
+		return returnValue;
+	}
+
+	/**
+	 * Return the last element {@link #next()} returned, or null if
+	 * {@link #next()} hasn't been called yet.
+	 */
+	public T getLastReturned() {
+		return lastReturned;
+	}
+
+	/**
+	 * Return up to the next {@code count} elements this iterator will return,
+	 * without consuming them.
+	 * <p>
+	 * This may pull elements from the QueryIterator ahead of schedule, but
+	 * they are added to the collection of elements exactly as
+	 * {@link #next()} would add them, so this doesn't change what this
+	 * iterator returns.
+	 */
+	public List<T> peek(int count) {
+		if (isClosed())
+			return new ArrayList<>();
+
+		while (elements.size() < count && queryIterator != null) {
+			ThreadedBrokerIterator.checkInterruptNoYield();
+			if (queryIterator.hasNext()) {
+				T element = queryIterator.next();
+				if (element instanceof X2BaseBean)
+					dash.storeBean((X2BaseBean) element);
+				elements.add(element);
+			}
+			if (!queryIterator.hasNext()) {
+				queryIterator.close();
+				queryIterator = null;
+			}
+		}
+
+		List<T> returnValue = new ArrayList<>(Math.min(count,
+				elements.size()));
+		Iterator<T> iter = elements.iterator();
+		while (iter.hasNext() && returnValue.size() < count) {
+			returnValue.add(iter.next());
+		}
 		return returnValue;
 	}
 
@@ -0,0 +1,303 @@
+package org.abc.dash;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import org.abc.tools.ThreadedBrokerIterator;
+import org.apache.ojb.broker.PersistenceBroker;
+import org.apache.ojb.broker.query.Query;
+
+import com.follett.fsc.core.k12.beans.BeanManager.PersistenceKey;
+import com.follett.fsc.core.k12.beans.QueryIterator;
+import com.follett.fsc.core.k12.business.ModelBroker;
+import com.follett.fsc.core.k12.business.PrivilegeSet;
+import com.follett.fsc.core.k12.business.X2Broker;
+
+/**
+ * This QueryIterator reads ahead of its consumer: a helper thread pulls
+ * elements from another QueryIterator into a bounded ring buffer, so the
+ * time the database spends producing the next rows overlaps with the time
+ * the consumer spends processing the previous rows.
+ * <p>
+ * The helper thread runs the query on its own X2Broker (and therefore its
+ * own database connection), just like the helper threads of a
+ * {@link ThreadedBrokerIterator}. The consumer is free to keep using its
+ * broker for nested queries and lazy relationship loads while this reads
+ * ahead. The helper broker can't see the consumer's uncommitted writes,
+ * though, so this should not be used for a broker that has an open
+ * transaction.
+ * <p>
+ * The QueryIterator this reads from is created, consumed and closed only by
+ * the helper thread. The helper thread needs to be 100% sure it will exit,
+ * so it exits when:
+ * <ul>
+ * <li>The source QueryIterator is exhausted or throws an exception.</li>
+ * <li>{@link #close()} is called.</li>
+ * <li>This ReadAheadQueryIterator is garbage collected without being closed.
+ * The helper thread only keeps a WeakReference to this object, so this does
+ * not rely on finalization.</li>
+ * <li>The thread that created this iterator is no longer alive.</li>
+ * </ul>
+ * <p>
+ * Like other QueryIterators: this should only be consumed by one thread.
+ * Interrupting that thread causes {@link #hasNext()} and {@link #next()} to
+ * throw a CancellationException, just like
+ * {@link ThreadedBrokerIterator#checkInterruptNoYield()}.
+ */
+public class ReadAheadQueryIterator<T> extends QueryIterator<T> {
+
+	/**
+	 * The number of milliseconds the helper thread waits for space in the
+	 * buffer before it checks whether it should exit.
+	 */
+	protected static final long POLL_INTERVAL = 100;
+
+	/**
+	 * This is the state the helper thread and the consumer share. This must
+	 * not refer to the ReadAheadQueryIterator.
+	 */
+	static class Buffer {
+		final Object[] ring;
+		int head = 0;
+		int count = 0;
+		boolean exhausted = false;
+		boolean closed = false;
+		RuntimeException failure;
+
+		Buffer(int capacity) {
+			ring = new Object[capacity];
+		}
+	}
+
+	static class ReadAheadThread extends Thread {
+		final Thread masterThread;
+		final Callable<? extends QueryIterator<?>> sourceFactory;
+		final Buffer buffer;
+		final WeakReference<ReadAheadQueryIterator<?>> owner;
+
+		ReadAheadThread(Callable<? extends QueryIterator<?>> sourceFactory,
+				Buffer buffer, ReadAheadQueryIterator<?> owner) {
+			super(Thread.currentThread().getName() + "-read-ahead");
+			setDaemon(true);
+			masterThread = Thread.currentThread();
+			this.sourceFactory = sourceFactory;
+			this.buffer = buffer;
+			this.owner = new WeakReference<ReadAheadQueryIterator<?>>(owner);
+		}
+
+		/**
+		 * Return true if this thread should stop reading.
+		 */
+		private boolean isAbandoned() {
+			return buffer.closed || owner.get() == null
+					|| !masterThread.isAlive();
+		}
+
+		@Override
+		public void run() {
+			QueryIterator<?> source;
+			try {
+				source = sourceFactory.call();
+			} catch (Exception e) {
+				synchronized (buffer) {
+					buffer.failure = e instanceof RuntimeException ? (RuntimeException) e
+							: new RuntimeException(e);
+					buffer.exhausted = true;
+					buffer.notifyAll();
+				}
+				return;
+			}
+
+			try {
+				while (true) {
+					synchronized (buffer) {
+						while (buffer.count == buffer.ring.length) {
+							if (isAbandoned())
+								return;
+							buffer.wait(POLL_INTERVAL);
+						}
+						if (isAbandoned())
+							return;
+					}
+
+					if (!source.hasNext())
+						return;
+					Object element = source.next();
+
+					synchronized (buffer) {
+						int tail = (buffer.head + buffer.count)
+								% buffer.ring.length;
+						buffer.ring[tail] = element;
+						buffer.count++;
+						buffer.notifyAll();
+					}
+				}
+			} catch (RuntimeException e) {
+				synchronized (buffer) {
+					buffer.failure = e;
+				}
+			} catch (InterruptedException e) {
+				synchronized (buffer) {
+					buffer.failure = new CancellationException(
+							"The read-ahead thread was interrupted");
+				}
+			} finally {
+				try {
+					source.close();
+				} finally {
+					synchronized (buffer) {
+						buffer.exhausted = true;
+						buffer.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	protected final Buffer buffer;
+	protected final PersistenceKey persistenceKey;
+
+	/**
+	 * Create a ReadAheadQueryIterator and start its helper thread.
+	 *
+	 * @param privilegeSet
+	 *            the PrivilegeSet used to create the helper thread's
+	 *            ModelBroker.
+	 * @param query
+	 *            the query the helper thread's broker iterates over.
+	 * @param persistenceKey
+	 *            the PersistenceKey of the consumer's broker.
+	 * @param capacity
+	 *            the maximum number of elements to read ahead.
+	 */
+	public ReadAheadQueryIterator(PrivilegeSet privilegeSet, Query query,
+			PersistenceKey persistenceKey, int capacity) {
+		this(ReadAheadQueryIterator.<T> createBrokerQuery(privilegeSet, query),
+				persistenceKey, capacity);
+	}
+
+	/**
+	 * Return a Callable that runs a query on a new ModelBroker.
+	 */
+	private static <T> Callable<QueryIterator<T>> createBrokerQuery(
+			final PrivilegeSet privilegeSet, final Query query) {
+		Objects.requireNonNull(privilegeSet);
+		Objects.requireNonNull(query);
+		return new Callable<QueryIterator<T>>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public QueryIterator<T> call() {
+				X2Broker broker = new ModelBroker(privilegeSet);
+				return broker.getIteratorByQuery(query);
+			}
+		};
+	}
+
+	/**
+	 * Create a ReadAheadQueryIterator and start its helper thread.
+	 *
+	 * @param sourceFactory
+	 *            this is called on the helper thread to create the
+	 *            QueryIterator to read from. The iterator it returns must not
+	 *            be bound to a broker any other thread uses.
+	 * @param persistenceKey
+	 *            the PersistenceKey of the consumer's broker.
+	 * @param capacity
+	 *            the maximum number of elements to read ahead.
+	 */
+	protected ReadAheadQueryIterator(
+			Callable<? extends QueryIterator<T>> sourceFactory,
+			PersistenceKey persistenceKey, int capacity) {
+		Objects.requireNonNull(sourceFactory);
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity (" + capacity
+					+ ") must be at least 1");
+		this.persistenceKey = persistenceKey;
+		buffer = new Buffer(capacity);
+		new ReadAheadThread(sourceFactory, buffer, this).start();
+	}
+
+	/**
+	 * Wait until the buffer contains an element or the helper thread is
+	 * finished. This should only be called while synchronized against the
+	 * buffer.
+	 */
+	private void waitForElement() {
+		while (buffer.count == 0 && !buffer.exhausted && !buffer.closed) {
+			ThreadedBrokerIterator.checkInterruptNoYield();
+			try {
+				buffer.wait(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Stopped by interrupt check");
+			}
+		}
+		if (buffer.count == 0 && buffer.failure != null)
+			throw buffer.failure;
+	}
+
+	@Override
+	public boolean hasNext() {
+		synchronized (buffer) {
+			if (buffer.closed)
+				return false;
+			waitForElement();
+			return buffer.count > 0;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T next() {
+		ThreadedBrokerIterator.checkInterruptNoYield();
+		synchronized (buffer) {
+			if (buffer.closed)
+				throw new NoSuchElementException("This iterator is closed.");
+			waitForElement();
+			if (buffer.count == 0)
+				throw new NoSuchElementException();
+			T element = (T) buffer.ring[buffer.head];
+			buffer.ring[buffer.head] = null;
+			buffer.head = (buffer.head + 1) % buffer.ring.length;
+			buffer.count--;
+			buffer.notifyAll();
+			return element;
+		}
+	}
+
+	/**
+	 * Stop the helper thread. The helper thread closes the source iterator.
+	 */
+	@Override
+	public void close() {
+		synchronized (buffer) {
+			if (buffer.closed)
+				return;
+			buffer.closed = true;
+			for (int a = 0; a < buffer.ring.length; a++) {
+				buffer.ring[a] = null;
+			}
+			buffer.count = 0;
+			buffer.notifyAll();
+		}
+	}
+
+	@Override
+	protected Iterator<T> getIterator(PersistenceBroker arg0, Query arg1) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PersistenceKey getPersistenceKey() {
+		return persistenceKey;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
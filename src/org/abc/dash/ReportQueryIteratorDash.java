@@ -0,0 +1,169 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import org.abc.tools.ThreadedBrokerIterator;
+import org.apache.ojb.broker.PersistenceBroker;
+import org.apache.ojb.broker.query.Query;
+
+import com.follett.fsc.core.k12.beans.BeanManager.PersistenceKey;
+import com.follett.fsc.core.k12.beans.ReportQueryIterator;
+
+/**
+ * This iterates over a combination of pre-loaded rows and rows dynamically
+ * coming in from a live ReportQueryIterator.
+ * <p>
+ * This is the ReportQueryIterator counterpart to {@link QueryIteratorDash}.
+ * Every row this returns is a copy, so callers can't modify rows that Dash
+ * has cached.
+ * <p>
+ * This iterator is not thread-safe; it is assumed this will only be used on
+ * one thread.
+ */
+public class ReportQueryIteratorDash extends ReportQueryIterator {
+
+	/**
+	 * This is never null, although it may be empty.
+	 */
+	protected List<Object[]> rows;
+
+	protected boolean isClosed = false;
+	protected boolean frozenHasNext = false;
+
+	/**
+	 * This may always be null, or it may become null on exhaustion.
+	 */
+	protected ReportQueryIterator queryIterator;
+
+	protected Dash dash;
+	protected List<QueryIteratorDash.CloseListener> closeListeners = new ArrayList<>();
+
+	/**
+	 * The number of successful invocations of {@link #next()}.
+	 */
+	protected int nextCounter = 0;
+
+	/**
+	 * Create an iterator that will walk through a list of rows and then an
+	 * optional ReportQueryIterator.
+	 *
+	 * @param dash
+	 *            this is used to identify the persistence key.
+	 * @param rows
+	 *            an optional list of rows to walk through. This may be null.
+	 * @param queryIterator
+	 *            the optional ReportQueryIterator to walk through after the
+	 *            rows. This may be null.
+	 */
+	public ReportQueryIteratorDash(Dash dash, List<Object[]> rows,
+			ReportQueryIterator queryIterator) {
+		Objects.requireNonNull(dash);
+		this.rows = rows == null ? new LinkedList<Object[]>()
+				: new LinkedList<>(rows);
+		this.queryIterator = queryIterator;
+		this.dash = dash;
+	}
+
+	/**
+	 * Add a CloseListener that will be notified when this iterator is closed.
+	 */
+	public void addCloseListener(QueryIteratorDash.CloseListener l) {
+		closeListeners.add(l);
+	}
+
+	/**
+	 * Remove a CloseListener.
+	 */
+	public void removeCloseListener(QueryIteratorDash.CloseListener l) {
+		closeListeners.remove(l);
+	}
+
+	@Override
+	protected void finalize() {
+		close();
+	}
+
+	@Override
+	public void close() {
+		if (isClosed())
+			return;
+
+		frozenHasNext = hasNext();
+		isClosed = true;
+
+		if (queryIterator != null)
+			queryIterator.close();
+		queryIterator = null;
+		rows.clear();
+
+		for (QueryIteratorDash.CloseListener listener : closeListeners
+				.toArray(new QueryIteratorDash.CloseListener[closeListeners
+						.size()])) {
+			listener.closedIterator(nextCounter, frozenHasNext);
+		}
+	}
+
+	@Override
+	protected Iterator<Object[]> getIterator(PersistenceBroker arg0, Query arg1) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object[] next() {
+		ThreadedBrokerIterator.checkInterruptNoYield();
+		if (isClosed())
+			throw new NoSuchElementException("This iterator is closed.");
+
+		if (!rows.isEmpty()) {
+			Object[] row = rows.remove(0);
+			nextCounter++;
+			return row == null ? null : row.clone();
+		}
+
+		if (queryIterator != null && queryIterator.hasNext()) {
+			Object[] row = queryIterator.next();
+			if (!queryIterator.hasNext()) {
+				queryIterator.close();
+				queryIterator = null;
+			}
+			nextCounter++;
+			return row;
+		}
+
+		throw new NoSuchElementException();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (isClosed())
+			return frozenHasNext;
+
+		if (!rows.isEmpty())
+			return true;
+		if (queryIterator != null && queryIterator.hasNext())
+			return true;
+		return false;
+	}
+
+	@Override
+	public PersistenceKey getPersistenceKey() {
+		return dash.getPersistenceKey();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Return true if {@link #close()} has been called.
+	 */
+	public boolean isClosed() {
+		return isClosed;
+	}
+}
@@ -0,0 +1,353 @@
+package org.abc.dash;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.GreaterThan;
+import com.pump.data.operator.In;
+import com.pump.data.operator.LesserThan;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.OperatorContext;
+
+/**
+ * This evaluates several Operators against the same collection of beans in
+ * one pass.
+ * <p>
+ * After a query is split into several Operators (for example "A==1 || A==2 ||
+ * B>3") we want to know exactly which beans match each Operator. Calling
+ * {@link Operator#evaluate(OperatorContext, Object)} for every Operator and
+ * every bean reads the same attributes over and over again. Instead this
+ * groups the Operators by attribute, reads each attribute once per bean, and
+ * then:
+ * <ul>
+ * <li>Looks up EqualTo and In operators in a HashMap of values.</li>
+ * <li>Binary searches the sorted boundaries of GreaterThan and LesserThan
+ * operators.</li>
+ * <li>Evaluates all other Operators (such as an And, a Not or a Like) the
+ * usual way.</li>
+ * </ul>
+ * If an Operator can't be evaluated for a bean (because reading an attribute
+ * or evaluating the Operator throws an exception) then that Operator is
+ * excluded from the results, and the exception is passed to an
+ * UncaughtExceptionHandler.
+ */
+class SplitEvaluator {
+
+	/**
+	 * A GreaterThan or LesserThan operator.
+	 */
+	static class RangeTerm {
+		final int index;
+		final Comparable<?> bound;
+
+		RangeTerm(int index, Comparable<?> bound) {
+			this.index = index;
+			this.bound = bound;
+		}
+	}
+
+	private static final Comparator<RangeTerm> RANGE_COMPARATOR = new Comparator<RangeTerm>() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public int compare(RangeTerm o1, RangeTerm o2) {
+			return ((Comparable) o1.bound).compareTo(o2.bound);
+		}
+	};
+
+	/**
+	 * The Operators that test one attribute.
+	 */
+	static class AttributeTerms {
+		final String attribute;
+		final Map<Object, List<Integer>> equalTerms = new HashMap<>();
+		List<RangeTerm> greaterThanTerms = new ArrayList<>();
+		List<RangeTerm> lesserThanTerms = new ArrayList<>();
+
+		AttributeTerms(String attribute) {
+			this.attribute = attribute;
+		}
+
+		void addEqualTerm(Object value, int index) {
+			List<Integer> indices = equalTerms.get(value);
+			if (indices == null) {
+				indices = new ArrayList<>(1);
+				equalTerms.put(value, indices);
+			}
+			indices.add(index);
+		}
+
+		List<Integer> getIndices() {
+			List<Integer> returnValue = new ArrayList<>();
+			for (List<Integer> indices : equalTerms.values()) {
+				returnValue.addAll(indices);
+			}
+			for (RangeTerm term : greaterThanTerms) {
+				returnValue.add(term.index);
+			}
+			for (RangeTerm term : lesserThanTerms) {
+				returnValue.add(term.index);
+			}
+			return returnValue;
+		}
+	}
+
+	protected final OperatorContext context;
+	protected final Operator[] operators;
+	protected final Map<String, AttributeTerms> termsByAttribute = new LinkedHashMap<>();
+	protected final List<Integer> genericTerms = new ArrayList<>();
+
+	/**
+	 * @param context
+	 *            the context used to read attributes and evaluate Operators.
+	 * @param operators
+	 *            the Operators to evaluate.
+	 */
+	SplitEvaluator(OperatorContext context, Collection<Operator> operators) {
+		this.context = context;
+		this.operators = operators.toArray(new Operator[operators.size()]);
+		for (int a = 0; a < this.operators.length; a++) {
+			addTerm(a);
+		}
+
+		for (AttributeTerms terms : termsByAttribute.values()) {
+			terms.greaterThanTerms = sort(terms.greaterThanTerms);
+			terms.lesserThanTerms = sort(terms.lesserThanTerms);
+		}
+	}
+
+	private void addTerm(int index) {
+		Operator op = operators[index];
+		if (op instanceof EqualTo) {
+			EqualTo e = (EqualTo) op;
+			if (isHashable(e.getValue())) {
+				getTerms(e.getAttribute()).addEqualTerm(e.getValue(), index);
+				return;
+			}
+		} else if (op instanceof In) {
+			In in = (In) op;
+			Set<?> values = in.getValue();
+			boolean hashable = true;
+			for (Object value : values) {
+				hashable = hashable && isHashable(value);
+			}
+			if (hashable) {
+				AttributeTerms terms = getTerms(in.getAttribute());
+				for (Object value : values) {
+					terms.addEqualTerm(value, index);
+				}
+				return;
+			}
+		} else if (op instanceof GreaterThan) {
+			GreaterThan g = (GreaterThan) op;
+			if (g.getValue() != null) {
+				getTerms(g.getAttribute()).greaterThanTerms.add(new RangeTerm(
+						index, g.getValue()));
+				return;
+			}
+		} else if (op instanceof LesserThan) {
+			LesserThan l = (LesserThan) op;
+			if (l.getValue() != null) {
+				getTerms(l.getAttribute()).lesserThanTerms.add(new RangeTerm(
+						index, l.getValue()));
+				return;
+			}
+		}
+		genericTerms.add(index);
+	}
+
+	/**
+	 * Sort range terms by their boundaries. If the boundaries can't be
+	 * compared to each other then those terms are evaluated the usual way.
+	 */
+	private List<RangeTerm> sort(List<RangeTerm> terms) {
+		try {
+			Collections.sort(terms, RANGE_COMPARATOR);
+			return terms;
+		} catch (RuntimeException e) {
+			for (RangeTerm term : terms) {
+				genericTerms.add(term.index);
+			}
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Return true if we can look up a value in a HashMap. We only do this for
+	 * simple immutable types where equals() agrees with compareTo().
+	 */
+	private static boolean isHashable(Object value) {
+		return value == null || value instanceof String
+				|| value instanceof Boolean || value instanceof Integer
+				|| value instanceof Long || value instanceof Short
+				|| value instanceof Byte || value instanceof Character;
+	}
+
+	private AttributeTerms getTerms(String attribute) {
+		AttributeTerms terms = termsByAttribute.get(attribute);
+		if (terms == null) {
+			terms = new AttributeTerms(attribute);
+			termsByAttribute.put(attribute, terms);
+		}
+		return terms;
+	}
+
+	/**
+	 * Return the oids of the beans that match each Operator.
+	 *
+	 * @param beans
+	 *            the beans to evaluate.
+	 * @param ueh
+	 *            the handler notified when an Operator can't be evaluated.
+	 * @return a map of every Operator that could be evaluated for every bean
+	 *         to the oids of the beans it matches (in the order the beans
+	 *         were provided).
+	 */
+	@SuppressWarnings("unchecked")
+	Map<Operator, List<String>> evaluate(Collection<X2BaseBean> beans,
+			UncaughtExceptionHandler ueh) {
+		List<String>[] oids = new List[operators.length];
+		for (int a = 0; a < oids.length; a++) {
+			oids[a] = new LinkedList<>();
+		}
+		boolean[] failed = new boolean[operators.length];
+
+		for (X2BaseBean bean : beans) {
+			for (AttributeTerms terms : termsByAttribute.values()) {
+				Object value;
+				try {
+					value = context.getValue(bean, terms.attribute);
+				} catch (Exception e) {
+					for (int index : terms.getIndices()) {
+						fail(index, bean, e, failed, ueh);
+					}
+					continue;
+				}
+
+				List<Integer> equalIndices = terms.equalTerms.get(value);
+				if (equalIndices != null) {
+					for (int index : equalIndices) {
+						oids[index].add(bean.getOid());
+					}
+				}
+
+				if (!terms.greaterThanTerms.isEmpty()
+						|| !terms.lesserThanTerms.isEmpty()) {
+					try {
+						evaluateRanges(terms, value, bean, oids);
+					} catch (RuntimeException e) {
+						// the value isn't comparable to our boundaries, so
+						// evaluate each term separately
+						for (RangeTerm term : terms.greaterThanTerms) {
+							evaluate(term.index, bean, oids, failed, ueh);
+						}
+						for (RangeTerm term : terms.lesserThanTerms) {
+							evaluate(term.index, bean, oids, failed, ueh);
+						}
+					}
+				}
+			}
+
+			for (int index : genericTerms) {
+				evaluate(index, bean, oids, failed, ueh);
+			}
+		}
+
+		Map<Operator, List<String>> returnValue = new LinkedHashMap<>();
+		for (int a = 0; a < operators.length; a++) {
+			if (!failed[a])
+				returnValue.put(operators[a], oids[a]);
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Identify the GreaterThan and LesserThan terms a value matches.
+	 * <p>
+	 * The boundaries are sorted in ascending order, so a value is greater
+	 * than a prefix of the GreaterThan boundaries, and it is less than a
+	 * suffix of the LesserThan boundaries.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void evaluateRanges(AttributeTerms terms, Object value,
+			X2BaseBean bean, List<String>[] oids) {
+		if (value == null)
+			throw new NullPointerException();
+		Comparable c = (Comparable) value;
+
+		// find the number of boundaries that are less than the value
+		int low = 0;
+		int high = terms.greaterThanTerms.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (c.compareTo(terms.greaterThanTerms.get(mid).bound) > 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int greaterThanMatches = low;
+
+		// find the first boundary that is greater than the value
+		low = 0;
+		high = terms.lesserThanTerms.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (c.compareTo(terms.lesserThanTerms.get(mid).bound) < 0) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		int firstLesserThanMatch = low;
+
+		for (int a = 0; a < greaterThanMatches; a++) {
+			oids[terms.greaterThanTerms.get(a).index].add(bean.getOid());
+		}
+		for (int a = firstLesserThanMatch; a < terms.lesserThanTerms.size(); a++) {
+			oids[terms.lesserThanTerms.get(a).index].add(bean.getOid());
+		}
+	}
+
+	private void evaluate(int index, X2BaseBean bean, List<String>[] oids,
+			boolean[] failed, UncaughtExceptionHandler ueh) {
+		if (failed[index])
+			return;
+		try {
+			if (operators[index].evaluate(context, bean))
+				oids[index].add(bean.getOid());
+		} catch (Exception e) {
+			fail(index, bean, e, failed, ueh);
+		}
+	}
+
+	private void fail(int index, X2BaseBean bean, Exception e,
+			boolean[] failed, UncaughtExceptionHandler ueh) {
+		if (failed[index])
+			return;
+		failed[index] = true;
+		if (ueh != null) {
+			Exception e2 = new Exception("An error occurred evaluating \""
+					+ operators[index] + "\" on \"" + bean + "\"", e);
+			ueh.uncaughtException(Thread.currentThread(), e2);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SplitEvaluator[ attributes=" + termsByAttribute.keySet()
+				+ ", generic=" + genericTerms.size() + ", operators="
+				+ Arrays.asList(operators) + "]";
+	}
+}
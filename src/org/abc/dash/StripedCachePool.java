@@ -0,0 +1,661 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This DashCachePool is designed for several threads that share the same Dash.
+ * <p>
+ * Each DashCache this pool creates is backed by a ConcurrentHashMap, so
+ * {@link DashCache#get(Object)} never acquires a lock. Writes are striped
+ * across several segments (based on the key's hash code), so two threads only
+ * contend with each other if they write keys that belong to the same segment.
+ * <p>
+ * Each segment keeps its entries in insertion order. When this pool exceeds
+ * its maximum size we sample a few segments (from all the caches this pool
+ * created) and evict the oldest entry we find. Reading an entry marks it as
+ * referenced, and a referenced entry gets a "second chance": instead of being
+ * evicted it is moved to the end of its segment. So this approximates a
+ * least-recently-used policy without reordering anything on reads.
+ * <p>
+ * Like the com.pump.util.Cache.CachePool: every entry also expires after a
+ * fixed duration.
+ * <p>
+ * Optionally this pool can also enforce a budget of estimated bytes (see
+ * {@link #StripedCachePool(int, long, int, long, CacheWeigher)}). Each entry is
+ * charged the weight a {@link CacheWeigher} estimates when it is stored, and
+ * entries are evicted (using the same policy) until the total weight of all
+ * the caches this pool created is within that budget.
+ */
+public class StripedCachePool implements DashCachePool {
+
+	/**
+	 * The default number of segments each cache is divided into.
+	 */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	/**
+	 * The number of segments we sample when we need to evict an entry.
+	 */
+	protected static final int EVICTION_SAMPLE_SIZE = 4;
+
+	/**
+	 * This is notified when an entry is evicted because this pool exceeded
+	 * its budget of estimated bytes.
+	 */
+	public interface BudgetListener {
+		/**
+		 * This is called after an entry is evicted (or rejected, if it
+		 * alone exceeds the budget).
+		 *
+		 * @param weight
+		 *            the estimated number of bytes the entry used.
+		 */
+		public void evictedOverBudget(Object key, Object value, long weight);
+	}
+
+	static class Entry<K, V> {
+		final K key;
+		final V value;
+		final long creationTime;
+		final long weight;
+		volatile long lastAccess;
+		volatile boolean referenced = false;
+
+		Entry(K key, V value, long creationTime, long weight) {
+			this.key = key;
+			this.value = value;
+			this.creationTime = creationTime;
+			this.lastAccess = creationTime;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A segment guards writes to a subset of a StripedCache's keys, and it
+	 * keeps track of the order those keys were added in.
+	 */
+	static class Segment<K, V> extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		final StripedCache<K, V> cache;
+
+		/**
+		 * The entries in this segment, from oldest to newest. This should only
+		 * be accessed while this lock is held.
+		 */
+		final LinkedHashMap<K, Entry<K, V>> order = new LinkedHashMap<>();
+
+		Segment(StripedCache<K, V> cache) {
+			this.cache = cache;
+		}
+
+		/**
+		 * Give referenced entries at the head of this segment a second chance,
+		 * and return the first unreferenced entry (or null if this segment is
+		 * empty). This should only be called while this lock is held.
+		 */
+		Entry<K, V> advanceClock() {
+			int ctr = order.size();
+			while (ctr > 0) {
+				Iterator<Entry<K, V>> iter = order.values().iterator();
+				if (!iter.hasNext())
+					return null;
+				Entry<K, V> head = iter.next();
+				if (!head.referenced)
+					return head;
+				head.referenced = false;
+				iter.remove();
+				order.put(head.key, head);
+				ctr--;
+			}
+			// everything was referenced, so now the original head is back at
+			// the head (and it is no longer referenced)
+			Iterator<Entry<K, V>> iter = order.values().iterator();
+			return iter.hasNext() ? iter.next() : null;
+		}
+	}
+
+	class StripedCache<K, V> implements DashCache<K, V> {
+		final ConcurrentHashMap<K, Entry<K, V>> map;
+		final Segment<K, V>[] segments;
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		StripedCache() {
+			map = new ConcurrentHashMap<>(16, .75f, concurrencyLevel);
+			segments = new Segment[concurrencyLevel];
+			for (int a = 0; a < segments.length; a++) {
+				segments[a] = new Segment<>(this);
+			}
+		}
+
+		Segment<K, V> getSegment(Object key) {
+			int h = key.hashCode();
+			h ^= (h >>> 16);
+			return segments[(h & 0x7fffffff) % segments.length];
+		}
+
+		@Override
+		public V get(K key) {
+			if (key == null)
+				return null;
+			Entry<K, V> entry = map.get(key);
+			if (entry == null)
+				return null;
+			long now = System.currentTimeMillis();
+			if (isExpired(entry, now)) {
+				remove(entry);
+				return null;
+			}
+			entry.lastAccess = now;
+			entry.referenced = true;
+			return entry.value;
+		}
+
+		@Override
+		public V peek(K key) {
+			if (key == null)
+				return null;
+			Entry<K, V> entry = map.get(key);
+			if (entry == null
+					|| isExpired(entry, System.currentTimeMillis()))
+				return null;
+			return entry.value;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			return put(key, value, false);
+		}
+
+		@Override
+		public boolean replace(K key, V expectedValue, V newValue) {
+			Objects.requireNonNull(key);
+			Objects.requireNonNull(newValue);
+
+			long now = System.currentTimeMillis();
+			long entryWeight = weigher == null ? 0 : weigher.getWeight(key,
+					newValue);
+			Segment<K, V> segment = getSegment(key);
+			segment.lock();
+			try {
+				Entry<K, V> oldEntry = map.get(key);
+				if (oldEntry == null || oldEntry.value != expectedValue
+						|| isExpired(oldEntry, now))
+					return false;
+				if (entryWeight > maxWeight) {
+					map.remove(key);
+					segment.order.remove(key);
+					size.decrementAndGet();
+					weight.addAndGet(-oldEntry.weight);
+				} else {
+					Entry<K, V> newEntry = new Entry<>(key, newValue, now,
+							entryWeight);
+					map.put(key, newEntry);
+					segment.order.remove(key);
+					segment.order.put(key, newEntry);
+					weight.addAndGet(entryWeight - oldEntry.weight);
+				}
+			} finally {
+				segment.unlock();
+			}
+
+			if (entryWeight > maxWeight) {
+				budgetEvictionCount.incrementAndGet();
+				fireEvictedOverBudget(key, newValue, entryWeight);
+				return false;
+			}
+			evictIfNecessary();
+			return true;
+		}
+
+		@Override
+		public V putIfAbsent(K key, V value) {
+			return put(key, value, true);
+		}
+
+		private V put(K key, V value, boolean onlyIfAbsent) {
+			Objects.requireNonNull(key);
+			Objects.requireNonNull(value);
+
+			long now = System.currentTimeMillis();
+			long entryWeight = weigher == null ? 0 : weigher.getWeight(key,
+					value);
+			if (entryWeight > maxWeight) {
+				// storing this entry would evict everything else. (The old
+				// value is stale, so it is removed.)
+				V oldValue = onlyIfAbsent ? get(key) : remove(key);
+				budgetEvictionCount.incrementAndGet();
+				fireEvictedOverBudget(key, value, entryWeight);
+				return oldValue;
+			}
+
+			Segment<K, V> segment = getSegment(key);
+			Entry<K, V> oldEntry;
+			segment.lock();
+			try {
+				oldEntry = map.get(key);
+				if (oldEntry != null && isExpired(oldEntry, now)) {
+					map.remove(key);
+					segment.order.remove(key);
+					size.decrementAndGet();
+					weight.addAndGet(-oldEntry.weight);
+					oldEntry = null;
+				}
+				if (onlyIfAbsent && oldEntry != null)
+					return oldEntry.value;
+
+				Entry<K, V> newEntry = new Entry<>(key, value, now, entryWeight);
+				map.put(key, newEntry);
+				segment.order.remove(key);
+				segment.order.put(key, newEntry);
+				weight.addAndGet(entryWeight);
+				if (oldEntry == null) {
+					size.incrementAndGet();
+				} else {
+					weight.addAndGet(-oldEntry.weight);
+				}
+			} finally {
+				segment.unlock();
+			}
+
+			evictIfNecessary();
+			if (onlyIfAbsent)
+				return null;
+			return oldEntry == null ? null : oldEntry.value;
+		}
+
+		@Override
+		public V remove(K key) {
+			if (key == null)
+				return null;
+			Segment<K, V> segment = getSegment(key);
+			segment.lock();
+			try {
+				Entry<K, V> entry = map.remove(key);
+				if (entry == null)
+					return null;
+				segment.order.remove(key);
+				size.decrementAndGet();
+				weight.addAndGet(-entry.weight);
+				return entry.value;
+			} finally {
+				segment.unlock();
+			}
+		}
+
+		/**
+		 * Remove a specific entry, if it is still mapped to its key.
+		 */
+		boolean remove(Entry<K, V> entry) {
+			Segment<K, V> segment = getSegment(entry.key);
+			segment.lock();
+			try {
+				if (!map.remove(entry.key, entry))
+					return false;
+				segment.order.remove(entry.key);
+				size.decrementAndGet();
+				weight.addAndGet(-entry.weight);
+				return true;
+			} finally {
+				segment.unlock();
+			}
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public Collection<K> getKeys() {
+			return new ArrayList<>(map.keySet());
+		}
+
+		@Override
+		public void clear() {
+			for (Segment<K, V> segment : segments) {
+				segment.lock();
+				try {
+					for (Entry<K, V> entry : segment.order.values()) {
+						map.remove(entry.key);
+						weight.addAndGet(-entry.weight);
+					}
+					size.addAndGet(-segment.order.size());
+					segment.order.clear();
+				} finally {
+					segment.unlock();
+				}
+			}
+		}
+
+		/**
+		 * Remove all expired entries from this cache.
+		 */
+		void purge(long now) {
+			for (Segment<K, V> segment : segments) {
+				segment.lock();
+				try {
+					Iterator<Entry<K, V>> iter = segment.order.values()
+							.iterator();
+					while (iter.hasNext()) {
+						Entry<K, V> entry = iter.next();
+						if (isExpired(entry, now)) {
+							iter.remove();
+							map.remove(entry.key, entry);
+							size.decrementAndGet();
+							weight.addAndGet(-entry.weight);
+						}
+					}
+				} finally {
+					segment.unlock();
+				}
+			}
+		}
+	}
+
+	protected final int maxCacheSize;
+	protected final long maxCacheDuration;
+	protected final int concurrencyLevel;
+	protected final long maxWeight;
+	protected final CacheWeigher weigher;
+
+	/**
+	 * The total number of entries across all the caches this pool created.
+	 */
+	protected final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * The total estimated weight of all the entries across all the caches
+	 * this pool created. This is always zero if this pool has no weigher.
+	 */
+	protected final AtomicLong weight = new AtomicLong(0);
+
+	/**
+	 * The number of entries that were evicted (or rejected) because this
+	 * pool exceeded its maximum weight.
+	 */
+	protected final AtomicLong budgetEvictionCount = new AtomicLong(0);
+
+	protected final List<BudgetListener> budgetListeners = new CopyOnWriteArrayList<>();
+
+	protected final List<StripedCache<?, ?>> caches = new CopyOnWriteArrayList<>();
+	protected final List<Segment<?, ?>> segments = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Create a new StripedCachePool.
+	 *
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in all the
+	 *            caches this pool creates.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 */
+	public StripedCachePool(int maxCacheSize, long maxCacheDuration) {
+		this(maxCacheSize, maxCacheDuration, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Create a new StripedCachePool.
+	 *
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in all the
+	 *            caches this pool creates.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 * @param concurrencyLevel
+	 *            the number of segments each cache is divided into. This
+	 *            should resemble the number of threads you expect to write to
+	 *            the same cache at the same time.
+	 */
+	public StripedCachePool(int maxCacheSize, long maxCacheDuration,
+			int concurrencyLevel) {
+		this(maxCacheSize, maxCacheDuration, concurrencyLevel,
+				Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Create a new StripedCachePool that is bounded by a fraction of the
+	 * maximum heap size, using a {@link DashCacheWeigher}.
+	 *
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in all the
+	 *            caches this pool creates.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 * @param heapFraction
+	 *            the fraction of {@link Runtime#maxMemory()} the entries may
+	 *            use, such as .05 for 5%.
+	 */
+	public StripedCachePool(int maxCacheSize, long maxCacheDuration,
+			double heapFraction) {
+		this(maxCacheSize, maxCacheDuration, DEFAULT_CONCURRENCY_LEVEL,
+				(long) (Runtime.getRuntime().maxMemory() * heapFraction),
+				new DashCacheWeigher());
+	}
+
+	/**
+	 * Create a new StripedCachePool.
+	 *
+	 * @param maxCacheSize
+	 *            the maximum number of elements that can exist in all the
+	 *            caches this pool creates.
+	 * @param maxCacheDuration
+	 *            the maximum duration (in milliseconds) any entry can exist in
+	 *            the cache.
+	 * @param concurrencyLevel
+	 *            the number of segments each cache is divided into.
+	 * @param maxWeight
+	 *            the maximum estimated number of bytes all the entries in all
+	 *            the caches this pool creates can use.
+	 * @param weigher
+	 *            the object that estimates the weight of each entry. If this
+	 *            is null then entries are not weighed, and maxWeight is
+	 *            ignored.
+	 */
+	public StripedCachePool(int maxCacheSize, long maxCacheDuration,
+			int concurrencyLevel, long maxWeight, CacheWeigher weigher) {
+		if (maxCacheSize <= 0)
+			throw new IllegalArgumentException("maxCacheSize (" + maxCacheSize
+					+ ") must be positive");
+		if (maxCacheDuration <= 0)
+			throw new IllegalArgumentException("maxCacheDuration ("
+					+ maxCacheDuration + ") must be positive");
+		if (concurrencyLevel <= 0)
+			throw new IllegalArgumentException("concurrencyLevel ("
+					+ concurrencyLevel + ") must be positive");
+		if (weigher != null && maxWeight <= 0)
+			throw new IllegalArgumentException("maxWeight (" + maxWeight
+					+ ") must be positive");
+		this.maxCacheSize = maxCacheSize;
+		this.maxCacheDuration = maxCacheDuration;
+		this.concurrencyLevel = concurrencyLevel;
+		this.weigher = weigher;
+		this.maxWeight = weigher == null ? Long.MAX_VALUE : maxWeight;
+	}
+
+	/**
+	 * Add a listener that is notified when entries are evicted because this
+	 * pool exceeded its maximum weight.
+	 */
+	public void addBudgetListener(BudgetListener l) {
+		Objects.requireNonNull(l);
+		budgetListeners.add(l);
+	}
+
+	public void removeBudgetListener(BudgetListener l) {
+		budgetListeners.remove(l);
+	}
+
+	protected void fireEvictedOverBudget(Object key, Object value,
+			long entryWeight) {
+		for (BudgetListener l : budgetListeners) {
+			l.evictedOverBudget(key, value, entryWeight);
+		}
+	}
+
+	@Override
+	public <K, V> DashCache<K, V> createCache() {
+		StripedCache<K, V> cache = new StripedCache<>();
+		caches.add(cache);
+		for (Segment<K, V> segment : cache.segments) {
+			segments.add(segment);
+		}
+		return cache;
+	}
+
+	/**
+	 * Return the total number of entries across all the caches this pool
+	 * created.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Return the maximum number of entries across all the caches this pool
+	 * created.
+	 */
+	public int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * Return the maximum duration (in milliseconds) any entry can exist in the
+	 * cache.
+	 */
+	public long getMaxCacheDuration() {
+		return maxCacheDuration;
+	}
+
+	/**
+	 * Return the total estimated weight (in bytes) of the entries across all
+	 * the caches this pool created, or zero if this pool has no weigher.
+	 */
+	public long getWeight() {
+		return weight.get();
+	}
+
+	/**
+	 * Return the maximum total weight of all the entries, or Long.MAX_VALUE
+	 * if this pool has no weigher.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Return the number of entries that were evicted (or rejected) because
+	 * this pool exceeded its maximum weight.
+	 */
+	public long getBudgetEvictionCount() {
+		return budgetEvictionCount.get();
+	}
+
+	/**
+	 * Remove all entries from all the caches this pool created. The caches
+	 * remain registered with this pool, so callers can keep using them.
+	 */
+	@Override
+	public void clear() {
+		for (StripedCache<?, ?> cache : caches) {
+			cache.clear();
+		}
+	}
+
+	@Override
+	public void purge() {
+		long now = System.currentTimeMillis();
+		for (StripedCache<?, ?> cache : caches) {
+			cache.purge(now);
+		}
+	}
+
+	protected boolean isExpired(Entry<?, ?> entry, long now) {
+		return now - entry.creationTime > maxCacheDuration;
+	}
+
+	/**
+	 * Evict entries until this pool is no larger than its maximum size.
+	 */
+	protected void evictIfNecessary() {
+		while (true) {
+			boolean overSize = size.get() > maxCacheSize;
+			boolean overBudget = weight.get() > maxWeight;
+			if (!overSize && !overBudget)
+				return;
+			Entry<?, ?> evicted = evictOne();
+			if (evicted == null)
+				return;
+			if (!overSize) {
+				budgetEvictionCount.incrementAndGet();
+				fireEvictedOverBudget(evicted.key, evicted.value,
+						evicted.weight);
+			}
+		}
+	}
+
+	/**
+	 * Sample a few segments and evict the least recently used entry we find.
+	 *
+	 * @return the entry that was evicted, or null.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Entry<?, ?> evictOne() {
+		Object[] allSegments = segments.toArray();
+		if (allSegments.length == 0)
+			return null;
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<Segment> samples = new ArrayList<>(EVICTION_SAMPLE_SIZE);
+		int start = random.nextInt(allSegments.length);
+		for (int a = 0; a < allSegments.length
+				&& samples.size() < EVICTION_SAMPLE_SIZE; a++) {
+			Segment s = (Segment) allSegments[(start + a) % allSegments.length];
+			if (!s.order.isEmpty())
+				samples.add(s);
+		}
+
+		Entry victim = null;
+		Segment victimSegment = null;
+		for (Segment s : samples) {
+			s.lock();
+			try {
+				Entry head = s.advanceClock();
+				if (head != null
+						&& (victim == null || head.lastAccess < victim.lastAccess)) {
+					victim = head;
+					victimSegment = s;
+				}
+			} finally {
+				s.unlock();
+			}
+		}
+
+		if (victim == null)
+			return null;
+		victimSegment.cache.remove(victim);
+		return victim;
+	}
+
+	@Override
+	public String toString() {
+		return "StripedCachePool[ size=" + size() + ", maxCacheSize="
+				+ maxCacheSize + ", weight=" + getWeight() + ", maxWeight="
+				+ maxWeight + ", maxCacheDuration=" + maxCacheDuration
+				+ ", concurrencyLevel=" + concurrencyLevel + "]";
+	}
+}
@@ -0,0 +1,128 @@
+package org.abc.dash;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+
+import org.apache.ojb.broker.query.ReportQueryByCriteria;
+
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.OperatorContext;
+
+/**
+ * This Operator represents "attribute IN (subquery)", where the subquery is a
+ * column query (such as a SubQuery) that returns one column.
+ * <p>
+ * This Operator can't be evaluated by itself: Dash resolves it by running (or
+ * uncaching) the subquery, and then replaces it with an In operator that
+ * contains the subquery's values. See
+ * {@link Dash#resolveSubQueries(com.follett.fsc.core.k12.business.X2Broker, Operator)}
+ * .
+ */
+public class SubQueryIn extends Operator {
+	private static final long serialVersionUID = 1L;
+
+	protected final String attribute;
+	protected final ReportQueryByCriteria subQuery;
+
+	public SubQueryIn(String attribute, ReportQueryByCriteria subQuery) {
+		Objects.requireNonNull(attribute);
+		Objects.requireNonNull(subQuery);
+		this.attribute = attribute;
+		this.subQuery = subQuery;
+	}
+
+	/**
+	 * Create a template that represents "attribute IN (?)".
+	 */
+	private SubQueryIn(String attribute) {
+		Objects.requireNonNull(attribute);
+		this.attribute = attribute;
+		this.subQuery = null;
+	}
+
+	public String getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * Return the subquery, or null if this is a template.
+	 */
+	public ReportQueryByCriteria getSubQuery() {
+		return subQuery;
+	}
+
+	/**
+	 * This always throws an UnsupportedOperationException, because this
+	 * Operator has to be resolved before it can be evaluated.
+	 */
+	@Override
+	public boolean evaluate(OperatorContext context, Object bean)
+			throws Exception {
+		throw new UnsupportedOperationException(
+				"This operator must be resolved before it is evaluated: "
+						+ this);
+	}
+
+	@Override
+	public int getOperandCount() {
+		return 2;
+	}
+
+	@Override
+	public Object getOperand(int index) {
+		switch (index) {
+		case 0:
+			return attribute;
+		case 1:
+			return subQuery;
+		}
+		throw new IndexOutOfBoundsException("index = " + index);
+	}
+
+	@Override
+	public Collection<String> getAttributes() {
+		return Collections.singleton(attribute);
+	}
+
+	/**
+	 * Return "attribute IN (?)". The template doesn't refer to the subquery,
+	 * so every query that uses the same kind of subquery shares the same
+	 * TemplateQueryProfile.
+	 */
+	@Override
+	public Operator getTemplateOperator() {
+		if (subQuery == null)
+			return this;
+		return new SubQueryIn(attribute);
+	}
+
+	@Override
+	public Collection<Operator> split() {
+		return Collections.<Operator> singleton(this);
+	}
+
+	@Override
+	public String toString(boolean useClassNames) {
+		return attribute + " IN (" + (subQuery == null ? "?" : subQuery) + ")";
+	}
+
+	@Override
+	public String toString() {
+		return toString(false);
+	}
+
+	@Override
+	public int hashCode() {
+		return attribute.hashCode() + 31 * Objects.hashCode(subQuery);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SubQueryIn))
+			return false;
+		SubQueryIn other = (SubQueryIn) obj;
+		return attribute.equals(other.attribute)
+				&& Objects.equals(subQuery, other.subQuery);
+	}
+}
@@ -0,0 +1,232 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.abc.util.OrderByComparator;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.pump.data.operator.Operator;
+
+/**
+ * This records the beans one BrokerDash saved or deleted during a
+ * transaction.
+ * <p>
+ * The shared Dash caches are used by several threads, so they should never
+ * see uncommitted changes. While a transaction is open the BrokerDash records
+ * its writes here instead of applying them to the Dash. Queries for bean types
+ * this overlay has not touched are answered by the Dash as usual, and queries
+ * for bean types this overlay has touched are answered by the Dash's cached
+ * results patched with {@link #patch(Class, Operator, OrderByComparator, List)}.
+ * <p>
+ * When the transaction is committed these writes are applied to the Dash (see
+ * {@link #commit(Dash)}), and when it is rolled back they are discarded (see
+ * {@link #rollback(Dash)}).
+ * <p>
+ * Like all brokers: this object is not thread-safe; it should only be used on
+ * one thread at a time.
+ */
+class TransactionOverlay {
+
+	/**
+	 * The beans that were saved (or deleted) by bean type and oid. A deleted
+	 * bean is represented as a null value.
+	 */
+	protected final Map<Class<?>, Map<String, X2BaseBean>> beansByType = new LinkedHashMap<>();
+
+	/**
+	 * The bean types that were modified by an InsertQuery, an UpdateQuery or
+	 * a delete query. We don't know which beans those queries affected.
+	 */
+	protected final Set<Class<?>> modifiedBeanTypes = new HashSet<>();
+
+	/**
+	 * The number of times beginTransaction() was called without a matching
+	 * commit.
+	 */
+	protected int depth = 1;
+
+	/**
+	 * Record that a bean was saved.
+	 */
+	void saveBean(X2BaseBean bean) {
+		if (bean.getOid() == null) {
+			modifiedBeanTypes.add(bean.getClass());
+			return;
+		}
+		getBeans(bean.getClass()).put(bean.getOid(), bean);
+	}
+
+	/**
+	 * Record that a bean was deleted.
+	 */
+	void deleteBean(Class<?> beanType, String beanOid) {
+		if (beanOid == null) {
+			modifiedBeanTypes.add(beanType);
+			return;
+		}
+		getBeans(beanType).put(beanOid, null);
+	}
+
+	/**
+	 * Record that an unknown set of beans of a given type was modified.
+	 */
+	void modifyBeanType(Class<?> beanType) {
+		modifiedBeanTypes.add(beanType);
+	}
+
+	private Map<String, X2BaseBean> getBeans(Class<?> beanType) {
+		Map<String, X2BaseBean> beans = beansByType.get(beanType);
+		if (beans == null) {
+			beans = new LinkedHashMap<>();
+			beansByType.put(beanType, beans);
+		}
+		return beans;
+	}
+
+	/**
+	 * Return true if this overlay modified any beans of a given type.
+	 */
+	boolean isModified(Class<?> beanType) {
+		return modifiedBeanTypes.contains(beanType)
+				|| beansByType.containsKey(beanType);
+	}
+
+	/**
+	 * Return true if this overlay knows exactly which beans of a given type
+	 * were modified, so cached results for that type can be patched.
+	 */
+	boolean isPatchable(Class<?> beanType) {
+		return !modifiedBeanTypes.contains(beanType);
+	}
+
+	/**
+	 * Return true if this overlay saved or deleted a bean.
+	 */
+	boolean contains(Class<?> beanType, String beanOid) {
+		Map<String, X2BaseBean> beans = beansByType.get(beanType);
+		return beans != null && beans.containsKey(beanOid);
+	}
+
+	/**
+	 * Return the bean this overlay saved, or null if the bean was deleted.
+	 */
+	X2BaseBean getBean(Class<?> beanType, String beanOid) {
+		Map<String, X2BaseBean> beans = beansByType.get(beanType);
+		return beans == null ? null : beans.get(beanOid);
+	}
+
+	/**
+	 * Patch the committed results of a query with this overlay's writes.
+	 * <p>
+	 * Every bean this overlay saved or deleted is removed from the results,
+	 * and then every saved bean that matches the operator is added back (in
+	 * the position the order-by fields require). So this returns the same
+	 * results whether or not the argument already reflected our writes.
+	 *
+	 * @param beanType
+	 *            the type of bean the query returns.
+	 * @param operator
+	 *            the query's criteria. This must only refer to simple
+	 *            attributes of the bean type.
+	 * @param orderBy
+	 *            the query's order-by fields.
+	 * @param beans
+	 *            the committed results of the query.
+	 * @return the results as this overlay sees them.
+	 * @throws Exception
+	 *             if the operator can't be evaluated against a saved bean.
+	 */
+	List<X2BaseBean> patch(Class<?> beanType, Operator operator,
+			OrderByComparator orderBy, List<X2BaseBean> beans)
+			throws Exception {
+		Map<String, X2BaseBean> overlayBeans = beansByType.get(beanType);
+		if (overlayBeans == null)
+			return beans;
+
+		List<X2BaseBean> returnValue = new ArrayList<>(beans.size());
+		for (X2BaseBean bean : beans) {
+			if (!overlayBeans.containsKey(bean.getOid()))
+				returnValue.add(bean);
+		}
+
+		boolean isOrdered = !orderBy.getFieldHelpers().isEmpty();
+		for (X2BaseBean bean : overlayBeans.values()) {
+			if (bean == null || !operator.evaluate(Dash.CONTEXT, bean))
+				continue;
+			int index = returnValue.size();
+			if (isOrdered) {
+				while (index > 0
+						&& orderBy.compare(returnValue.get(index - 1), bean) > 0) {
+					index--;
+				}
+			}
+			returnValue.add(index, bean);
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Apply this overlay's writes to the Dash's shared caches.
+	 */
+	void commit(Dash dash) {
+		for (Class<?> beanType : modifiedBeanTypes) {
+			dash.modifyBeanRecord(beanType);
+		}
+		for (Map.Entry<Class<?>, Map<String, X2BaseBean>> entry : beansByType
+				.entrySet()) {
+			if (modifiedBeanTypes.contains(entry.getKey()))
+				continue;
+			for (Map.Entry<String, X2BaseBean> beanEntry : entry.getValue()
+					.entrySet()) {
+				if (beanEntry.getValue() == null) {
+					dash.deleteBeanRecord(entry.getKey(), beanEntry.getKey());
+				} else {
+					dash.modifyBeanRecord(beanEntry.getValue());
+				}
+			}
+		}
+
+		Logger log = dash.getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("committed " + toString());
+	}
+
+	/**
+	 * Discard this overlay's writes.
+	 * <p>
+	 * The shared caches never saw these writes, but the beans we saved may
+	 * have been modified in memory. So those beans are removed from the
+	 * Dash's cache of beans.
+	 */
+	void rollback(Dash dash) {
+		for (Map.Entry<Class<?>, Map<String, X2BaseBean>> entry : beansByType
+				.entrySet()) {
+			for (String beanOid : entry.getValue().keySet()) {
+				dash.weakReferenceCache.removeBean(entry.getKey(), beanOid);
+			}
+		}
+
+		Logger log = dash.getLog();
+		if (log.isLoggable(Level.INFO))
+			log.info("rolled back " + toString());
+	}
+
+	@Override
+	public String toString() {
+		Map<String, Integer> counts = new HashMap<>();
+		for (Map.Entry<Class<?>, Map<String, X2BaseBean>> entry : beansByType
+				.entrySet()) {
+			counts.put(entry.getKey().getSimpleName(), entry.getValue().size());
+		}
+		return "TransactionOverlay[ beans=" + counts + ", modifiedBeanTypes="
+				+ modifiedBeanTypes + "]";
+	}
+}
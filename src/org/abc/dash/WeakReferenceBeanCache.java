@@ -2,19 +2,40 @@ package org.abc.dash;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.follett.fsc.core.k12.beans.X2BaseBean;
-import com.pump.util.WeakValueMap;
 
 /**
  * This simple cache keeps a WeakReference to beans.
+ * <p>
+ * This is called for every bean a QueryIteratorDash returns, so it is
+ * designed to be used by several threads at once without locking: each bean
+ * type has its own ConcurrentMap, and all the WeakReferences share one
+ * ReferenceQueue that is drained a few references at a time.
+ * <p>
+ * PropertyChangeEvents for the {@link #PROPERTY_SIZE} property are coalesced:
+ * they are fired at most once every {@link #SIZE_EVENT_INTERVAL} ms (and
+ * immediately after {@link #clear()}, {@link #clear(Class)} and
+ * {@link #purge()}), so one event may describe many changes. If an event is
+ * suppressed then it is fired by the next call to this cache after that
+ * interval (see {@link #flushSizeEvent()}), so the end of a burst of changes
+ * is still reported.
+ * <p>
+ * Optionally this cache can also retain recently stored beans in a
+ * {@link BeanRetentionTier} (see {@link #setRetention(double, boolean)}).
+ * Beans are stored in that tier first, and they are demoted to our weak
+ * references when that tier evicts them.
  */
 public class WeakReferenceBeanCache {
 
@@ -25,29 +46,87 @@ public class WeakReferenceBeanCache {
 	public static final String PROPERTY_SIZE = WeakReferenceBeanCache.class
 			.getSimpleName() + "#size";
 
-	protected Map<Class<?>, WeakValueMap<String, X2BaseBean>> cache = new HashMap<>();
-	protected int cacheSize = 0;
-
-	private PropertyChangeListener memberCacheSizeListener = new PropertyChangeListener() {
-
-		@Override
-		public void propertyChange(PropertyChangeEvent evt) {
-			if (WeakValueMap.PROPERTY_SIZE.equals(evt.getPropertyName())) {
-				int oldSize = (Integer) evt.getOldValue();
-				int newSize = (Integer) evt.getNewValue();
-				int oldCacheSize, newCacheSize;
-				synchronized (WeakReferenceBeanCache.this) {
-					oldCacheSize = cacheSize;
-					cacheSize += newSize - oldSize;
-					newCacheSize = cacheSize;
+	/**
+	 * The minimum number of milliseconds between PropertyChangeEvents for the
+	 * {@link #PROPERTY_SIZE} property.
+	 */
+	public static final long SIZE_EVENT_INTERVAL = 1000;
+
+	/**
+	 * The maximum number of cleared references we'll remove from our maps
+	 * when a bean is stored. {@link #purge()} removes all of them.
+	 */
+	protected static final int DRAIN_BATCH_SIZE = 64;
+
+	/**
+	 * A WeakReference to a bean that remembers where it is stored, so we can
+	 * remove it from our maps after it is cleared.
+	 */
+	static class BeanReference extends WeakReference<X2BaseBean> {
+		final Class<?> beanType;
+		final String oid;
+
+		BeanReference(X2BaseBean bean, ReferenceQueue<X2BaseBean> queue) {
+			super(bean, queue);
+			beanType = bean.getClass();
+			oid = bean.getOid();
+		}
+	}
+
+	protected final ConcurrentMap<Class<?>, ConcurrentMap<String, BeanReference>> cache = new ConcurrentHashMap<>();
+	protected final ReferenceQueue<X2BaseBean> queue = new ReferenceQueue<>();
+	protected final List<PropertyChangeListener> propertyListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The size we reported in our last PropertyChangeEvent.
+	 */
+	protected int lastReportedSize = 0;
+	protected final AtomicLong lastSizeEvent = new AtomicLong();
+
+	/**
+	 * True if a size event was suppressed since our last PropertyChangeEvent.
+	 */
+	protected volatile boolean sizeEventPending = false;
+
+	/**
+	 * The optional tier that retains recently stored beans. This may be null.
+	 */
+	protected volatile BeanRetentionTier retentionTier;
+
+	/**
+	 * Configure the optional tier that retains recently stored beans.
+	 *
+	 * @param heapFraction
+	 *            the fraction of the maximum heap size the retained beans may
+	 *            use, such as .05 for 5%. If this is zero (or negative) then
+	 *            we don't retain beans, and we only keep WeakReferences.
+	 * @param soft
+	 *            if true then beans are retained with SoftReferences. If false
+	 *            then beans are strongly retained.
+	 */
+	public void setRetention(double heapFraction, boolean soft) {
+		BeanRetentionTier oldTier = retentionTier;
+		if (heapFraction <= 0) {
+			retentionTier = null;
+		} else {
+			retentionTier = new BeanRetentionTier(heapFraction, soft) {
+				@Override
+				protected void evicted(X2BaseBean bean) {
+					storeWeakReference(bean);
 				}
-				firePropertyChangeEvent(PROPERTY_SIZE, oldCacheSize,
-						newCacheSize);
-			}
+			};
 		}
-	};
+		if (oldTier != null)
+			oldTier.clear();
+	}
 
-	protected List<PropertyChangeListener> propertyListeners = new ArrayList<>();
+	/**
+	 * Return the tier that retains recently stored beans, or null if beans
+	 * are not retained.
+	 */
+	public BeanRetentionTier getRetentionTier() {
+		return retentionTier;
+	}
 
 	/**
 	 * Add a PropertyChangeListener to this cache. This is notified when the
@@ -55,35 +134,114 @@ public class WeakReferenceBeanCache {
 	 */
 	public void addPropertyListener(PropertyChangeListener l) {
 		Objects.requireNonNull(l);
-		synchronized (this) {
-			propertyListeners.add(l);
-		}
+		propertyListeners.add(l);
 	}
 
 	protected void firePropertyChangeEvent(String propertyName,
 			Object oldValue, Object newValue) {
-		PropertyChangeListener[] array;
-		synchronized (this) {
-			array = propertyListeners
-					.toArray(new PropertyChangeListener[propertyListeners
-							.size()]);
-		}
-		for (PropertyChangeListener l : array) {
+		for (PropertyChangeListener l : propertyListeners) {
 			l.propertyChange(new PropertyChangeEvent(this, propertyName,
 					oldValue, newValue));
 		}
 	}
 
 	public void removePropertyListener(PropertyChangeListener l) {
-		synchronized (this) {
-			propertyListeners.remove(l);
+		propertyListeners.remove(l);
+	}
+
+	/**
+	 * Return the number of references in this cache (including beans in the
+	 * retention tier). Some of these references may have been cleared but not
+	 * yet removed.
+	 */
+	public int size() {
+		BeanRetentionTier tier = retentionTier;
+		int sum = tier == null ? 0 : tier.size();
+		for (ConcurrentMap<String, BeanReference> classCache : cache.values()) {
+			sum += classCache.size();
+		}
+		return sum;
+	}
+
+	/**
+	 * Fire a PropertyChangeEvent for the {@link #PROPERTY_SIZE} property if
+	 * our size changed since our last event.
+	 *
+	 * @param force
+	 *            if false then this only fires an event if at least
+	 *            {@link #SIZE_EVENT_INTERVAL} ms passed since our last event.
+	 *            Otherwise the event is left pending for
+	 *            {@link #flushSizeEvent()}. If true then this always fires an
+	 *            event (if our size changed).
+	 */
+	protected void fireSizeEvent(boolean force) {
+		if (propertyListeners.isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+		if (force) {
+			lastSizeEvent.set(now);
+		} else {
+			long lastEvent = lastSizeEvent.get();
+			// only one thread should fire a throttled event. If another
+			// thread is firing it, that thread may not see our change yet.
+			if (now - lastEvent < SIZE_EVENT_INTERVAL
+					|| !lastSizeEvent.compareAndSet(lastEvent, now)) {
+				sizeEventPending = true;
+				return;
+			}
+		}
+
+		int oldSize, newSize;
+		synchronized (lastSizeEvent) {
+			// clear this flag before we measure our size, so a change that
+			// isn't included in newSize leaves it set
+			sizeEventPending = false;
+			oldSize = lastReportedSize;
+			newSize = size();
+			lastReportedSize = newSize;
+		}
+		if (oldSize != newSize)
+			firePropertyChangeEvent(PROPERTY_SIZE, oldSize, newSize);
+	}
+
+	/**
+	 * Fire a size event that was suppressed because it came too soon after
+	 * our last event, if at least {@link #SIZE_EVENT_INTERVAL} ms have passed
+	 * since then.
+	 * <p>
+	 * This is called automatically when beans are stored, retrieved or
+	 * removed, so you only need to call this if this cache might otherwise
+	 * go unused for a while.
+	 */
+	public void flushSizeEvent() {
+		if (sizeEventPending)
+			fireSizeEvent(false);
+	}
+
+	/**
+	 * Remove cleared references from our maps.
+	 *
+	 * @param max
+	 *            the maximum number of references to remove.
+	 */
+	protected void drainQueue(int max) {
+		for (int a = 0; a < max; a++) {
+			Reference<? extends X2BaseBean> ref = queue.poll();
+			if (ref == null)
+				return;
+			BeanReference beanRef = (BeanReference) ref;
+			ConcurrentMap<String, BeanReference> classCache = cache
+					.get(beanRef.beanType);
+			if (classCache != null)
+				classCache.remove(beanRef.oid, beanRef);
 		}
 	}
 
 	/**
 	 * Return a bean based on its class and oid, or return null if it is not
 	 * in our cache.
-	 * 
+	 *
 	 * @param beanType
 	 *            the optional bean type. This is highly recommended, but it
 	 *            will be automatically resolved based on the oid if it is null.
@@ -101,21 +259,34 @@ public class WeakReferenceBeanCache {
 		if (oid == null)
 			return null;
 
+		flushSizeEvent();
+
 		if (beanType == null)
 			beanType = Dash.getBeanTypeFromOid(oid);
 
-		synchronized (this) {
-			WeakValueMap<String, X2BaseBean> classCache = cache.get(beanType);
-			if (classCache == null)
-				return null;
-
-			return classCache.get(oid);
+		BeanRetentionTier tier = retentionTier;
+		if (tier != null) {
+			X2BaseBean bean = tier.getBean(beanType, oid);
+			if (bean != null)
+				return bean;
 		}
+
+		ConcurrentMap<String, BeanReference> classCache = cache.get(beanType);
+		if (classCache == null)
+			return null;
+
+		BeanReference ref = classCache.get(oid);
+		if (ref == null)
+			return null;
+		X2BaseBean bean = ref.get();
+		if (bean == null)
+			classCache.remove(oid, ref);
+		return bean;
 	}
 
 	/**
 	 * Store a WeakReference to the given bean in this cache.
-	 * 
+	 *
 	 * @param bean
 	 *            the bean to cache. If this is null then this method
 	 *            immediately returns.
@@ -124,66 +295,115 @@ public class WeakReferenceBeanCache {
 		if (bean == null)
 			return;
 
-		synchronized (this) {
-			WeakValueMap<String, X2BaseBean> classCache = cache.get(bean
-					.getClass());
-			if (classCache == null) {
-				classCache = new WeakValueMap<String, X2BaseBean>();
-				classCache.addPropertyListener(memberCacheSizeListener);
-				cache.put(bean.getClass(), classCache);
-			}
+		BeanRetentionTier tier = retentionTier;
+		if (tier != null) {
+			tier.storeBean(bean);
+		} else {
+			storeWeakReference(bean);
+		}
+
+		drainQueue(DRAIN_BATCH_SIZE);
+		fireSizeEvent(false);
+	}
+
+	/**
+	 * Store a WeakReference to a bean, bypassing the retention tier.
+	 */
+	protected void storeWeakReference(X2BaseBean bean) {
+		ConcurrentMap<String, BeanReference> classCache = cache.get(bean
+				.getClass());
+		if (classCache == null) {
+			ConcurrentMap<String, BeanReference> newClassCache = new ConcurrentHashMap<>();
+			classCache = cache.putIfAbsent(bean.getClass(), newClassCache);
+			if (classCache == null)
+				classCache = newClassCache;
+		}
 
-			classCache.put(bean.getOid(), bean);
+		String oid = bean.getOid();
+		BeanReference existingRef = classCache.get(oid);
+		if (existingRef == null || existingRef.get() != bean) {
+			classCache.put(oid, new BeanReference(bean, queue));
 		}
 	}
 
+	/**
+	 * Remove a bean from this cache.
+	 *
+	 * @param beanType
+	 *            the optional bean type. This is highly recommended, but it
+	 *            will be automatically resolved based on the oid if it is null.
+	 * @param oid
+	 *            the oid of the bean to remove. If this is null then this
+	 *            method immediately returns false.
+	 * @return true if a bean was removed.
+	 */
+	public boolean removeBean(Class<?> beanType, String oid) {
+		if (oid == null)
+			return false;
+
+		if (beanType == null)
+			beanType = Dash.getBeanTypeFromOid(oid);
+
+		BeanRetentionTier tier = retentionTier;
+		boolean removed = tier != null && tier.remove(oid);
+
+		ConcurrentMap<String, BeanReference> classCache = cache.get(beanType);
+		BeanReference ref = classCache == null ? null : classCache
+				.remove(oid);
+		fireSizeEvent(false);
+		return (ref != null && ref.get() != null) || removed;
+	}
+
 	/**
 	 * Clear all data from this cache.
 	 */
 	public void clear() {
-		synchronized (this) {
-			for (WeakValueMap<String, X2BaseBean> m : cache.values()) {
-				m.clear();
-			}
-			cache.clear();
-		}
+		BeanRetentionTier tier = retentionTier;
+		if (tier != null)
+			tier.clear();
+		cache.clear();
+		fireSizeEvent(true);
 	}
 
 	/**
 	 * Clear all data related to a specific bean type from this cache.
-	 * 
+	 *
 	 * @return the number of elements removed
 	 */
 	public int clear(Class<?> beanType) {
 		if(beanType==null)
 			return 0;
-		
-		synchronized (this) {
-			WeakValueMap<String, X2BaseBean> classCache = cache.remove(beanType);
-			if (classCache == null)
-				return 0;
-			int size = classCache.size();
-			classCache.clear();
-			return size;
-		}
+
+		BeanRetentionTier tier = retentionTier;
+		int size = tier == null ? 0 : tier.clear(beanType);
+		ConcurrentMap<String, BeanReference> classCache = cache
+				.remove(beanType);
+		if (classCache != null)
+			size += classCache.size();
+		fireSizeEvent(true);
+		return size;
 	}
 
 	/**
 	 * Purge unreachable WeakReferences from this cache.
 	 * <p>
 	 * You don't have to explicitly call this method, but doing so
-	 * might help inactive caches purge references. Each cache
-	 * automatically checks for stale references when it is used, though.
+	 * might help inactive caches purge references. Storing a bean
+	 * automatically removes a few stale references, though.
 	 */
 	public void purge() {
-		synchronized (this) {
-			Iterator<Entry<Class<?>, WeakValueMap<String, X2BaseBean>>> iter = cache.entrySet().iterator();
-			while(iter.hasNext()) {
-				Entry<Class<?>, WeakValueMap<String, X2BaseBean>> entry = iter.next();
-				entry.getValue().purge();
-				if(entry.getValue().size()==0)
-					iter.remove();
-			}
+		BeanRetentionTier tier = retentionTier;
+		if (tier != null)
+			tier.purge();
+		drainQueue(Integer.MAX_VALUE);
+		Iterator<Entry<Class<?>, ConcurrentMap<String, BeanReference>>> iter = cache
+				.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<Class<?>, ConcurrentMap<String, BeanReference>> entry = iter
+					.next();
+			if (entry.getValue().isEmpty())
+				iter.remove();
 		}
+		fireSizeEvent(true);
 	}
 }
@@ -0,0 +1,82 @@
+package org.abc.dash;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class AbsentOidCacheTest extends TestCase {
+
+	/**
+	 * This is an AbsentOidCache whose clock we control.
+	 */
+	static class TestAbsentOidCache extends AbsentOidCache {
+		long time = 1000;
+
+		TestAbsentOidCache(int maxSizePerBeanType, long timeToLive) {
+			super(maxSizePerBeanType, timeToLive);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return time;
+		}
+	}
+
+	/**
+	 * This makes sure absent oids expire after their time-to-live.
+	 */
+	@Test
+	public void testTimeToLive() {
+		TestAbsentOidCache cache = new TestAbsentOidCache(10, 100);
+		assertTrue(cache.add(String.class, "A", 0));
+		assertTrue(cache.contains(String.class, "A"));
+		assertFalse(cache.contains(Integer.class, "A"));
+
+		cache.time += 99;
+		assertTrue(cache.contains(String.class, "A"));
+		cache.time += 1;
+		assertFalse(cache.contains(String.class, "A"));
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * This makes sure each bean type only keeps its most recent oids.
+	 */
+	@Test
+	public void testMaxSize() {
+		TestAbsentOidCache cache = new TestAbsentOidCache(2, 100);
+		cache.add(String.class, "A", 0);
+		cache.add(String.class, "B", 0);
+		cache.add(String.class, "C", 0);
+		cache.add(Integer.class, "A", 0);
+
+		assertFalse(cache.contains(String.class, "A"));
+		assertTrue(cache.contains(String.class, "B"));
+		assertTrue(cache.contains(String.class, "C"));
+		assertTrue(cache.contains(Integer.class, "A"));
+		assertEquals(3, cache.size());
+	}
+
+	/**
+	 * This makes sure modifying a bean type discards its absent oids, and
+	 * that an oid isn't recorded if its bean type was modified while we
+	 * queried for it.
+	 */
+	@Test
+	public void testClear() {
+		TestAbsentOidCache cache = new TestAbsentOidCache(10, 100);
+		cache.add(String.class, "A", 0);
+		cache.add(Integer.class, "A", 0);
+
+		long modificationCount = cache.getModificationCount(String.class);
+		cache.clear(String.class);
+		assertFalse(cache.contains(String.class, "A"));
+		assertTrue(cache.contains(Integer.class, "A"));
+
+		assertFalse(cache.add(String.class, "B", modificationCount));
+		assertFalse(cache.contains(String.class, "B"));
+		assertTrue(cache.add(String.class, "B",
+				cache.getModificationCount(String.class)));
+		assertTrue(cache.contains(String.class, "B"));
+	}
+}
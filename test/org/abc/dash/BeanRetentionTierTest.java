@@ -0,0 +1,75 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.abc.dash.WeakReferenceBeanCacheTest.TestBean;
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+
+public class BeanRetentionTierTest extends TestCase {
+
+	/**
+	 * This makes sure the tier stays within its budget, and referenced beans
+	 * get a second chance before they're evicted.
+	 */
+	@Test
+	public void testEviction() {
+		long weight = BeanRetentionTier.estimateWeight(TestBean.class);
+		final List<X2BaseBean> evicted = new ArrayList<>();
+		// every segment can hold 4 beans
+		BeanRetentionTier tier = new BeanRetentionTier(weight * 4
+				* BeanRetentionTier.SEGMENT_COUNT, false) {
+			@Override
+			protected void evicted(X2BaseBean bean) {
+				evicted.add(bean);
+			}
+		};
+
+		List<TestBean> beans = new ArrayList<>();
+		for (int a = 0; a < 1000; a++) {
+			TestBean bean = new TestBean("TST" + a);
+			beans.add(bean);
+			tier.storeBean(bean);
+			// keep touching the first bean
+			assertSame(beans.get(0), tier.getBean(TestBean.class, "TST0"));
+		}
+
+		assertTrue(tier.size() <= 4 * BeanRetentionTier.SEGMENT_COUNT);
+		assertTrue(tier.getWeight() <= weight * 4
+				* BeanRetentionTier.SEGMENT_COUNT);
+		assertEquals(1000, tier.size() + evicted.size());
+		assertEquals(evicted.size(), tier.getEvictionCount());
+		assertFalse(evicted.contains(beans.get(0)));
+
+		assertEquals(tier.size(), tier.clear(TestBean.class));
+		assertEquals(0, tier.size());
+		assertEquals(0, tier.getWeight());
+	}
+
+	/**
+	 * This makes sure beans the retention tier evicts are demoted to the weak
+	 * references.
+	 */
+	@Test
+	public void testDemotion() {
+		WeakReferenceBeanCache cache = new WeakReferenceBeanCache();
+		cache.setRetention(.0000001, false);
+		List<TestBean> beans = new ArrayList<>();
+		for (int a = 0; a < 1000; a++) {
+			TestBean bean = new TestBean("TST" + a);
+			beans.add(bean);
+			cache.storeBean(bean);
+		}
+		assertTrue(cache.getRetentionTier().getEvictionCount() > 0);
+		for (TestBean bean : beans) {
+			assertSame(bean, cache.getBeanByOid(TestBean.class, bean.getOid()));
+		}
+		assertEquals(1000, cache.size());
+		assertEquals(1000, cache.clear(TestBean.class));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,98 @@
+package org.abc.dash;
+
+import junit.framework.TestCase;
+
+import org.abc.dash.Dash.CacheResults;
+import org.abc.dash.Dash.TemplateQueryProfile;
+import org.junit.Test;
+
+public class CachePolicyTest extends TestCase {
+
+	static class FixedHeapPolicy extends CachePolicy {
+		double headroom;
+
+		FixedHeapPolicy(double headroom) {
+			this.headroom = headroom;
+		}
+
+		@Override
+		protected double getHeapHeadroom() {
+			return headroom;
+		}
+	}
+
+	private TemplateQueryProfile createProfile(int executions,
+			int returnCount, int hits, int misses) {
+		TemplateQueryProfile profile = new TemplateQueryProfile();
+		for (int a = 0; a < executions; a++) {
+			profile.closedIterator(returnCount, false);
+		}
+		for (int a = 0; a < hits; a++) {
+			profile.getResults().increment(CacheResults.Type.QUERY_HIT);
+		}
+		for (int a = 0; a < misses; a++) {
+			profile.getResults().increment(CacheResults.Type.QUERY_MISS);
+		}
+		return profile;
+	}
+
+	@Test
+	public void testRareTemplates() {
+		CachePolicy policy = new FixedHeapPolicy(.9);
+		assertEquals(CachePolicy.Decision.SKIP_RARE,
+				policy.getDecision(createProfile(3, 10, 0, 0), 500));
+		assertEquals(CachePolicy.Decision.CACHE,
+				policy.getDecision(createProfile(30, 10, 0, 0), 500));
+	}
+
+	/**
+	 * This makes sure a template that routinely returns more than the default
+	 * budget (but is never cached) gets a larger budget.
+	 */
+	@Test
+	public void testLargeTemplates() {
+		CachePolicy policy = new FixedHeapPolicy(.9);
+		TemplateQueryProfile profile = createProfile(1000, 1500, 0, 0);
+		profile.getResults().increment(
+				CacheResults.Type.QUERY_MISS_ABORT_TOO_MANY);
+		int budget = policy.getBudget(profile, 500);
+		assertTrue(budget > 1500);
+		assertEquals(CachePolicy.Decision.CACHE,
+				policy.getDecision(profile, 500));
+
+		// a template that never fits is still skipped
+		profile = createProfile(1000, 20000, 0, 0);
+		assertEquals(CachePolicy.Decision.SKIP_OVER_BUDGET,
+				policy.getDecision(profile, 500));
+	}
+
+	@Test
+	public void testHeapHeadroom() {
+		TemplateQueryProfile profile = createProfile(1000, 2000, 50, 50);
+		int roomy = new FixedHeapPolicy(.9).getBudget(profile, 500);
+		int tight = new FixedHeapPolicy(.3).getBudget(profile, 500);
+		int full = new FixedHeapPolicy(.1).getBudget(profile, 500);
+		assertEquals(2500, roomy);
+		assertTrue(tight < roomy);
+		assertTrue(tight > 500);
+		assertEquals(500, full);
+	}
+
+	@Test
+	public void testRetirement() {
+		CachePolicy policy = new FixedHeapPolicy(.9);
+		TemplateQueryProfile profile = createProfile(1000, 20, 0, 500);
+		assertTrue(policy.isRetired(profile));
+		assertEquals(CachePolicy.Decision.SKIP_RETIRED,
+				policy.getDecision(profile, 500));
+
+		profile = createProfile(1000, 20, 100, 400);
+		assertFalse(policy.isRetired(profile));
+		assertEquals(CachePolicy.Decision.CACHE,
+				policy.getDecision(profile, 500));
+
+		// templates whose results aren't reused don't get a larger budget
+		profile = createProfile(1000, 1500, 1, 99);
+		assertEquals(500, policy.getBudget(profile, 500));
+	}
+}
@@ -0,0 +1,186 @@
+package org.abc.dash;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.pump.data.operator.OperatorContext;
+
+public class CompiledOperatorContextTest extends TestCase {
+
+	public static class SampleBean {
+		String name;
+		String code;
+		boolean active;
+		SampleBean child;
+
+		public SampleBean(String name, String code, boolean active,
+				SampleBean child) {
+			this.name = name;
+			this.code = code;
+			this.active = active;
+			this.child = child;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		public SampleBean getChild() {
+			return child;
+		}
+
+		public String getBroken() {
+			throw new IllegalStateException();
+		}
+	}
+
+	static List<String> ATTRIBUTES = Arrays.asList("name", "upper(name)",
+			"code", "ISNUMERIC(code)", "upper(upper(name))", "active",
+			"child", "child.name", "upper(child.name)");
+
+	/**
+	 * This makes sure Dash.CONTEXT and Dash.REFLECTION_CONTEXT return the same
+	 * values.
+	 */
+	@Test
+	public void testParity() {
+		SampleBean child = new SampleBean("Gloria", "101", false, null);
+		SampleBean bean = new SampleBean("Reshma", "A1", true, child);
+		Map<String, Object> map = new HashMap<>();
+		map.put("name", "Sajith");
+		map.put("code", "202");
+
+		for (Object dataSource : new Object[] { bean, child, map }) {
+			for (String attribute : ATTRIBUTES) {
+				if (dataSource == map && attribute.contains("child"))
+					continue;
+				Object expected = getValue(Dash.REFLECTION_CONTEXT,
+						dataSource, attribute);
+				Object actual = getValue(Dash.CONTEXT, dataSource, attribute);
+				// call it twice to make sure the cached accessor is consistent
+				Object actual2 = getValue(Dash.CONTEXT, dataSource, attribute);
+				assertEquals(attribute, normalize(expected), normalize(actual));
+				assertEquals(attribute, normalize(expected),
+						normalize(actual2));
+			}
+		}
+	}
+
+	/**
+	 * This makes sure Dash.CONTEXT and Dash.REFLECTION_CONTEXT throw the same
+	 * kinds of exceptions.
+	 */
+	@Test
+	public void testExceptions() {
+		SampleBean bean = new SampleBean("Reshma", "A1", true, null);
+		for (String attribute : new String[] { "broken", "missing",
+				"child.name" }) {
+			for (Object dataSource : new Object[] { bean, null }) {
+				Object expected = getValue(Dash.REFLECTION_CONTEXT,
+						dataSource, attribute);
+				Object actual = getValue(Dash.CONTEXT, dataSource, attribute);
+				assertTrue(attribute, expected instanceof Throwable);
+				assertEquals(attribute, toString((Throwable) expected),
+						toString((Throwable) actual));
+			}
+		}
+	}
+
+	/**
+	 * This makes sure Dash.CONTEXT keeps returning the same values as
+	 * Dash.REFLECTION_CONTEXT after its accessors are compiled and reused.
+	 * (This deliberately doesn't compare timing, which varies too much from
+	 * one run to the next to assert.)
+	 */
+	@Test
+	public void testRepeatedEvaluation() {
+		SampleBean bean = new SampleBean("Stephania", "12", true, null);
+		String[] attributes = new String[] { "name", "upper(name)",
+				"ISNUMERIC(code)" };
+		for (int a = 0; a < 1000; a++) {
+			for (String attribute : attributes) {
+				assertEquals(attribute,
+						Dash.REFLECTION_CONTEXT.getValue(bean, attribute),
+						Dash.CONTEXT.getValue(bean, attribute));
+			}
+		}
+	}
+
+	/**
+	 * This compares how long it takes to evaluate the same attributes using
+	 * Dash.CONTEXT and Dash.REFLECTION_CONTEXT.
+	 * <p>
+	 * This only prints the timings: it does not assert which is faster, because
+	 * that depends on the JVM.
+	 */
+	@Test
+	public void testPerformance() {
+		SampleBean bean = new SampleBean("Stephania", "12", true, null);
+		String[] attributes = new String[] { "name", "upper(name)",
+				"ISNUMERIC(code)" };
+
+		int iterations = 20000;
+		for (int round = 0; round < 3; round++) {
+			long reflectionTime = time(Dash.REFLECTION_CONTEXT, bean,
+					attributes, iterations);
+			long compiledTime = time(Dash.CONTEXT, bean, attributes,
+					iterations);
+			System.out.println("CompiledOperatorContextTest: " + iterations
+					+ " iterations, reflection: " + (reflectionTime / 1000000)
+					+ " ms, compiled: " + (compiledTime / 1000000) + " ms");
+		}
+	}
+
+	private long time(OperatorContext context, Object bean,
+			String[] attributes, int iterations) {
+		long t = System.nanoTime();
+		int hash = 0;
+		for (int a = 0; a < iterations; a++) {
+			for (String attribute : attributes) {
+				Object value = context.getValue(bean, attribute);
+				hash += value == null ? 0 : 1;
+			}
+		}
+		t = System.nanoTime() - t;
+		assertEquals(iterations * attributes.length, hash);
+		return t;
+	}
+
+	private Object getValue(OperatorContext context, Object dataSource,
+			String attribute) {
+		try {
+			return context.getValue(dataSource, attribute);
+		} catch (Throwable t) {
+			return t;
+		}
+	}
+
+	private Object normalize(Object value) {
+		if (value instanceof Throwable)
+			return toString((Throwable) value);
+		return value;
+	}
+
+	private String toString(Throwable t) {
+		StringBuilder sb = new StringBuilder();
+		while (t != null) {
+			sb.append(t.getClass().getName() + ": " + t.getMessage() + "\n");
+			t = t.getCause();
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,154 @@
+package org.abc.dash;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class DispatchTableTest extends TestCase {
+
+	public interface Calculator {
+		int add(int a, int b);
+
+		String describe();
+
+		void fail(String message);
+
+		long count();
+	}
+
+	static class CalculatorImpl implements Calculator {
+		long count;
+
+		@Override
+		public int add(int a, int b) {
+			count++;
+			return a + b;
+		}
+
+		@Override
+		public String describe() {
+			count++;
+			return "calculator";
+		}
+
+		@Override
+		public void fail(String message) {
+			throw new IllegalStateException(message);
+		}
+
+		@Override
+		public long count() {
+			return count;
+		}
+	}
+
+	static DispatchTable<String> createTable() {
+		return new DispatchTable<>(new DispatchTable.Resolver<String>() {
+			@Override
+			public String resolve(Method method) {
+				return method.getName();
+			}
+		});
+	}
+
+	@Test
+	public void testInvokeDelegate() throws Exception {
+		DispatchTable<String> table = createTable();
+		CalculatorImpl calc = new CalculatorImpl();
+
+		Method add = Calculator.class.getMethod("add", Integer.TYPE,
+				Integer.TYPE);
+		DispatchTable.Entry<String> entry = table.get(add);
+		assertSame(entry, table.get(add));
+		assertEquals("add", entry.handler);
+		assertEquals(5, entry.invokeDelegate(calc, new Object[] { 2, 3 }));
+
+		// proxies pass null for methods with no arguments
+		assertEquals("calculator",
+				table.get(Calculator.class.getMethod("describe"))
+						.invokeDelegate(calc, null));
+		assertEquals(2L, table.get(Calculator.class.getMethod("count"))
+				.invokeDelegate(calc, null));
+
+		try {
+			table.get(Calculator.class.getMethod("fail", String.class))
+					.invokeDelegate(calc, new Object[] { "x" });
+			fail();
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	/**
+	 * This compares a proxy that identifies methods with a chain of
+	 * Method.equals calls and delegates with Method.invoke (the way
+	 * DashInvocationHandler used to work) against a proxy that uses a
+	 * DispatchTable.
+	 * <p>
+	 * This only prints the timings: it does not assert which is faster, because
+	 * that depends on the JVM.
+	 */
+	@Test
+	public void testProxyOverhead() throws Exception {
+		final CalculatorImpl calc = new CalculatorImpl();
+		final Method[] knownMethods = new Method[20];
+		for (int a = 0; a < knownMethods.length; a++) {
+			knownMethods[a] = Object.class.getMethod("hashCode");
+		}
+
+		Calculator chainProxy = (Calculator) Proxy.newProxyInstance(
+				Calculator.class.getClassLoader(),
+				new Class<?>[] { Calculator.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						for (Method knownMethod : knownMethods) {
+							if (knownMethod.equals(method))
+								throw new IllegalStateException();
+						}
+						if (method.getName().startsWith("saveBean"))
+							throw new IllegalStateException();
+						return method.invoke(calc, args);
+					}
+				});
+
+		final DispatchTable<String> table = createTable();
+		Calculator tableProxy = (Calculator) Proxy.newProxyInstance(
+				Calculator.class.getClassLoader(),
+				new Class<?>[] { Calculator.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						return table.get(method).invokeDelegate(calc, args);
+					}
+				});
+
+		int iterations = 20000;
+		for (int round = 0; round < 3; round++) {
+			long chainTime = time(chainProxy, iterations);
+			long tableTime = time(tableProxy, iterations);
+			System.out.println("DispatchTableTest: " + iterations
+					+ " calls, equals chain + Method.invoke: "
+					+ (chainTime / 1000) + " us, dispatch table: "
+					+ (tableTime / 1000) + " us");
+		}
+		assertEquals(12L * iterations, calc.count());
+	}
+
+	private long time(Calculator calc, int iterations) {
+		long t = System.nanoTime();
+		int sum = 0;
+		for (int a = 0; a < iterations; a++) {
+			sum += calc.add(a, 1);
+			sum += calc.describe().length();
+		}
+		t = System.nanoTime() - t;
+		assertTrue(sum != 0);
+		return t;
+	}
+}
@@ -0,0 +1,71 @@
+package org.abc.dash;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.abc.dash.FieldComparison.Type;
+import org.junit.Test;
+
+import com.pump.data.operator.OperatorContext;
+
+public class FieldComparisonTest extends TestCase {
+
+	/**
+	 * This treats each bean as a Map of attributes to values.
+	 */
+	private static final OperatorContext MAP_CONTEXT = new OperatorContext() {
+		@Override
+		public Object getValue(Object dataSource, String attributeName) {
+			return ((Map<?, ?>) dataSource).get(attributeName);
+		}
+	};
+
+	private static Map<String, Object> createBean(Object start, Object end) {
+		Map<String, Object> bean = new HashMap<>();
+		bean.put("start", start);
+		bean.put("end", end);
+		return bean;
+	}
+
+	/**
+	 * This makes sure each Type compares the left attribute to the right
+	 * attribute.
+	 */
+	@Test
+	public void testEvaluate() throws Exception {
+		Object[][] table = new Object[][] {
+				// left, right, ==, !=, >, >=, <, <=
+				{ 1, 2, false, true, false, false, true, true },
+				{ "b", "b", true, false, false, true, false, true },
+				{ 3, 2, false, true, true, true, false, false } };
+		Type[] types = new Type[] { Type.EQUAL_TO, Type.NOT_EQUAL_TO,
+				Type.GREATER_THAN, Type.GREATER_OR_EQUAL, Type.LESSER_THAN,
+				Type.LESSER_OR_EQUAL };
+		for (Object[] row : table) {
+			Map<String, Object> bean = createBean(row[0], row[1]);
+			for (int a = 0; a < types.length; a++) {
+				FieldComparison comparison = new FieldComparison("start",
+						types[a], "end");
+				assertEquals(comparison + " for " + bean, row[a + 2],
+						comparison.evaluate(MAP_CONTEXT, bean));
+			}
+		}
+	}
+
+	/**
+	 * This makes sure a comparison involving null is always false, like SQL.
+	 * (This includes "!=", "<=" and ">=".)
+	 */
+	@Test
+	public void testNull() throws Exception {
+		Map<String, Object> bean = createBean(null, 2);
+		for (Type type : Type.values()) {
+			assertFalse(new FieldComparison("start", type, "end").evaluate(
+					MAP_CONTEXT, bean));
+			assertFalse(new FieldComparison("end", type, "start").evaluate(
+					MAP_CONTEXT, bean));
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.abc.dash;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest extends TestCase {
+
+	/**
+	 * This makes sure every value falls inside the bounds of its bucket, and
+	 * the buckets are contiguous.
+	 */
+	@Test
+	public void testBuckets() {
+		long[] values = new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 31, 32, 1000,
+				123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.getBucketIndex(value);
+			assertTrue(index >= 0 && index < LatencyHistogram.BUCKET_COUNT);
+			assertTrue(value >= LatencyHistogram.getBucketLowerBound(index));
+			assertTrue(value <= LatencyHistogram.getBucketUpperBound(index));
+		}
+		for (int a = 1; a < LatencyHistogram.BUCKET_COUNT; a++) {
+			assertEquals(LatencyHistogram.getBucketUpperBound(a - 1) + 1,
+					LatencyHistogram.getBucketLowerBound(a));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int a = 1; a <= 1000; a++) {
+			h.record(a * 1000L);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000000L, h.getMax());
+		assertEquals(500500.0, h.getMean(), .001);
+
+		// values are only accurate to within 12.5%
+		assertEquals(500000, h.getPercentile(.5), 500000 * .125);
+		assertEquals(990000, h.getPercentile(.99), 990000 * .125);
+		assertTrue(h.getPercentile(.5) >= 500000);
+		assertEquals(1000000L, h.getPercentile(1));
+
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(.5));
+	}
+}
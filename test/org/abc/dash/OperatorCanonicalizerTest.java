@@ -0,0 +1,118 @@
+package org.abc.dash;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.In;
+import com.pump.data.operator.Not;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.Or;
+
+public class OperatorCanonicalizerTest extends TestCase {
+
+	private static final Operator FALSE = new In("x",
+			Collections.emptySet());
+	private static final Operator TRUE = new Not(FALSE);
+
+	private static Operator eq(String attribute, Comparable<?> value) {
+		return new EqualTo(attribute, value);
+	}
+
+	private static Operator in(String attribute, Object... values) {
+		return new In(attribute, new LinkedHashSet<>(Arrays.asList(values)));
+	}
+
+	/**
+	 * Assert that each row's first Operator canonicalizes to its second
+	 * Operator.
+	 */
+	private void assertCanonical(Object[][] table) {
+		for (Object[] row : table) {
+			Operator operator = (Operator) row[0];
+			Operator expected = (Operator) row[1];
+			assertEquals("canonicalize \"" + operator + "\"", expected,
+					OperatorCanonicalizer.canonicalize(operator));
+		}
+	}
+
+	@Test
+	public void testFlatten() {
+		Operator a = eq("a", 1);
+		Operator b = eq("b", 2);
+		Operator c = eq("c", 3);
+		assertCanonical(new Object[][] {
+				{ new And(new And(a, b), c), new And(a, b, c) },
+				{ new And(a, new And(b, c)), new And(a, b, c) },
+				{ new Or(new Or(a, b), c), new Or(a, b, c) },
+				// different operator types are not flattened
+				{ new And(new Or(a, b), c), new And(new Or(a, b), c) } });
+	}
+
+	@Test
+	public void testSortAndDeduplicate() {
+		Operator a = eq("a", 1);
+		Operator b = eq("b", 2);
+		Operator c = eq("c", 3);
+		assertCanonical(new Object[][] {
+				{ new And(b, a), new And(a, b) },
+				{ new And(c, a, b), new And(a, b, c) },
+				{ new Or(c, b, a), new Or(a, b, c) },
+				{ new And(a, b, a), new And(a, b) },
+				{ new Or(a, a), a },
+				// values of the same attribute are sorted too
+				{ new Or(eq("a", 2), eq("a", 1)),
+						new Or(eq("a", 1), eq("a", 2)) } });
+		assertEquals(OperatorCanonicalizer.canonicalize(new And(a, b, c)),
+				OperatorCanonicalizer.canonicalize(new And(new And(c, b), a)));
+	}
+
+	@Test
+	public void testIn() {
+		assertCanonical(new Object[][] {
+				{ in("x", 1), eq("x", 1) },
+				{ in("x", 3, 1, 2), in("x", 1, 2, 3) },
+				{ in("x", "b", "a"), in("x", "a", "b") } });
+		// the order of In values doesn't matter when comparing Operators, so
+		// make sure the values really were sorted
+		In in = (In) OperatorCanonicalizer.canonicalize(in("x", 3, 1, 2));
+		assertEquals(Arrays.asList(1, 2, 3), Arrays.asList(in.getValue()
+				.toArray()));
+	}
+
+	@Test
+	public void testDoubleNegative() {
+		Operator a = eq("a", 1);
+		assertCanonical(new Object[][] { { new Not(new Not(a)), a },
+				{ new Not(a), new Not(a) },
+				{ new Not(new Not(new Not(a))), new Not(a) },
+				{ new Not(in("x", 1)), new Not(eq("x", 1)) } });
+	}
+
+	@Test
+	public void testTrivialBranches() {
+		Operator a = eq("a", 1);
+		Operator b = eq("b", 2);
+		assertCanonical(new Object[][] {
+				{ new And(a, FALSE), FALSE },
+				{ new And(a, TRUE), a },
+				{ new And(a, b, TRUE), new And(a, b) },
+				{ new Or(a, TRUE), TRUE },
+				{ new Or(a, FALSE), a },
+				{ new Or(a, b, FALSE), new Or(a, b) },
+				{ new And(TRUE, TRUE), TRUE },
+				{ new Or(FALSE, FALSE), FALSE },
+				// a nested trivial branch collapses its parent
+				{ new Or(a, new And(b, FALSE)), a },
+				{ new And(a, new Or(b, TRUE)), a } });
+		assertTrue(OperatorCanonicalizer.isFalse(FALSE));
+		assertTrue(OperatorCanonicalizer.isTrue(TRUE));
+		assertFalse(OperatorCanonicalizer.isTrue(new Not(a)));
+	}
+}
@@ -0,0 +1,163 @@
+package org.abc.dash;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.GreaterThan;
+import com.pump.data.operator.In;
+import com.pump.data.operator.LesserThan;
+import com.pump.data.operator.Not;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.Or;
+
+public class OperatorSubsumptionTest extends TestCase {
+
+	private static Operator eq(String attribute, Comparable<?> value) {
+		return new EqualTo(attribute, value);
+	}
+
+	private static Operator gt(String attribute, Comparable<?> value) {
+		return new GreaterThan(attribute, value);
+	}
+
+	private static Operator lt(String attribute, Comparable<?> value) {
+		return new LesserThan(attribute, value);
+	}
+
+	/**
+	 * Return "attribute >= value".
+	 */
+	private static Operator ge(String attribute, Comparable<?> value) {
+		return new Not(lt(attribute, value));
+	}
+
+	/**
+	 * Return "attribute <= value".
+	 */
+	private static Operator le(String attribute, Comparable<?> value) {
+		return new Not(gt(attribute, value));
+	}
+
+	private static Operator in(String attribute, Object... values) {
+		return new In(attribute, new LinkedHashSet<>(Arrays.asList(values)));
+	}
+
+	/**
+	 * Assert whether each row's general Operator (the first element)
+	 * subsumes its specific Operator (the second element).
+	 */
+	private void assertSubsumes(Object[][] table) {
+		for (Object[] row : table) {
+			Operator general = (Operator) row[0];
+			Operator specific = (Operator) row[1];
+			boolean expected = (Boolean) row[2];
+			assertEquals("\"" + general + "\" subsumes \"" + specific + "\"",
+					expected, OperatorSubsumption.subsumes(general, specific));
+		}
+	}
+
+	@Test
+	public void testAndNarrowing() {
+		Operator a = eq("schoolOid", "A");
+		Operator b = eq("gradeLevel", "09");
+		Operator c = eq("homeroom", "101");
+		assertSubsumes(new Object[][] {
+				{ a, new And(a, b), true },
+				{ b, new And(a, b), true },
+				{ new And(a, b), new And(a, b, c), true },
+				{ new And(a, b), a, false },
+				{ new And(a, c), new And(a, b), false },
+				{ c, new And(a, b), false } });
+	}
+
+	@Test
+	public void testOrWidening() {
+		Operator a = eq("schoolOid", "A");
+		Operator b = eq("schoolOid", "B");
+		Operator c = eq("schoolOid", "C");
+		assertSubsumes(new Object[][] {
+				{ new Or(a, b), a, true },
+				{ new Or(a, b, c), new Or(a, b), true },
+				{ new Or(a, b), new Or(a, c), false },
+				{ a, new Or(a, b), false },
+				{ new Or(a, b), c, false } });
+	}
+
+	@Test
+	public void testInSubsets() {
+		assertSubsumes(new Object[][] {
+				{ in("x", 1, 2, 3), in("x", 1, 2), true },
+				{ in("x", 1, 2, 3), in("x", 1, 2, 3), true },
+				{ in("x", 1, 2), in("x", 1, 2, 3), false },
+				{ in("x", 1, 2), eq("x", 1), true },
+				{ in("x", 1, 2), eq("x", 4), false },
+				{ in("y", 1, 2), eq("x", 1), false },
+				{ eq("x", 1), in("x", 1, 2), false },
+				{ gt("x", 0), in("x", 1, 2), true },
+				{ gt("x", 1), in("x", 1, 2), false },
+				// an empty In matches nothing, but we don't claim containment
+				{ eq("x", 1), new In("x", Collections.emptySet()), false },
+				{ eq("x", 1), eq("x", null), false } });
+	}
+
+	@Test
+	public void testRanges() {
+		assertSubsumes(new Object[][] {
+				// lower bounds
+				{ gt("x", 3), gt("x", 5), true },
+				{ gt("x", 5), gt("x", 3), false },
+				{ ge("x", 3), ge("x", 5), true },
+				{ ge("x", 5), ge("x", 3), false },
+				// upper bounds
+				{ lt("x", 5), lt("x", 3), true },
+				{ lt("x", 3), lt("x", 5), false },
+				{ le("x", 5), le("x", 3), true },
+				{ le("x", 3), le("x", 5), false },
+				// opposite directions never contain each other
+				{ gt("x", 3), lt("x", 10), false },
+				{ le("x", 10), ge("x", 3), false },
+				// different attributes or incomparable values
+				{ gt("y", 3), gt("x", 5), false },
+				{ gt("x", 3), gt("x", "5"), false } });
+	}
+
+	@Test
+	public void testRangeBoundaries() {
+		assertSubsumes(new Object[][] {
+				// "x > 5" is contained in "x >= 5", but not vice versa
+				{ ge("x", 5), gt("x", 5), true },
+				{ gt("x", 5), ge("x", 5), false },
+				// "x < 5" is contained in "x <= 5", but not vice versa
+				{ le("x", 5), lt("x", 5), true },
+				{ lt("x", 5), le("x", 5), false },
+				// identical bounds
+				{ gt("x", 5), gt("x", 5), true },
+				{ ge("x", 5), ge("x", 5), true },
+				{ lt("x", 5), lt("x", 5), true },
+				{ le("x", 5), le("x", 5), true } });
+	}
+
+	@Test
+	public void testValuesInRanges() {
+		assertSubsumes(new Object[][] {
+				{ gt("x", 3), eq("x", 4), true },
+				{ gt("x", 4), eq("x", 4), false },
+				{ ge("x", 4), eq("x", 4), true },
+				{ ge("x", 5), eq("x", 4), false },
+				{ lt("x", 5), eq("x", 4), true },
+				{ lt("x", 4), eq("x", 4), false },
+				{ le("x", 4), eq("x", 4), true },
+				{ le("x", 3), eq("x", 4), false },
+				{ new And(gt("x", 3), lt("x", 5)), eq("x", 4), true },
+				{ new And(gt("x", 3), lt("x", 4)), eq("x", 4), false },
+				{ new Or(eq("x", 1), gt("x", 3)), eq("x", 4), true },
+				{ gt("x", 3), eq("x", null), false } });
+	}
+}
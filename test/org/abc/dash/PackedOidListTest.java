@@ -0,0 +1,70 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class PackedOidListTest extends TestCase {
+
+	@Test
+	public void testPacked() {
+		List<String> oids = Arrays.asList("STD0000001abcd", "STD0000002abcd",
+				"STD0000003abcd");
+		List<String> packed = PackedOidList.create(oids);
+		assertTrue(packed instanceof PackedOidList);
+		assertEquals(oids, packed);
+		assertEquals(packed, oids);
+		assertEquals(oids.hashCode(), packed.hashCode());
+		assertEquals(1, packed.indexOf("STD0000002abcd"));
+		assertTrue(packed.contains("STD0000003abcd"));
+		assertFalse(packed.contains("STD0000004abcd"));
+		assertFalse(packed.contains("STD000000"));
+		assertFalse(packed.contains(null));
+		assertEquals(new ArrayList<>(oids), new ArrayList<>(packed));
+	}
+
+	@Test
+	public void testDuplicates() {
+		List<String> oids = Arrays.asList("A1", "B2", "A1");
+		List<String> packed = PackedOidList.create(oids);
+		assertEquals(0, packed.indexOf("A1"));
+		assertEquals(2, packed.lastIndexOf("A1"));
+	}
+
+	/**
+	 * This makes sure oids that can't be packed are still stored faithfully.
+	 */
+	@Test
+	public void testUnpacked() {
+		List<String> mixedWidths = Arrays.asList("STD01", "STD012");
+		List<String> nonAscii = Arrays.asList("STD01", "STD\u00e901");
+		List<String> nulls = Arrays.asList("STD01", null);
+		for (List<String> oids : Arrays.asList(mixedWidths, nonAscii, nulls)) {
+			List<String> list = PackedOidList.create(oids);
+			assertFalse(list instanceof PackedOidList);
+			assertEquals(oids, list);
+		}
+		assertTrue(PackedOidList.create(new ArrayList<String>()).isEmpty());
+	}
+
+	@Test
+	public void testImmutable() {
+		List<String> packed = PackedOidList.create(Arrays.asList("A1", "B2"));
+		try {
+			packed.add("C3");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// pass
+		}
+		try {
+			packed.get(2);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// pass
+		}
+	}
+}
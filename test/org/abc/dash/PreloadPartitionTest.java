@@ -0,0 +1,166 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.abc.util.OrderByComparator;
+import org.apache.ojb.broker.metadata.FieldHelper;
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.Operator;
+
+public class PreloadPartitionTest extends TestCase {
+
+	public static class TestBean extends X2BaseBean {
+		private static final long serialVersionUID = 1L;
+
+		String oid;
+		String schoolOid;
+		Integer grade;
+
+		public TestBean(String oid, String schoolOid, Integer grade) {
+			this.oid = oid;
+			this.schoolOid = schoolOid;
+			this.grade = grade;
+		}
+
+		@Override
+		public String getOid() {
+			return oid;
+		}
+
+		public String getSchoolOid() {
+			return schoolOid;
+		}
+
+		public Integer getGrade() {
+			return grade;
+		}
+
+		@Override
+		public String toString() {
+			return oid;
+		}
+	}
+
+	private static final Operator SCHOOL_A = new EqualTo("schoolOid", "A");
+
+	private static PreloadPartition createPartition(boolean ordered) {
+		List<FieldHelper> fieldHelpers = new ArrayList<>();
+		if (ordered)
+			fieldHelpers.add(new FieldHelper("grade", true));
+		PreloadPartition partition = new PreloadPartition(TestBean.class,
+				SCHOOL_A, new OrderByComparator(false, fieldHelpers),
+				new String[] { "grade" });
+		partition.add(new TestBean("1", "A", 9));
+		partition.add(new TestBean("2", "A", 10));
+		partition.add(new TestBean("3", "A", 9));
+		partition.add(new TestBean("4", "A", null));
+		return partition;
+	}
+
+	/**
+	 * Assert that every bean in a partition is filed under exactly one value
+	 * of an index, and that value is the bean's current value.
+	 */
+	private void assertIndexed(PreloadPartition partition) {
+		Map<String, Integer> counts = new HashMap<>();
+		for (Object value : partition.indexes.get("grade").keySet()) {
+			for (X2BaseBean bean : partition.getBeans("grade",
+					Collections.singleton(value))) {
+				assertEquals(((TestBean) bean).getGrade(), value);
+				Integer count = counts.get(bean.getOid());
+				counts.put(bean.getOid(), count == null ? 1 : count + 1);
+			}
+		}
+		assertEquals(partition.beansByOid.keySet(), counts.keySet());
+		for (Integer count : counts.values()) {
+			assertEquals(1, count.intValue());
+		}
+		assertEquals(partition.size(), counts.size());
+	}
+
+	private static List<String> getOids(List<X2BaseBean> beans) {
+		List<String> oids = new ArrayList<>();
+		for (X2BaseBean bean : beans) {
+			oids.add(bean.getOid());
+		}
+		return oids;
+	}
+
+	@Test
+	public void testIndexes() {
+		PreloadPartition partition = createPartition(false);
+		assertEquals(4, partition.size());
+		assertIndexed(partition);
+
+		assertEquals(Arrays.asList("1", "3"),
+				getOids(partition.getBeans("grade", Arrays.asList(9))));
+		assertEquals(Arrays.asList("4"), getOids(partition.getBeans("grade",
+				Collections.singleton(null))));
+		assertEquals(0, partition.getBeans("grade", Arrays.asList(11))
+				.size());
+		assertEquals(3, partition.getBeans("grade", Arrays.asList(9, 10))
+				.size());
+
+		// we can't answer questions about attributes we didn't index, or
+		// about values that don't resemble the values we indexed
+		assertNull(partition.getBeans("schoolOid", Arrays.asList("A")));
+		assertNull(partition.getBeans("grade", Arrays.asList("9")));
+	}
+
+	/**
+	 * This makes sure a saved bean moves to its new index value, and a bean
+	 * that no longer satisfies the partition's Operator leaves the partition.
+	 */
+	@Test
+	public void testUpdate() {
+		PreloadPartition partition = createPartition(false);
+
+		assertTrue(partition.update("1", new TestBean("1", "A", 11)));
+		assertIndexed(partition);
+		assertEquals(Arrays.asList("3"),
+				getOids(partition.getBeans("grade", Arrays.asList(9))));
+		assertEquals(Arrays.asList("1"),
+				getOids(partition.getBeans("grade", Arrays.asList(11))));
+
+		// this bean moved to another school
+		assertTrue(partition.update("2", new TestBean("2", "B", 10)));
+		assertIndexed(partition);
+		assertEquals(3, partition.size());
+		assertEquals(0, partition.getBeans("grade", Arrays.asList(10))
+				.size());
+
+		// this bean moved into this partition
+		assertTrue(partition.update("5", new TestBean("5", "A", 10)));
+		assertIndexed(partition);
+		assertEquals(4, partition.size());
+
+		// deleted beans are removed
+		assertTrue(partition.update("4", null));
+		assertIndexed(partition);
+		assertEquals(3, partition.size());
+		assertTrue(partition.update("6", null));
+		assertEquals(3, partition.size());
+	}
+
+	/**
+	 * An ordered partition can't tell where a saved bean belongs, so it should
+	 * ask to be discarded.
+	 */
+	@Test
+	public void testOrderedUpdate() {
+		PreloadPartition partition = createPartition(true);
+		assertTrue(partition.update("1", null));
+		assertTrue(partition.update("2", new TestBean("2", "B", 10)));
+		assertFalse(partition.update("3", new TestBean("3", "A", 12)));
+	}
+}
@@ -0,0 +1,206 @@
+package org.abc.dash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.abc.dash.Dash.CacheResults;
+import org.abc.dash.Dash.TemplateQueryProfile;
+import org.abc.dash.Dash.TemplateQueryProfileKey;
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.BeanManager.PersistenceKey;
+
+public class ProfileSnapshotTest extends TestCase {
+
+	private Map<TemplateQueryProfileKey, TemplateQueryProfile> createProfiles() {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> profiles = new HashMap<>();
+		TemplateQueryProfile profile = new TemplateQueryProfile();
+		for (int a = 0; a < 25; a++) {
+			profile.closedIterator(a, false);
+		}
+		profile.getResults().increment(CacheResults.Type.QUERY_HIT);
+		profiles.put(new TemplateQueryProfileKey(null, String.class), profile);
+		return profiles;
+	}
+
+	private byte[] write(String deploymentId) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, ProfileSnapshot.write(out, deploymentId,
+				createProfiles()));
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[] data = write("deployment-1");
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> profiles = ProfileSnapshot
+				.read(new ByteArrayInputStream(data), "deployment-1",
+						ProfileSnapshot.DEFAULT_MAX_AGE);
+		assertEquals(1, profiles.size());
+		TemplateQueryProfile profile = profiles
+				.get(new TemplateQueryProfileKey(null, String.class));
+		assertEquals(25, profile.getCounter());
+		assertEquals(24, profile.getMaxReturnCount());
+		assertEquals(1, profile.getResults().getCount(
+				CacheResults.Type.QUERY_HIT));
+	}
+
+	/**
+	 * This makes sure snapshots from other deployments, older snapshots, and
+	 * other versions are ignored.
+	 */
+	@Test
+	public void testIgnoredSnapshots() throws IOException {
+		byte[] data = write("deployment-1");
+		assertTrue(ProfileSnapshot.read(new ByteArrayInputStream(data),
+				"deployment-2", ProfileSnapshot.DEFAULT_MAX_AGE).isEmpty());
+		assertTrue(ProfileSnapshot.read(new ByteArrayInputStream(data),
+				"deployment-1", -1).isEmpty());
+
+		// the version is the second int:
+		data[7]++;
+		assertTrue(ProfileSnapshot.read(new ByteArrayInputStream(data),
+				"deployment-1", ProfileSnapshot.DEFAULT_MAX_AGE).isEmpty());
+	}
+
+	/**
+	 * This makes sure a corrupt profile is skipped.
+	 */
+	@Test
+	public void testCorruptProfile() throws IOException {
+		byte[] data = write("deployment-1");
+		// corrupt the last few bytes of the only profile
+		for (int a = data.length - 10; a < data.length; a++) {
+			data[a] = 0;
+		}
+		assertTrue(ProfileSnapshot.read(new ByteArrayInputStream(data),
+				"deployment-1", ProfileSnapshot.DEFAULT_MAX_AGE).isEmpty());
+
+		try {
+			ProfileSnapshot.read(new ByteArrayInputStream(new byte[20]),
+					"deployment-1", ProfileSnapshot.DEFAULT_MAX_AGE);
+			fail();
+		} catch (IOException e) {
+			// pass
+		}
+	}
+
+	/**
+	 * This makes sure a negative or huge profile length is treated as a
+	 * corrupt snapshot instead of being allocated.
+	 */
+	@Test
+	public void testCorruptLength() throws IOException {
+		byte[] data = write("deployment-1");
+		// the header is: magic, version, UTF deployment id, timestamp, count
+		int lengthIndex = 4 + 4 + 2 + "deployment-1".length() + 8 + 4;
+		for (int value : new int[] { -1, Integer.MAX_VALUE }) {
+			data[lengthIndex] = (byte) (value >>> 24);
+			data[lengthIndex + 1] = (byte) (value >>> 16);
+			data[lengthIndex + 2] = (byte) (value >>> 8);
+			data[lengthIndex + 3] = (byte) value;
+			try {
+				ProfileSnapshot.read(new ByteArrayInputStream(data),
+						"deployment-1", ProfileSnapshot.DEFAULT_MAX_AGE);
+				fail();
+			} catch (IOException e) {
+				// pass
+			}
+		}
+	}
+
+	/**
+	 * This makes sure profiles that haven't been used recently are dropped
+	 * when a snapshot is written or read.
+	 */
+	@Test
+	public void testStaleProfiles() throws IOException {
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> profiles = createProfiles();
+		TemplateQueryProfile staleProfile = new TemplateQueryProfile();
+		staleProfile.lastUsed -= 2 * ProfileSnapshot.DEFAULT_MAX_AGE;
+		profiles.put(new TemplateQueryProfileKey(null, Integer.class),
+				staleProfile);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, ProfileSnapshot.write(out, "deployment-1", profiles));
+
+		// if the profiles are written with a generous maximum age, they can
+		// still be dropped when they are read
+		out = new ByteArrayOutputStream();
+		assertEquals(2, ProfileSnapshot.write(out, "deployment-1", profiles,
+				Long.MAX_VALUE));
+		Map<TemplateQueryProfileKey, TemplateQueryProfile> readProfiles = ProfileSnapshot
+				.read(new ByteArrayInputStream(out.toByteArray()),
+						"deployment-1", ProfileSnapshot.DEFAULT_MAX_AGE);
+		assertEquals(1, readProfiles.size());
+		assertTrue(readProfiles.containsKey(new TemplateQueryProfileKey(null,
+				String.class)));
+	}
+
+	/**
+	 * This makes sure retired profiles aren't saved, so retirement doesn't
+	 * outlive the tool run that observed it.
+	 */
+	@Test
+	public void testRetiredProfilesNotSaved() throws IOException {
+		TemplateQueryProfile retiredProfile = new TemplateQueryProfile();
+		for (int a = 0; a < 200; a++) {
+			retiredProfile.closedIterator(1, false);
+			retiredProfile.getResults().increment(CacheResults.Type.QUERY_MISS);
+		}
+		Dash dash = new Dash(new PersistenceKey(), new StripedCachePool(100,
+				60000));
+		assertTrue(dash.getCachePolicy().isRetired(retiredProfile));
+		dash.profiles.put(new TemplateQueryProfileKey(null, Integer.class),
+				retiredProfile);
+		dash.profiles.put(new TemplateQueryProfileKey(null, String.class),
+				createProfiles().values().iterator().next());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, dash.saveProfiles(out));
+	}
+
+	/**
+	 * This makes sure saving profiles doesn't discard the profiles an earlier
+	 * snapshot contained, even after the loaded profiles would have expired
+	 * from the cache.
+	 */
+	@Test
+	public void testSaveMergesExistingSnapshot() throws IOException {
+		File file = File.createTempFile("ProfileSnapshotTest", ".ser");
+		try {
+			PersistenceKey persistenceKey = new PersistenceKey();
+			Dash dash1 = new Dash(persistenceKey, new StripedCachePool(100,
+					60000));
+			dash1.profiles.put(new TemplateQueryProfileKey(null, String.class),
+					createProfiles().values().iterator().next());
+			assertEquals(1, dash1.saveProfiles(file));
+
+			Dash dash2 = new Dash(persistenceKey, new StripedCachePool(100,
+					60000), file);
+			assertEquals(1, dash2.snapshotProfiles.size());
+			// simulate the loaded profile being used and then expiring:
+			dash2.snapshotProfiles.clear();
+			dash2.profiles.put(
+					new TemplateQueryProfileKey(null, Integer.class),
+					new TemplateQueryProfile());
+			dash2.close();
+
+			Dash dash3 = new Dash(persistenceKey, new StripedCachePool(100,
+					60000), file);
+			assertEquals(2, dash3.snapshotProfiles.size());
+			assertEquals(25,
+					dash3.snapshotProfiles.get(
+							new TemplateQueryProfileKey(null, String.class))
+							.getCounter());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.abc.dash;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.QueryIterator;
+
+public class ReadAheadQueryIteratorTest extends TestCase {
+
+	/**
+	 * This returns integers from 0 to (size-1), and optionally sleeps before
+	 * producing each element to simulate database latency.
+	 */
+	static class SlowIterator extends QueryIterator<Integer> {
+		final int size;
+		final long delay;
+		int ctr = 0;
+		volatile boolean closed = false;
+		volatile Thread openingThread;
+		volatile Thread closingThread;
+
+		SlowIterator(int size, long delay) {
+			this.size = size;
+			this.delay = delay;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return ctr < size;
+		}
+
+		@Override
+		public Integer next() {
+			if (ctr == size)
+				throw new NoSuchElementException();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			if (ctr == 13 && size == 14)
+				throw new IllegalStateException("failure for testing");
+			return ctr++;
+		}
+
+		@Override
+		public void close() {
+			closingThread = Thread.currentThread();
+			closed = true;
+		}
+	}
+
+	/**
+	 * Create a ReadAheadQueryIterator that reads from a SlowIterator.
+	 */
+	private static ReadAheadQueryIterator<Integer> create(
+			final SlowIterator source, int capacity) {
+		return new ReadAheadQueryIterator<>(
+				new Callable<QueryIterator<Integer>>() {
+					@Override
+					public QueryIterator<Integer> call() {
+						source.openingThread = Thread.currentThread();
+						return source;
+					}
+				}, null, capacity);
+	}
+
+	/**
+	 * This makes sure elements arrive in order, and the source is only
+	 * opened and closed by the helper thread.
+	 */
+	@Test
+	public void testOrder() throws Exception {
+		SlowIterator source = new SlowIterator(1000, 0);
+		try (ReadAheadQueryIterator<Integer> iter = create(source, 16)) {
+			for (int a = 0; a < 1000; a++) {
+				assertTrue(iter.hasNext());
+				assertEquals(a, iter.next().intValue());
+			}
+			assertFalse(iter.hasNext());
+		}
+		waitForClose(source);
+		assertTrue(source.openingThread != Thread.currentThread());
+		assertTrue(source.closingThread == source.openingThread);
+	}
+
+	/**
+	 * This makes sure reading ahead overlaps the source's latency with the
+	 * consumer's work.
+	 */
+	@Test
+	public void testOverlap() {
+		SlowIterator source = new SlowIterator(50, 5);
+		long t = System.currentTimeMillis();
+		try (ReadAheadQueryIterator<Integer> iter = create(source, 8)) {
+			while (iter.hasNext()) {
+				iter.next();
+				sleep(5);
+			}
+		}
+		t = System.currentTimeMillis() - t;
+		// sequentially this would take 500 ms
+		assertTrue("elapsed: " + t, t < 450);
+	}
+
+	/**
+	 * This makes sure failures to open or read the source reach the consumer.
+	 */
+	@Test
+	public void testFailure() {
+		try (ReadAheadQueryIterator<Integer> iter = new ReadAheadQueryIterator<>(
+				new Callable<QueryIterator<Integer>>() {
+					@Override
+					public QueryIterator<Integer> call() {
+						throw new IllegalStateException("failure for testing");
+					}
+				}, null, 4)) {
+			iter.hasNext();
+			fail();
+		} catch (IllegalStateException e) {
+			// pass
+		}
+
+		SlowIterator source = new SlowIterator(14, 0);
+		try (ReadAheadQueryIterator<Integer> iter = create(source, 4)) {
+			for (int a = 0; a < 13; a++) {
+				assertEquals(a, iter.next().intValue());
+			}
+			iter.hasNext();
+			fail();
+		} catch (IllegalStateException e) {
+			// pass
+		}
+	}
+
+	@Test
+	public void testInterrupt() throws Exception {
+		SlowIterator source = new SlowIterator(100, 50);
+		try (ReadAheadQueryIterator<Integer> iter = create(source, 4)) {
+			Thread.currentThread().interrupt();
+			iter.hasNext();
+			fail();
+		} catch (CancellationException e) {
+			// pass
+		} finally {
+			Thread.interrupted();
+		}
+		waitForClose(source);
+	}
+
+	/**
+	 * This makes sure the helper thread exits if the iterator is abandoned
+	 * without being closed.
+	 */
+	@Test
+	public void testAbandoned() throws Exception {
+		SlowIterator source = new SlowIterator(1000, 0);
+		ReadAheadQueryIterator<Integer> iter = create(source, 4);
+		iter.next();
+		iter = null;
+		for (int a = 0; a < 50 && !source.closed; a++) {
+			System.gc();
+			sleep(100);
+		}
+		assertTrue(source.closed);
+	}
+
+	private void waitForClose(SlowIterator source) {
+		for (int a = 0; a < 50 && !source.closed; a++) {
+			sleep(20);
+		}
+		assertTrue(source.closed);
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
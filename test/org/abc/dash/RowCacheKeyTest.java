@@ -0,0 +1,86 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.abc.dash.Dash.CacheKey;
+import org.abc.dash.Dash.RowCacheKey;
+import org.abc.dash.Dash.RowTemplateQueryProfileKey;
+import org.abc.dash.Dash.TemplateQueryProfileKey;
+import org.abc.util.OrderByComparator;
+import org.apache.ojb.broker.metadata.FieldHelper;
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.BeanManager.PersistenceKey;
+
+public class RowCacheKeyTest extends TestCase {
+
+	private static OrderByComparator createOrderBy() {
+		return new OrderByComparator(false, new ArrayList<FieldHelper>());
+	}
+
+	/**
+	 * This makes sure RowCacheKeys are only equal if they request the same
+	 * columns in the same order.
+	 */
+	@Test
+	public void testColumns() {
+		RowCacheKey k1 = new RowCacheKey(null, createOrderBy(), false,
+				new String[] { "stdIDLocal", "stdGradeLevel" });
+		RowCacheKey k2 = new RowCacheKey(null, createOrderBy(), false,
+				new String[] { "stdIDLocal", "stdGradeLevel" });
+		RowCacheKey k3 = new RowCacheKey(null, createOrderBy(), false,
+				new String[] { "stdGradeLevel", "stdIDLocal" });
+		RowCacheKey k4 = new RowCacheKey(null, createOrderBy(), true,
+				new String[] { "stdIDLocal", "stdGradeLevel" });
+
+		assertEquals(k1, k2);
+		assertEquals(k1.hashCode(), k2.hashCode());
+		assertFalse(k1.equals(k3));
+		assertFalse(k1.equals(k4));
+		assertFalse(k1.equals(new CacheKey(null, createOrderBy(), false)));
+	}
+
+	/**
+	 * This makes sure column queries only share a TemplateQueryProfile if they
+	 * request the same columns, and never share a bean query's profile.
+	 */
+	@Test
+	public void testProfileKeyColumns() {
+		RowTemplateQueryProfileKey k1 = new RowTemplateQueryProfileKey(null,
+				String.class, new String[] { "stdIDLocal" });
+		RowTemplateQueryProfileKey k2 = new RowTemplateQueryProfileKey(null,
+				String.class, new String[] { "stdIDLocal" });
+		RowTemplateQueryProfileKey k3 = new RowTemplateQueryProfileKey(null,
+				String.class, new String[] { "stdGradeLevel" });
+
+		assertEquals(k1, k2);
+		assertEquals(k1.hashCode(), k2.hashCode());
+		assertFalse(k1.equals(k3));
+		assertFalse(k1.equals(new TemplateQueryProfileKey(null, String.class)));
+	}
+
+	/**
+	 * This makes sure rows are cached in their own, smaller pool.
+	 */
+	@Test
+	public void testRowCachePool() {
+		StripedCachePool cachePool = new StripedCachePool(100, 60000);
+		Dash dash = new Dash(new PersistenceKey(), cachePool);
+		assertSame(cachePool, dash.getDashCachePool());
+		StripedCachePool rowCachePool = (StripedCachePool) dash
+				.getRowCachePool();
+		assertNotSame(cachePool, rowCachePool);
+		assertEquals(100 / Dash.ROW_CACHE_DIVISOR,
+				rowCachePool.getMaxCacheSize());
+		assertEquals(60000, rowCachePool.getMaxCacheDuration());
+
+		dash.getRowCache(String.class, true).put(
+				new RowCacheKey(null, createOrderBy(), false,
+						new String[] { "stdIDLocal" }),
+				new ArrayList<Object[]>());
+		assertEquals(1, rowCachePool.size());
+		assertEquals(0, cachePool.size());
+	}
+}
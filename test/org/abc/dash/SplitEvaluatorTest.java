@@ -0,0 +1,212 @@
+package org.abc.dash;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+import com.pump.data.operator.And;
+import com.pump.data.operator.EqualTo;
+import com.pump.data.operator.GreaterThan;
+import com.pump.data.operator.In;
+import com.pump.data.operator.LesserThan;
+import com.pump.data.operator.Not;
+import com.pump.data.operator.Operator;
+import com.pump.data.operator.OperatorContext;
+
+public class SplitEvaluatorTest extends TestCase {
+
+	static class TestBean extends X2BaseBean {
+		private static final long serialVersionUID = 1L;
+
+		String oid;
+		Map<String, Object> values = new HashMap<>();
+
+		TestBean(String oid, Object... keysAndValues) {
+			this.oid = oid;
+			for (int a = 0; a < keysAndValues.length; a += 2) {
+				values.put((String) keysAndValues[a], keysAndValues[a + 1]);
+			}
+		}
+
+		@Override
+		public String getOid() {
+			return oid;
+		}
+
+		@Override
+		public String toString() {
+			return oid;
+		}
+	}
+
+	/**
+	 * This reads attributes from a TestBean, and throws an exception for the
+	 * attribute "broken".
+	 */
+	private static final OperatorContext CONTEXT = new OperatorContext() {
+		@Override
+		public Object getValue(Object dataSource, String attributeName) {
+			if ("broken".equals(attributeName))
+				throw new IllegalStateException();
+			return ((TestBean) dataSource).values.get(attributeName);
+		}
+	};
+
+	private static List<X2BaseBean> createBeans() {
+		return Arrays.<X2BaseBean> asList(
+				new TestBean("1", "grade", 9, "name", "Abhi", "amount",
+						new BigDecimal("1.0")),
+				new TestBean("2", "grade", 10, "name", "Hana", "amount",
+						new BigDecimal("1.00")),
+				new TestBean("3", "grade", 11, "name", null, "amount", null),
+				new TestBean("4", "grade", null, "name", "Tomas"),
+				new TestBean("5", "grade", 12, "name", "Hana", "amount",
+						new BigDecimal("2.5")));
+	}
+
+	private static In in(String attribute, Object... values) {
+		return new In(attribute, new LinkedHashSet<>(Arrays.asList(values)));
+	}
+
+	/**
+	 * Assert that a SplitEvaluator produces the same results as calling
+	 * {@link Operator#evaluate(OperatorContext, Object)} for every Operator
+	 * and bean. Operators that throw an exception for any bean should be
+	 * omitted.
+	 *
+	 * @return the number of times the UncaughtExceptionHandler was notified.
+	 */
+	private int assertParity(Operator... operators) {
+		List<X2BaseBean> beans = createBeans();
+		Map<Operator, List<String>> expected = new HashMap<>();
+		for (Operator operator : operators) {
+			List<String> oids = new ArrayList<>();
+			try {
+				for (X2BaseBean bean : beans) {
+					if (operator.evaluate(CONTEXT, bean))
+						oids.add(bean.getOid());
+				}
+				expected.put(operator, oids);
+			} catch (Exception e) {
+				// this Operator should be omitted
+			}
+		}
+
+		final List<Throwable> errors = new ArrayList<>();
+		SplitEvaluator evaluator = new SplitEvaluator(CONTEXT,
+				Arrays.asList(operators));
+		Map<Operator, List<String>> actual = evaluator.evaluate(beans,
+				new UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread t, Throwable e) {
+						errors.add(e);
+					}
+				});
+		assertEquals(expected, actual);
+		assertEquals(operators.length - expected.size(), errors.size());
+		return errors.size();
+	}
+
+	@Test
+	public void testEqualTo() {
+		assertParity(new EqualTo("grade", 9), new EqualTo("grade", 10),
+				new EqualTo("name", "Hana"), new EqualTo("grade", 99),
+				new EqualTo("name", "Abhi"));
+	}
+
+	@Test
+	public void testIn() {
+		assertParity(in("grade", 9, 12), in("grade", 10),
+				in("name", "Abhi", "Tomas"), new EqualTo("grade", 12),
+				in("grade"));
+	}
+
+	@Test
+	public void testRanges() {
+		assertParity(new GreaterThan("grade", 9), new GreaterThan("grade", 11),
+				new GreaterThan("grade", 10), new LesserThan("grade", 11),
+				new LesserThan("grade", 9), new LesserThan("grade", 13),
+				new GreaterThan("name", "B"), new LesserThan("name", "Z"));
+	}
+
+	/**
+	 * This makes sure beans with null values, and operators that test for
+	 * null, are evaluated the same way Operator.evaluate() evaluates them.
+	 */
+	@Test
+	public void testNulls() {
+		assertParity(new EqualTo("name", null), in("name", null, "Hana"),
+				new GreaterThan("grade", 10), new LesserThan("grade", 10),
+				new GreaterThan("grade", null), new LesserThan("name", null),
+				new EqualTo("grade", null));
+	}
+
+	/**
+	 * BigDecimals (and other types whose equals() disagrees with compareTo())
+	 * can't be looked up in a HashMap, so they should be evaluated the usual
+	 * way.
+	 */
+	@Test
+	public void testUnsupportedTypes() {
+		assertParity(new EqualTo("amount", new BigDecimal("1.0")),
+				in("amount", new BigDecimal("1.00"), new BigDecimal("2.5")),
+				in("amount", new BigDecimal("2.5"), 3),
+				new GreaterThan("amount", new BigDecimal("1")),
+				new LesserThan("amount", new BigDecimal("2")));
+	}
+
+	/**
+	 * Operators that aren't EqualTo, In, GreaterThan or LesserThan should be
+	 * evaluated the usual way alongside the others.
+	 */
+	@Test
+	public void testGenericOperators() {
+		assertParity(new Not(new EqualTo("grade", 9)), new And(
+				new GreaterThan("grade", 9), new EqualTo("name", "Hana")),
+				new EqualTo("grade", 9));
+	}
+
+	/**
+	 * If a value can't be compared to our boundaries (or our boundaries can't
+	 * be compared to each other) then the range terms should fall back to
+	 * Operator.evaluate(), and the terms that throw exceptions should be
+	 * omitted.
+	 */
+	@Test
+	public void testRangeFallback() {
+		// "name" values are Strings, so these bounds throw a
+		// ClassCastException
+		assertEquals(
+				2,
+				assertParity(new GreaterThan("name", 5), new LesserThan(
+						"name", 5), new EqualTo("name", "Hana")));
+
+		// these bounds can't be sorted
+		assertParity(new GreaterThan("grade", 10), new GreaterThan("grade",
+				"x"));
+	}
+
+	/**
+	 * If an attribute can't be read then every Operator that tests that
+	 * attribute should be omitted, and every other Operator should still be
+	 * evaluated.
+	 */
+	@Test
+	public void testAttributeFailure() {
+		assertEquals(
+				3,
+				assertParity(new EqualTo("broken", 1), in("broken", 1, 2),
+						new GreaterThan("broken", 3), new EqualTo("grade", 10),
+						new LesserThan("grade", 11)));
+	}
+}
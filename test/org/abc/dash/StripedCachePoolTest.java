@@ -0,0 +1,261 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class StripedCachePoolTest extends TestCase {
+
+	/**
+	 * This makes sure the total number of entries across several caches never
+	 * exceeds the pool's maximum size.
+	 */
+	@Test
+	public void testMaxSize() {
+		StripedCachePool pool = new StripedCachePool(100, 60000);
+		DashCache<Integer, String> c1 = pool.createCache();
+		DashCache<Integer, String> c2 = pool.createCache();
+		for (int a = 0; a < 1000; a++) {
+			c1.put(a, "c1-" + a);
+			c2.put(a, "c2-" + a);
+			assertTrue(pool.size() <= 100);
+		}
+		assertEquals(100, pool.size());
+		assertEquals(100, c1.size() + c2.size());
+	}
+
+	/**
+	 * This makes sure caches are still usable (and still bounded by the pool)
+	 * after the pool is cleared.
+	 */
+	@Test
+	public void testClear() {
+		StripedCachePool pool = new StripedCachePool(10, 60000);
+		DashCache<Integer, String> c1 = pool.createCache();
+		DashCache<Integer, String> c2 = pool.createCache();
+		for (int a = 0; a < 5; a++) {
+			c1.put(a, "c1-" + a);
+			c2.put(a, "c2-" + a);
+		}
+		pool.clear();
+		assertEquals(0, pool.size());
+		assertEquals(0, c1.size());
+		assertNull(c1.get(0));
+
+		DashCache<Integer, String> c3 = pool.createCache();
+		for (int a = 0; a < 5; a++) {
+			c2.put(a, "c2-" + a);
+			c3.put(a, "c3-" + a);
+			assertEquals("c2-" + a, c2.get(a));
+			assertEquals("c3-" + a, c3.get(a));
+		}
+		assertEquals(10, pool.size());
+
+		for (int a = 0; a < 100; a++) {
+			c1.put(a, "c1-" + a);
+			assertTrue(pool.size() <= 10);
+		}
+		assertEquals(10, c1.size() + c2.size() + c3.size());
+	}
+
+	/**
+	 * This makes sure a weighed pool stays within its budget of estimated
+	 * bytes, and it counts the entries it evicts to stay within that budget.
+	 */
+	@Test
+	public void testMaxWeight() {
+		CacheWeigher weigher = new CacheWeigher() {
+			@Override
+			public long getWeight(Object key, Object value) {
+				return ((List<?>) value).size();
+			}
+		};
+		StripedCachePool pool = new StripedCachePool(1000, 60000, 4, 100,
+				weigher);
+		final AtomicInteger listenerCount = new AtomicInteger();
+		pool.addBudgetListener(new StripedCachePool.BudgetListener() {
+			@Override
+			public void evictedOverBudget(Object key, Object value, long weight) {
+				listenerCount.incrementAndGet();
+			}
+		});
+		DashCache<Integer, List<Integer>> cache = pool.createCache();
+		for (int a = 0; a < 100; a++) {
+			List<Integer> list = new ArrayList<>();
+			for (int b = 0; b < a % 10; b++) {
+				list.add(b);
+			}
+			cache.put(a, list);
+			assertTrue(pool.getWeight() <= 100);
+		}
+		assertTrue(pool.getBudgetEvictionCount() > 0);
+		assertEquals(pool.getBudgetEvictionCount(), listenerCount.get());
+
+		long weight = 0;
+		for (Integer key : cache.getKeys()) {
+			weight += cache.get(key).size();
+		}
+		assertEquals(weight, pool.getWeight());
+
+		// an entry that exceeds the budget by itself is never stored
+		List<Integer> hugeList = new ArrayList<>();
+		for (int b = 0; b < 101; b++) {
+			hugeList.add(b);
+		}
+		long evictions = pool.getBudgetEvictionCount();
+		assertNull(cache.put(-1, hugeList));
+		assertNull(cache.get(-1));
+		assertEquals(evictions + 1, pool.getBudgetEvictionCount());
+
+		cache.clear();
+		assertEquals(0, pool.getWeight());
+	}
+
+	/**
+	 * This makes sure entries that are read survive eviction longer than
+	 * entries that are never read.
+	 */
+	@Test
+	public void testRecentlyReadEntriesSurvive() {
+		StripedCachePool pool = new StripedCachePool(50, 60000, 1);
+		DashCache<Integer, String> cache = pool.createCache();
+		for (int a = 0; a < 50; a++) {
+			cache.put(a, Integer.toString(a));
+		}
+		for (int b = 50; b < 90; b++) {
+			assertEquals("0", cache.get(0));
+			cache.put(b, Integer.toString(b));
+		}
+		assertEquals("0", cache.get(0));
+		assertNull(cache.get(1));
+	}
+
+	/**
+	 * This makes sure peeking at an entry doesn't give it a second chance.
+	 */
+	@Test
+	public void testPeekDoesNotReference() {
+		StripedCachePool pool = new StripedCachePool(50, 60000, 1);
+		DashCache<Integer, String> cache = pool.createCache();
+		for (int a = 0; a < 50; a++) {
+			cache.put(a, Integer.toString(a));
+		}
+		for (int a = 0; a < 50; a++) {
+			assertEquals(Integer.toString(a), cache.peek(a));
+		}
+		cache.put(50, "50");
+		assertNull(cache.peek(0));
+		assertEquals("1", cache.peek(1));
+	}
+
+	/**
+	 * This makes sure replace only succeeds if the key is still mapped to the
+	 * value we expect.
+	 */
+	@Test
+	public void testReplace() {
+		StripedCachePool pool = new StripedCachePool(100, 60000);
+		DashCache<String, String> cache = pool.createCache();
+		String v1 = new String("1");
+		assertFalse(cache.replace("a", v1, "2"));
+		assertNull(cache.get("a"));
+
+		cache.put("a", v1);
+		// values are compared by identity, not equality
+		assertFalse(cache.replace("a", new String("1"), "2"));
+		assertEquals("1", cache.get("a"));
+
+		assertTrue(cache.replace("a", v1, "2"));
+		assertEquals("2", cache.get("a"));
+		assertFalse(cache.replace("a", v1, "3"));
+		assertEquals("2", cache.get("a"));
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		StripedCachePool pool = new StripedCachePool(100, 50);
+		DashCache<String, String> cache = pool.createCache();
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		Thread.sleep(100);
+		assertNull(cache.get("a"));
+		assertEquals(0, pool.size());
+
+		cache.put("b", "2");
+		Thread.sleep(100);
+		pool.purge();
+		assertEquals(0, cache.size());
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void testPutIfAbsent() {
+		StripedCachePool pool = new StripedCachePool(100, 60000);
+		DashCache<String, String> cache = pool.createCache();
+		assertNull(cache.putIfAbsent("a", "1"));
+		assertEquals("1", cache.putIfAbsent("a", "2"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("1", cache.put("a", "3"));
+		assertEquals("3", cache.remove("a"));
+		assertEquals(0, pool.size());
+	}
+
+	/**
+	 * This has several threads read and write the same caches, and then
+	 * confirms the pool's size is still consistent.
+	 */
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final StripedCachePool pool = new StripedCachePool(500, 60000);
+		final List<DashCache<Integer, Integer>> caches = new ArrayList<>();
+		for (int a = 0; a < 4; a++) {
+			DashCache<Integer, Integer> cache = pool.createCache();
+			caches.add(cache);
+		}
+		final AtomicInteger errors = new AtomicInteger(0);
+		Thread[] threads = new Thread[8];
+		for (int a = 0; a < threads.length; a++) {
+			final int seed = a;
+			threads[a] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int b = 0; b < 20000; b++) {
+							DashCache<Integer, Integer> cache = caches
+									.get((b + seed) % caches.size());
+							Integer key = (b * 31 + seed) % 2000;
+							Integer value = cache.get(key);
+							if (value != null && !value.equals(key))
+								errors.incrementAndGet();
+							if (b % 3 == 0) {
+								cache.remove(key);
+							} else {
+								cache.put(key, key);
+							}
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[a].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, errors.get());
+		int total = 0;
+		for (DashCache<Integer, Integer> cache : caches) {
+			total += cache.size();
+		}
+		assertEquals(total, pool.size());
+		assertTrue(pool.size() <= 500);
+	}
+}
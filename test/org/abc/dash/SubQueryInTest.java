@@ -0,0 +1,38 @@
+package org.abc.dash;
+
+import junit.framework.TestCase;
+
+import org.apache.ojb.broker.query.Criteria;
+import org.apache.ojb.broker.query.ReportQueryByCriteria;
+import org.junit.Test;
+
+import com.pump.data.operator.Operator;
+
+public class SubQueryInTest extends TestCase {
+
+	private static ReportQueryByCriteria createSubQuery() {
+		return new ReportQueryByCriteria(String.class,
+				new String[] { "oid" }, new Criteria());
+	}
+
+	/**
+	 * This makes sure the template doesn't depend on the subquery, so
+	 * repeated queries share the same TemplateQueryProfile before their
+	 * subqueries are resolved.
+	 */
+	@Test
+	public void testTemplate() {
+		SubQueryIn a = new SubQueryIn("schoolOid", createSubQuery());
+		SubQueryIn b = new SubQueryIn("schoolOid", createSubQuery());
+		SubQueryIn c = new SubQueryIn("homeroom", createSubQuery());
+
+		Operator template = a.getTemplateOperator();
+		assertEquals(template, b.getTemplateOperator());
+		assertEquals(template.hashCode(), b.getTemplateOperator().hashCode());
+		assertFalse(template.equals(c.getTemplateOperator()));
+		assertFalse(template.equals(a));
+		assertSame(template, template.getTemplateOperator());
+		assertNull(((SubQueryIn) template).getSubQuery());
+		assertEquals("schoolOid IN (?)", template.toString());
+	}
+}
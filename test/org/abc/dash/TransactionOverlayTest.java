@@ -0,0 +1,85 @@
+package org.abc.dash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.abc.util.OrderByComparator;
+import org.apache.ojb.broker.metadata.FieldHelper;
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+
+public class TransactionOverlayTest extends TestCase {
+
+	static class TestBean extends X2BaseBean {
+		private static final long serialVersionUID = 1L;
+
+		String oid;
+
+		TestBean(String oid) {
+			this.oid = oid;
+		}
+
+		@Override
+		public String getOid() {
+			return oid;
+		}
+	}
+
+	static class OtherBean extends TestBean {
+		private static final long serialVersionUID = 1L;
+
+		OtherBean(String oid) {
+			super(oid);
+		}
+	}
+
+	@Test
+	public void testRecordWrites() {
+		TransactionOverlay overlay = new TransactionOverlay();
+		TestBean b1 = new TestBean("TST000001");
+		overlay.saveBean(b1);
+		overlay.deleteBean(TestBean.class, "TST000002");
+
+		assertTrue(overlay.isModified(TestBean.class));
+		assertTrue(overlay.isPatchable(TestBean.class));
+		assertTrue(overlay.contains(TestBean.class, "TST000001"));
+		assertSame(b1, overlay.getBean(TestBean.class, "TST000001"));
+		assertTrue(overlay.contains(TestBean.class, "TST000002"));
+		assertNull(overlay.getBean(TestBean.class, "TST000002"));
+		assertFalse(overlay.contains(TestBean.class, "TST000003"));
+
+		assertFalse(overlay.isModified(OtherBean.class));
+		overlay.modifyBeanType(OtherBean.class);
+		assertTrue(overlay.isModified(OtherBean.class));
+		assertFalse(overlay.isPatchable(OtherBean.class));
+
+		// a bean that wasn't saved has no oid, so we can't patch its type
+		overlay.saveBean(new TestBean(null));
+		assertFalse(overlay.isPatchable(TestBean.class));
+	}
+
+	/**
+	 * This makes sure patching removes deleted beans and leaves other types
+	 * alone.
+	 */
+	@Test
+	public void testPatchDeletedBeans() throws Exception {
+		TransactionOverlay overlay = new TransactionOverlay();
+		overlay.deleteBean(TestBean.class, "TST000002");
+
+		OrderByComparator orderBy = new OrderByComparator(false,
+				new ArrayList<FieldHelper>());
+		TestBean b1 = new TestBean("TST000001");
+		TestBean b2 = new TestBean("TST000002");
+		TestBean b3 = new TestBean("TST000003");
+		List<X2BaseBean> beans = Arrays.<X2BaseBean> asList(b1, b2, b3);
+
+		assertEquals(Arrays.asList(b1, b3),
+				overlay.patch(TestBean.class, null, orderBy, beans));
+		assertSame(beans, overlay.patch(OtherBean.class, null, orderBy, beans));
+	}
+}
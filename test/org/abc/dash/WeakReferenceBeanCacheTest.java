@@ -0,0 +1,148 @@
+package org.abc.dash;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.follett.fsc.core.k12.beans.X2BaseBean;
+
+public class WeakReferenceBeanCacheTest extends TestCase {
+
+	static class TestBean extends X2BaseBean {
+		private static final long serialVersionUID = 1L;
+
+		String oid;
+
+		TestBean(String oid) {
+			this.oid = oid;
+		}
+
+		@Override
+		public String getOid() {
+			return oid;
+		}
+	}
+
+	@Test
+	public void testStoreAndRemove() {
+		WeakReferenceBeanCache cache = new WeakReferenceBeanCache();
+		TestBean b1 = new TestBean("TST000001");
+		TestBean b2 = new TestBean("TST000002");
+		cache.storeBean(b1);
+		cache.storeBean(b2);
+		cache.storeBean(b1);
+		assertEquals(2, cache.size());
+		assertSame(b1, cache.getBeanByOid(TestBean.class, "TST000001"));
+		assertNull(cache.getBeanByOid(TestBean.class, "TST000003"));
+		assertNull(cache.getBeanByOid(TestBean.class, null));
+
+		assertTrue(cache.removeBean(TestBean.class, "TST000001"));
+		assertFalse(cache.removeBean(TestBean.class, "TST000001"));
+		assertNull(cache.getBeanByOid(TestBean.class, "TST000001"));
+
+		assertEquals(1, cache.clear(TestBean.class));
+		assertEquals(0, cache.size());
+		assertNull(cache.getBeanByOid(TestBean.class, "TST000002"));
+	}
+
+	/**
+	 * This makes sure several threads can store and retrieve beans at once,
+	 * and size events are coalesced.
+	 */
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final WeakReferenceBeanCache cache = new WeakReferenceBeanCache();
+		final AtomicInteger eventCount = new AtomicInteger();
+		cache.addPropertyListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				eventCount.incrementAndGet();
+			}
+		});
+
+		final List<TestBean> beans = new ArrayList<>();
+		for (int a = 0; a < 1000; a++) {
+			beans.add(new TestBean("TST" + a));
+		}
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int a = 0; a < 100; a++) {
+						for (TestBean bean : beans) {
+							cache.storeBean(bean);
+							if (cache.getBeanByOid(TestBean.class,
+									bean.getOid()) != bean)
+								failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, failures.get());
+		assertEquals(beans.size(), cache.size());
+		assertTrue(eventCount.get() < 100);
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * This makes sure the size events suppressed during a burst of changes
+	 * are eventually delivered, and forced events are always delivered.
+	 */
+	@Test
+	public void testTrailingSizeEvent() {
+		WeakReferenceBeanCache cache = new WeakReferenceBeanCache();
+		final List<Integer> sizes = new ArrayList<>();
+		cache.addPropertyListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				sizes.add((Integer) evt.getNewValue());
+			}
+		});
+
+		List<TestBean> beans = new ArrayList<>();
+		for (int a = 0; a < 10; a++) {
+			beans.add(new TestBean("TST" + a));
+			cache.storeBean(beans.get(a));
+		}
+		assertEquals(1, sizes.size());
+		assertEquals(1, sizes.get(0).intValue());
+
+		// the interval hasn't passed yet:
+		cache.getBeanByOid(TestBean.class, "TST0");
+		assertEquals(1, sizes.size());
+
+		// simulate the interval passing, then the next read reports the rest
+		// of the burst:
+		cache.lastSizeEvent
+				.addAndGet(-WeakReferenceBeanCache.SIZE_EVENT_INTERVAL);
+		cache.getBeanByOid(TestBean.class, "TST0");
+		assertEquals(2, sizes.size());
+		assertEquals(10, sizes.get(1).intValue());
+		cache.flushSizeEvent();
+		assertEquals(2, sizes.size());
+
+		// a forced event isn't throttled:
+		cache.removeBean(TestBean.class, "TST0");
+		assertEquals(2, sizes.size());
+		cache.clear();
+		assertEquals(3, sizes.size());
+		assertEquals(0, sizes.get(2).intValue());
+	}
+}